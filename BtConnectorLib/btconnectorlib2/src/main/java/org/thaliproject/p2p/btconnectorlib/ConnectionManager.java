@@ -15,6 +15,14 @@ import android.util.Log;
 import org.thaliproject.p2p.btconnectorlib.internal.AbstractBluetoothConnectivityAgent;
 import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.BluetoothConnector;
 import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.BluetoothManager;
+import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.ConnectionAttemptScheduler;
+import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.ConnectionCircuitBreaker;
+import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.ConnectionFuture;
+import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.ConnectionPool;
+import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.ConnectionTraceStatistics;
+import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.IncomingConnectionStatistics;
+import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.RfcommChannelCache;
+import org.thaliproject.p2p.btconnectorlib.utils.PeerCache;
 import org.thaliproject.p2p.btconnectorlib.utils.ThreadUtils;
 
 import java.util.UUID;
@@ -71,10 +79,35 @@ public class ConnectionManager
         void onConnectionFailed(PeerProperties peerProperties, String errorMessage);
     }
 
+    /**
+     * An optional extension of the listener for receiving the application data the peer sent
+     * right after its handshake message (see connect(PeerProperties, byte[])). If the listener
+     * implements this interface, this onConnected variant is called instead of the one in
+     * ConnectionManagerListener.
+     */
+    public interface PipelinedConnectionManagerListener extends ConnectionManagerListener {
+        /**
+         * Called when successfully connected to a peer.
+         * Note that the ownership of the bluetooth socket is transferred to the listener.
+         *
+         * @param bluetoothSocket The Bluetooth socket associated with the peer.
+         * @param isIncoming      True, if the connection was incoming. False, if outgoing.
+         * @param peerProperties  The properties of the peer we're connected to.
+         * @param initialData     The data the peer sent right after its handshake message and
+         *                        that was read together with it. These bytes precede any data
+         *                        read from the socket. Null, if none.
+         */
+        void onConnected(BluetoothSocket bluetoothSocket, boolean isIncoming,
+                         PeerProperties peerProperties, byte[] initialData);
+    }
+
     private static final String TAG = ConnectionManager.class.getName();
     private final ConnectionManagerListener mListener;
     private final Handler mHandler;
     private final BluetoothConnector mBluetoothConnector;
+    private final ConnectionCircuitBreaker mConnectionCircuitBreaker = new ConnectionCircuitBreaker();
+    private volatile ConnectionPool mConnectionPool = null;
+    private volatile PeerCache mPeerCache = null;
     private ConnectionManagerState mState = ConnectionManagerState.NOT_STARTED;
     private UUID mMyUuid = null;
     private String mMyName = null;
@@ -226,18 +259,71 @@ public class ConnectionManager
      * @return True, if the connection process was started successfully.
      */
     public synchronized boolean connect(PeerProperties peerToConnectTo) {
+        return connect(peerToConnectTo, null);
+    }
+
+    /**
+     * Tries to connect to the given device and sends the given data right after our handshake
+     * message, which saves a round trip. Note that the peer must support receiving the data
+     * together with the handshake message (see PipelinedConnectionManagerListener).
+     *
+     * @param peerToConnectTo The peer to connect to.
+     * @param initialData     The data to send after the handshake message. Null, if none.
+     * @return True, if the connection process was started successfully.
+     */
+    public synchronized boolean connect(PeerProperties peerToConnectTo, byte[] initialData) {
+        return connect(peerToConnectTo, initialData, BluetoothConnector.DEFAULT_CONNECTION_ATTEMPT_PRIORITY);
+    }
+
+    /**
+     * Tries to connect to the given device with the given priority. Only a limited number of
+     * connection attempts run at the same time (see
+     * ConnectionManagerSettings.setMaxNumberOfConcurrentConnectionAttempts()). The rest are queued
+     * and the ones with a higher priority start first.
+     *
+     * If the connection attempts to the peer have failed repeatedly, no attempt is made until the
+     * backoff time has elapsed (see getConnectionCircuitBreaker()).
+     *
+     * If a connection pool is set and it has an idle connection to the peer, the connection is
+     * reused: the listener is notified right away and no new connection is established. Note that
+     * the pool is not used, if initial data is given.
+     *
+     * If the peer connects to us at the same time, only one of the two connections is kept and
+     * the listener is notified once (see BluetoothConnector.onIncomingHandshakeReceived()).
+     *
+     * @param peerToConnectTo The peer to connect to.
+     * @param initialData     The data to send after the handshake message. Null, if none.
+     * @param priority        The priority of the connection attempt.
+     * @return True, if the connection process was started (or queued) successfully.
+     */
+    public synchronized boolean connect(PeerProperties peerToConnectTo, byte[] initialData, int priority) {
         boolean success = false;
 
         if (peerToConnectTo != null) {
             Log.i(TAG, "connect: " + peerToConnectTo.toString());
+            String bluetoothMacAddress = peerToConnectTo.getBluetoothMacAddress();
+            BluetoothSocket pooledBluetoothSocket = leasePooledConnection(peerToConnectTo, initialData);
+
+            if (pooledBluetoothSocket != null) {
+                notifyConnected(pooledBluetoothSocket, false, peerToConnectTo, null);
+                return true;
+            }
+
+            if (!isConnectionAttemptAllowed(peerToConnectTo)) {
+                return false;
+            }
 
             try {
-                BluetoothDevice device = mBluetoothManager.getRemoteDevice(peerToConnectTo.getBluetoothMacAddress());
-                success = mBluetoothConnector.connect(device, peerToConnectTo);
+                BluetoothDevice device = mBluetoothManager.getRemoteDevice(bluetoothMacAddress);
+                success = mBluetoothConnector.connect(device, peerToConnectTo, initialData, priority);
             } catch (NullPointerException e) {
                 Log.e(TAG, "connect: Failed to start connecting to peer "
                         + peerToConnectTo.toString() + ": " + e.getMessage(), e);
             }
+
+            if (!success) {
+                mConnectionCircuitBreaker.onConnectionAttemptCancelled(bluetoothMacAddress);
+            }
         } else {
             Log.e(TAG, "connect: The given device is null!");
         }
@@ -245,6 +331,75 @@ public class ConnectionManager
         return success;
     }
 
+    /**
+     * Tries to connect to the given device with the default priority and returns a future for
+     * the attempt (see connectAsync(PeerProperties, byte[], int)).
+     *
+     * @param peerToConnectTo The peer to connect to.
+     * @return The future of the connection attempt.
+     */
+    public synchronized ConnectionFuture connectAsync(PeerProperties peerToConnectTo) {
+        return connectAsync(peerToConnectTo, null, BluetoothConnector.DEFAULT_CONNECTION_ATTEMPT_PRIORITY);
+    }
+
+    /**
+     * Tries to connect to the given device like connect(PeerProperties, byte[], int), but returns
+     * a future for the attempt. The future is completed by the thread resolving the attempt and
+     * thus, the result can be handled without waiting for the main thread: the listeners of the
+     * future are run with the executor chosen per listener (see ConnectionFuture.addListener()).
+     * ConnectionManagerListener is notified as usual and receives the same socket.
+     *
+     * Cancelling the future cancels the connection attempt, unless the same attempt was requested
+     * again with another call (see BluetoothConnector.connectAsync()).
+     *
+     * @param peerToConnectTo The peer to connect to.
+     * @param initialData     The data to send after the handshake message. Null, if none.
+     * @param priority        The priority of the connection attempt.
+     * @return The future of the connection attempt. Failed right away, if the attempt could not
+     * be started e.g. the circuit of the peer is open.
+     */
+    public synchronized ConnectionFuture connectAsync(PeerProperties peerToConnectTo, byte[] initialData, int priority) {
+        ConnectionFuture connectionFuture = null;
+
+        if (peerToConnectTo != null) {
+            Log.i(TAG, "connectAsync: " + peerToConnectTo.toString());
+            String bluetoothMacAddress = peerToConnectTo.getBluetoothMacAddress();
+            BluetoothSocket pooledBluetoothSocket = leasePooledConnection(peerToConnectTo, initialData);
+
+            if (pooledBluetoothSocket != null) {
+                connectionFuture = ConnectionFuture.createConnected(pooledBluetoothSocket, peerToConnectTo);
+                notifyConnected(pooledBluetoothSocket, false, peerToConnectTo, null);
+                return connectionFuture;
+            }
+
+            if (!isConnectionAttemptAllowed(peerToConnectTo)) {
+                return ConnectionFuture.createFailed(peerToConnectTo, "The previous attempts failed, retry in "
+                        + mConnectionCircuitBreaker.getTimeUntilRetryInMilliseconds(bluetoothMacAddress) + " ms");
+            }
+
+            try {
+                BluetoothDevice device = mBluetoothManager.getRemoteDevice(bluetoothMacAddress);
+                connectionFuture = mBluetoothConnector.connectAsync(device, peerToConnectTo, initialData, priority);
+            } catch (NullPointerException e) {
+                Log.e(TAG, "connectAsync: Failed to start connecting to peer "
+                        + peerToConnectTo.toString() + ": " + e.getMessage(), e);
+            }
+
+            if (connectionFuture == null || (connectionFuture.isDone() && connectionFuture.getErrorMessage() != null)) {
+                mConnectionCircuitBreaker.onConnectionAttemptCancelled(bluetoothMacAddress);
+            }
+        } else {
+            Log.e(TAG, "connectAsync: The given device is null!");
+        }
+
+        if (connectionFuture == null) {
+            connectionFuture = ConnectionFuture.createFailed(
+                    peerToConnectTo, "Failed to start connecting to " + peerToConnectTo);
+        }
+
+        return connectionFuture;
+    }
+
     /**
      * Cancels an ongoing connection attempt to the peer with the given properties.
      *
@@ -264,6 +419,161 @@ public class ConnectionManager
         mBluetoothConnector.cancelAllConnectionAttempts();
     }
 
+    /**
+     * @return The statistics of accepted incoming connections e.g. the accept rate and latency.
+     */
+    public IncomingConnectionStatistics getIncomingConnectionStatistics() {
+        return mBluetoothConnector.getIncomingConnectionStatistics();
+    }
+
+    /**
+     * @return The phase-level timing (socket creation, socket connect and handshake) of the
+     * outgoing connection attempts e.g. for tuning the timeouts.
+     */
+    public ConnectionTraceStatistics getOutgoingConnectionTraceStatistics() {
+        return mBluetoothConnector.getOutgoingConnectionTraceStatistics();
+    }
+
+    /**
+     * @return The phase-level timing of the handshakes of the incoming connections.
+     */
+    public ConnectionTraceStatistics getIncomingConnectionTraceStatistics() {
+        return mBluetoothConnector.getIncomingConnectionTraceStatistics();
+    }
+
+    /**
+     * Sets the listener notified of the trace of every completed connection attempt, both
+     * outgoing and incoming. Note that the listener is not called from the UI thread.
+     *
+     * @param listener The listener. If null, no notifications are sent.
+     */
+    public void setConnectionTraceListener(ConnectionTraceStatistics.Listener listener) {
+        mBluetoothConnector.setConnectionTraceListener(listener);
+    }
+
+    /**
+     * @return The scheduler of the outgoing connection attempts e.g. for the queue depth and the
+     * wait time metrics.
+     */
+    public ConnectionAttemptScheduler getConnectionAttemptScheduler() {
+        return mBluetoothConnector.getConnectionAttemptScheduler();
+    }
+
+    /**
+     * @return The failure history of the outgoing connection attempts per peer. Can be used to
+     * check the circuit state of a peer (see ConnectionCircuitBreaker.getState()) in order to skip
+     * the peers that keep failing or to adjust the failure threshold and the backoff times.
+     */
+    public ConnectionCircuitBreaker getConnectionCircuitBreaker() {
+        return mConnectionCircuitBreaker;
+    }
+
+    /**
+     * Sets the pool used to reuse the connections to the peers. When set, all the sockets handed
+     * to the listener are tracked by the pool and can be returned to it (see
+     * ConnectionPool.release()) instead of closing them. The pool is owned by the caller and thus,
+     * it is not closed, when this instance is disposed.
+     *
+     * @param connectionPool The connection pool. If null, no connections are reused.
+     */
+    public void setConnectionPool(ConnectionPool connectionPool) {
+        mConnectionPool = connectionPool;
+    }
+
+    /**
+     * @return The connection pool or null, if not set.
+     */
+    public ConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
+
+    /**
+     * Sets the peer cache to record the outcomes of the connection attempts to. The cache is
+     * owned by the caller, but it is saved, when this instance is disposed.
+     *
+     * @param peerCache The peer cache. If null, nothing is recorded.
+     */
+    public void setPeerCache(PeerCache peerCache) {
+        mPeerCache = peerCache;
+    }
+
+    /**
+     * @return The peer cache or null, if not set.
+     */
+    public PeerCache getPeerCache() {
+        return mPeerCache;
+    }
+
+    /**
+     * @param peerProperties The properties of the peer.
+     * @return The state of the circuit of the given peer. If OPEN, connect() will fail immediately.
+     */
+    public ConnectionCircuitBreaker.State getCircuitState(PeerProperties peerProperties) {
+        return (peerProperties != null)
+                ? mConnectionCircuitBreaker.getState(peerProperties.getBluetoothMacAddress())
+                : ConnectionCircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * @return The cache of the RFCOMM channels last used to connect to the peers successfully.
+     */
+    public RfcommChannelCache getRfcommChannelCache() {
+        return mBluetoothConnector.getRfcommChannelCache();
+    }
+
+    /**
+     * Records the failed connection attempt to the peer cache, if set.
+     *
+     * @param peerProperties The properties of the peer.
+     */
+    private void recordConnectionFailed(PeerProperties peerProperties) {
+        PeerCache peerCache = mPeerCache;
+
+        if (peerCache != null) {
+            peerCache.recordConnectionFailed(peerProperties.getBluetoothMacAddress());
+        }
+    }
+
+    /**
+     * Leases an idle connection to the given peer from the connection pool, if set.
+     *
+     * @param peerProperties The properties of the peer.
+     * @param initialData    The data to send after the handshake message. The pool is not used,
+     *                       if given.
+     * @return The pooled Bluetooth socket or null, if none.
+     */
+    private BluetoothSocket leasePooledConnection(PeerProperties peerProperties, byte[] initialData) {
+        ConnectionPool connectionPool = mConnectionPool;
+        BluetoothSocket pooledBluetoothSocket = null;
+
+        if (connectionPool != null && initialData == null) {
+            pooledBluetoothSocket = connectionPool.lease(peerProperties.getBluetoothMacAddress());
+
+            if (pooledBluetoothSocket != null) {
+                Log.i(TAG, "leasePooledConnection: Reusing a pooled connection to peer " + peerProperties.toString());
+            }
+        }
+
+        return pooledBluetoothSocket;
+    }
+
+    /**
+     * @param peerProperties The properties of the peer.
+     * @return True, if the circuit breaker allows connecting to the given peer. False otherwise.
+     */
+    private boolean isConnectionAttemptAllowed(PeerProperties peerProperties) {
+        String bluetoothMacAddress = peerProperties.getBluetoothMacAddress();
+
+        if (!mConnectionCircuitBreaker.allowConnectionAttempt(bluetoothMacAddress)) {
+            Log.w(TAG, "isConnectionAttemptAllowed: Not connecting to peer " + peerProperties.toString()
+                    + ", since the previous attempts failed; retry in "
+                    + mConnectionCircuitBreaker.getTimeUntilRetryInMilliseconds(bluetoothMacAddress) + " ms");
+            return false;
+        }
+
+        return true;
+    }
+
     @Override
     public void dispose() {
         Log.i(TAG, "dispose");
@@ -272,6 +582,11 @@ public class ConnectionManager
         mBluetoothConnector.shutdown();
         mSettings.removeListener(this);
         removeAsDiscoverySettingsListener();
+        PeerCache peerCache = mPeerCache;
+
+        if (peerCache != null) {
+            peerCache.saveAsync();
+        }
     }
 
     /**
@@ -282,6 +597,11 @@ public class ConnectionManager
         mBluetoothConnector.setConnectionTimeout(mSettings.getConnectionTimeout());
         mBluetoothConnector.setInsecureRfcommSocketPort(mSettings.getInsecureRfcommSocketPortNumber());
         mBluetoothConnector.setMaxNumberOfOutgoingConnectionAttemptRetries(mSettings.getMaxNumberOfConnectionAttemptRetries());
+        mBluetoothConnector.setPersistentServerSocket(mSettings.getPersistentServerSocket());
+        mBluetoothConnector.setHandshakeTimeout(mSettings.getHandshakeTimeout());
+        mBluetoothConnector.setMaxNumberOfPendingIncomingHandshakes(mSettings.getMaxNumberOfPendingIncomingHandshakes());
+        mBluetoothConnector.setBinaryHandshake(mSettings.getBinaryHandshake());
+        mBluetoothConnector.setMaxNumberOfConcurrentConnectionAttempts(mSettings.getMaxNumberOfConcurrentConnectionAttempts());
     }
 
     /**
@@ -371,24 +691,72 @@ public class ConnectionManager
     }
 
     /**
-     * Notifies the listener about a successful connection.
+     * Records a successful connection and notifies the listener about it.
      *
      * @param bluetoothSocket The Bluetooth socket.
      * @param isIncoming      True, if the connection was incoming. False, if it was outgoing.
      * @param peerProperties  The properties of the peer connected to.
+     * @param initialData     The application data read together with the handshake message.
      */
     @Override
     public void onConnected(
             final BluetoothSocket bluetoothSocket, final boolean isIncoming,
-            final PeerProperties peerProperties) {
+            final PeerProperties peerProperties, final byte[] initialData) {
         Log.i(TAG, "onConnected: " + peerProperties);
 
+        if (peerProperties != null) {
+            // An incoming connection also proves that the peer is reachable
+            mConnectionCircuitBreaker.onConnectionSucceeded(peerProperties.getBluetoothMacAddress());
+            ConnectionPool connectionPool = mConnectionPool;
+
+            if (connectionPool != null) {
+                connectionPool.track(peerProperties.getBluetoothMacAddress(), bluetoothSocket);
+            }
+
+            PeerCache peerCache = mPeerCache;
+
+            if (peerCache != null) {
+                // The channel is known only for outgoing connections
+                RfcommChannelCache rfcommChannelCache = isIncoming ? null : mBluetoothConnector.getRfcommChannelCache();
+                Integer channel = (rfcommChannelCache != null)
+                        ? rfcommChannelCache.peek(peerProperties.getBluetoothMacAddress()) : null;
+                peerCache.recordConnectionSucceeded(peerProperties,
+                        (channel != null) ? channel : PeerCache.PORT_UNKNOWN);
+            }
+        }
+
+        notifyConnected(bluetoothSocket, isIncoming, peerProperties, initialData);
+    }
+
+    /**
+     * Notifies the listener about a connection. Unlike onConnected(), records nothing and thus,
+     * is used as is for the connections reused from the pool, which are already tracked.
+     *
+     * @param bluetoothSocket The Bluetooth socket.
+     * @param isIncoming      True, if the connection was incoming. False, if it was outgoing.
+     * @param peerProperties  The properties of the peer connected to.
+     * @param initialData     The application data read together with the handshake message.
+     */
+    private void notifyConnected(
+            final BluetoothSocket bluetoothSocket, final boolean isIncoming,
+            final PeerProperties peerProperties, final byte[] initialData) {
         if (mListener != null) {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
                     Log.i(TAG, "onConnected run: " + peerProperties + ". " + ThreadUtils.currentThreadToString());
-                    mListener.onConnected(bluetoothSocket, isIncoming, peerProperties);
+
+                    if (mListener instanceof PipelinedConnectionManagerListener) {
+                        ((PipelinedConnectionManagerListener) mListener).onConnected(
+                                bluetoothSocket, isIncoming, peerProperties, initialData);
+                    } else {
+                        if (initialData != null) {
+                            Log.w(TAG, "onConnected run: Discarding " + initialData.length
+                                    + " bytes of initial data, since the listener does not support it");
+                        }
+
+                        mListener.onConnected(bluetoothSocket, isIncoming, peerProperties);
+                    }
                 }
             });
         }
@@ -403,6 +771,8 @@ public class ConnectionManager
     public void onConnectionTimeout(final PeerProperties peerProperties) {
         if (peerProperties != null) {
             Log.e(TAG, "onConnectionTimeout: Connection attempt with peer " + peerProperties + " timed out");
+            mConnectionCircuitBreaker.onConnectionFailed(peerProperties.getBluetoothMacAddress());
+            recordConnectionFailed(peerProperties);
         } else {
             Log.e(TAG, "onConnectionTimeout");
         }
@@ -427,6 +797,8 @@ public class ConnectionManager
     public void onConnectionFailed(final PeerProperties peerProperties, final String errorMessage) {
         if (peerProperties != null) {
             Log.w(TAG, "onConnectionFailed: Failed to connect to peer " + peerProperties + ": " + errorMessage);
+            mConnectionCircuitBreaker.onConnectionFailed(peerProperties.getBluetoothMacAddress());
+            recordConnectionFailed(peerProperties);
         } else {
             Log.w(TAG, "onConnectionFailed: " + errorMessage);
         }
@@ -441,6 +813,18 @@ public class ConnectionManager
         }
     }
 
+    /**
+     * Allows another trial attempt to the peer, if its circuit is half-open, since the outcome of
+     * the cancelled attempt remains unknown.
+     *
+     * @param peerProperties The properties of the peer we were trying to connect to.
+     */
+    @Override
+    public void onConnectionAttemptCancelled(PeerProperties peerProperties) {
+        Log.d(TAG, "onConnectionAttemptCancelled: " + peerProperties);
+        mConnectionCircuitBreaker.onConnectionAttemptCancelled(peerProperties.getBluetoothMacAddress());
+    }
+
     @Override
     public void onDiscoveryModeChanged(DiscoveryManager.DiscoveryMode discoveryMode, boolean startIfNotRunning) {
         //do nothing
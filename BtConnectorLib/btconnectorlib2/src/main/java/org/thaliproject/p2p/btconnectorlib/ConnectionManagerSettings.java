@@ -25,12 +25,22 @@ public class ConnectionManagerSettings extends AbstractSettings {
     public static final int DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT = BluetoothConnector.DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT;
     public static final int DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES = BluetoothConnector.DEFAULT_MAX_NUMBER_OF_RETRIES;
     public static final boolean DEFAULT_HANDSHAKE_REQUIRED = BluetoothConnector.DEFAULT_HANDSHAKE_REQUIRED;
+    public static final boolean DEFAULT_PERSISTENT_SERVER_SOCKET = BluetoothConnector.DEFAULT_PERSISTENT_SERVER_SOCKET;
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS = BluetoothConnector.DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS;
+    public static final int DEFAULT_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES = BluetoothConnector.DEFAULT_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES;
+    public static final boolean DEFAULT_BINARY_HANDSHAKE = BluetoothConnector.DEFAULT_BINARY_HANDSHAKE;
+    public static final int DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS = BluetoothConnector.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS;
 
     // Keys for shared preferences
     private static final String KEY_CONNECTION_TIMEOUT = "connection_timeout";
     private static final String KEY_PORT_NUMBER = "port_number";
     private static final String KEY_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES = "max_number_of_connection_attempt_retries";
     private static final String KEY_HANDSHAKE_REQUIRED = "require_handshake";
+    private static final String KEY_PERSISTENT_SERVER_SOCKET = "persistent_server_socket";
+    private static final String KEY_HANDSHAKE_TIMEOUT = "handshake_timeout";
+    private static final String KEY_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES = "max_number_of_pending_incoming_handshakes";
+    private static final String KEY_BINARY_HANDSHAKE = "binary_handshake";
+    private static final String KEY_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS = "max_number_of_concurrent_connection_attempts";
 
     private static final String TAG = ConnectionManagerSettings.class.getName();
     private static final int MAX_INSECURE_RFCOMM_SOCKET_PORT = 30;
@@ -41,6 +51,11 @@ public class ConnectionManagerSettings extends AbstractSettings {
     private int mInsecureRfcommSocketPortNumber = DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT;
     private int mMaxNumberOfConnectionAttemptRetries = DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES;
     private boolean mHandshakeRequired = DEFAULT_HANDSHAKE_REQUIRED;
+    private boolean mPersistentServerSocket = DEFAULT_PERSISTENT_SERVER_SOCKET;
+    private long mHandshakeTimeoutInMilliseconds = DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS;
+    private int mMaxNumberOfPendingIncomingHandshakes = DEFAULT_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES;
+    private boolean mBinaryHandshake = DEFAULT_BINARY_HANDSHAKE;
+    private int mMaxNumberOfConcurrentConnectionAttempts = DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS;
 
     /**
      * @param context The application context for the shared preferences.
@@ -239,6 +254,165 @@ public class ConnectionManagerSettings extends AbstractSettings {
         }
     }
 
+    /**
+     * @return True, if the server socket is kept open between accepted incoming connections.
+     */
+    public boolean getPersistentServerSocket() {
+        return mPersistentServerSocket;
+    }
+
+    /**
+     * Sets whether the server socket is kept open between accepted incoming connections or not.
+     * When not persistent, the server socket is closed and recreated after every accepted
+     * connection, which means incoming connection attempts are refused in the meanwhile.
+     * @param persistentServerSocket If true, will keep the server socket open and accept connections continuously.
+     */
+    public void setPersistentServerSocket(boolean persistentServerSocket) {
+        if (mPersistentServerSocket != persistentServerSocket) {
+            Log.d(TAG, "setPersistentServerSocket: " + mPersistentServerSocket + " -> " + persistentServerSocket);
+            mPersistentServerSocket = persistentServerSocket;
+            mSharedPreferencesEditor.putBoolean(KEY_PERSISTENT_SERVER_SOCKET, mPersistentServerSocket);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The handshake timeout in milliseconds.
+     */
+    public long getHandshakeTimeout() {
+        return mHandshakeTimeoutInMilliseconds;
+    }
+
+    /**
+     * Sets the time a handshake is allowed to take. Connections, which fail to complete the
+     * handshake in time, are closed. If the given value is negative or zero, no timeout is set.
+     * @param handshakeTimeoutInMilliseconds The handshake timeout in milliseconds.
+     */
+    public void setHandshakeTimeout(long handshakeTimeoutInMilliseconds) {
+        if (mHandshakeTimeoutInMilliseconds != handshakeTimeoutInMilliseconds) {
+            mHandshakeTimeoutInMilliseconds = handshakeTimeoutInMilliseconds;
+            mSharedPreferencesEditor.putLong(KEY_HANDSHAKE_TIMEOUT, mHandshakeTimeoutInMilliseconds);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The maximum number of incoming connections waiting for the handshake to complete.
+     */
+    public int getMaxNumberOfPendingIncomingHandshakes() {
+        return mMaxNumberOfPendingIncomingHandshakes;
+    }
+
+    /**
+     * Sets the maximum number of incoming connections waiting for the handshake to complete.
+     * When the limit is reached, the oldest pending connection is dropped to make room for a new one.
+     * @param maxNumberOfPendingHandshakes The maximum number of pending incoming handshakes. Must be positive.
+     * @return True, if the value was set successfully. False otherwise.
+     */
+    public boolean setMaxNumberOfPendingIncomingHandshakes(int maxNumberOfPendingHandshakes) {
+        boolean wasSet = false;
+
+        if (mMaxNumberOfPendingIncomingHandshakes != maxNumberOfPendingHandshakes) {
+            if (maxNumberOfPendingHandshakes > 0) {
+                mMaxNumberOfPendingIncomingHandshakes = maxNumberOfPendingHandshakes;
+                mSharedPreferencesEditor.putInt(KEY_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES, mMaxNumberOfPendingIncomingHandshakes);
+                mSharedPreferencesEditor.apply();
+
+                if (mListeners.size() > 0) {
+                    for (Listener listener : mListeners) {
+                        listener.onConnectionManagerSettingsChanged();
+                    }
+                }
+
+                wasSet = true;
+            } else {
+                Log.e(TAG, "setMaxNumberOfPendingIncomingHandshakes: Invalid value: " + maxNumberOfPendingHandshakes);
+            }
+        }
+
+        return wasSet;
+    }
+
+    /**
+     * @return True, if the outgoing connections use the compact binary handshake message.
+     */
+    public boolean getBinaryHandshake() {
+        return mBinaryHandshake;
+    }
+
+    /**
+     * Sets whether the outgoing connections use the compact binary handshake message instead of
+     * the JSON identity string. Incoming connections using either format are always accepted.
+     * Enable only, if the peers are known to support the binary handshake.
+     * @param binaryHandshake If true, will use the binary handshake message for outgoing connections.
+     */
+    public void setBinaryHandshake(boolean binaryHandshake) {
+        if (mBinaryHandshake != binaryHandshake) {
+            Log.d(TAG, "setBinaryHandshake: " + mBinaryHandshake + " -> " + binaryHandshake);
+            mBinaryHandshake = binaryHandshake;
+            mSharedPreferencesEditor.putBoolean(KEY_BINARY_HANDSHAKE, mBinaryHandshake);
+            mSharedPreferencesEditor.apply();
+
+            if (mListeners.size() > 0) {
+                for (Listener listener : mListeners) {
+                    listener.onConnectionManagerSettingsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The maximum number of outgoing connection attempts running at the same time.
+     */
+    public int getMaxNumberOfConcurrentConnectionAttempts() {
+        return mMaxNumberOfConcurrentConnectionAttempts;
+    }
+
+    /**
+     * Sets the maximum number of outgoing connection attempts running at the same time. The
+     * attempts exceeding the limit are queued.
+     * @param maxNumberOfConcurrentConnectionAttempts The maximum number of concurrent attempts.
+     *                                                Zero means no limit. Must not be negative.
+     * @return True, if the value was set successfully. False otherwise.
+     */
+    public boolean setMaxNumberOfConcurrentConnectionAttempts(int maxNumberOfConcurrentConnectionAttempts) {
+        boolean wasSet = false;
+
+        if (mMaxNumberOfConcurrentConnectionAttempts != maxNumberOfConcurrentConnectionAttempts) {
+            if (maxNumberOfConcurrentConnectionAttempts >= 0) {
+                mMaxNumberOfConcurrentConnectionAttempts = maxNumberOfConcurrentConnectionAttempts;
+                mSharedPreferencesEditor.putInt(KEY_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS,
+                        mMaxNumberOfConcurrentConnectionAttempts);
+                mSharedPreferencesEditor.apply();
+
+                if (mListeners.size() > 0) {
+                    for (Listener listener : mListeners) {
+                        listener.onConnectionManagerSettingsChanged();
+                    }
+                }
+
+                wasSet = true;
+            } else {
+                Log.e(TAG, "setMaxNumberOfConcurrentConnectionAttempts: Invalid value: "
+                        + maxNumberOfConcurrentConnectionAttempts);
+            }
+        }
+
+        return wasSet;
+    }
+
     @Override
     public void load() {
         if (!mLoaded) {
@@ -250,12 +424,26 @@ public class ConnectionManagerSettings extends AbstractSettings {
             mMaxNumberOfConnectionAttemptRetries = mSharedPreferences.getInt(
                     KEY_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES, DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES);
             mHandshakeRequired = mSharedPreferences.getBoolean(KEY_HANDSHAKE_REQUIRED, DEFAULT_HANDSHAKE_REQUIRED);
+            mPersistentServerSocket = mSharedPreferences.getBoolean(
+                    KEY_PERSISTENT_SERVER_SOCKET, DEFAULT_PERSISTENT_SERVER_SOCKET);
+            mHandshakeTimeoutInMilliseconds = mSharedPreferences.getLong(
+                    KEY_HANDSHAKE_TIMEOUT, DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS);
+            mMaxNumberOfPendingIncomingHandshakes = mSharedPreferences.getInt(
+                    KEY_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES, DEFAULT_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES);
+            mBinaryHandshake = mSharedPreferences.getBoolean(KEY_BINARY_HANDSHAKE, DEFAULT_BINARY_HANDSHAKE);
+            mMaxNumberOfConcurrentConnectionAttempts = mSharedPreferences.getInt(
+                    KEY_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS, DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS);
 
             Log.v(TAG, "load: "
                     + "\n    - Connection timeout in milliseconds: " + mConnectionTimeoutInMilliseconds
                     + "\n    - Insecure RFCOMM socket port number: " + mInsecureRfcommSocketPortNumber
                     + "\n    - Maximum number of connection attempt retries: " + mMaxNumberOfConnectionAttemptRetries
-                    + "\n    - Handshake required: " + mHandshakeRequired);
+                    + "\n    - Handshake required: " + mHandshakeRequired
+                    + "\n    - Persistent server socket: " + mPersistentServerSocket
+                    + "\n    - Handshake timeout in milliseconds: " + mHandshakeTimeoutInMilliseconds
+                    + "\n    - Maximum number of pending incoming handshakes: " + mMaxNumberOfPendingIncomingHandshakes
+                    + "\n    - Binary handshake: " + mBinaryHandshake
+                    + "\n    - Maximum number of concurrent connection attempts: " + mMaxNumberOfConcurrentConnectionAttempts);
         } else {
             Log.v(TAG, "load: Already loaded");
         }
@@ -267,5 +455,10 @@ public class ConnectionManagerSettings extends AbstractSettings {
         setInsecureRfcommSocketPortNumber(SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
         setMaxNumberOfConnectionAttemptRetries(DEFAULT_MAX_NUMBER_OF_CONNECTION_ATTEMPT_RETRIES);
         setHandshakeRequired(DEFAULT_HANDSHAKE_REQUIRED);
+        setPersistentServerSocket(DEFAULT_PERSISTENT_SERVER_SOCKET);
+        setHandshakeTimeout(DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS);
+        setMaxNumberOfPendingIncomingHandshakes(DEFAULT_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES);
+        setBinaryHandshake(DEFAULT_BINARY_HANDSHAKE);
+        setMaxNumberOfConcurrentConnectionAttempts(DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS);
     }
 }
@@ -24,12 +24,15 @@ import org.thaliproject.p2p.btconnectorlib.internal.wifi.WifiDirectManager;
 import org.thaliproject.p2p.btconnectorlib.internal.wifi.WifiPeerDiscoverer;
 import org.thaliproject.p2p.btconnectorlib.internal.wifi.WifiPeerDiscoverer.WifiPeerDiscovererStateSet;
 import org.thaliproject.p2p.btconnectorlib.utils.CommonUtils;
+import org.thaliproject.p2p.btconnectorlib.utils.PeerCache;
+import org.thaliproject.p2p.btconnectorlib.utils.PeerChangeBatcher;
 import org.thaliproject.p2p.btconnectorlib.utils.PeerModel;
 import org.thaliproject.p2p.btconnectorlib.utils.ThreadUtils;
 
 import java.util.Collection;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -43,6 +46,7 @@ public class DiscoveryManager
         BlePeerDiscoverer.BlePeerDiscoveryListener,
         BluetoothMacAddressResolutionHelper.BluetoothMacAddressResolutionHelperListener,
         PeerModel.Listener,
+        PeerChangeBatcher.Listener,
         DiscoveryManagerSettings.Listener {
 
     public enum DiscoveryManagerState {
@@ -218,6 +222,9 @@ public class DiscoveryManager
     private EnumSet<WifiPeerDiscovererStateSet> mWifiPeerDiscovererStateSet = EnumSet.of(WifiPeerDiscovererStateSet.NOT_STARTED);
     private EnumSet<BlePeerDiscovererStateSet> mBlePeerDiscovererStateSet = EnumSet.of(BlePeerDiscovererStateSet.NOT_STARTED);
     private PeerModel mPeerModel = null;
+    private volatile PeerChangeBatcher mPeerChangeBatcher = null;
+    private volatile PeerChangeBatcher.Listener mPeerChangesListener = null;
+    private PeerCache mPeerCache = null;
     private BluetoothMacAddressResolutionHelper mBluetoothMacAddressResolutionHelper = null;
     private String mMissingPermission = null;
     private long mLastTimeDeviceWasMadeDiscoverable = 0;
@@ -421,6 +428,73 @@ public class DiscoveryManager
         return mPeerModel;
     }
 
+    /**
+     * Sets the peer cache to record the discovered peers to. The cache is owned by the caller,
+     * but it is saved, when this instance is disposed. Load the cache (see PeerCache.loadAsync())
+     * at startup to get the probable peers without waiting for them to be discovered.
+     *
+     * @param peerCache The peer cache. If null, the peers are not recorded.
+     */
+    public synchronized void setPeerCache(PeerCache peerCache) {
+        if (mPeerCache != null) {
+            mPeerModel.removeListener(mPeerCache);
+        }
+
+        mPeerCache = peerCache;
+
+        if (mPeerCache != null) {
+            mPeerModel.addListener(mPeerCache);
+        }
+    }
+
+    /**
+     * @return The peer cache or null, if not set.
+     */
+    public synchronized PeerCache getPeerCache() {
+        return mPeerCache;
+    }
+
+    /**
+     * Sets the listener for batched peer changes using the default flush interval and batch size.
+     *
+     * @param peerChangesListener The listener. If null, the batching is disabled.
+     */
+    public void setPeerChangesListener(PeerChangeBatcher.Listener peerChangesListener) {
+        setPeerChangesListener(peerChangesListener,
+                PeerChangeBatcher.DEFAULT_FLUSH_INTERVAL_IN_MILLISECONDS,
+                PeerChangeBatcher.DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Sets the listener for batched peer changes. While set, the peer changes are coalesced and
+     * delivered in batches, on the main thread, instead of one by one. This applies to the peer
+     * callbacks of DiscoveryManagerListener too: they are called for each peer in a batch right
+     * after the batch is delivered to the given listener.
+     *
+     * @param peerChangesListener         The listener. If null, the batching is disabled.
+     * @param flushIntervalInMilliseconds The maximum time a change is held before delivering it.
+     * @param maxBatchSize                The number of pending changes, which causes the batch to
+     *                                    be delivered right away.
+     */
+    public synchronized void setPeerChangesListener(
+            PeerChangeBatcher.Listener peerChangesListener, long flushIntervalInMilliseconds, int maxBatchSize) {
+        final PeerChangeBatcher oldPeerChangeBatcher = mPeerChangeBatcher;
+
+        mPeerChangeBatcher = (peerChangesListener != null)
+                ? new PeerChangeBatcher(mHandler, this, flushIntervalInMilliseconds, maxBatchSize) : null;
+        mPeerChangesListener = peerChangesListener;
+
+        if (oldPeerChangeBatcher != null && oldPeerChangeBatcher.getNumberOfPendingChanges() > 0) {
+            // Do not lose the changes collected so far
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    oldPeerChangeBatcher.flush();
+                }
+            });
+        }
+    }
+
     /**
      * Returns the Bluetooth MAC address resolution helper. Note that the helper isn't meant to be
      * used directly. This getter is here strictly for testing purposes.
@@ -609,6 +683,7 @@ public class DiscoveryManager
         mWifiDirectManager.release(this);
         mBluetoothManager.release(this);
 
+        savePeerCache(); // Before the peers are cleared
         mPeerModel.clear();
 
         updateState();
@@ -644,6 +719,21 @@ public class DiscoveryManager
         }
 
         mSettings.removeListener(this);
+        savePeerCache();
+    }
+
+    /**
+     * Records the peers still in the model as seen and saves the peer cache, if set. This is
+     * needed, since the peers are recorded only when added or updated, not on every sighting.
+     */
+    private synchronized void savePeerCache() {
+        if (mPeerCache != null) {
+            for (PeerProperties peerProperties : mPeerModel.getSnapshot().getPeers()) {
+                mPeerCache.recordSeen(peerProperties);
+            }
+
+            mPeerCache.saveAsync();
+        }
     }
 
     /**
@@ -1097,7 +1187,11 @@ public class DiscoveryManager
     @Override
     public void onPeerAdded(final PeerProperties peerProperties) {
         Log.d(TAG, "onPeerAdded: " + peerProperties.toString());
-        if (mListener != null) {
+        final PeerChangeBatcher peerChangeBatcher = mPeerChangeBatcher;
+
+        if (peerChangeBatcher != null) {
+            peerChangeBatcher.onPeerAdded(peerProperties);
+        } else if (mListener != null) {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -1117,7 +1211,11 @@ public class DiscoveryManager
     @Override
     public void onPeerUpdated(final PeerProperties peerProperties) {
         Log.d(TAG, "onPeerUpdated: " + peerProperties.toString());
-        if (mListener != null) {
+        final PeerChangeBatcher peerChangeBatcher = mPeerChangeBatcher;
+
+        if (peerChangeBatcher != null) {
+            peerChangeBatcher.onPeerUpdated(peerProperties);
+        } else if (mListener != null) {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -1137,7 +1235,11 @@ public class DiscoveryManager
     @Override
     public void onPeerExpiredAndRemoved(final PeerProperties peerProperties) {
         Log.d(TAG, "onPeerExpiredAndRemoved: " + peerProperties.toString() + ThreadUtils.currentThreadToString());
-        if (mListener != null) {
+        final PeerChangeBatcher peerChangeBatcher = mPeerChangeBatcher;
+
+        if (peerChangeBatcher != null) {
+            peerChangeBatcher.onPeerExpiredAndRemoved(peerProperties);
+        } else if (mListener != null) {
             mHandler.post(new Runnable() {
                 @Override
                 public void run() {
@@ -1148,6 +1250,42 @@ public class DiscoveryManager
         }
     }
 
+    /**
+     * From PeerChangeBatcher.Listener
+     * <p>
+     * Forwards the batch to the peer changes listener and then, peer by peer, to the listener.
+     * Called on the main thread.
+     *
+     * @param addedPeers   The properties of the new peers.
+     * @param updatedPeers The properties of the updated peers.
+     * @param removedPeers The properties of the expired and removed peers.
+     */
+    @Override
+    public void onPeersChanged(
+            List<PeerProperties> addedPeers, List<PeerProperties> updatedPeers, List<PeerProperties> removedPeers) {
+        Log.d(TAG, "onPeersChanged: " + addedPeers.size() + " added, " + updatedPeers.size() + " updated, "
+                + removedPeers.size() + " removed");
+        final PeerChangeBatcher.Listener peerChangesListener = mPeerChangesListener;
+
+        if (peerChangesListener != null) {
+            peerChangesListener.onPeersChanged(addedPeers, updatedPeers, removedPeers);
+        }
+
+        if (mListener != null) {
+            for (PeerProperties peerProperties : addedPeers) {
+                mListener.onPeerDiscovered(peerProperties);
+            }
+
+            for (PeerProperties peerProperties : updatedPeers) {
+                mListener.onPeerUpdated(peerProperties);
+            }
+
+            for (PeerProperties peerProperties : removedPeers) {
+                mListener.onPeerLost(peerProperties);
+            }
+        }
+    }
+
     /**
      * Stops the discovery for pending restart. Does not notify the listener.
      */
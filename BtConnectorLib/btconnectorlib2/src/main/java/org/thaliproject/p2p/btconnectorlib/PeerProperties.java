@@ -5,9 +5,12 @@ package org.thaliproject.p2p.btconnectorlib;
 
 import org.thaliproject.p2p.btconnectorlib.utils.CommonUtils;
 
+import java.util.Locale;
+
 /**
  * Contains properties of a peer.
- * The ID of the peer is its Bluetooth MAC address.
+ * The ID of the peer is its Bluetooth MAC address. The case of the hex digits of the address
+ * does not matter (see normalizeBluetoothMacAddress()).
  */
 public class PeerProperties {
     public static final String BLUETOOTH_MAC_ADDRESS_UNKNOWN = "0:0:0:0:0:0";
@@ -42,6 +45,18 @@ public class PeerProperties {
         tryToSetExtraInfo(extraInformation);
     }
 
+    /**
+     * Normalizes the given Bluetooth MAC address so that the same address is always represented
+     * the same way: the surrounding whitespace is removed and the hex digits are in upper case.
+     * The peers are compared (see equals()) and should be looked up by the normalized address.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address.
+     * @return The normalized address or null, if the given address is null.
+     */
+    public static String normalizeBluetoothMacAddress(String bluetoothMacAddress) {
+        return (bluetoothMacAddress != null) ? bluetoothMacAddress.trim().toUpperCase(Locale.US) : null;
+    }
+
     private void setDefaultValues() {
         mBluetoothMacAddress = BLUETOOTH_MAC_ADDRESS_UNKNOWN;
         mExtraInformation = NO_EXTRA_INFORMATION;
@@ -173,12 +188,18 @@ public class PeerProperties {
         boolean isMatch = false;
 
         if (other != null && other.getBluetoothMacAddress() != null && mBluetoothMacAddress != null) {
-            isMatch = other.getBluetoothMacAddress().equals(mBluetoothMacAddress);
+            isMatch = normalizeBluetoothMacAddress(other.getBluetoothMacAddress())
+                    .equals(normalizeBluetoothMacAddress(mBluetoothMacAddress));
         }
 
         return isMatch;
     }
 
+    @Override
+    public int hashCode() {
+        return (mBluetoothMacAddress != null) ? normalizeBluetoothMacAddress(mBluetoothMacAddress).hashCode() : 0;
+    }
+
     @Override
     public String toString() {
         return "[" + mBluetoothMacAddress
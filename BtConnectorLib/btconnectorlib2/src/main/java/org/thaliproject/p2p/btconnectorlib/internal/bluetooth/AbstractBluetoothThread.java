@@ -5,6 +5,7 @@ package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
 
 import org.thaliproject.p2p.btconnectorlib.utils.CommonUtils;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.UUID;
 
 /**
@@ -13,7 +14,10 @@ import java.util.UUID;
 abstract class AbstractBluetoothThread extends Thread {
     protected UUID mServiceRecordUuid = null;
     protected String mMyIdentityString = null;
+    protected byte[] mMyBinaryHandshakeMessage = null;
     protected boolean mHandshakeRequired = false;
+    protected long mHandshakeTimeoutInMilliseconds = HandshakeExecutor.DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS;
+    protected HandshakeExecutor mHandshakeExecutor = null;
 
     /**
      * Constructor.
@@ -39,17 +43,102 @@ abstract class AbstractBluetoothThread extends Thread {
         mHandshakeRequired = handshakeRequired;
     }
 
+    /**
+     * Sets our identity as a binary handshake message. If set, the outgoing handshakes use the
+     * binary message and the server responds with it to peers using the binary format.
+     *
+     * @param binaryHandshakeMessage The binary handshake message. See HandshakeMessage.
+     */
+    void setBinaryHandshakeMessage(byte[] binaryHandshakeMessage) {
+        mMyBinaryHandshakeMessage = binaryHandshakeMessage;
+    }
+
+    public long getHandshakeTimeout() {
+        return mHandshakeTimeoutInMilliseconds;
+    }
+
+    /**
+     * Sets the time a handshake is allowed to take.
+     *
+     * @param handshakeTimeoutInMilliseconds The handshake timeout in milliseconds. If zero or less,
+     *                                       the handshakes have no deadline.
+     */
+    public void setHandshakeTimeout(long handshakeTimeoutInMilliseconds) {
+        mHandshakeTimeoutInMilliseconds = handshakeTimeoutInMilliseconds;
+    }
+
+    /**
+     * Sets the executor used to run the handshakes. By default, the shared instance for the
+     * direction of the connections of this thread is used.
+     *
+     * @param handshakeExecutor The handshake executor.
+     */
+    void setHandshakeExecutor(HandshakeExecutor handshakeExecutor) {
+        mHandshakeExecutor = handshakeExecutor;
+    }
+
     abstract public void shutdown();
 
     /**
-     * Creates a handshake message. Uses the identity string for the message, if the string is
-     * non-empty. Otherwise will return a simple, generic handshake message.
+     * @return The shared executor to run the handshakes with, unless another one is set.
+     */
+    abstract protected HandshakeExecutor getDefaultHandshakeExecutor();
+
+    /**
+     * @return The executor to run the handshakes with.
+     */
+    protected HandshakeExecutor getHandshakeExecutor() {
+        if (mHandshakeExecutor == null) {
+            mHandshakeExecutor = getDefaultHandshakeExecutor();
+        }
+
+        return mHandshakeExecutor;
+    }
+
+    /**
+     * Creates a handshake message. Uses the binary handshake message, if one is set. Otherwise,
+     * see getHandshakeMessage(boolean).
      *
      * @return The handshake message as a byte array.
      */
     protected byte[] getHandshakeMessage() {
+        return getHandshakeMessage(true);
+    }
+
+    /**
+     * Creates a handshake message. Uses the binary handshake message, if requested and set. If not,
+     * uses the identity string for the message, if the string is non-empty. Otherwise will return
+     * a simple, generic handshake message.
+     *
+     * @param binary If true, will return the binary handshake message, if one is set.
+     * @return The handshake message as a byte array.
+     */
+    protected byte[] getHandshakeMessage(boolean binary) {
+        if (binary && mMyBinaryHandshakeMessage != null) {
+            return mMyBinaryHandshakeMessage;
+        }
+
         return (CommonUtils.isNonEmptyString(mMyIdentityString)
                 ? mMyIdentityString.getBytes(StandardCharsets.UTF_8)
                 : BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY);
     }
+
+    /**
+     * Copies the bytes following the handshake message, if any. These are the application data
+     * the peer sent right after its handshake message and that were read together with it.
+     *
+     * @param bytes                  The bytes read.
+     * @param size                   The number of bytes read.
+     * @param handshakeMessageLength The length of the handshake message in the beginning of the bytes.
+     * @return The bytes following the handshake message or null, if none.
+     */
+    protected static byte[] getInitialData(byte[] bytes, int size, int handshakeMessageLength) {
+        final int numberOfValidBytes = Math.min(bytes.length, size);
+
+        if (handshakeMessageLength < 0 || handshakeMessageLength >= numberOfValidBytes) {
+            return null;
+        }
+
+        return Arrays.copyOfRange(bytes, handshakeMessageLength, numberOfValidBytes);
+    }
 }
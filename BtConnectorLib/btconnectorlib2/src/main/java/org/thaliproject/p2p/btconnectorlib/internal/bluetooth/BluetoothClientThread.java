@@ -11,12 +11,14 @@ import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
 
 import java.io.IOException;
+import java.util.Random;
 import java.util.UUID;
 
 /**
  * Thread for initiating outgoing connections.
  */
-class BluetoothClientThread extends AbstractBluetoothThread implements BluetoothSocketIoThread.Listener {
+class BluetoothClientThread extends AbstractBluetoothThread
+        implements BluetoothSocketIoThread.Listener, HandshakeExecutor.TimeoutListener {
     /**
      * Thread listener.
      */
@@ -36,9 +38,12 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
          *
          * @param bluetoothSocket The Bluetooth socket associated with the connection.
          * @param peerProperties  The peer properties.
+         * @param initialData     The application data the peer sent right after its handshake
+         *                        message and that was read together with it. Null, if none.
          * @param who             The Bluetooth client thread instance calling this callback.
          */
-        void onHandshakeSucceeded(BluetoothSocket bluetoothSocket, PeerProperties peerProperties, BluetoothClientThread who);
+        void onHandshakeSucceeded(BluetoothSocket bluetoothSocket, PeerProperties peerProperties,
+                                  byte[] initialData, BluetoothClientThread who);
 
         /**
          * Called when connection attempt fails.
@@ -55,14 +60,21 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
     static final int DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT = 1;
     static final int DEFAULT_MAX_NUMBER_OF_RETRIES = 0;
     private static final int WAIT_BETWEEN_RETRIES_IN_MILLISECONDS = 300;
+    private static final int MAX_WAIT_BETWEEN_RETRIES_IN_MILLISECONDS = 4800;
+    private static final Random mRandom = new Random();
     private final BluetoothDevice mBluetoothDeviceToConnectTo;
     private Listener mListener = null;
     private BluetoothSocket mBluetoothSocket = null;
-    private BluetoothSocketIoThread mHandshakeThread = null;
+    private volatile BluetoothSocketIoThread mHandshakeThread = null;
     private PeerProperties mPeerProperties;
+    private byte[] mInitialData = null;
     private int mInsecureRfcommSocketPort = SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
     private int mMaxNumberOfRetries = DEFAULT_MAX_NUMBER_OF_RETRIES;
-    private long mTimeStarted = 0;
+    private RfcommChannelCache mRfcommChannelCache = null;
+    private BluetoothSocketFactory mBluetoothSocketFactory = CachedBluetoothSocketFactory.getInstance();
+    private int mChannelInUse = SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
+    private volatile long mTimeStartedInNanoseconds = 0;
+    private volatile ConnectionTrace mConnectionTrace = null;
     private volatile boolean mIsShuttingDown = false;
 
     /**
@@ -91,10 +103,25 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
     }
 
     /**
-     * @return The time this thread was started.
+     * @return The address of the Bluetooth device to connect to.
      */
-    long getTimeStarted() {
-        return mTimeStarted;
+    String getBluetoothDeviceAddress() {
+        return mBluetoothDeviceToConnectTo.getAddress();
+    }
+
+    /**
+     * @return The time this thread was started in nanoseconds (System.nanoTime()) or zero, if not
+     * started yet.
+     */
+    long getTimeStartedInNanoseconds() {
+        return mTimeStartedInNanoseconds;
+    }
+
+    /**
+     * @return The trace of this connection attempt or null, if the thread has not been started.
+     */
+    ConnectionTrace getConnectionTrace() {
+        return mConnectionTrace;
     }
 
     /**
@@ -107,7 +134,8 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
     public void run() {
         Log.i(TAG, "Trying to connect to peer with address " + mBluetoothDeviceToConnectTo.getAddress()
                 + " (thread ID: " + getId() + ")");
-        mTimeStarted = System.currentTimeMillis();
+        mTimeStartedInNanoseconds = System.nanoTime();
+        mConnectionTrace = new ConnectionTrace(false, mBluetoothDeviceToConnectTo.getAddress());
         boolean socketConnectSucceeded = tryToConnect();
         Log.i(TAG, "socket is " + (socketConnectSucceeded ? "connected" : "not connected"));
         final BluetoothSocket bluetoothSocket = mBluetoothSocket;
@@ -128,19 +156,21 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
 
     private void setUpHandshakeThread(BluetoothSocket bluetoothSocket) throws IOException {
         mHandshakeThread = new BluetoothSocketIoThread(bluetoothSocket, this);
-        mHandshakeThread.setUncaughtExceptionHandler(this.getUncaughtExceptionHandler());
         mHandshakeThread.setExitThreadAfterRead(true);
         mHandshakeThread.setPeerProperties(mPeerProperties);
     }
 
     private void doHandshake() {
         Log.d(TAG, "Starting handshake");
-        mHandshakeThread.start();
-        boolean handshakeSucceeded = mHandshakeThread.write(getHandshakeMessage()); // This does not throw exceptions
+        final BluetoothSocketIoThread handshakeThread = mHandshakeThread;
+        getHandshakeExecutor().execute(handshakeThread, mHandshakeTimeoutInMilliseconds,
+                this, this.getUncaughtExceptionHandler());
+        onPhaseStarted(ConnectionTrace.Phase.HANDSHAKE_WRITE);
+        boolean handshakeSucceeded = handshakeThread.write(getHandshakeMessageWithInitialData()); // This does not throw exceptions
 
         if (handshakeSucceeded) {
             Log.d(TAG, "Outgoing connection initialized (*handshake* thread ID: "
-                    + mHandshakeThread.getId() + ")");
+                    + handshakeThread.getId() + ")");
         } else if (!mIsShuttingDown) {
             String errorMessage = "Failed to initiate handshake";
             Log.e(TAG, errorMessage);
@@ -149,6 +179,54 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         }
     }
 
+    /**
+     * @return The handshake message followed by the initial data, if any, so that both are sent
+     * with a single write.
+     */
+    private byte[] getHandshakeMessageWithInitialData() {
+        final byte[] handshakeMessage = getHandshakeMessage();
+
+        if (mInitialData == null || mInitialData.length == 0) {
+            return handshakeMessage;
+        }
+
+        byte[] handshakeMessageWithInitialData = new byte[handshakeMessage.length + mInitialData.length];
+        System.arraycopy(handshakeMessage, 0, handshakeMessageWithInitialData, 0, handshakeMessage.length);
+        System.arraycopy(mInitialData, 0, handshakeMessageWithInitialData, handshakeMessage.length, mInitialData.length);
+        return handshakeMessageWithInitialData;
+    }
+
+    /**
+     * Sets the application data to send right after the handshake message. This saves a round
+     * trip, since the peer does not have to wait for the handshake to complete to receive the
+     * first data. Note that the peer must support receiving the data with the handshake message.
+     *
+     * @param initialData The data to send after the handshake message. Null, if none.
+     */
+    void setInitialData(byte[] initialData) {
+        mInitialData = initialData;
+    }
+
+    /**
+     * Sets the cache of the channels used to connect to the peers. If set, the channel last used
+     * to connect to the peer successfully is tried first.
+     *
+     * @param rfcommChannelCache The channel cache. If null, no cache is used.
+     */
+    void setRfcommChannelCache(RfcommChannelCache rfcommChannelCache) {
+        mRfcommChannelCache = rfcommChannelCache;
+    }
+
+    /**
+     * Sets the factory used to create the Bluetooth sockets.
+     *
+     * @param bluetoothSocketFactory The socket factory. If null, the default one is used.
+     */
+    void setBluetoothSocketFactory(BluetoothSocketFactory bluetoothSocketFactory) {
+        mBluetoothSocketFactory = (bluetoothSocketFactory != null)
+                ? bluetoothSocketFactory : CachedBluetoothSocketFactory.getInstance();
+    }
+
     /**
      * Sets the preferred port to be used by the insecure RFCOMM socket.
      *
@@ -194,6 +272,11 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         close();
     }
 
+    @Override
+    protected HandshakeExecutor getDefaultHandshakeExecutor() {
+        return HandshakeExecutor.getOutgoingInstance();
+    }
+
     /**
      * Tries to validate the read message, which should contain the identity of the peer. If the
      * identity is valid, notify the user that we have established a connection.
@@ -209,18 +292,27 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         if (who.getPeerProperties() != null) {
             Log.d(TAG, "onBytesRead: Peer properties = " + who.getPeerProperties().toString());
         }
-        PeerProperties peerProperties =
-                BluetoothUtils.validateReceivedHandshakeMessage(bytes, size, bluetoothSocket);
+        final int handshakeMessageLength = BluetoothUtils.getHandshakeMessageLength(bytes, size);
+        PeerProperties peerProperties = BluetoothUtils.validateReceivedHandshakeMessage(
+                bytes, handshakeMessageLength, bluetoothSocket);
+        onPhaseCompleted(ConnectionTrace.Phase.HANDSHAKE_READ);
 
         if (peerProperties != null) {
-            processSuccessfulHandshake(who, peerProperties, bluetoothSocket);
+            processSuccessfulHandshake(who, peerProperties, bluetoothSocket,
+                    getInitialData(bytes, size, handshakeMessageLength));
         } else {
             processFailedHandshake();
         }
     }
 
     private void processSuccessfulHandshake(BluetoothSocketIoThread who, PeerProperties peerProperties,
-                                            BluetoothSocket bluetoothSocket) {
+                                            BluetoothSocket bluetoothSocket, byte[] initialData) {
+        if (!claimHandshakeThread(who)) {
+            // The handshake already timed out or the connection was shut down
+            Log.w(TAG, "Handshake with " + peerProperties.toString() + " succeeded too late, ignoring");
+            return;
+        }
+
         Log.i(TAG, "Handshake succeeded with " + peerProperties.toString());
         // Set the resolved properties to the associated thread
         who.setPeerProperties(peerProperties);
@@ -229,8 +321,7 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
             // the listeners responsibility to close the socket once done. Thus, do not
             // close the socket here. Do not either close the input and output streams,
             // since that will invalidate the socket as well.
-            mListener.onHandshakeSucceeded(bluetoothSocket, peerProperties, this);
-            mHandshakeThread = null;
+            mListener.onHandshakeSucceeded(bluetoothSocket, peerProperties, initialData, this);
         } else {
             // No listener to deal with the socket, shut it down
             shutdown();
@@ -245,7 +336,7 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
     }
 
     /**
-     * Does nothing, but logs the event.
+     * Records the handshake message as written and starts waiting for the response.
      *
      * @param buffer The array of bytes read.
      * @param size   The size of the array.
@@ -254,6 +345,8 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
     @Override
     public void onBytesWritten(byte[] buffer, int size, BluetoothSocketIoThread who) {
         final long threadId = who.getId();
+        onPhaseCompleted(ConnectionTrace.Phase.HANDSHAKE_WRITE);
+        onPhaseStarted(ConnectionTrace.Phase.HANDSHAKE_READ);
         Log.d(TAG, "onBytesWritten: " + size + " bytes successfully written (thread ID: " + threadId + ")");
         if (who.getPeerProperties() != null) {
             Log.d(TAG, "onBytesWritten: Peer props = " + who.getPeerProperties().toString());
@@ -273,13 +366,45 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         if (peerProperties != null) {
             Log.i(TAG, "onDisconnected: " + peerProperties.toString() + " (thread ID: " + who.getId() + ")");
         }
-        // If we were successful, the handshake thread instance was set to null
-        if (mHandshakeThread != null) {
+        // If we were successful, the handshake thread instance was already claimed
+        if (claimHandshakeThread(who)) {
             notifyOnConnectionFailed("Socket disconnected");
             shutdown();
         }
     }
 
+    /**
+     * If the handshake thread instance is still around, the peer did not respond in time and we
+     * need to notify the listener and shutdown.
+     *
+     * @param handshakeThread The IO thread instance of the handshake that timed out.
+     */
+    @Override
+    public void onHandshakeTimeout(BluetoothSocketIoThread handshakeThread) {
+        if (claimHandshakeThread(handshakeThread)) {
+            Log.e(TAG, "Handshake timed out (thread ID: " + getId() + ")");
+            handshakeThread.close(true, false);
+            notifyOnConnectionFailed("Handshake timed out");
+            shutdown();
+        }
+    }
+
+    /**
+     * Takes the ownership of the outcome of the given handshake. Only the first caller, whether
+     * it is the successful handshake, the disconnect or the timeout, gets to act on it.
+     *
+     * @param handshakeThread The IO thread instance of the handshake.
+     * @return True, if the given thread was the current handshake thread and is now claimed.
+     */
+    private synchronized boolean claimHandshakeThread(BluetoothSocketIoThread handshakeThread) {
+        if (handshakeThread != null && mHandshakeThread == handshakeThread) {
+            mHandshakeThread = null;
+            return true;
+        }
+
+        return false;
+    }
+
     /**
      * Closes the handshake thread, if one exists, and the Bluetooth socket.
      */
@@ -313,6 +438,8 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         int socketConnectAttemptNo = 1;
 
         Log.d(TAG, "tryToConnect: mIsShuttingDown = " + mIsShuttingDown);
+        socketConnectSucceeded = tryToConnectUsingCachedChannel();
+
         while (!socketConnectSucceeded && !mIsShuttingDown) {
             socketConnectSucceeded = connect(mInsecureRfcommSocketPort, socketConnectAttemptNo);
             if (!socketConnectSucceeded) {
@@ -333,6 +460,42 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         return socketConnectSucceeded;
     }
 
+    /**
+     * Tries to connect using the channel, which was last used to connect to the peer successfully.
+     * If that fails, the channel is removed from the cache and the caller proceeds with the
+     * configured port. The cached channel is not tried, if it is the configured one, since that
+     * is tried first anyway.
+     *
+     * @return True, if connected. False otherwise.
+     */
+    private boolean tryToConnectUsingCachedChannel() {
+        if (mRfcommChannelCache == null || mIsShuttingDown) {
+            return false;
+        }
+
+        final String bluetoothDeviceAddress = mBluetoothDeviceToConnectTo.getAddress();
+        final Integer cachedChannel = mRfcommChannelCache.get(bluetoothDeviceAddress);
+
+        if (cachedChannel == null || cachedChannel == mInsecureRfcommSocketPort) {
+            return false;
+        }
+
+        Log.d(TAG, "tryToConnectUsingCachedChannel: Trying channel " + cachedChannel
+                + " (thread ID: " + getId() + ")");
+
+        if (connect(cachedChannel, 1)) {
+            return true;
+        }
+
+        if (!mIsShuttingDown) {
+            Log.d(TAG, "tryToConnectUsingCachedChannel: Channel " + cachedChannel
+                    + " failed, falling back to port " + mInsecureRfcommSocketPort + " (thread ID: " + getId() + ")");
+            mRfcommChannelCache.invalidate(bluetoothDeviceAddress);
+        }
+
+        return false;
+    }
+
     private boolean connect(int portNumber, int socketConnectAttemptNo) {
         boolean socketCreated = createSocketAndConnect(portNumber);
         return socketCreated && processSocketCreatedEvent(portNumber, socketConnectAttemptNo);
@@ -341,9 +504,12 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
     private void processConnectionFail(String errorMessage, int connectAttemptNo) {
         Log.d(TAG, errorMessage + " (thread ID: " + getId() + ")");
         if (!maxNumberOfRetriesReached(connectAttemptNo)) {
-            Log.d(TAG, "Trying to connect again in " + WAIT_BETWEEN_RETRIES_IN_MILLISECONDS
+            long waitTimeInMilliseconds = ConnectionCircuitBreaker.getBackoffWithJitter(
+                    connectAttemptNo, WAIT_BETWEEN_RETRIES_IN_MILLISECONDS,
+                    MAX_WAIT_BETWEEN_RETRIES_IN_MILLISECONDS, mRandom);
+            Log.d(TAG, "Trying to connect again in " + waitTimeInMilliseconds
                     + " ms... (thread ID: " + getId() + ")");
-            waitBeforeRetry();
+            waitBeforeRetry(waitTimeInMilliseconds);
         } else {
             processMaxNumberOfRetries(errorMessage);
         }
@@ -365,17 +531,36 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         if (mBluetoothSocket != null) {
             throw new IllegalStateException("Bluetooth socket is already created");
         }
+        onPhaseStarted(ConnectionTrace.Phase.SOCKET_CREATION);
+
         try {
             mBluetoothSocket = createBluetoothSocket(port);
         } catch (IOException e) {
             Log.e(TAG, "createSocketAndConnect: " + e.getMessage());
             return false;
+        } finally {
+            onPhaseCompleted(ConnectionTrace.Phase.SOCKET_CREATION);
         }
-        return connect();
+
+        onPhaseStarted(ConnectionTrace.Phase.SOCKET_CONNECT);
+        boolean connected = connect();
+        onPhaseCompleted(ConnectionTrace.Phase.SOCKET_CONNECT);
+        return connected;
     }
 
     private boolean processSocketCreatedEvent(int portNumber, int attemptNumber) {
         if (!mIsShuttingDown && mBluetoothSocket != null) {
+            final int portUsed = mChannelInUse;
+            final ConnectionTrace connectionTrace = mConnectionTrace;
+
+            if (connectionTrace != null) {
+                connectionTrace.setPort(portUsed);
+            }
+
+            if (mRfcommChannelCache != null) {
+                mRfcommChannelCache.put(mBluetoothDeviceToConnectTo.getAddress(), portUsed);
+            }
+
             notifyOnConnected(mBluetoothSocket);
             logPortChoice(portNumber, attemptNumber);
             return true;
@@ -386,9 +571,9 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         return false;
     }
 
-    private void waitBeforeRetry() {
+    private void waitBeforeRetry(long waitTimeInMilliseconds) {
         try {
-            Thread.sleep(WAIT_BETWEEN_RETRIES_IN_MILLISECONDS);
+            Thread.sleep(waitTimeInMilliseconds);
         } catch (InterruptedException e) {
             Log.w(TAG, "Waiting between retries was interrupted, " + e.getMessage());
         }
@@ -406,23 +591,44 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
             case SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT: {
                 // Use the standard method of creating a socket
                 Log.d(TAG, "createBluetoothSocket: SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT");
-                return mBluetoothDeviceToConnectTo.createInsecureRfcommSocketToServiceRecord(mServiceRecordUuid);
+                mChannelInUse = SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
+                return mBluetoothSocketFactory.createInsecureSocketToServiceRecord(
+                        mBluetoothDeviceToConnectTo, mServiceRecordUuid);
             }
             case 0: {
                 // Use a rotating port number
                 Log.d(TAG, "createBluetoothSocket: port == 0");
-                return BluetoothUtils.createBluetoothSocketToServiceRecordWithNextPort(
-                        mBluetoothDeviceToConnectTo, mServiceRecordUuid, false);
+                BluetoothSocket bluetoothSocket = BluetoothUtils.createBluetoothSocketToServiceRecordWithNextPort(
+                        mBluetoothSocketFactory, mBluetoothDeviceToConnectTo, mServiceRecordUuid, false);
+                mChannelInUse = getChannelUsedByFactory(BluetoothUtils.getPreviouslyUsedAlternativeChannelOrPort());
+                return bluetoothSocket;
             }
             default: {
                 // Use the given port number
                 Log.d(TAG, "createBluetoothSocket: given port");
-                return BluetoothUtils.createBluetoothSocketToServiceRecord(
+                mChannelInUse = getChannelUsedByFactory(port);
+                return mBluetoothSocketFactory.createSocketToServiceRecord(
                         mBluetoothDeviceToConnectTo, mServiceRecordUuid, port, false);
             }
         }
     }
 
+    /**
+     * @param requestedChannel The channel requested from the socket factory.
+     * @return The given channel or SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT, if the factory
+     * cannot create sockets with a given channel and lets the system decide instead.
+     */
+    private int getChannelUsedByFactory(int requestedChannel) {
+        final BluetoothSocketFactory bluetoothSocketFactory = mBluetoothSocketFactory;
+
+        if (bluetoothSocketFactory instanceof CachedBluetoothSocketFactory
+                && !((CachedBluetoothSocketFactory) bluetoothSocketFactory).canCreateSocketToServiceRecordWithChannel()) {
+            return SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
+        }
+
+        return requestedChannel;
+    }
+
     private boolean connect() {
         if (mBluetoothSocket != null) {
             try {
@@ -466,6 +672,22 @@ class BluetoothClientThread extends AbstractBluetoothThread implements Bluetooth
         }
     }
 
+    private void onPhaseStarted(ConnectionTrace.Phase phase) {
+        final ConnectionTrace connectionTrace = mConnectionTrace;
+
+        if (connectionTrace != null) {
+            connectionTrace.onPhaseStarted(phase);
+        }
+    }
+
+    private void onPhaseCompleted(ConnectionTrace.Phase phase) {
+        final ConnectionTrace connectionTrace = mConnectionTrace;
+
+        if (connectionTrace != null) {
+            connectionTrace.onPhaseCompleted(phase);
+        }
+    }
+
     private void notifyOnConnected(BluetoothSocket bluetoothSocket) {
         if (mListener != null) {
             mListener.onSocketConnected(bluetoothSocket, mPeerProperties, this);
@@ -8,20 +8,29 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.CountDownTimer;
 import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import org.thaliproject.p2p.btconnectorlib.ConnectionManagerSettings;
+import org.json.JSONException;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import org.thaliproject.p2p.btconnectorlib.internal.AbstractBluetoothConnectivityAgent;
 import org.thaliproject.p2p.btconnectorlib.utils.ThreadUtils;
 
 import java.io.IOException;
-import java.util.Date;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The main Bluetooth connectivity interface managing both incoming and outgoing connections.
@@ -54,8 +63,11 @@ public class BluetoothConnector
          * @param bluetoothSocket The Bluetooth socket.
          * @param isIncoming      True, if the connection was incoming. False, if it was outgoing.
          * @param peerProperties  The properties of the peer connected to.
+         * @param initialData     The application data the peer sent right after its handshake
+         *                        message and that was read together with it. Null, if none.
          */
-        void onConnected(BluetoothSocket bluetoothSocket, boolean isIncoming, PeerProperties peerProperties);
+        void onConnected(BluetoothSocket bluetoothSocket, boolean isIncoming,
+                         PeerProperties peerProperties, byte[] initialData);
 
         /**
          * Called when the connection attempt times out.
@@ -71,6 +83,14 @@ public class BluetoothConnector
          * @param errorMessage   The error message. Note: Can be null.
          */
         void onConnectionFailed(PeerProperties peerProperties, String errorMessage);
+
+        /**
+         * Called when a connection attempt, queued or running, is cancelled. Its outcome remains
+         * unknown. Called on the thread cancelling the attempt.
+         *
+         * @param peerProperties The properties of the peer we were trying to connect to.
+         */
+        void onConnectionAttemptCancelled(PeerProperties peerProperties);
     }
 
     private static final String TAG = BluetoothConnector.class.getName();
@@ -79,7 +99,13 @@ public class BluetoothConnector
     public static final int DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT = BluetoothClientThread.DEFAULT_ALTERNATIVE_INSECURE_RFCOMM_SOCKET_PORT;
     public static final int DEFAULT_MAX_NUMBER_OF_RETRIES = BluetoothClientThread.DEFAULT_MAX_NUMBER_OF_RETRIES;
     public static final boolean DEFAULT_HANDSHAKE_REQUIRED = true;
-    private static final long CONNECTION_TIMEOUT_TIMER_INTERVAL_IN_MILLISECONDS = 5000;
+    public static final boolean DEFAULT_PERSISTENT_SERVER_SOCKET = false;
+    public static final long DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS = HandshakeExecutor.DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS;
+    public static final int DEFAULT_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES = BluetoothServerThread.DEFAULT_MAX_NUMBER_OF_PENDING_HANDSHAKES;
+    public static final boolean DEFAULT_BINARY_HANDSHAKE = false;
+    public static final int DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS = ConnectionAttemptScheduler.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS;
+    public static final int DEFAULT_CONNECTION_ATTEMPT_PRIORITY = ConnectionAttemptScheduler.DEFAULT_PRIORITY;
+    private static final long IDLE_TIMEOUT_THREAD_KEEP_ALIVE_TIME_IN_MILLISECONDS = 30000;
     private static final long SERVER_RESTART_DELAY_IN_MILLISECONDS = 2000;
 
     private final BluetoothAdapter mBluetoothAdapter;
@@ -88,14 +114,36 @@ public class BluetoothConnector
     private final String mMyBluetoothName;
     private final Handler mHandler;
     private final Thread.UncaughtExceptionHandler mUncaughtExceptionHandler;
+    private final IncomingConnectionStatistics mIncomingConnectionStatistics = new IncomingConnectionStatistics();
+    private final ConnectionTraceStatistics mOutgoingConnectionTraceStatistics = new ConnectionTraceStatistics();
+    private final ConnectionTraceStatistics mIncomingConnectionTraceStatistics = new ConnectionTraceStatistics();
+    private final ConnectionAttemptScheduler mConnectionAttemptScheduler = new ConnectionAttemptScheduler();
+    private final RfcommChannelCache mRfcommChannelCache;
+    private BluetoothSocketFactory mBluetoothSocketFactory = CachedBluetoothSocketFactory.getInstance();
     private String mMyIdentityString = null;
+    private String mMyBluetoothMacAddress = null;
+    private byte[] mMyBinaryHandshakeMessage = null;
     private BluetoothServerThread mServerThread = null;
     private CopyOnWriteArrayList<BluetoothClientThread> mClientThreads = new CopyOnWriteArrayList<>();
-    private CountDownTimer mConnectionTimeoutTimer = null;
+    private final ScheduledThreadPoolExecutor mConnectionTimeoutExecutor;
+    private final ThreadPoolExecutor mConnectionFutureListenerExecutor;
+    private final Map<BluetoothClientThread, ConnectionTimeoutTask> mConnectionTimeouts = new HashMap<>();
+    private final Map<String, List<ConnectionFuture>> mConnectionFutures = new HashMap<>();
+    private final ConnectionFuture.CancellationListener mConnectionFutureCancellationListener =
+            new ConnectionFuture.CancellationListener() {
+                @Override
+                public void onConnectionFutureCancelled(ConnectionFuture connectionFuture) {
+                    BluetoothConnector.this.onConnectionFutureCancelled(connectionFuture);
+                }
+            };
     private long mConnectionTimeoutInMilliseconds = DEFAULT_CONNECTION_TIMEOUT_IN_MILLISECONDS;
     private int mInsecureRfcommSocketPort = SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT;
     private int mMaxNumberOfOutgoingConnectionAttemptRetries = DEFAULT_MAX_NUMBER_OF_RETRIES;
     private boolean mHandshakeRequired = DEFAULT_HANDSHAKE_REQUIRED;
+    private boolean mPersistentServerSocket = DEFAULT_PERSISTENT_SERVER_SOCKET;
+    private long mHandshakeTimeoutInMilliseconds = DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS;
+    private int mMaxNumberOfPendingIncomingHandshakes = DEFAULT_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES;
+    private boolean mBinaryHandshake = DEFAULT_BINARY_HANDSHAKE;
     private boolean mIsServerThreadAlive = false;
     private boolean mIsStoppingServer = false;
     private boolean mIsShuttingDown = false;
@@ -146,6 +194,18 @@ public class BluetoothConnector
         mServiceRecordUuid = serviceRecordUuid;
         mMyBluetoothName = myBluetoothName;
         mHandler = new Handler(context.getMainLooper());
+        mRfcommChannelCache = new RfcommChannelCache(preferences, RfcommChannelCache.DEFAULT_MAX_NUMBER_OF_ENTRIES);
+
+        mConnectionTimeoutExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("BluetoothConnectionTimeout"));
+        mConnectionTimeoutExecutor.setKeepAliveTime(IDLE_TIMEOUT_THREAD_KEEP_ALIVE_TIME_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        mConnectionTimeoutExecutor.allowCoreThreadTimeOut(true);
+        mConnectionTimeoutExecutor.setRemoveOnCancelPolicy(true);
+
+        // Runs the listeners of the futures, since the futures are completed while locked
+        mConnectionFutureListenerExecutor = new ThreadPoolExecutor(1, 1,
+                IDLE_TIMEOUT_THREAD_KEEP_ALIVE_TIME_IN_MILLISECONDS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("BluetoothConnectionFutureListener"));
+        mConnectionFutureListenerExecutor.allowCoreThreadTimeOut(true);
 
         ConnectionManagerSettings mConnectionManagerSettings
                 = ConnectionManagerSettings.getInstance(context, preferences);
@@ -154,6 +214,12 @@ public class BluetoothConnector
         mMaxNumberOfOutgoingConnectionAttemptRetries
                 = mConnectionManagerSettings.getMaxNumberOfConnectionAttemptRetries();
         mHandshakeRequired = mConnectionManagerSettings.getHandshakeRequired();
+        mPersistentServerSocket = mConnectionManagerSettings.getPersistentServerSocket();
+        mHandshakeTimeoutInMilliseconds = mConnectionManagerSettings.getHandshakeTimeout();
+        mMaxNumberOfPendingIncomingHandshakes = mConnectionManagerSettings.getMaxNumberOfPendingIncomingHandshakes();
+        mBinaryHandshake = mConnectionManagerSettings.getBinaryHandshake();
+        mConnectionAttemptScheduler.setMaxNumberOfConcurrentConnectionAttempts(
+                mConnectionManagerSettings.getMaxNumberOfConcurrentConnectionAttempts());
 
         mUncaughtExceptionHandler = new Thread.UncaughtExceptionHandler() {
             @Override
@@ -184,6 +250,21 @@ public class BluetoothConnector
     public void setIdentityString(String myIdentityString) {
         Log.d(TAG, "setIdentityString: " + myIdentityString);
         mMyIdentityString = myIdentityString;
+        mMyBinaryHandshakeMessage = HandshakeMessage.createHandshakeMessage(myIdentityString);
+        mMyBluetoothMacAddress = null;
+
+        if (myIdentityString != null) {
+            try {
+                String bluetoothMacAddress = AbstractBluetoothConnectivityAgent
+                        .getPropertiesFromIdentityString(myIdentityString).getBluetoothMacAddress();
+
+                if (BluetoothUtils.isValidBluetoothMacAddress(bluetoothMacAddress)) {
+                    mMyBluetoothMacAddress = bluetoothMacAddress;
+                }
+            } catch (JSONException e) {
+                Log.d(TAG, "setIdentityString: Failed to resolve our Bluetooth MAC address: " + e.getMessage());
+            }
+        }
     }
 
     /**
@@ -191,22 +272,20 @@ public class BluetoothConnector
      * The timeout applies only to connections whose handshake hasn't succeeded. After a successful
      * handshake this class no longer manages the connection but the responsibility is that of the
      * listener.
+     * <p>
+     * The new timeout applies also to the running connection attempts; their deadlines are moved
+     * relative to the time they were started.
      *
      * @param connectionTimeoutInMilliseconds The connection timeout in milliseconds.
      */
-    public void setConnectionTimeout(long connectionTimeoutInMilliseconds) {
+    public synchronized void setConnectionTimeout(long connectionTimeoutInMilliseconds) {
         if (mConnectionTimeoutInMilliseconds != connectionTimeoutInMilliseconds) {
             Log.v(TAG, "setConnectionTimeout: "
                     + mConnectionTimeoutInMilliseconds + " -> " + connectionTimeoutInMilliseconds);
             mConnectionTimeoutInMilliseconds = connectionTimeoutInMilliseconds;
 
-            if (mConnectionTimeoutInMilliseconds > 0 && mClientThreads.size() > 0) {
-                createConnectionTimeoutTimer();
-            } else {
-                if (mConnectionTimeoutTimer != null) {
-                    mConnectionTimeoutTimer.cancel();
-                    mConnectionTimeoutTimer = null;
-                }
+            for (BluetoothClientThread bluetoothClientThread : mClientThreads) {
+                scheduleConnectionTimeout(bluetoothClientThread);
             }
         }
     }
@@ -236,6 +315,17 @@ public class BluetoothConnector
         }
     }
 
+    /**
+     * Sets the factory used to create the sockets of the outgoing connections. Applied to the
+     * connection attempts requested after this call.
+     *
+     * @param bluetoothSocketFactory The socket factory. If null, the default one is used.
+     */
+    public synchronized void setBluetoothSocketFactory(BluetoothSocketFactory bluetoothSocketFactory) {
+        mBluetoothSocketFactory = (bluetoothSocketFactory != null)
+                ? bluetoothSocketFactory : CachedBluetoothSocketFactory.getInstance();
+    }
+
     /**
      * Sets the value indicating whether we require a handshake protocol when establishing a connection or not.
      * Restarts the Bluetooth server thread, if it was running.
@@ -261,6 +351,144 @@ public class BluetoothConnector
         }
     }
 
+    /**
+     * Sets whether the server socket is kept open between accepted connections or not.
+     * If the server thread is running, the new value is applied after the next accepted connection.
+     *
+     * @param persistentServerSocket If true, will keep the server socket open and accept
+     *                               connections continuously.
+     */
+    public synchronized void setPersistentServerSocket(boolean persistentServerSocket) {
+        if (mPersistentServerSocket != persistentServerSocket) {
+            Log.v(TAG, "setPersistentServerSocket: " + mPersistentServerSocket + " -> " + persistentServerSocket);
+            mPersistentServerSocket = persistentServerSocket;
+
+            if (mServerThread != null) {
+                mServerThread.setPersistentServerSocket(mPersistentServerSocket);
+            }
+        }
+    }
+
+    /**
+     * Sets the time a handshake is allowed to take. Connections, which fail to complete the
+     * handshake in time, are closed. The new value applies to handshakes started after this call.
+     *
+     * @param handshakeTimeoutInMilliseconds The handshake timeout in milliseconds. If zero or
+     *                                       less, no timeout is set.
+     */
+    public synchronized void setHandshakeTimeout(long handshakeTimeoutInMilliseconds) {
+        if (mHandshakeTimeoutInMilliseconds != handshakeTimeoutInMilliseconds) {
+            Log.v(TAG, "setHandshakeTimeout: "
+                    + mHandshakeTimeoutInMilliseconds + " -> " + handshakeTimeoutInMilliseconds);
+            mHandshakeTimeoutInMilliseconds = handshakeTimeoutInMilliseconds;
+
+            if (mServerThread != null) {
+                mServerThread.setHandshakeTimeout(mHandshakeTimeoutInMilliseconds);
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of incoming connections waiting for the handshake to complete.
+     * When the limit is reached, the oldest pending connection is dropped.
+     *
+     * @param maxNumberOfPendingHandshakes The maximum number of pending incoming handshakes.
+     */
+    public synchronized void setMaxNumberOfPendingIncomingHandshakes(int maxNumberOfPendingHandshakes) {
+        if (mMaxNumberOfPendingIncomingHandshakes != maxNumberOfPendingHandshakes) {
+            Log.v(TAG, "setMaxNumberOfPendingIncomingHandshakes: "
+                    + mMaxNumberOfPendingIncomingHandshakes + " -> " + maxNumberOfPendingHandshakes);
+            mMaxNumberOfPendingIncomingHandshakes = maxNumberOfPendingHandshakes;
+
+            if (mServerThread != null) {
+                mServerThread.setMaxNumberOfPendingHandshakes(mMaxNumberOfPendingIncomingHandshakes);
+            }
+        }
+    }
+
+    /**
+     * Sets whether the outgoing connections use the binary handshake message or not. Note that
+     * regardless of this setting, incoming connections using the binary handshake are accepted
+     * and responded to in the same format. Thus, this should be enabled only when the peers are
+     * known to support the binary handshake.
+     *
+     * @param binaryHandshake If true, will use the binary handshake message for outgoing connections.
+     */
+    public void setBinaryHandshake(boolean binaryHandshake) {
+        if (mBinaryHandshake != binaryHandshake) {
+            Log.v(TAG, "setBinaryHandshake: " + mBinaryHandshake + " -> " + binaryHandshake);
+            mBinaryHandshake = binaryHandshake;
+        }
+    }
+
+    /**
+     * Sets the maximum number of outgoing connection attempts running at the same time. The
+     * attempts exceeding the limit are queued and started, when the running attempts complete.
+     *
+     * @param maxNumberOfConcurrentConnectionAttempts The maximum number of concurrent attempts.
+     *                                                If zero or less, the number is not limited.
+     */
+    public synchronized void setMaxNumberOfConcurrentConnectionAttempts(int maxNumberOfConcurrentConnectionAttempts) {
+        if (mConnectionAttemptScheduler.getMaxNumberOfConcurrentConnectionAttempts()
+                != maxNumberOfConcurrentConnectionAttempts) {
+            Log.v(TAG, "setMaxNumberOfConcurrentConnectionAttempts: "
+                    + mConnectionAttemptScheduler.getMaxNumberOfConcurrentConnectionAttempts()
+                    + " -> " + maxNumberOfConcurrentConnectionAttempts);
+            mConnectionAttemptScheduler.setMaxNumberOfConcurrentConnectionAttempts(maxNumberOfConcurrentConnectionAttempts);
+            startPendingConnectionAttempts();
+        }
+    }
+
+    /**
+     * @return The scheduler of the outgoing connection attempts. Provides the queue depth and the
+     * wait time metrics and allows setting the peer scorer.
+     */
+    public ConnectionAttemptScheduler getConnectionAttemptScheduler() {
+        return mConnectionAttemptScheduler;
+    }
+
+    /**
+     * @return The cache of the RFCOMM channels last used to connect to the peers successfully.
+     * The cached channel is tried first, when connecting to the same peer again.
+     */
+    public RfcommChannelCache getRfcommChannelCache() {
+        return mRfcommChannelCache;
+    }
+
+    /**
+     * @return The statistics of accepted incoming connections. The statistics are retained when
+     * the server thread is restarted.
+     */
+    public IncomingConnectionStatistics getIncomingConnectionStatistics() {
+        return mIncomingConnectionStatistics;
+    }
+
+    /**
+     * @return The phase-level timing statistics of the completed outgoing connection attempts.
+     */
+    public ConnectionTraceStatistics getOutgoingConnectionTraceStatistics() {
+        return mOutgoingConnectionTraceStatistics;
+    }
+
+    /**
+     * @return The phase-level timing statistics of the completed incoming handshakes. The
+     * statistics are retained when the server thread is restarted.
+     */
+    public ConnectionTraceStatistics getIncomingConnectionTraceStatistics() {
+        return mIncomingConnectionTraceStatistics;
+    }
+
+    /**
+     * Sets the listener notified of the trace of every completed outgoing and incoming connection
+     * attempt. The listener is called from the thread completing the attempt.
+     *
+     * @param listener The listener. If null, no notifications are sent.
+     */
+    public void setConnectionTraceListener(ConnectionTraceStatistics.Listener listener) {
+        mOutgoingConnectionTraceStatistics.setListener(listener);
+        mIncomingConnectionTraceStatistics.setListener(listener);
+    }
+
     /**
      * Starts to listen for incoming connections.
      *
@@ -286,6 +514,12 @@ public class BluetoothConnector
             if (mServerThread != null) {
                 mServerThread.setUncaughtExceptionHandler(mUncaughtExceptionHandler);
                 mServerThread.setHandshakeRequired(mHandshakeRequired);
+                mServerThread.setPersistentServerSocket(mPersistentServerSocket);
+                mServerThread.setHandshakeTimeout(mHandshakeTimeoutInMilliseconds);
+                mServerThread.setBinaryHandshakeMessage(mMyBinaryHandshakeMessage); // To reply to binary handshakes in kind
+                mServerThread.setMaxNumberOfPendingHandshakes(mMaxNumberOfPendingIncomingHandshakes);
+                mServerThread.setStatistics(mIncomingConnectionStatistics);
+                mServerThread.setConnectionTraceStatistics(mIncomingConnectionTraceStatistics);
                 mServerThread.start();
                 mIsServerThreadAlive = true;
                 mListener.onIsServerStartedChanged(true);
@@ -325,13 +559,10 @@ public class BluetoothConnector
 
         mIsShuttingDown = true;
 
-        if (mConnectionTimeoutTimer != null) {
-            mConnectionTimeoutTimer.cancel();
-            mConnectionTimeoutTimer = null;
-        }
-
         stopListeningForIncomingConnections();
         cancelAllConnectionAttempts();
+        mConnectionTimeoutExecutor.shutdownNow();
+        mConnectionFutureListenerExecutor.shutdown(); // Let the listeners of the cancelled futures run
     }
 
     /**
@@ -345,6 +576,44 @@ public class BluetoothConnector
      */
     public synchronized boolean connect(
             BluetoothDevice bluetoothDeviceToConnectTo, PeerProperties peerProperties) {
+        return connect(bluetoothDeviceToConnectTo, peerProperties, null);
+    }
+
+    /**
+     * Tries to connect to the given Bluetooth device and sends the given data right after our
+     * handshake message. This saves a round trip, but requires that the peer supports receiving
+     * the data together with the handshake message. The data is ignored, if no handshake is
+     * required.
+     *
+     * @param bluetoothDeviceToConnectTo The Bluetooth device to connect to.
+     * @param peerProperties             The properties of the peer to connect to.
+     * @param initialData                The data to send after the handshake message. Null, if none.
+     * @return True, if started trying to connect successfully. False otherwise.
+     */
+    public synchronized boolean connect(
+            BluetoothDevice bluetoothDeviceToConnectTo, PeerProperties peerProperties, byte[] initialData) {
+        return connect(bluetoothDeviceToConnectTo, peerProperties, initialData, DEFAULT_CONNECTION_ATTEMPT_PRIORITY);
+    }
+
+    /**
+     * Tries to connect to the given Bluetooth device with the given priority. If the maximum
+     * number of concurrent connection attempts is reached, the attempt is queued and started once
+     * the running attempts complete. The queued attempts with a higher priority start first.
+     * Note that the connection timeout applies only after the attempt has started.
+     * <p>
+     * If an attempt to connect to the same device is already running or queued, no new attempt
+     * is made, but the request is joined to the existing attempt and the listener is notified
+     * once about its outcome. In that case the given initial data is ignored.
+     *
+     * @param bluetoothDeviceToConnectTo The Bluetooth device to connect to.
+     * @param peerProperties             The properties of the peer to connect to.
+     * @param initialData                The data to send after the handshake message. Null, if none.
+     * @param priority                   The priority of the connection attempt.
+     * @return True, if started trying to connect or queued the attempt successfully. False otherwise.
+     */
+    public synchronized boolean connect(
+            BluetoothDevice bluetoothDeviceToConnectTo, PeerProperties peerProperties,
+            byte[] initialData, int priority) {
 
         boolean wasSuccessful = false;
         String errorMessage = "";
@@ -353,6 +622,17 @@ public class BluetoothConnector
             final String bluetoothDeviceName = bluetoothDeviceToConnectTo.getName();
             final String bluetoothDeviceAddress = bluetoothDeviceToConnectTo.getAddress();
 
+            if (joinExistingConnectionAttempt(bluetoothDeviceAddress, priority)) {
+                Log.i(TAG, "connect: Already connecting to " + bluetoothDeviceName
+                        + " in address " + bluetoothDeviceAddress + ", joined the existing attempt");
+
+                if (initialData != null) {
+                    Log.w(TAG, "connect: The initial data of the joined request is ignored");
+                }
+
+                return true;
+            }
+
             Log.i(TAG, "connect: Trying to start connecting to " + bluetoothDeviceName
                     + " in address " + bluetoothDeviceAddress);
             BluetoothClientThread bluetoothClientThread = null;
@@ -368,27 +648,27 @@ public class BluetoothConnector
             if (bluetoothClientThread != null) {
                 bluetoothClientThread.setUncaughtExceptionHandler(mUncaughtExceptionHandler);
                 bluetoothClientThread.setHandshakeRequired(mHandshakeRequired);
+                bluetoothClientThread.setHandshakeTimeout(mHandshakeTimeoutInMilliseconds);
+
+                if (mBinaryHandshake) {
+                    bluetoothClientThread.setBinaryHandshakeMessage(mMyBinaryHandshakeMessage);
+                }
+
                 bluetoothClientThread.setPeerProperties(peerProperties);
+                bluetoothClientThread.setInitialData(initialData);
                 bluetoothClientThread.setInsecureRfcommSocketPortNumber(mInsecureRfcommSocketPort);
+                bluetoothClientThread.setRfcommChannelCache(mRfcommChannelCache);
+                bluetoothClientThread.setBluetoothSocketFactory(mBluetoothSocketFactory);
                 bluetoothClientThread.setMaxNumberOfRetries(mMaxNumberOfOutgoingConnectionAttemptRetries);
-                mClientThreads.add(bluetoothClientThread);
-
-                if (mConnectionTimeoutTimer == null) {
-                    try {
-                        createConnectionTimeoutTimer();
-                        mConnectionTimeoutTimer.start();
-                    } catch (RuntimeException e) {
-                        Log.e(TAG, "connect: Failed to create the connection timeout timer: " + e.getMessage(), e);
-                    }
-                }
-
-                bluetoothClientThread.start();
+                mConnectionAttemptScheduler.add(bluetoothClientThread, priority);
+                startPendingConnectionAttempts();
 
                 mListener.onConnecting(bluetoothDeviceName, bluetoothDeviceAddress);
                 wasSuccessful = true;
 
                 Log.d(TAG, "connect: Started connecting to " + bluetoothDeviceName
-                        + " in address " + bluetoothDeviceAddress);
+                        + " in address " + bluetoothDeviceAddress + " (queue depth: "
+                        + mConnectionAttemptScheduler.getQueueDepth() + ")");
             } else {
                 mListener.onConnectionFailed(peerProperties, errorMessage);
             }
@@ -399,6 +679,49 @@ public class BluetoothConnector
         return wasSuccessful;
     }
 
+    /**
+     * Tries to connect to the given Bluetooth device with the given priority (see
+     * connect(BluetoothDevice, PeerProperties, byte[], int)) and returns a future completed with
+     * the outcome of the attempt. The future is completed by the thread resolving the attempt
+     * before the listener is notified on the main thread. The listener is notified as usual. The
+     * listeners of the future added without an executor are run on a thread of this connector
+     * after the future is completed, never while this connector is locked.
+     * <p>
+     * If the request is joined to an existing attempt, the futures of all the requests are
+     * completed with the same outcome. Cancelling a future cancels the attempt, once no other
+     * futures are waiting for it. If the peer connects to us at the same time and its connection
+     * is kept, the future is cancelled and the connection is reported as incoming.
+     *
+     * @param bluetoothDeviceToConnectTo The Bluetooth device to connect to.
+     * @param peerProperties             The properties of the peer to connect to.
+     * @param initialData                The data to send after the handshake message. Null, if none.
+     * @param priority                   The priority of the connection attempt.
+     * @return The future of the connection attempt. Failed right away, if the attempt could not
+     * be started.
+     */
+    public synchronized ConnectionFuture connectAsync(
+            BluetoothDevice bluetoothDeviceToConnectTo, PeerProperties peerProperties,
+            byte[] initialData, int priority) {
+        ConnectionFuture connectionFuture = new ConnectionFuture(peerProperties, mConnectionFutureListenerExecutor);
+
+        if (connect(bluetoothDeviceToConnectTo, peerProperties, initialData, priority)) {
+            final String bluetoothDeviceAddress = bluetoothDeviceToConnectTo.getAddress();
+            List<ConnectionFuture> connectionFutures = mConnectionFutures.get(bluetoothDeviceAddress);
+
+            if (connectionFutures == null) {
+                connectionFutures = new ArrayList<>();
+                mConnectionFutures.put(bluetoothDeviceAddress, connectionFutures);
+            }
+
+            connectionFutures.add(connectionFuture);
+            connectionFuture.setCancellationListener(mConnectionFutureCancellationListener);
+        } else {
+            connectionFuture.setFailed("Failed to start connecting to " + peerProperties);
+        }
+
+        return connectionFuture;
+    }
+
     /**
      * Cancels a client thread containing the peer with the given properties.
      *
@@ -409,7 +732,16 @@ public class BluetoothConnector
     public synchronized boolean cancelConnectionAttempt(PeerProperties peerProperties) {
         boolean isCancelling = false;
 
-        if (peerProperties != null && mClientThreads.size() > 0) {
+        BluetoothClientThread queuedBluetoothClientThread =
+                (peerProperties != null) ? mConnectionAttemptScheduler.remove(peerProperties) : null;
+
+        if (queuedBluetoothClientThread != null) {
+            // The attempt was still queued and thus, no thread was started
+            Log.i(TAG, "cancelConnectionAttempt: Removed a queued attempt: " + peerProperties.toString());
+            cancelConnectionFutures(queuedBluetoothClientThread.getBluetoothDeviceAddress());
+            notifyConnectionAttemptCancelled(queuedBluetoothClientThread);
+            isCancelling = true;
+        } else if (peerProperties != null && mClientThreads.size() > 0) {
             Log.i(TAG, "cancelConnectionAttempt: " + peerProperties.toString());
             BluetoothClientThread bluetoothClientThread = null;
 
@@ -424,6 +756,10 @@ public class BluetoothConnector
 
             if (bluetoothClientThread != null) {
                 isCancelling = removeAndShutdownBluetoothClientThread(bluetoothClientThread);
+                completeConnectionTrace(bluetoothClientThread, ConnectionTrace.Outcome.CANCELLED);
+                cancelConnectionFutures(bluetoothClientThread.getBluetoothDeviceAddress());
+                resolveHeldIncomingHandshakes(bluetoothClientThread, true);
+                notifyConnectionAttemptCancelled(bluetoothClientThread);
             }
         } else {
             if (peerProperties == null) {
@@ -440,9 +776,19 @@ public class BluetoothConnector
      * Shuts down all client threads.
      */
     public synchronized void cancelAllConnectionAttempts() {
-        if (mConnectionTimeoutTimer != null) {
-            mConnectionTimeoutTimer.cancel();
-            mConnectionTimeoutTimer = null;
+        for (ConnectionTimeoutTask connectionTimeoutTask : mConnectionTimeouts.values()) {
+            connectionTimeoutTask.cancel();
+        }
+
+        mConnectionTimeouts.clear();
+        final List<BluetoothClientThread> queuedBluetoothClientThreads = mConnectionAttemptScheduler.removeAll();
+
+        if (queuedBluetoothClientThreads.size() > 0) {
+            Log.d(TAG, "cancelAllConnectionAttempts: Removed " + queuedBluetoothClientThreads.size() + " queued attempts");
+
+            for (BluetoothClientThread queuedBluetoothClientThread : queuedBluetoothClientThreads) {
+                notifyConnectionAttemptCancelled(queuedBluetoothClientThread);
+            }
         }
 
         final int numberOfClientThreadsToShutdown = mClientThreads.size();
@@ -454,6 +800,10 @@ public class BluetoothConnector
                 final BluetoothClientThread finalBluetoothClientThread = bluetoothClientThread;
 
                 if (finalBluetoothClientThread != null) {
+                    completeConnectionTrace(finalBluetoothClientThread, ConnectionTrace.Outcome.CANCELLED);
+                    resolveHeldIncomingHandshakes(finalBluetoothClientThread, true);
+                    notifyConnectionAttemptCancelled(finalBluetoothClientThread);
+
                     new Thread() {
                         @Override
                         public void run() {
@@ -465,6 +815,12 @@ public class BluetoothConnector
 
             mClientThreads.clear();
         }
+
+        for (List<ConnectionFuture> connectionFutures : removeAllConnectionFutures()) {
+            for (ConnectionFuture connectionFuture : connectionFutures) {
+                connectionFuture.setCancelled();
+            }
+        }
     }
 
     /**
@@ -472,10 +828,12 @@ public class BluetoothConnector
      *
      * @param bluetoothSocket The Bluetooth socket associated with the incoming connection.
      * @param peerProperties  The peer properties.
+     * @param initialData     The application data read together with the handshake message.
      */
     @Override
     public void onIncomingConnectionConnected(
-            final BluetoothSocket bluetoothSocket, final PeerProperties peerProperties) {
+            final BluetoothSocket bluetoothSocket, final PeerProperties peerProperties,
+            final byte[] initialData) {
 
         Log.i(TAG, "onIncomingConnectionConnected: " + peerProperties.toString());
         boolean posted = mHandler.post(new Runnable() {
@@ -483,7 +841,7 @@ public class BluetoothConnector
             public void run() {
                 Log.d(TAG, "onIncomingConnectionConnected: bluetoothSocket.isConnected() " + bluetoothSocket.isConnected());
                 if (bluetoothSocket.isConnected()) {
-                    mListener.onConnected(bluetoothSocket, true, peerProperties);
+                    mListener.onConnected(bluetoothSocket, true, peerProperties, initialData);
                 } else {
                     onIncomingConnectionFailed("Disconnected");
                 }
@@ -492,6 +850,75 @@ public class BluetoothConnector
         Log.i(TAG, "onIncomingConnectionConnected: posted = " + posted);
     }
 
+    /**
+     * Resolves the case where we and the peer connect to each other at the same time, so that
+     * only one connection is kept and reported to the listener:
+     * <p>
+     * If our connection attempt to the peer is still queued, it is cancelled and the incoming
+     * connection is kept. If our attempt is running, the connection initiated by the peer with
+     * the greater Bluetooth MAC address is kept. Since the peer applies the same rule, both end
+     * up with the same connection. If the incoming connection loses, its handshake is held until
+     * our attempt completes: if our attempt fails, the incoming connection is used after all.
+     * <p>
+     * If our Bluetooth MAC address is unknown, both connections are kept.
+     *
+     * @param peerProperties The peer properties resolved from the handshake message.
+     * @return True, if the response to the handshake should be held. False otherwise.
+     */
+    @Override
+    public synchronized boolean onIncomingHandshakeReceived(PeerProperties peerProperties) {
+        final String bluetoothMacAddress = peerProperties.getBluetoothMacAddress();
+
+        BluetoothClientThread queuedBluetoothClientThread = mConnectionAttemptScheduler.remove(peerProperties);
+
+        if (queuedBluetoothClientThread != null) {
+            Log.i(TAG, "onIncomingHandshakeReceived: Cancelled the queued attempt to "
+                    + peerProperties.toString() + ", since the peer connected to us");
+            cancelConnectionFutures(queuedBluetoothClientThread.getBluetoothDeviceAddress());
+            notifyConnectionAttemptCancelled(queuedBluetoothClientThread);
+            mIncomingConnectionStatistics.onSimultaneousConnectionResolved();
+            return false;
+        }
+
+        BluetoothClientThread bluetoothClientThread = null;
+
+        for (BluetoothClientThread currentBluetoothClientThread : mClientThreads) {
+            if (currentBluetoothClientThread != null && bluetoothMacAddress != null
+                    && bluetoothMacAddress.equals(currentBluetoothClientThread.getBluetoothDeviceAddress())) {
+                bluetoothClientThread = currentBluetoothClientThread;
+                break;
+            }
+        }
+
+        if (bluetoothClientThread == null) {
+            return false;
+        }
+
+        if (!BluetoothUtils.isValidBluetoothMacAddress(mMyBluetoothMacAddress)
+                || !BluetoothUtils.isValidBluetoothMacAddress(bluetoothMacAddress)) {
+            Log.w(TAG, "onIncomingHandshakeReceived: Connecting to " + peerProperties.toString()
+                    + " at the same time, but cannot decide which connection to keep");
+            return false;
+        }
+
+        mIncomingConnectionStatistics.onSimultaneousConnectionResolved();
+
+        if (BluetoothUtils.compareBluetoothMacAddresses(mMyBluetoothMacAddress, bluetoothMacAddress) > 0) {
+            Log.i(TAG, "onIncomingHandshakeReceived: Connecting to " + peerProperties.toString()
+                    + " at the same time, keeping our connection (thread ID: " + bluetoothClientThread.getId() + ")");
+            return true;
+        }
+
+        Log.i(TAG, "onIncomingHandshakeReceived: Connecting to " + peerProperties.toString()
+                + " at the same time, keeping the incoming connection and cancelling ours (thread ID: "
+                + bluetoothClientThread.getId() + ")");
+        removeAndShutdownBluetoothClientThread(bluetoothClientThread);
+        completeConnectionTrace(bluetoothClientThread, ConnectionTrace.Outcome.CANCELLED);
+        cancelConnectionFutures(bluetoothClientThread.getBluetoothDeviceAddress());
+        notifyConnectionAttemptCancelled(bluetoothClientThread);
+        return false;
+    }
+
     /**
      * Forward the event to the listener.
      *
@@ -556,7 +983,7 @@ public class BluetoothConnector
         Log.i(TAG, "onSocketConnected: " + peerProperties.toString() + " (thread ID: " + who.getId() + ")");
 
         if (!who.getHandshakeRequired()) {
-            handleSuccessfulClientThread(who, bluetoothSocket, peerProperties); // Notifies the listener
+            handleSuccessfulClientThread(who, bluetoothSocket, peerProperties, null); // Notifies the listener
         }
     }
 
@@ -565,17 +992,19 @@ public class BluetoothConnector
      *
      * @param bluetoothSocket The Bluetooth socket associated with the connection.
      * @param peerProperties  The peer properties.
+     * @param initialData     The application data read together with the handshake message.
      * @param who             The Bluetooth client thread instance calling this callback.
      */
     @Override
-    public void onHandshakeSucceeded(
-            BluetoothSocket bluetoothSocket, PeerProperties peerProperties, BluetoothClientThread who) {
+    public void onHandshakeSucceeded(BluetoothSocket bluetoothSocket, PeerProperties peerProperties,
+                                     byte[] initialData, BluetoothClientThread who) {
         Log.i(TAG, "onHandshakeSucceeded: " + peerProperties.toString() + " (thread ID: " + who.getId() + ")");
-        handleSuccessfulClientThread(who, bluetoothSocket, peerProperties); // Notifies the listener
+        handleSuccessfulClientThread(who, bluetoothSocket, peerProperties, initialData); // Notifies the listener
     }
 
     /**
-     * Forward the event to the listener.
+     * Forward the event to the listener, unless the attempt already timed out or was cancelled,
+     * in which case its outcome has already been reported.
      *
      * @param peerProperties The peer properties.
      * @param errorMessage   The error message.
@@ -584,6 +1013,11 @@ public class BluetoothConnector
     @Override
     public void onConnectionFailed(PeerProperties peerProperties, String errorMessage, BluetoothClientThread who) {
         Log.e(TAG, "onConnectionFailed: " + errorMessage + " (thread ID: " + who.getId() + ")");
+
+        if (!removeAndShutdownBluetoothClientThread(who)) {
+            return;
+        }
+
         final String tempErrorMessage = errorMessage;
         final PeerProperties tempPeerProperties = peerProperties;
 
@@ -594,7 +1028,12 @@ public class BluetoothConnector
             }
         });
 
-        removeAndShutdownBluetoothClientThread(who);
+        for (ConnectionFuture connectionFuture : removeConnectionFutures(who.getBluetoothDeviceAddress())) {
+            connectionFuture.setFailed(errorMessage);
+        }
+
+        completeConnectionTrace(who, ConnectionTrace.Outcome.FAILED);
+        resolveHeldIncomingHandshakes(who, true);
     }
 
     /**
@@ -604,20 +1043,32 @@ public class BluetoothConnector
      * @param bluetoothClientThread The Bluetooth client thread instance.
      * @param bluetoothSocket       The Bluetooth socket.
      * @param peerProperties        The peer properties.
+     * @param initialData           The application data read together with the handshake message.
      */
     private synchronized void handleSuccessfulClientThread(
-            final BluetoothClientThread bluetoothClientThread,
-            final BluetoothSocket bluetoothSocket, final PeerProperties peerProperties) {
+            final BluetoothClientThread bluetoothClientThread, final BluetoothSocket bluetoothSocket,
+            final PeerProperties peerProperties, final byte[] initialData) {
         Log.i(TAG, "handleSuccessfulClientThread: " + peerProperties.toString() + " (thread ID: " + bluetoothClientThread.getId() + ")");
 
         // Only remove, but do not shutdown the client thread, since that would close the socket too
-        mClientThreads.remove(bluetoothClientThread);
+        if (!mClientThreads.remove(bluetoothClientThread)) {
+            // The attempt already timed out or was cancelled and its outcome has been reported
+            Log.w(TAG, "handleSuccessfulClientThread: The connection attempt is no longer active, closing the socket");
+            closeBluetoothSocket(bluetoothSocket);
+            return;
+        }
 
-        if (mConnectionTimeoutTimer != null && mClientThreads.size() == 0) {
-            mConnectionTimeoutTimer.cancel();
-            mConnectionTimeoutTimer = null;
+        for (ConnectionFuture connectionFuture
+                : removeConnectionFutures(bluetoothClientThread.getBluetoothDeviceAddress())) {
+            connectionFuture.setConnected(bluetoothSocket, peerProperties, initialData);
         }
 
+        cancelConnectionTimeout(bluetoothClientThread);
+        completeConnectionTrace(bluetoothClientThread, ConnectionTrace.Outcome.CONNECTED);
+        resolveHeldIncomingHandshakes(bluetoothClientThread, false);
+
+        startPendingConnectionAttempts();
+
         if (!mIsShuttingDown) {
             mHandler.post(new Runnable() {
                 @Override
@@ -625,10 +1076,11 @@ public class BluetoothConnector
                     Log.d(TAG, "handleSuccessfulClientThread run. " + ThreadUtils.currentThreadToString());
                     if (bluetoothSocket.isConnected()) {
                         Log.d(TAG, "onConnected run. " + ThreadUtils.currentThreadToString());
-                        mListener.onConnected(bluetoothSocket, false, peerProperties);
+                        mListener.onConnected(bluetoothSocket, false, peerProperties, initialData);
                     } else {
                         Log.d(TAG, "onConnectionFailed run. " + ThreadUtils.currentThreadToString());
-                        onConnectionFailed(peerProperties, "Disconnected", bluetoothClientThread);
+                        // The attempt is already completed, so only the listener needs to know
+                        mListener.onConnectionFailed(peerProperties, "Disconnected");
                     }
                 }
             });
@@ -636,64 +1088,256 @@ public class BluetoothConnector
     }
 
     /**
-     * Constructs the connection timeout timer. If a timer instance already exists, it is cancelled
-     * and then recreated.
+     * Closes the given socket of a connection that no longer has an owner.
+     *
+     * @param bluetoothSocket The Bluetooth socket to close.
      */
-    private void createConnectionTimeoutTimer() {
-        if (mConnectionTimeoutTimer != null) {
-            mConnectionTimeoutTimer.cancel();
-            mConnectionTimeoutTimer = null;
+    private static void closeBluetoothSocket(BluetoothSocket bluetoothSocket) {
+        try {
+            bluetoothSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "closeBluetoothSocket: Failed to close the socket: " + e.getMessage());
         }
+    }
 
-        mConnectionTimeoutTimer = new CountDownTimer(
-                CONNECTION_TIMEOUT_TIMER_INTERVAL_IN_MILLISECONDS, CONNECTION_TIMEOUT_TIMER_INTERVAL_IN_MILLISECONDS) {
-            @Override
-            public void onTick(long millisUntilFinished) {
-                // Not used
+    /**
+     * Joins a request to connect to the given device to a running or a queued attempt to the same
+     * device, if one exists.
+     *
+     * @param bluetoothDeviceAddress The address of the Bluetooth device to connect to.
+     * @param priority               The priority of the request.
+     * @return True, if the request was joined to an existing attempt. False otherwise.
+     */
+    private synchronized boolean joinExistingConnectionAttempt(String bluetoothDeviceAddress, int priority) {
+        if (bluetoothDeviceAddress == null) {
+            return false;
+        }
+
+        for (BluetoothClientThread bluetoothClientThread : mClientThreads) {
+            if (bluetoothClientThread != null
+                    && bluetoothDeviceAddress.equals(bluetoothClientThread.getBluetoothDeviceAddress())) {
+                mConnectionAttemptScheduler.onConnectionAttemptCoalesced();
+                return true;
             }
+        }
 
-            @Override
-            public void onFinish() {
-                this.cancel();
-                long currentTime = new Date().getTime();
-                Iterator<BluetoothClientThread> iterator = mClientThreads.iterator();
-
-                while (iterator.hasNext()) {
-                    final BluetoothClientThread bluetoothClientThread = iterator.next();
-                    long timeStarted = bluetoothClientThread.getTimeStarted();
-
-                    if (timeStarted > 0 && currentTime > timeStarted + mConnectionTimeoutInMilliseconds) {
-                        // Got a client thread that needs to be cancelled
-                        mClientThreads.remove(bluetoothClientThread);
-                        final PeerProperties peerProperties = bluetoothClientThread.getPeerProperties();
-
-                        if (peerProperties != null) {
-                            Log.i(TAG, "Connection timeout for peer "
-                                    + peerProperties.toString() + " (thread ID: "
-                                    + bluetoothClientThread.getId() + ")");
-                        } else {
-                            Log.i(TAG, "Connection timeout" + " (thread ID: "
-                                    + bluetoothClientThread.getId() + ")");
-                        }
+        return mConnectionAttemptScheduler.join(bluetoothDeviceAddress, priority);
+    }
+
+    /**
+     * Removes the futures waiting for the attempt to connect to the given device.
+     *
+     * @param bluetoothDeviceAddress The address of the Bluetooth device.
+     * @return The removed futures. Empty, if none.
+     */
+    private synchronized List<ConnectionFuture> removeConnectionFutures(String bluetoothDeviceAddress) {
+        List<ConnectionFuture> connectionFutures = mConnectionFutures.remove(bluetoothDeviceAddress);
+        return (connectionFutures != null) ? connectionFutures : Collections.<ConnectionFuture>emptyList();
+    }
+
+    /**
+     * Removes all the futures waiting for the connection attempts.
+     *
+     * @return The removed futures per device.
+     */
+    private synchronized List<List<ConnectionFuture>> removeAllConnectionFutures() {
+        List<List<ConnectionFuture>> connectionFutures = new ArrayList<>(mConnectionFutures.values());
+        mConnectionFutures.clear();
+        return connectionFutures;
+    }
+
+    /**
+     * Notifies the listener that the connection attempt of the given client thread was cancelled.
+     *
+     * @param bluetoothClientThread The client thread of the cancelled attempt.
+     */
+    private void notifyConnectionAttemptCancelled(BluetoothClientThread bluetoothClientThread) {
+        PeerProperties peerProperties = bluetoothClientThread.getPeerProperties();
+
+        if (peerProperties != null) {
+            mListener.onConnectionAttemptCancelled(peerProperties);
+        }
+    }
+
+    /**
+     * Cancels the futures waiting for the attempt to connect to the given device.
+     *
+     * @param bluetoothDeviceAddress The address of the Bluetooth device.
+     */
+    private synchronized void cancelConnectionFutures(String bluetoothDeviceAddress) {
+        for (ConnectionFuture connectionFuture : removeConnectionFutures(bluetoothDeviceAddress)) {
+            connectionFuture.setCancelled();
+        }
+    }
+
+    /**
+     * Cancels the connection attempt of the given cancelled future, if no other futures are
+     * waiting for the same attempt.
+     *
+     * @param connectionFuture The future cancelled by the user.
+     */
+    private synchronized void onConnectionFutureCancelled(ConnectionFuture connectionFuture) {
+        for (Map.Entry<String, List<ConnectionFuture>> entry : mConnectionFutures.entrySet()) {
+            final List<ConnectionFuture> connectionFutures = entry.getValue();
 
-                        shutdownBluetoothClientThread(bluetoothClientThread); // Try to cancel
+            if (connectionFutures.remove(connectionFuture)) {
+                if (connectionFutures.isEmpty()) {
+                    mConnectionFutures.remove(entry.getKey());
 
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mListener.onConnectionTimeout(peerProperties);
-                            }
-                        });
+                    if (connectionFuture.getPeerProperties() != null) {
+                        Log.i(TAG, "onConnectionFutureCancelled: Cancelling the attempt to connect to " + entry.getKey());
+                        cancelConnectionAttempt(connectionFuture.getPeerProperties());
                     }
                 }
 
-                if (mClientThreads.size() > 0) {
-                    this.start(); // Restart
-                } else {
-                    mConnectionTimeoutTimer = null;
-                }
+                break;
             }
-        };
+        }
+    }
+
+    /**
+     * Completes the trace of the connection attempt of the given client thread, if not already
+     * completed (e.g. the attempt fails after it has timed out).
+     *
+     * @param bluetoothClientThread The Bluetooth client thread of the connection attempt.
+     * @param outcome               The outcome of the attempt.
+     */
+    private void completeConnectionTrace(
+            BluetoothClientThread bluetoothClientThread, ConnectionTrace.Outcome outcome) {
+        mOutgoingConnectionTraceStatistics.complete(bluetoothClientThread.getConnectionTrace(), outcome);
+    }
+
+    /**
+     * Resolves the incoming handshakes held, because we were connecting to the same peer with the
+     * given client thread at the same time (see onIncomingHandshakeReceived()).
+     *
+     * @param bluetoothClientThread The Bluetooth client thread of our connection attempt.
+     * @param respond               If true, will complete the incoming handshakes, since our
+     *                              connection attempt failed. If false, will drop the incoming
+     *                              connections, since our connection attempt succeeded.
+     */
+    private synchronized void resolveHeldIncomingHandshakes(
+            BluetoothClientThread bluetoothClientThread, boolean respond) {
+        final BluetoothServerThread serverThread = mServerThread;
+
+        if (serverThread != null
+                && serverThread.resolveHeldHandshakes(bluetoothClientThread.getBluetoothDeviceAddress(), respond)) {
+            Log.d(TAG, "resolveHeldIncomingHandshakes: " + (respond ? "Completed" : "Dropped")
+                    + " the held incoming handshake (thread ID: " + bluetoothClientThread.getId() + ")");
+        }
+    }
+
+    /**
+     * Starts the queued connection attempts as long as the limit of concurrent connection attempts
+     * allows it.
+     */
+    private synchronized void startPendingConnectionAttempts() {
+        BluetoothClientThread bluetoothClientThread;
+
+        while (!mIsShuttingDown
+                && (bluetoothClientThread = mConnectionAttemptScheduler.pollNext(mClientThreads.size())) != null) {
+            mClientThreads.add(bluetoothClientThread);
+            scheduleConnectionTimeout(bluetoothClientThread);
+            Log.d(TAG, "startPendingConnectionAttempts: Starting thread with ID " + bluetoothClientThread.getId());
+            bluetoothClientThread.start();
+        }
+    }
+
+    /**
+     * Schedules the connection timeout of the given connection attempt. The deadline is relative
+     * to the time the attempt was started. Any previously scheduled timeout of the attempt is
+     * cancelled. If no connection timeout is set, only cancels the existing timeout.
+     *
+     * @param bluetoothClientThread The Bluetooth client thread of the connection attempt.
+     */
+    synchronized void scheduleConnectionTimeout(BluetoothClientThread bluetoothClientThread) {
+        cancelConnectionTimeout(bluetoothClientThread);
+
+        if (mConnectionTimeoutInMilliseconds > 0 && !mIsShuttingDown) {
+            // Measured with the monotonic clock, so that wall clock changes don't move the deadline
+            final long timeNowInNanoseconds = System.nanoTime();
+            final long timeStartedInNanoseconds = (bluetoothClientThread.getTimeStartedInNanoseconds() != 0)
+                    ? bluetoothClientThread.getTimeStartedInNanoseconds() : timeNowInNanoseconds;
+            final long delayInMilliseconds = Math.max(0, mConnectionTimeoutInMilliseconds
+                    - TimeUnit.NANOSECONDS.toMillis(timeNowInNanoseconds - timeStartedInNanoseconds));
+
+            ConnectionTimeoutTask connectionTimeoutTask = new ConnectionTimeoutTask(bluetoothClientThread);
+            connectionTimeoutTask.mFuture = mConnectionTimeoutExecutor.schedule(
+                    connectionTimeoutTask, delayInMilliseconds, TimeUnit.MILLISECONDS);
+            mConnectionTimeouts.put(bluetoothClientThread, connectionTimeoutTask);
+        }
+    }
+
+    /**
+     * @return The number of connection timeouts waiting for their deadline. Cancelled timeouts
+     * are removed right away and thus, this is zero when no connection attempts are running.
+     */
+    synchronized int getNumberOfScheduledConnectionTimeouts() {
+        return mConnectionTimeoutExecutor.getQueue().size();
+    }
+
+    /**
+     * Cancels the connection timeout of the given connection attempt, if one is scheduled.
+     *
+     * @param bluetoothClientThread The Bluetooth client thread of the connection attempt.
+     */
+    private synchronized void cancelConnectionTimeout(BluetoothClientThread bluetoothClientThread) {
+        ConnectionTimeoutTask connectionTimeoutTask = mConnectionTimeouts.remove(bluetoothClientThread);
+
+        if (connectionTimeoutTask != null) {
+            connectionTimeoutTask.cancel();
+        }
+    }
+
+    /**
+     * Cancels the connection attempt, whose deadline has expired, and notifies the listener.
+     *
+     * @param connectionTimeoutTask The expired connection timeout.
+     */
+    private synchronized void onConnectionTimeout(ConnectionTimeoutTask connectionTimeoutTask) {
+        final BluetoothClientThread bluetoothClientThread = connectionTimeoutTask.mBluetoothClientThread;
+
+        if (mConnectionTimeouts.get(bluetoothClientThread) != connectionTimeoutTask) {
+            // Cancelled or rescheduled while waiting for the lock
+            return;
+        }
+
+        mConnectionTimeouts.remove(bluetoothClientThread);
+
+        if (!mClientThreads.remove(bluetoothClientThread)) {
+            return;
+        }
+
+        final PeerProperties peerProperties = bluetoothClientThread.getPeerProperties();
+
+        if (peerProperties != null) {
+            Log.i(TAG, "Connection timeout for peer "
+                    + peerProperties.toString() + " (thread ID: "
+                    + bluetoothClientThread.getId() + ")");
+        } else {
+            Log.i(TAG, "Connection timeout" + " (thread ID: "
+                    + bluetoothClientThread.getId() + ")");
+        }
+
+        shutdownBluetoothClientThread(bluetoothClientThread); // Try to cancel
+        completeConnectionTrace(bluetoothClientThread, ConnectionTrace.Outcome.TIMED_OUT);
+
+        for (ConnectionFuture connectionFuture
+                : removeConnectionFutures(bluetoothClientThread.getBluetoothDeviceAddress())) {
+            connectionFuture.setTimedOut();
+        }
+
+        resolveHeldIncomingHandshakes(bluetoothClientThread, true);
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onConnectionTimeout(peerProperties);
+            }
+        });
+
+        // Start the queued attempts, since the timed out one freed a slot
+        startPendingConnectionAttempts();
     }
 
     /**
@@ -718,14 +1362,11 @@ public class BluetoothConnector
                         Log.i(TAG, "removeAndShutdownBluetoothClientThread: Thread ID: " + bluetoothClientThread.getId());
 
                         mClientThreads.remove(currentBluetoothClientThread);
+                        cancelConnectionTimeout(currentBluetoothClientThread);
                         shutdownBluetoothClientThread(currentBluetoothClientThread);
 
-                        if (mConnectionTimeoutTimer != null && mClientThreads.size() == 0) {
-                            mConnectionTimeoutTimer.cancel();
-                            mConnectionTimeoutTimer = null;
-                        }
-
                         wasRemovedAndShutdown = true;
+                        startPendingConnectionAttempts();
                         break;
                     }
                 }
@@ -758,4 +1399,29 @@ public class BluetoothConnector
             }.start();
         }
     }
+
+    /**
+     * The deadline of a single connection attempt. Run by the connection timeout executor.
+     */
+    private class ConnectionTimeoutTask implements Runnable {
+        final BluetoothClientThread mBluetoothClientThread;
+        volatile ScheduledFuture<?> mFuture = null;
+
+        ConnectionTimeoutTask(BluetoothClientThread bluetoothClientThread) {
+            mBluetoothClientThread = bluetoothClientThread;
+        }
+
+        void cancel() {
+            final ScheduledFuture<?> future = mFuture;
+
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            onConnectionTimeout(this);
+        }
+    }
 }
@@ -13,12 +13,15 @@ import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
 
 import java.io.IOException;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Thread listening to incoming connections via Bluetooth server socket.
  */
-class BluetoothServerThread extends AbstractBluetoothThread implements BluetoothSocketIoThread.Listener {
+class BluetoothServerThread extends AbstractBluetoothThread
+        implements BluetoothSocketIoThread.Listener, HandshakeExecutor.TimeoutListener {
     /**
      * Listener interface.
      */
@@ -29,8 +32,21 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
          *
          * @param bluetoothSocket The Bluetooth socket associated with the incoming connection.
          * @param peerProperties  The peer properties.
+         * @param initialData     The application data the peer sent right after its handshake
+         *                        message and that was read together with it. Null, if none.
          */
-        void onIncomingConnectionConnected(BluetoothSocket bluetoothSocket, PeerProperties peerProperties);
+        void onIncomingConnectionConnected(
+                BluetoothSocket bluetoothSocket, PeerProperties peerProperties, byte[] initialData);
+
+        /**
+         * Called when a valid handshake message is received, before responding to it. Allows the
+         * listener to resolve the case where we are connecting to the same peer at the same time.
+         *
+         * @param peerProperties The peer properties resolved from the handshake message.
+         * @return True, if the response should be held back until resolveHeldHandshakes() is
+         * called for the peer. False, if the handshake should be completed right away.
+         */
+        boolean onIncomingHandshakeReceived(PeerProperties peerProperties);
 
         /**
          * Called when the incoming connection fails.
@@ -54,12 +70,23 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
 
     private static final String TAG = BluetoothServerThread.class.getName();
     private static final int BLUETOOTH_SERVER_SOCKET_CONSECUTIVE_CREATION_FAILURE_COUNT_LIMIT = 10;
+    static final int DEFAULT_MAX_NUMBER_OF_PENDING_HANDSHAKES = 8;
+    static final long DEFAULT_HELD_HANDSHAKE_TIMEOUT_IN_MILLISECONDS = BluetoothConnector.DEFAULT_CONNECTION_TIMEOUT_IN_MILLISECONDS;
     private final CopyOnWriteArrayList<BluetoothSocketIoThread> mSocketIoThreads = new CopyOnWriteArrayList<BluetoothSocketIoThread>();
+    private final ConcurrentHashMap<Long, byte[]> mInitialDataOfPendingHandshakes = new ConcurrentHashMap<Long, byte[]>();
+    private final ConcurrentHashMap<Long, byte[]> mResponsesOfHeldHandshakes = new ConcurrentHashMap<Long, byte[]>();
+    private final ConcurrentHashMap<Long, ScheduledFuture<?>> mDeadlinesOfHeldHandshakes = new ConcurrentHashMap<Long, ScheduledFuture<?>>();
+    private final ConcurrentHashMap<Long, ConnectionTrace> mTracesOfPendingHandshakes = new ConcurrentHashMap<Long, ConnectionTrace>();
     private final Listener mListener;
     private final BluetoothAdapter mBluetoothAdapter;
     private final String mBluetoothName;
     private BluetoothServerSocket mBluetoothServerSocket = null;
     private static int mBluetoothServerSocketConsecutiveCreationFailureCount = 0;
+    private IncomingConnectionStatistics mStatistics = new IncomingConnectionStatistics();
+    private ConnectionTraceStatistics mConnectionTraceStatistics = new ConnectionTraceStatistics();
+    private volatile boolean mPersistentServerSocket = BluetoothConnector.DEFAULT_PERSISTENT_SERVER_SOCKET;
+    private volatile int mMaxNumberOfPendingHandshakes = DEFAULT_MAX_NUMBER_OF_PENDING_HANDSHAKES;
+    private volatile long mHeldHandshakeTimeoutInMilliseconds = DEFAULT_HELD_HANDSHAKE_TIMEOUT_IN_MILLISECONDS;
     private boolean mStopThread = false;
 
     /**
@@ -88,37 +115,114 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
         mBluetoothName = myBluetoothName;
     }
 
+    /**
+     * @return True, if the server socket is kept open between accepted connections.
+     */
+    public boolean getPersistentServerSocket() {
+        return mPersistentServerSocket;
+    }
+
+    /**
+     * Sets whether the server socket is kept open between accepted connections or not. If false,
+     * the server socket is closed and recreated after every accepted connection. The new value
+     * is applied after the next accepted connection.
+     *
+     * @param persistentServerSocket If true, will keep the server socket open and accept
+     *                               connections continuously.
+     */
+    public void setPersistentServerSocket(boolean persistentServerSocket) {
+        mPersistentServerSocket = persistentServerSocket;
+    }
+
+    /**
+     * @return The maximum number of incoming connections waiting for the handshake to complete.
+     */
+    public int getMaxNumberOfPendingHandshakes() {
+        return mMaxNumberOfPendingHandshakes;
+    }
+
+    /**
+     * Sets the maximum number of incoming connections waiting for the handshake to complete. When
+     * the limit is reached, the oldest pending connection is dropped to make room for a new one.
+     *
+     * @param maxNumberOfPendingHandshakes The maximum number of pending handshakes. Must be positive.
+     */
+    public void setMaxNumberOfPendingHandshakes(int maxNumberOfPendingHandshakes) {
+        if (maxNumberOfPendingHandshakes > 0) {
+            mMaxNumberOfPendingHandshakes = maxNumberOfPendingHandshakes;
+        } else {
+            Log.e(TAG, "setMaxNumberOfPendingHandshakes: Invalid value: " + maxNumberOfPendingHandshakes);
+        }
+    }
+
+    /**
+     * Sets the time the response to a held handshake is held back at most (see
+     * Listener.onIncomingHandshakeReceived()). When the time expires, the connection is dropped.
+     * Applies to the handshakes held after this call.
+     *
+     * @param heldHandshakeTimeoutInMilliseconds The timeout in milliseconds. Must be positive.
+     */
+    void setHeldHandshakeTimeout(long heldHandshakeTimeoutInMilliseconds) {
+        if (heldHandshakeTimeoutInMilliseconds > 0) {
+            mHeldHandshakeTimeoutInMilliseconds = heldHandshakeTimeoutInMilliseconds;
+        } else {
+            Log.e(TAG, "setHeldHandshakeTimeout: Invalid value: " + heldHandshakeTimeoutInMilliseconds);
+        }
+    }
+
+    /**
+     * Sets the statistics instance to update. Allows the statistics to outlive this thread.
+     *
+     * @param statistics The statistics instance.
+     */
+    void setStatistics(IncomingConnectionStatistics statistics) {
+        if (statistics != null) {
+            mStatistics = statistics;
+        }
+    }
+
+    /**
+     * @return The statistics of accepted connections.
+     */
+    IncomingConnectionStatistics getStatistics() {
+        return mStatistics;
+    }
+
+    /**
+     * Sets the instance the traces of the handshakes are added to. Allows the traces to outlive
+     * this thread.
+     *
+     * @param connectionTraceStatistics The connection trace statistics instance.
+     */
+    void setConnectionTraceStatistics(ConnectionTraceStatistics connectionTraceStatistics) {
+        if (connectionTraceStatistics != null) {
+            mConnectionTraceStatistics = connectionTraceStatistics;
+        }
+    }
+
     /**
      * From Thread.
      * <p>
-     * Waits for the incoming connections and once received, will construct IO threads for each
-     * connection to handle them.
+     * Waits for the incoming connections and once received, will hand each connection over to the
+     * shared handshake executor. Unless the server socket is persistent, the server socket is
+     * closed and recreated after each accepted connection.
      */
     @Override
     public void run() {
         Log.d(TAG, "Entering thread");
         while (!mStopThread) {
-            mBluetoothServerSocket = createServerSocket();
+            if (mBluetoothServerSocket == null) {
+                mBluetoothServerSocket = createServerSocket();
+            }
+
             if (mBluetoothServerSocket != null && !mStopThread) {
                 Log.i(TAG, "Waiting for incoming connections... Server socket = " +
                         BluetoothUtils.portAndTypeToString(mBluetoothServerSocket));
+                mStatistics.onReadyToAccept();
                 BluetoothSocket bluetoothSocket = acceptIncomingSocket();
                 if (bluetoothSocket != null) {
-                    if (mHandshakeRequired) {
-                        doHandshake(bluetoothSocket);
-                    } else {
-                        // No handshake required
-                        String bluetoothMacAddress = BluetoothUtils.getBluetoothMacAddressFromSocket(bluetoothSocket);
-
-                        if (BluetoothUtils.isValidBluetoothMacAddress(bluetoothMacAddress)) {
-                            PeerProperties peerProperties = new PeerProperties(bluetoothMacAddress);
-                            mListener.onIncomingConnectionConnected(bluetoothSocket, peerProperties);
-                        } else {
-                            String errorMessage = "Invalid Bluetooth MAC address: " + bluetoothMacAddress;
-                            Log.e(TAG, errorMessage);
-                            mListener.onIncomingConnectionFailed(errorMessage);
-                        }
-                    }
+                    mStatistics.onConnectionAccepted();
+                    handleAcceptedSocket(bluetoothSocket);
                 } else if (!mStopThread) {
                     Log.e(TAG, "Socket is null");
                     mListener.onIncomingConnectionFailed("Socket is null");
@@ -126,13 +230,41 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
                 }
             } // if (mBluetoothServerSocket != null && !mStopThread)
 
-            closeBluetoothServerSocket();
+            if (!mPersistentServerSocket || mStopThread) {
+                closeBluetoothServerSocket();
+            }
         } // while (!mStopThread)
 
+        closeBluetoothServerSocket();
         Log.d(TAG, "Exiting thread");
         mListener.onServerStopped();
     }
 
+    /**
+     * Hands the accepted socket over to the handshake or, if no handshake is required, directly
+     * to the listener. Does not block, so that the server can return to accepting connections
+     * immediately.
+     *
+     * @param bluetoothSocket The accepted Bluetooth socket.
+     */
+    private void handleAcceptedSocket(BluetoothSocket bluetoothSocket) {
+        if (mHandshakeRequired) {
+            doHandshake(bluetoothSocket);
+        } else {
+            // No handshake required
+            String bluetoothMacAddress = BluetoothUtils.getBluetoothMacAddressFromSocket(bluetoothSocket);
+
+            if (BluetoothUtils.isValidBluetoothMacAddress(bluetoothMacAddress)) {
+                PeerProperties peerProperties = new PeerProperties(bluetoothMacAddress);
+                mListener.onIncomingConnectionConnected(bluetoothSocket, peerProperties, null);
+            } else {
+                String errorMessage = "Invalid Bluetooth MAC address: " + bluetoothMacAddress;
+                Log.e(TAG, errorMessage);
+                mListener.onIncomingConnectionFailed(errorMessage);
+            }
+        }
+    }
+
     private void resetBluetoothServerSocketConsecutiveCreationFailureCount() {
         mBluetoothServerSocketConsecutiveCreationFailureCount = 0;
     }
@@ -190,14 +322,41 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
             Log.e(TAG, "Failed to create a handshake thread instance: " + e.getMessage(), e);
         }
         if (handshakeThread != null) {
-            handshakeThread.setUncaughtExceptionHandler(this.getUncaughtExceptionHandler());
             handshakeThread.setExitThreadAfterRead(true);
+            evictOldestPendingHandshakesIfNeeded();
+            ConnectionTrace connectionTrace = new ConnectionTrace(true, null);
+            connectionTrace.onPhaseStarted(ConnectionTrace.Phase.HANDSHAKE_READ);
+            mTracesOfPendingHandshakes.put(handshakeThread.getId(), connectionTrace);
             mSocketIoThreads.add(handshakeThread);
-            handshakeThread.start();
+            getHandshakeExecutor().execute(handshakeThread, mHandshakeTimeoutInMilliseconds,
+                    this, this.getUncaughtExceptionHandler());
             Log.d(TAG, "Incoming connection initialized with handshake (thread ID: " + handshakeThread.getId() + ")");
         }
     }
 
+    /**
+     * Makes room for a new pending handshake by dropping the oldest ones, if the maximum number of
+     * pending handshakes is reached. The peer that has been connected the longest without
+     * completing the handshake is the most likely one to be stalled.
+     */
+    private synchronized void evictOldestPendingHandshakesIfNeeded() {
+        while (mSocketIoThreads.size() >= mMaxNumberOfPendingHandshakes && !mSocketIoThreads.isEmpty()) {
+            BluetoothSocketIoThread oldestHandshakeThread = mSocketIoThreads.get(0);
+            completeTrace(oldestHandshakeThread.getId(), ConnectionTrace.Outcome.CANCELLED);
+
+            if (removeThreadFromList(oldestHandshakeThread, true)) {
+                Log.w(TAG, "Maximum number of pending handshakes (" + mMaxNumberOfPendingHandshakes
+                        + ") reached, evicted the oldest one (thread ID: " + oldestHandshakeThread.getId() + ")");
+                mStatistics.onHandshakeEvicted();
+            }
+        }
+    }
+
+    @Override
+    protected HandshakeExecutor getDefaultHandshakeExecutor() {
+        return HandshakeExecutor.getIncomingInstance();
+    }
+
     /**
      * Shuts down this thread.
      * Clears the list of IO threads and closes the server socket.
@@ -218,11 +377,63 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
 
         for (BluetoothSocketIoThread thread : mSocketIoThreads) {
             if (thread != null) {
+                completeTrace(thread.getId(), ConnectionTrace.Outcome.CANCELLED);
                 thread.close(true, true);
             }
         }
 
         mSocketIoThreads.clear();
+        mTracesOfPendingHandshakes.clear();
+        mInitialDataOfPendingHandshakes.clear();
+        mResponsesOfHeldHandshakes.clear();
+
+        for (ScheduledFuture<?> deadline : mDeadlinesOfHeldHandshakes.values()) {
+            deadline.cancel(false);
+        }
+
+        mDeadlinesOfHeldHandshakes.clear();
+    }
+
+    /**
+     * Resolves the handshakes of the given peer, whose responses are held back (see
+     * Listener.onIncomingHandshakeReceived()).
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @param respond             If true, will respond to the peer and thus, complete the
+     *                            handshake. If false, will close the connection.
+     * @return True, if a held handshake of the peer was found. False otherwise.
+     */
+    public boolean resolveHeldHandshakes(String bluetoothMacAddress, boolean respond) {
+        boolean heldHandshakeFound = false;
+
+        if (bluetoothMacAddress == null) {
+            return false;
+        }
+
+        for (BluetoothSocketIoThread thread : mSocketIoThreads) {
+            final PeerProperties peerProperties = (thread != null) ? thread.getPeerProperties() : null;
+
+            if (peerProperties != null
+                    && bluetoothMacAddress.equals(peerProperties.getBluetoothMacAddress())) {
+                final byte[] response = mResponsesOfHeldHandshakes.remove(thread.getId());
+
+                if (response != null) {
+                    cancelHeldHandshakeDeadline(thread.getId());
+                    Log.d(TAG, "resolveHeldHandshakes: " + (respond ? "Responding to " : "Dropping ")
+                            + peerProperties.toString() + " (thread ID: " + thread.getId() + ")");
+                    heldHandshakeFound = true;
+
+                    if (respond) {
+                        respond(thread, response);
+                    } else {
+                        completeTrace(thread.getId(), ConnectionTrace.Outcome.CANCELLED);
+                        removeThreadFromList(thread, true);
+                    }
+                }
+            }
+        }
+
+        return heldHandshakeFound;
     }
 
     /**
@@ -240,18 +451,49 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
         if (who.getPeerProperties() != null) {
             Log.d(TAG, "onBytesRead:  Peer props = " + who.getPeerProperties().toString());
         }
-        PeerProperties peerProperties =
-                BluetoothUtils.validateReceivedHandshakeMessage(bytes, size, who.getSocket());
+        final int handshakeMessageLength = BluetoothUtils.getHandshakeMessageLength(bytes, size);
+        PeerProperties peerProperties = BluetoothUtils.validateReceivedHandshakeMessage(
+                bytes, handshakeMessageLength, who.getSocket());
+        final ConnectionTrace connectionTrace = mTracesOfPendingHandshakes.get(threadId);
+
+        if (connectionTrace != null) {
+            connectionTrace.onPhaseCompleted(ConnectionTrace.Phase.HANDSHAKE_READ);
+        }
+
         if (peerProperties != null) {
             Log.i(TAG, "Got valid identity from " + peerProperties.toString());
 
+            if (connectionTrace != null) {
+                connectionTrace.setBluetoothMacAddress(peerProperties.getBluetoothMacAddress());
+            }
+
             // Set the resolved properties to the associated thread
             who.setPeerProperties(peerProperties);
 
-            // Respond to client
-            if (!who.write(getHandshakeMessage())) {
-                Log.e(TAG, "Failed to respond to thread with ID " + threadId);
-                removeThreadFromList(threadId, true);
+            // Keep the data pipelined after the handshake message until we have responded
+            byte[] initialData = getInitialData(bytes, size, handshakeMessageLength);
+
+            if (initialData != null) {
+                Log.d(TAG, "onBytesRead: Got " + initialData.length
+                        + " bytes of initial data (thread ID: " + threadId + ")");
+                mInitialDataOfPendingHandshakes.put(threadId, initialData);
+            }
+
+            // Respond to client using the same format. The response is stored first so that the
+            // held handshake can be resolved while the listener is still being called.
+            mResponsesOfHeldHandshakes.put(threadId,
+                    getHandshakeMessage(HandshakeMessage.isHandshakeMessage(bytes, size)));
+
+            if (mListener.onIncomingHandshakeReceived(peerProperties)) {
+                Log.i(TAG, "Holding the response to " + peerProperties.toString()
+                        + ", since we are connecting to the same peer (thread ID: " + threadId + ")");
+                holdHandshake(who);
+            } else {
+                final byte[] response = mResponsesOfHeldHandshakes.remove(threadId);
+
+                if (response != null) {
+                    respond(who, response);
+                }
             }
         } else {
             Log.e(TAG, "Failed to receive valid identity (thread ID: " + threadId + ")");
@@ -259,6 +501,88 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
         }
     }
 
+    /**
+     * Schedules a deadline for the given held handshake. The deadline of the handshake itself no
+     * longer applies, since the handshake message has been read.
+     *
+     * @param who The related BluetoothSocketIoThread instance.
+     */
+    private void holdHandshake(final BluetoothSocketIoThread who) {
+        final long threadId = who.getId();
+
+        if (mResponsesOfHeldHandshakes.containsKey(threadId)) {
+            ScheduledFuture<?> previousDeadline = mDeadlinesOfHeldHandshakes.put(threadId,
+                    getHandshakeExecutor().scheduleDeadline(who, mHeldHandshakeTimeoutInMilliseconds,
+                            new HandshakeExecutor.TimeoutListener() {
+                                @Override
+                                public void onHandshakeTimeout(BluetoothSocketIoThread handshakeThread) {
+                                    onHeldHandshakeTimeout(handshakeThread);
+                                }
+                            }));
+
+            if (previousDeadline != null) {
+                previousDeadline.cancel(false);
+            }
+
+            if (!mResponsesOfHeldHandshakes.containsKey(threadId)) {
+                // Resolved while scheduling
+                cancelHeldHandshakeDeadline(threadId);
+            }
+        }
+    }
+
+    /**
+     * Drops the connection, if the response to the given handshake is still held.
+     *
+     * @param handshakeThread The IO thread instance of the held handshake.
+     */
+    private void onHeldHandshakeTimeout(BluetoothSocketIoThread handshakeThread) {
+        final long threadId = handshakeThread.getId();
+        mDeadlinesOfHeldHandshakes.remove(threadId);
+
+        if (mResponsesOfHeldHandshakes.remove(threadId) != null) {
+            Log.e(TAG, "Held handshake timed out (thread ID: " + threadId + ")");
+            completeTrace(threadId, ConnectionTrace.Outcome.TIMED_OUT);
+
+            if (removeThreadFromList(handshakeThread, true)) {
+                mStatistics.onHandshakeTimedOut();
+            }
+        }
+    }
+
+    /**
+     * Cancels the deadline of the given held handshake, if one is scheduled.
+     *
+     * @param threadId The ID of the handshake thread.
+     */
+    private void cancelHeldHandshakeDeadline(final long threadId) {
+        final ScheduledFuture<?> deadline = mDeadlinesOfHeldHandshakes.remove(threadId);
+
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+    }
+
+    /**
+     * Writes our handshake message to the peer. If successful, onBytesWritten() completes the
+     * handshake.
+     *
+     * @param who      The related BluetoothSocketIoThread instance.
+     * @param response The handshake message to respond with.
+     */
+    private void respond(BluetoothSocketIoThread who, byte[] response) {
+        final ConnectionTrace connectionTrace = mTracesOfPendingHandshakes.get(who.getId());
+
+        if (connectionTrace != null) {
+            connectionTrace.onPhaseStarted(ConnectionTrace.Phase.HANDSHAKE_WRITE);
+        }
+
+        if (!who.write(response)) {
+            Log.e(TAG, "Failed to respond to thread with ID " + who.getId());
+            removeThreadFromList(who, true);
+        }
+    }
+
     /**
      * This will get called, if the response to an incoming connection was successful. Thus, we can
      * assume we have initiated a connection.
@@ -275,6 +599,15 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
             Log.d(TAG, "onBytesWritten:  Peer props = " + who.getPeerProperties().toString());
         }
 
+        final byte[] initialData = mInitialDataOfPendingHandshakes.remove(threadId);
+        final ConnectionTrace connectionTrace = mTracesOfPendingHandshakes.get(threadId);
+
+        if (connectionTrace != null) {
+            connectionTrace.onPhaseCompleted(ConnectionTrace.Phase.HANDSHAKE_WRITE);
+        }
+
+        completeTrace(threadId, ConnectionTrace.Outcome.CONNECTED);
+
         // Remove the thread from the list, but do not close the socket associated with it, since
         // it is now the responsibility of the listener to do that.
         boolean threadRemoved = removeThreadFromList(who, false);
@@ -285,7 +618,7 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
             Log.e(TAG, "Failed to find the thread from the list (thread ID: " + threadId + ")");
         }
         Log.d(TAG, "onIncomingConnectionConnected socket:" + who.getSocket() + ", properties: " + who.getPeerProperties());
-        mListener.onIncomingConnectionConnected(who.getSocket(), who.getPeerProperties());
+        mListener.onIncomingConnectionConnected(who.getSocket(), who.getPeerProperties(), initialData);
     }
 
     /**
@@ -309,6 +642,21 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
         }
     }
 
+    /**
+     * Drops the connection, if the handshake is still pending.
+     *
+     * @param handshakeThread The IO thread instance of the handshake that timed out.
+     */
+    @Override
+    public void onHandshakeTimeout(BluetoothSocketIoThread handshakeThread) {
+        completeTrace(handshakeThread.getId(), ConnectionTrace.Outcome.TIMED_OUT);
+
+        if (removeThreadFromList(handshakeThread, true)) {
+            Log.e(TAG, "Handshake timed out (thread ID: " + handshakeThread.getId() + ")");
+            mStatistics.onHandshakeTimedOut();
+        }
+    }
+
     /**
      * Closes the Bluetooth server socket.
      */
@@ -329,7 +677,23 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
     }
 
     /**
-     * Removes the given socket IO thread from the list of threads.
+     * Completes the trace of the given handshake, if not already completed.
+     *
+     * @param threadId The ID of the handshake thread.
+     * @param outcome  The outcome of the handshake.
+     */
+    private void completeTrace(final long threadId, ConnectionTrace.Outcome outcome) {
+        final ConnectionTrace connectionTrace = mTracesOfPendingHandshakes.remove(threadId);
+
+        if (connectionTrace != null) {
+            mConnectionTraceStatistics.complete(connectionTrace, outcome);
+        }
+    }
+
+    /**
+     * Removes the given socket IO thread from the list of threads. The trace of the handshake,
+     * unless already completed, is completed as failed, if the socket is closed, and as
+     * connected otherwise.
      *
      * @param threadId              The ID of the thread to remove.
      * @param closeSocketAndStreams If true, will close the socket and streams associated with the thread.
@@ -339,6 +703,11 @@ class BluetoothServerThread extends AbstractBluetoothThread implements Bluetooth
             final long threadId, boolean closeSocketAndStreams) {
 
         boolean threadRemoved = false;
+        mInitialDataOfPendingHandshakes.remove(threadId);
+        mResponsesOfHeldHandshakes.remove(threadId);
+        cancelHeldHandshakeDeadline(threadId);
+        completeTrace(threadId, closeSocketAndStreams
+                ? ConnectionTrace.Outcome.FAILED : ConnectionTrace.Outcome.CONNECTED);
 
         for (BluetoothSocketIoThread thread : mSocketIoThreads) {
             if (thread != null && thread.getId() == threadId) {
@@ -0,0 +1,51 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Creates the Bluetooth sockets for the outgoing connections. The default implementation is
+ * CachedBluetoothSocketFactory. Other implementations can be injected e.g. to use in-memory
+ * sockets in tests.
+ */
+public interface BluetoothSocketFactory {
+    /**
+     * Creates an insecure RFCOMM socket with the given service record UUID. The system decides
+     * the channel based on the SDP lookup.
+     *
+     * @param bluetoothDevice   The Bluetooth device.
+     * @param serviceRecordUuid The service record UUID.
+     * @return A new Bluetooth socket.
+     * @throws IOException Thrown, if the socket could not be created.
+     */
+    BluetoothSocket createInsecureSocketToServiceRecord(BluetoothDevice bluetoothDevice, UUID serviceRecordUuid)
+            throws IOException;
+
+    /**
+     * Creates a new Bluetooth socket with the given service record UUID and the given channel/port.
+     *
+     * @param bluetoothDevice   The Bluetooth device.
+     * @param serviceRecordUuid The service record UUID.
+     * @param channelOrPort     The RFCOMM channel or L2CAP psm to use.
+     * @param secure            If true, will try to create a secure RFCOMM socket. If false, will try to create an insecure one.
+     * @return A new Bluetooth socket or null in case of a failure.
+     */
+    BluetoothSocket createSocketToServiceRecord(
+            BluetoothDevice bluetoothDevice, UUID serviceRecordUuid, int channelOrPort, boolean secure);
+
+    /**
+     * Creates a new RFCOMM socket to the given device using the given channel without the SDP lookup.
+     *
+     * @param bluetoothDevice The Bluetooth device.
+     * @param channelOrPort   The RFCOMM channel to use.
+     * @param secure          If true, will try to create a secure RFCOMM socket. If false, will try to create an insecure one.
+     * @return A new Bluetooth socket or null in case of a failure.
+     */
+    BluetoothSocket createSocket(BluetoothDevice bluetoothDevice, int channelOrPort, boolean secure);
+}
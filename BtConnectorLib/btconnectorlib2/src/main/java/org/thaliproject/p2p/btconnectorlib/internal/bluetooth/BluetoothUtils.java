@@ -6,17 +6,12 @@ package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
-import android.net.LocalSocket;
-import android.os.ParcelUuid;
 import android.util.Log;
 
 import org.json.JSONException;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import org.thaliproject.p2p.btconnectorlib.internal.AbstractBluetoothConnectivityAgent;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
 import java.nio.charset.StandardCharsets;
 import java.util.UUID;
 
@@ -34,8 +29,6 @@ public class BluetoothUtils {
             SIMPLE_HANDSHAKE_MESSAGE_AS_STRING.getBytes(StandardCharsets.UTF_8);
     private static final String MARSHMALLOW_FAKE_MAC_ADDRESS = "02:00:00:00:00:00";
     private static final String UPPER_CASE_HEX_REGEXP_CONDITION = "-?[0-9A-F]+";
-    private static final String METHOD_NAME_FOR_CREATING_SECURE_RFCOMM_SOCKET = "createRfcommSocket";
-    private static final String METHOD_NAME_FOR_CREATING_INSECURE_RFCOMM_SOCKET = "createInsecureRfcommSocket";
     private static final int MAX_ALTERNATIVE_CHANNEL = 30; //from BluetoothSocket.MAX_RFCOMM_CHANNEL
     private static int mAlternativeChannel = 0;
 
@@ -99,6 +92,28 @@ public class BluetoothUtils {
         return isValid;
     }
 
+    /**
+     * Compares the given Bluetooth MAC addresses numerically. Since the result does not depend on
+     * the formatting of the addresses, two peers comparing their addresses always agree on which
+     * one is greater.
+     *
+     * @param bluetoothMacAddress1 The first Bluetooth MAC address.
+     * @param bluetoothMacAddress2 The second Bluetooth MAC address.
+     * @return A negative value, if the first address is less than the second one, zero, if the
+     * addresses are equal, or a positive value, if the first address is greater than the second one.
+     * @throws IllegalArgumentException Thrown, if either of the addresses is not valid.
+     */
+    public static int compareBluetoothMacAddresses(String bluetoothMacAddress1, String bluetoothMacAddress2)
+            throws IllegalArgumentException {
+        if (!isValidBluetoothMacAddress(bluetoothMacAddress1) || !isValidBluetoothMacAddress(bluetoothMacAddress2)) {
+            throw new IllegalArgumentException("Invalid Bluetooth MAC address: "
+                    + bluetoothMacAddress1 + ", " + bluetoothMacAddress2);
+        }
+
+        return Long.compare(bluetoothMacAddressToLong(bluetoothMacAddress1),
+                bluetoothMacAddressToLong(bluetoothMacAddress2));
+    }
+
     /**
      * Extracts the Bluetooth MAC address of the peer from the given Bluetooth socket instance.
      *
@@ -120,7 +135,8 @@ public class BluetoothUtils {
     }
 
     /**
-     * Checks the validity of the received handshake message.
+     * Checks the validity of the received handshake message. Supports the binary handshake message
+     * (see HandshakeMessage), the JSON identity string and the simple handshake message.
      *
      * @param handshakeMessage        The received handshake message as a byte array.
      * @param handshakeMessageLength  The length of the handshake message.
@@ -129,7 +145,19 @@ public class BluetoothUtils {
      */
     public static PeerProperties validateReceivedHandshakeMessage(
             byte[] handshakeMessage, int handshakeMessageLength, BluetoothSocket bluetoothSocketOfSender) {
-        String handshakeMessageAsString = new String(handshakeMessage, StandardCharsets.UTF_8);
+        if (HandshakeMessage.isHandshakeMessage(handshakeMessage, handshakeMessageLength)) {
+            // Binary handshake message, no need to decode the message as a string
+            PeerProperties peerProperties =
+                    HandshakeMessage.decode(handshakeMessage, handshakeMessageLength);
+
+            return (peerProperties != null
+                    && isValidBluetoothMacAddress(peerProperties.getBluetoothMacAddress())
+                    && isBluetoothMacAddressOfSender(peerProperties, bluetoothSocketOfSender))
+                    ? peerProperties : null;
+        }
+
+        String handshakeMessageAsString = new String(handshakeMessage, 0,
+                Math.max(0, Math.min(handshakeMessage.length, handshakeMessageLength)), StandardCharsets.UTF_8);
         PeerProperties peerProperties = null;
         boolean receivedHandshakeMessageValidated = false;
 
@@ -162,22 +190,97 @@ public class BluetoothUtils {
                 }
 
                 if (receivedHandshakeMessageValidated) {
-                    String bluetoothMacAddress =
-                            BluetoothUtils.getBluetoothMacAddressFromSocket(bluetoothSocketOfSender);
+                    receivedHandshakeMessageValidated =
+                            isBluetoothMacAddressOfSender(peerProperties, bluetoothSocketOfSender);
+                }
+            }
+        }
 
-                    if (bluetoothMacAddress == null
-                            || !bluetoothMacAddress.equals(peerProperties.getBluetoothMacAddress())) {
-                        Log.e(TAG, "validateReceivedHandshakeMessage: Bluetooth MAC address mismatch: Got \""
-                                + peerProperties.getBluetoothMacAddress()
-                                + "\", but was expecting \"" + bluetoothMacAddress + "\"");
+        return receivedHandshakeMessageValidated ? peerProperties : null;
+    }
 
-                        receivedHandshakeMessageValidated = false;
-                    }
+    /**
+     * Resolves the length of the handshake message in the beginning of the given bytes. A peer may
+     * send application data right after its handshake message and if both end up in the same
+     * read, the bytes after the handshake message must be passed on instead of being discarded.
+     * <p>
+     * The length of the binary handshake message is read from its header, the simple handshake
+     * message has a fixed length and the JSON identity string (a flat JSON object) ends with the
+     * first closing curly bracket.
+     *
+     * @param bytes The received bytes starting with a handshake message.
+     * @param size  The number of valid bytes in the array.
+     * @return The length of the handshake message. If the length cannot be resolved, all the
+     * valid bytes are considered to belong to the handshake message.
+     */
+    public static int getHandshakeMessageLength(byte[] bytes, int size) {
+        final int numberOfValidBytes = (bytes == null) ? 0 : Math.max(0, Math.min(bytes.length, size));
+
+        if (HandshakeMessage.isHandshakeMessage(bytes, numberOfValidBytes)) {
+            return Math.min(HandshakeMessage.getMessageLength(bytes, numberOfValidBytes), numberOfValidBytes);
+        }
+
+        if (numberOfValidBytes >= SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY.length) {
+            boolean isSimpleHandshakeMessage = true;
+
+            for (int i = 0; i < SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY.length; i++) {
+                if (bytes[i] != SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY[i]) {
+                    isSimpleHandshakeMessage = false;
+                    break;
                 }
             }
+
+            if (isSimpleHandshakeMessage) {
+                return SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY.length;
+            }
         }
 
-        return receivedHandshakeMessageValidated ? peerProperties : null;
+        if (numberOfValidBytes > 0 && bytes[0] == '{') {
+            for (int i = 1; i < numberOfValidBytes; i++) {
+                if (bytes[i] == '}') {
+                    return i + 1;
+                }
+            }
+        }
+
+        return numberOfValidBytes;
+    }
+
+    /**
+     * Checks that the Bluetooth MAC address in the given peer properties matches the address of
+     * the remote device of the given socket.
+     *
+     * @param peerProperties          The peer properties resolved from the handshake message.
+     * @param bluetoothSocketOfSender The Bluetooth socket of the sender.
+     * @return True, if the addresses match. False otherwise.
+     */
+    private static boolean isBluetoothMacAddressOfSender(
+            PeerProperties peerProperties, BluetoothSocket bluetoothSocketOfSender) {
+        String bluetoothMacAddress = getBluetoothMacAddressFromSocket(bluetoothSocketOfSender);
+
+        if (bluetoothMacAddress == null
+                || !bluetoothMacAddress.equals(peerProperties.getBluetoothMacAddress())) {
+            Log.e(TAG, "validateReceivedHandshakeMessage: Bluetooth MAC address mismatch: Got \""
+                    + peerProperties.getBluetoothMacAddress()
+                    + "\", but was expecting \"" + bluetoothMacAddress + "\"");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param bluetoothMacAddress A valid Bluetooth MAC address.
+     * @return The address as a number.
+     */
+    private static long bluetoothMacAddressToLong(String bluetoothMacAddress) {
+        long value = 0;
+
+        for (String byteAsHexString : bluetoothMacAddress.split(BLUETOOTH_ADDRESS_SEPARATOR)) {
+            value = (value << 8) | (Integer.parseInt(byteAsHexString, 16) & 0xFF);
+        }
+
+        return value;
     }
 
     /**
@@ -210,55 +313,8 @@ public class BluetoothUtils {
      */
     public static BluetoothSocket createBluetoothSocketToServiceRecord(
             BluetoothDevice bluetoothDevice, UUID serviceRecordUuid, int channelOrPort, boolean secure) {
-        Constructor[] bluetoothSocketConstructors = BluetoothSocket.class.getDeclaredConstructors();
-        Constructor bluetoothSocketConstructor = null;
-
-        for (Constructor constructor : bluetoothSocketConstructors) {
-            Class<?>[] parameterTypes = constructor.getParameterTypes();
-            boolean takesBluetoothDevice = false;
-            boolean takesParcelUuid = false;
-
-            for (Class<?> parameterType : parameterTypes) {
-                if (parameterType.equals(BluetoothDevice.class)) {
-                    takesBluetoothDevice = true;
-                } else if (parameterType.equals(ParcelUuid.class)) {
-                    takesParcelUuid = true;
-                }
-            }
-
-            if (takesBluetoothDevice && takesParcelUuid) {
-                // We found the right constructor
-                bluetoothSocketConstructor = constructor;
-                break;
-            }
-        }
-
-        // This is the constructor we should now have:
-        // BluetoothSocket(int type, int fd, boolean auth, boolean encrypt, BluetoothDevice device,
-        //      int port, ParcelUuid uuid) throws IOException
-
-        // Create the parameters for the constructor
-        Object[] parameters = new Object[]{
-                Integer.valueOf(1), // BluetoothSocket.TYPE_RFCOMM
-                Integer.valueOf(-1),
-                Boolean.valueOf(secure),
-                Boolean.valueOf(secure),
-                bluetoothDevice,
-                Integer.valueOf(channelOrPort),
-                new ParcelUuid(serviceRecordUuid)
-        };
-
-        bluetoothSocketConstructor.setAccessible(true);
-        BluetoothSocket bluetoothSocket = null;
-
-        try {
-            bluetoothSocket = (BluetoothSocket) bluetoothSocketConstructor.newInstance(parameters);
-            Log.d(TAG, "createBluetoothSocketToServiceRecord: Socket created with channel/port " + channelOrPort);
-        } catch (Exception e) {
-            Log.e(TAG, "createBluetoothSocketToServiceRecord: Failed to create a new Bluetooth socket instance: " + e.getMessage(), e);
-        }
-
-        return bluetoothSocket;
+        return CachedBluetoothSocketFactory.getInstance().createSocketToServiceRecord(
+                bluetoothDevice, serviceRecordUuid, channelOrPort, secure);
     }
 
     /**
@@ -271,11 +327,29 @@ public class BluetoothUtils {
      */
     public static BluetoothSocket createBluetoothSocketToServiceRecordWithNextPort(
             BluetoothDevice bluetoothDevice, UUID serviceRecordUuid, boolean secure) {
+        return createBluetoothSocketToServiceRecordWithNextPort(
+                CachedBluetoothSocketFactory.getInstance(), bluetoothDevice, serviceRecordUuid, secure);
+    }
+
+    /**
+     * Creates a new Bluetooth socket with the given service record UUID using a rotating
+     * channel/port and the given socket factory.
+     *
+     * @param bluetoothSocketFactory The factory used to create the socket.
+     * @param bluetoothDevice        The Bluetooth device.
+     * @param serviceRecordUuid      The service record UUID.
+     * @param secure                 If true, will try to create a secure RFCOMM socket. If false, will try to create an insecure one.
+     * @return A new Bluetooth socket with the specified channel/port or null in case of a failure.
+     */
+    public static BluetoothSocket createBluetoothSocketToServiceRecordWithNextPort(
+            BluetoothSocketFactory bluetoothSocketFactory, BluetoothDevice bluetoothDevice,
+            UUID serviceRecordUuid, boolean secure) {
         if (mAlternativeChannel >= MAX_ALTERNATIVE_CHANNEL) {
             mAlternativeChannel = 0;
         }
 
-        return createBluetoothSocketToServiceRecord(bluetoothDevice, serviceRecordUuid, ++mAlternativeChannel, secure);
+        return bluetoothSocketFactory.createSocketToServiceRecord(
+                bluetoothDevice, serviceRecordUuid, ++mAlternativeChannel, secure);
     }
 
     /**
@@ -288,25 +362,8 @@ public class BluetoothUtils {
      */
     public static BluetoothSocket createBluetoothSocket(
             BluetoothSocket originalBluetoothSocket, int channelOrPort, boolean secure) {
-        Log.d(TAG, "createBluetoothSocketWithSpecifiedChannel: Channel/port: " + channelOrPort + ", secure: " + secure);
-        Class<?> bluetoothDeviceClass = originalBluetoothSocket.getRemoteDevice().getClass();
-        Class<?>[] parameterTypes = new Class<?>[]{Integer.TYPE};
-
-        String methodName = secure
-                ? METHOD_NAME_FOR_CREATING_SECURE_RFCOMM_SOCKET
-                : METHOD_NAME_FOR_CREATING_INSECURE_RFCOMM_SOCKET;
-
-        BluetoothSocket newSocket = null;
-
-        try {
-            Method createSocketMethod = bluetoothDeviceClass.getMethod(methodName, parameterTypes);
-            Object[] parameters = new Object[]{Integer.valueOf(channelOrPort)};
-            newSocket = (BluetoothSocket) createSocketMethod.invoke(originalBluetoothSocket.getRemoteDevice(), parameters);
-        } catch (Exception e) {
-            Log.e(TAG, "createBluetoothSocketWithSpecifiedChannel: Failed to create a new Bluetooth socket: " + e.getMessage(), e);
-        }
-
-        return newSocket;
+        return CachedBluetoothSocketFactory.getInstance().createSocket(
+                originalBluetoothSocket.getRemoteDevice(), channelOrPort, secure);
     }
 
     /**
@@ -327,58 +384,10 @@ public class BluetoothUtils {
 
     // Test stuff
     static String portAndTypeToString(BluetoothSocket socket) {
-        try {
-            int port = BluetoothUtils.extractPort(socket);
-            int type = BluetoothUtils.extractType(socket);
-            LocalSocket localSocket = extractLocalSocket(socket);
-            int socketType = extractSocketType(localSocket);
-            return "Socket " + socket.toString() + ", port: " + port + ", type: " + type +
-                    ", local socket address: " + localSocket.getLocalSocketAddress() + ", socket type: " +
-                    socketType;
-        } catch (IllegalAccessException | NoSuchFieldException e) {
-            Log.e(TAG, "No such fields in bluetooth socket");
-        }
-        return "";
+        return CachedBluetoothSocketFactory.getInstance().portAndTypeToString(socket);
     }
 
     static String portAndTypeToString(BluetoothServerSocket socket) {
-        try {
-            Log.d(TAG, "portAndTypeToString");
-            BluetoothSocket bSock = extractBluetoothSocket(socket);
-            return portAndTypeToString(bSock);
-        } catch (IllegalAccessException | NoSuchFieldException e) {
-            Log.e(TAG, "No such fields in bluetooth socket");
-        }
-        return "";
-    }
-
-    private static BluetoothSocket extractBluetoothSocket(BluetoothServerSocket socket) throws NoSuchFieldException, IllegalAccessException {
-        Field f = socket.getClass().getDeclaredField("mSocket");
-        f.setAccessible(true);
-        return (BluetoothSocket) f.get(socket);
-    }
-
-    private static int extractSocketType(LocalSocket socket) throws NoSuchFieldException, IllegalAccessException {
-        Field f = socket.getClass().getDeclaredField("sockType");
-        f.setAccessible(true);
-        return (int) f.get(socket);
-    }
-
-    private static LocalSocket extractLocalSocket(BluetoothSocket socket) throws NoSuchFieldException, IllegalAccessException {
-        Field f = socket.getClass().getDeclaredField("mSocket");
-        f.setAccessible(true);
-        return (LocalSocket) f.get(socket);
-    }
-
-    private static int extractPort(BluetoothSocket socket) throws NoSuchFieldException, IllegalAccessException {
-        Field f = socket.getClass().getDeclaredField("mPort");
-        f.setAccessible(true);
-        return (int) f.get(socket);
-    }
-
-    private static int extractType(BluetoothSocket socket) throws NoSuchFieldException, IllegalAccessException {
-        Field f = socket.getClass().getDeclaredField("mType");
-        f.setAccessible(true);
-        return (int) f.get(socket);
+        return CachedBluetoothSocketFactory.getInstance().portAndTypeToString(socket);
     }
 }
@@ -0,0 +1,276 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.net.LocalSocket;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * Creates the Bluetooth sockets using the hidden APIs of BluetoothSocket and BluetoothDevice.
+ * <p>
+ * The constructor, the methods and the fields are looked up via reflection only once, when first
+ * needed, and then reused. If the lookup fails (e.g. the API has changed), the failure is
+ * remembered too and the public APIs are used instead, where possible.
+ * <p>
+ * This class is thread-safe.
+ */
+public class CachedBluetoothSocketFactory implements BluetoothSocketFactory {
+    private static final String TAG = CachedBluetoothSocketFactory.class.getName();
+    private static final String METHOD_NAME_FOR_CREATING_SECURE_RFCOMM_SOCKET = "createRfcommSocket";
+    private static final String METHOD_NAME_FOR_CREATING_INSECURE_RFCOMM_SOCKET = "createInsecureRfcommSocket";
+    private static final int BLUETOOTH_SOCKET_TYPE_RFCOMM = 1; // BluetoothSocket.TYPE_RFCOMM
+    private static final CachedBluetoothSocketFactory mInstance = new CachedBluetoothSocketFactory();
+    private Constructor<?> mBluetoothSocketConstructor = null;
+    private boolean mBluetoothSocketConstructorResolved = false;
+    private Method mCreateSecureRfcommSocketMethod = null;
+    private Method mCreateInsecureRfcommSocketMethod = null;
+    private boolean mCreateRfcommSocketMethodsResolved = false;
+    private Field mBluetoothServerSocketSocketField = null;
+    private Field mBluetoothSocketLocalSocketField = null;
+    private Field mBluetoothSocketPortField = null;
+    private Field mBluetoothSocketTypeField = null;
+    private Field mLocalSocketTypeField = null;
+    private boolean mFieldsResolved = false;
+
+    /**
+     * @return The shared instance.
+     */
+    public static CachedBluetoothSocketFactory getInstance() {
+        return mInstance;
+    }
+
+    /**
+     * Constructor. Note that the shared instance (see getInstance()) should be preferred so that
+     * the lookups are done only once.
+     */
+    public CachedBluetoothSocketFactory() {
+    }
+
+    @Override
+    public BluetoothSocket createInsecureSocketToServiceRecord(
+            BluetoothDevice bluetoothDevice, UUID serviceRecordUuid) throws IOException {
+        return bluetoothDevice.createInsecureRfcommSocketToServiceRecord(serviceRecordUuid);
+    }
+
+    /**
+     * Creates a new Bluetooth socket with the given service record UUID and the given channel/port.
+     * If the hidden constructor of BluetoothSocket is not available, will fall back to the public
+     * API and let the system decide the channel.
+     *
+     * @param bluetoothDevice   The Bluetooth device.
+     * @param serviceRecordUuid The service record UUID.
+     * @param channelOrPort     The RFCOMM channel or L2CAP psm to use.
+     * @param secure            If true, will try to create a secure RFCOMM socket. If false, will try to create an insecure one.
+     * @return A new Bluetooth socket or null in case of a failure.
+     */
+    @Override
+    public BluetoothSocket createSocketToServiceRecord(
+            BluetoothDevice bluetoothDevice, UUID serviceRecordUuid, int channelOrPort, boolean secure) {
+        final Constructor<?> bluetoothSocketConstructor = getBluetoothSocketConstructor();
+        BluetoothSocket bluetoothSocket = null;
+
+        try {
+            if (bluetoothSocketConstructor != null) {
+                // BluetoothSocket(int type, int fd, boolean auth, boolean encrypt, BluetoothDevice device,
+                //      int port, ParcelUuid uuid) throws IOException
+                bluetoothSocket = (BluetoothSocket) bluetoothSocketConstructor.newInstance(
+                        BLUETOOTH_SOCKET_TYPE_RFCOMM, -1, secure, secure, bluetoothDevice,
+                        channelOrPort, new ParcelUuid(serviceRecordUuid));
+                Log.d(TAG, "createSocketToServiceRecord: Socket created with channel/port " + channelOrPort);
+            } else {
+                Log.w(TAG, "createSocketToServiceRecord: Cannot use channel/port " + channelOrPort
+                        + ", falling back to the system decided one");
+                bluetoothSocket = secure
+                        ? bluetoothDevice.createRfcommSocketToServiceRecord(serviceRecordUuid)
+                        : bluetoothDevice.createInsecureRfcommSocketToServiceRecord(serviceRecordUuid);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "createSocketToServiceRecord: Failed to create a new Bluetooth socket instance: " + e.getMessage(), e);
+        }
+
+        return bluetoothSocket;
+    }
+
+    /**
+     * @return True, if createSocketToServiceRecord() uses the given channel/port. False, if it
+     * falls back to the system decided one, since the hidden constructor is not available.
+     */
+    public boolean canCreateSocketToServiceRecordWithChannel() {
+        return getBluetoothSocketConstructor() != null;
+    }
+
+    @Override
+    public BluetoothSocket createSocket(BluetoothDevice bluetoothDevice, int channelOrPort, boolean secure) {
+        Log.d(TAG, "createSocket: Channel/port: " + channelOrPort + ", secure: " + secure);
+        final Method createSocketMethod = getCreateRfcommSocketMethod(secure);
+        BluetoothSocket newSocket = null;
+
+        if (createSocketMethod != null) {
+            try {
+                newSocket = (BluetoothSocket) createSocketMethod.invoke(bluetoothDevice, channelOrPort);
+            } catch (Exception e) {
+                Log.e(TAG, "createSocket: Failed to create a new Bluetooth socket: " + e.getMessage(), e);
+            }
+        }
+
+        return newSocket;
+    }
+
+    /**
+     * @param socket The Bluetooth socket.
+     * @return A string describing the port and the type of the given socket or an empty string,
+     * if the information is not available.
+     */
+    String portAndTypeToString(BluetoothSocket socket) {
+        if (socket == null || !resolveFields()) {
+            return "";
+        }
+
+        try {
+            int port = (int) mBluetoothSocketPortField.get(socket);
+            int type = (int) mBluetoothSocketTypeField.get(socket);
+            LocalSocket localSocket = (LocalSocket) mBluetoothSocketLocalSocketField.get(socket);
+            int socketType = (localSocket != null) ? (int) mLocalSocketTypeField.get(localSocket) : -1;
+            return "Socket " + socket.toString() + ", port: " + port + ", type: " + type +
+                    ", local socket address: " + ((localSocket != null) ? localSocket.getLocalSocketAddress() : null)
+                    + ", socket type: " + socketType;
+        } catch (IllegalAccessException | IllegalArgumentException e) {
+            Log.e(TAG, "portAndTypeToString: Failed to read the fields of the Bluetooth socket: " + e.getMessage());
+        }
+
+        return "";
+    }
+
+    /**
+     * @param socket The Bluetooth server socket.
+     * @return A string describing the port and the type of the socket of the given server socket
+     * or an empty string, if the information is not available.
+     */
+    String portAndTypeToString(BluetoothServerSocket socket) {
+        if (socket == null || !resolveFields()) {
+            return "";
+        }
+
+        try {
+            return portAndTypeToString((BluetoothSocket) mBluetoothServerSocketSocketField.get(socket));
+        } catch (IllegalAccessException | IllegalArgumentException e) {
+            Log.e(TAG, "portAndTypeToString: Failed to read the fields of the Bluetooth server socket: " + e.getMessage());
+        }
+
+        return "";
+    }
+
+    /**
+     * Looks up the constructor of BluetoothSocket taking the device and the service record UUID,
+     * if not already done.
+     *
+     * @return The constructor or null, if not available.
+     */
+    private synchronized Constructor<?> getBluetoothSocketConstructor() {
+        if (!mBluetoothSocketConstructorResolved) {
+            mBluetoothSocketConstructorResolved = true;
+
+            try {
+                for (Constructor<?> constructor : BluetoothSocket.class.getDeclaredConstructors()) {
+                    boolean takesBluetoothDevice = false;
+                    boolean takesParcelUuid = false;
+
+                    for (Class<?> parameterType : constructor.getParameterTypes()) {
+                        if (parameterType.equals(BluetoothDevice.class)) {
+                            takesBluetoothDevice = true;
+                        } else if (parameterType.equals(ParcelUuid.class)) {
+                            takesParcelUuid = true;
+                        }
+                    }
+
+                    if (takesBluetoothDevice && takesParcelUuid
+                            && constructor.getParameterTypes().length == 7) {
+                        constructor.setAccessible(true);
+                        mBluetoothSocketConstructor = constructor;
+                        break;
+                    }
+                }
+            } catch (SecurityException e) {
+                Log.e(TAG, "getBluetoothSocketConstructor: " + e.getMessage(), e);
+            }
+
+            if (mBluetoothSocketConstructor == null) {
+                Log.e(TAG, "getBluetoothSocketConstructor: No suitable constructor found");
+            }
+        }
+
+        return mBluetoothSocketConstructor;
+    }
+
+    /**
+     * Looks up the methods of BluetoothDevice for creating a socket with a given channel, if not
+     * already done.
+     *
+     * @param secure If true, will return the method for secure sockets. If false, for insecure ones.
+     * @return The method or null, if not available.
+     */
+    private synchronized Method getCreateRfcommSocketMethod(boolean secure) {
+        if (!mCreateRfcommSocketMethodsResolved) {
+            mCreateRfcommSocketMethodsResolved = true;
+            mCreateSecureRfcommSocketMethod = getMethod(METHOD_NAME_FOR_CREATING_SECURE_RFCOMM_SOCKET);
+            mCreateInsecureRfcommSocketMethod = getMethod(METHOD_NAME_FOR_CREATING_INSECURE_RFCOMM_SOCKET);
+        }
+
+        return secure ? mCreateSecureRfcommSocketMethod : mCreateInsecureRfcommSocketMethod;
+    }
+
+    /**
+     * Looks up the fields used for describing the sockets, if not already done.
+     *
+     * @return True, if all the fields are available. False otherwise.
+     */
+    private synchronized boolean resolveFields() {
+        if (!mFieldsResolved) {
+            mFieldsResolved = true;
+            mBluetoothServerSocketSocketField = getField(BluetoothServerSocket.class, "mSocket");
+            mBluetoothSocketLocalSocketField = getField(BluetoothSocket.class, "mSocket");
+            mBluetoothSocketPortField = getField(BluetoothSocket.class, "mPort");
+            mBluetoothSocketTypeField = getField(BluetoothSocket.class, "mType");
+            mLocalSocketTypeField = getField(LocalSocket.class, "sockType");
+        }
+
+        return mBluetoothServerSocketSocketField != null
+                && mBluetoothSocketLocalSocketField != null
+                && mBluetoothSocketPortField != null
+                && mBluetoothSocketTypeField != null
+                && mLocalSocketTypeField != null;
+    }
+
+    private static Method getMethod(String methodName) {
+        try {
+            return BluetoothDevice.class.getMethod(methodName, Integer.TYPE);
+        } catch (NoSuchMethodException | SecurityException e) {
+            Log.e(TAG, "getMethod: No method " + methodName + ": " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    private static Field getField(Class<?> declaringClass, String fieldName) {
+        try {
+            Field field = declaringClass.getDeclaredField(fieldName);
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | SecurityException e) {
+            Log.e(TAG, "getField: No field " + fieldName + " in " + declaringClass.getName());
+        }
+
+        return null;
+    }
+}
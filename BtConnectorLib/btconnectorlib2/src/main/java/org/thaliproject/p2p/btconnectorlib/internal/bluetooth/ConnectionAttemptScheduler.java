@@ -0,0 +1,314 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Limits the number of outgoing connection attempts running at the same time and keeps the
+ * attempts exceeding the limit in a priority queue.
+ * <p>
+ * The Bluetooth stack serializes the page attempts anyway, so running many attempts in parallel
+ * only makes them compete with each other and run into the connection timeout. The pending
+ * attempts are ordered by the priority given by the caller (higher first), then by the peer score
+ * (higher first) and then by the order they were added in. The score is resolved when the attempt
+ * is added.
+ * <p>
+ * This class only decides which attempts to start; starting the threads is left to the owner.
+ * In addition, the queue depth, the time the attempts wait in the queue and the number of
+ * duplicate connection requests coalesced into existing attempts are recorded.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ConnectionAttemptScheduler {
+    /**
+     * Provides the score of a peer used to order the connection attempts of the same priority.
+     */
+    public interface PeerScorer {
+        /**
+         * @param peerProperties The properties of the peer.
+         * @return The score of the peer. The attempts to peers with a higher score start first.
+         */
+        double getScore(PeerProperties peerProperties);
+    }
+
+    private static final String TAG = ConnectionAttemptScheduler.class.getName();
+    public static final int DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS = 1;
+    public static final int DEFAULT_PRIORITY = 0;
+    private static final double NANOSECONDS_IN_MILLISECOND = 1000000d;
+    private final PriorityQueue<PendingConnectionAttempt> mPendingConnectionAttempts =
+            new PriorityQueue<PendingConnectionAttempt>();
+    private PeerScorer mPeerScorer = null;
+    private int mMaxNumberOfConcurrentConnectionAttempts = DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS;
+    private long mNextSequenceNumber = 0;
+    private int mMaxQueueDepth = 0;
+    private long mNumberOfConnectionAttemptsStarted = 0;
+    private long mNumberOfConnectionAttemptsCancelled = 0;
+    private long mNumberOfConnectionAttemptsCoalesced = 0;
+    private long mTotalWaitTimeInNanoseconds = 0;
+    private long mMaxWaitTimeInNanoseconds = 0;
+
+    /**
+     * @return The maximum number of connection attempts running at the same time.
+     */
+    public synchronized int getMaxNumberOfConcurrentConnectionAttempts() {
+        return mMaxNumberOfConcurrentConnectionAttempts;
+    }
+
+    /**
+     * Sets the maximum number of connection attempts running at the same time.
+     *
+     * @param maxNumberOfConcurrentConnectionAttempts The maximum number of concurrent attempts.
+     *                                                If zero or less, the number is not limited.
+     */
+    public synchronized void setMaxNumberOfConcurrentConnectionAttempts(int maxNumberOfConcurrentConnectionAttempts) {
+        mMaxNumberOfConcurrentConnectionAttempts = maxNumberOfConcurrentConnectionAttempts;
+    }
+
+    /**
+     * Sets the peer scorer. The scorer is applied to the attempts added after this call.
+     *
+     * @param peerScorer The peer scorer. If null, all the peers have the same score.
+     */
+    public synchronized void setPeerScorer(PeerScorer peerScorer) {
+        mPeerScorer = peerScorer;
+    }
+
+    /**
+     * Adds the given connection attempt to the queue.
+     *
+     * @param bluetoothClientThread The client thread of the attempt. Must not be started yet.
+     * @param priority              The priority of the attempt. Higher priority attempts start first.
+     */
+    synchronized void add(BluetoothClientThread bluetoothClientThread, int priority) {
+        if (bluetoothClientThread == null) {
+            throw new NullPointerException("The given Bluetooth client thread instance is null");
+        }
+
+        double score = 0d;
+
+        if (mPeerScorer != null && bluetoothClientThread.getPeerProperties() != null) {
+            try {
+                score = mPeerScorer.getScore(bluetoothClientThread.getPeerProperties());
+            } catch (RuntimeException e) {
+                Log.e(TAG, "add: Failed to resolve the peer score: " + e.getMessage(), e);
+            }
+        }
+
+        mPendingConnectionAttempts.add(new PendingConnectionAttempt(
+                bluetoothClientThread, priority, score, mNextSequenceNumber++, System.nanoTime()));
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mPendingConnectionAttempts.size());
+    }
+
+    /**
+     * Joins a request to connect to the given device to the pending attempt to the same device,
+     * if one exists. If the request has a higher priority than the pending attempt, the priority
+     * of the attempt is raised.
+     *
+     * @param bluetoothDeviceAddress The address of the Bluetooth device to connect to.
+     * @param priority               The priority of the request.
+     * @return True, if a pending attempt was found and the request was joined to it. False otherwise.
+     */
+    synchronized boolean join(String bluetoothDeviceAddress, int priority) {
+        if (bluetoothDeviceAddress == null) {
+            return false;
+        }
+
+        final String normalizedBluetoothDeviceAddress =
+                PeerProperties.normalizeBluetoothMacAddress(bluetoothDeviceAddress);
+        Iterator<PendingConnectionAttempt> iterator = mPendingConnectionAttempts.iterator();
+
+        while (iterator.hasNext()) {
+            PendingConnectionAttempt pendingConnectionAttempt = iterator.next();
+
+            if (normalizedBluetoothDeviceAddress.equals(PeerProperties.normalizeBluetoothMacAddress(
+                    pendingConnectionAttempt.mBluetoothClientThread.getBluetoothDeviceAddress()))) {
+                if (priority > pendingConnectionAttempt.mPriority) {
+                    // The priority is part of the ordering and thus, the attempt must be re-added
+                    iterator.remove();
+                    mPendingConnectionAttempts.add(new PendingConnectionAttempt(
+                            pendingConnectionAttempt.mBluetoothClientThread, priority,
+                            pendingConnectionAttempt.mScore, pendingConnectionAttempt.mSequenceNumber,
+                            pendingConnectionAttempt.mTimeAddedInNanoseconds));
+                }
+
+                mNumberOfConnectionAttemptsCoalesced++;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Records a request joined to an attempt that has already started.
+     */
+    synchronized void onConnectionAttemptCoalesced() {
+        mNumberOfConnectionAttemptsCoalesced++;
+    }
+
+    /**
+     * Takes the next connection attempt to start from the queue, if the limit of concurrent
+     * attempts allows it.
+     *
+     * @param numberOfActiveConnectionAttempts The number of attempts currently running.
+     * @return The client thread of the attempt to start or null, if none should be started.
+     */
+    synchronized BluetoothClientThread pollNext(int numberOfActiveConnectionAttempts) {
+        if (mMaxNumberOfConcurrentConnectionAttempts > 0
+                && numberOfActiveConnectionAttempts >= mMaxNumberOfConcurrentConnectionAttempts) {
+            return null;
+        }
+
+        PendingConnectionAttempt pendingConnectionAttempt = mPendingConnectionAttempts.poll();
+
+        if (pendingConnectionAttempt == null) {
+            return null;
+        }
+
+        long waitTimeInNanoseconds = System.nanoTime() - pendingConnectionAttempt.mTimeAddedInNanoseconds;
+        mNumberOfConnectionAttemptsStarted++;
+        mTotalWaitTimeInNanoseconds += waitTimeInNanoseconds;
+        mMaxWaitTimeInNanoseconds = Math.max(mMaxWaitTimeInNanoseconds, waitTimeInNanoseconds);
+        return pendingConnectionAttempt.mBluetoothClientThread;
+    }
+
+    /**
+     * Removes the pending connection attempt to the peer with the given properties.
+     *
+     * @param peerProperties The properties of the peer.
+     * @return The client thread of the removed attempt or null, if no attempt was pending.
+     */
+    synchronized BluetoothClientThread remove(PeerProperties peerProperties) {
+        Iterator<PendingConnectionAttempt> iterator = mPendingConnectionAttempts.iterator();
+
+        while (iterator.hasNext()) {
+            BluetoothClientThread bluetoothClientThread = iterator.next().mBluetoothClientThread;
+
+            if (bluetoothClientThread.getPeerProperties() != null
+                    && bluetoothClientThread.getPeerProperties().equals(peerProperties)) {
+                iterator.remove();
+                mNumberOfConnectionAttemptsCancelled++;
+                return bluetoothClientThread;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Removes all the pending connection attempts.
+     *
+     * @return The client threads of the removed attempts.
+     */
+    synchronized List<BluetoothClientThread> removeAll() {
+        List<BluetoothClientThread> bluetoothClientThreads =
+                new ArrayList<BluetoothClientThread>(mPendingConnectionAttempts.size());
+
+        for (PendingConnectionAttempt pendingConnectionAttempt : mPendingConnectionAttempts) {
+            bluetoothClientThreads.add(pendingConnectionAttempt.mBluetoothClientThread);
+        }
+
+        mNumberOfConnectionAttemptsCancelled += bluetoothClientThreads.size();
+        mPendingConnectionAttempts.clear();
+        return bluetoothClientThreads;
+    }
+
+    /**
+     * @return The number of connection attempts waiting in the queue.
+     */
+    public synchronized int getQueueDepth() {
+        return mPendingConnectionAttempts.size();
+    }
+
+    /**
+     * @return The largest number of connection attempts that have been waiting in the queue.
+     */
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return The number of connection attempts taken from the queue to be started.
+     */
+    public synchronized long getNumberOfConnectionAttemptsStarted() {
+        return mNumberOfConnectionAttemptsStarted;
+    }
+
+    /**
+     * @return The number of connection attempts cancelled while waiting in the queue.
+     */
+    public synchronized long getNumberOfConnectionAttemptsCancelled() {
+        return mNumberOfConnectionAttemptsCancelled;
+    }
+
+    /**
+     * @return The number of connection requests joined to an existing attempt to the same device
+     * instead of starting a new one.
+     */
+    public synchronized long getNumberOfConnectionAttemptsCoalesced() {
+        return mNumberOfConnectionAttemptsCoalesced;
+    }
+
+    /**
+     * @return The average time the started attempts waited in the queue in milliseconds or zero,
+     * if no attempts were started.
+     */
+    public synchronized double getAverageWaitTimeInMilliseconds() {
+        if (mNumberOfConnectionAttemptsStarted == 0) {
+            return 0d;
+        }
+
+        return (mTotalWaitTimeInNanoseconds / mNumberOfConnectionAttemptsStarted) / NANOSECONDS_IN_MILLISECOND;
+    }
+
+    /**
+     * @return The longest time a started attempt waited in the queue in milliseconds.
+     */
+    public synchronized double getMaxWaitTimeInMilliseconds() {
+        return mMaxWaitTimeInNanoseconds / NANOSECONDS_IN_MILLISECOND;
+    }
+
+    /**
+     * A connection attempt waiting to be started.
+     */
+    private static class PendingConnectionAttempt implements Comparable<PendingConnectionAttempt> {
+        final BluetoothClientThread mBluetoothClientThread;
+        final int mPriority;
+        final double mScore;
+        final long mSequenceNumber;
+        final long mTimeAddedInNanoseconds;
+
+        PendingConnectionAttempt(BluetoothClientThread bluetoothClientThread, int priority,
+                                 double score, long sequenceNumber, long timeAddedInNanoseconds) {
+            mBluetoothClientThread = bluetoothClientThread;
+            mPriority = priority;
+            mScore = score;
+            mSequenceNumber = sequenceNumber;
+            mTimeAddedInNanoseconds = timeAddedInNanoseconds;
+        }
+
+        @Override
+        public int compareTo(PendingConnectionAttempt other) {
+            if (mPriority != other.mPriority) {
+                return (mPriority > other.mPriority) ? -1 : 1;
+            }
+
+            int result = Double.compare(other.mScore, mScore);
+
+            if (result != 0) {
+                return result;
+            }
+
+            return (mSequenceNumber < other.mSequenceNumber) ? -1 : ((mSequenceNumber == other.mSequenceNumber) ? 0 : 1);
+        }
+    }
+}
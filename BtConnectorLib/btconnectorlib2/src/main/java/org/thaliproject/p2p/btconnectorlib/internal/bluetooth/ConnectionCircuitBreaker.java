@@ -0,0 +1,373 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a failure history of the outgoing connection attempts per peer (normalized Bluetooth MAC
+ * address) and stops connecting to the peers that keep failing.
+ * <p>
+ * The circuit of a peer is CLOSED, while the connection attempts succeed. When the number of
+ * consecutive failures reaches the threshold, the circuit is OPEN and no connection attempts are
+ * allowed until the backoff time has elapsed. The backoff time grows exponentially with each
+ * further failure (up to the maximum) and a random jitter is added so that the retries of many
+ * devices do not synchronize. After the backoff time, the circuit is HALF_OPEN and a single trial
+ * attempt is allowed: if it succeeds, the circuit is closed, and if it fails, the circuit is opened
+ * again with a longer backoff. If the outcome of the trial attempt is not reported within the
+ * trial timeout, another trial attempt is allowed.
+ * <p>
+ * The number of peers remembered is bounded; the least recently used peer is forgotten first.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ConnectionCircuitBreaker {
+    public enum State {
+        CLOSED, // Connection attempts are allowed
+        OPEN, // Connection attempts are not allowed until the backoff time has elapsed
+        HALF_OPEN // A single trial connection attempt is allowed
+    }
+
+    private static final String TAG = ConnectionCircuitBreaker.class.getName();
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_BASE_BACKOFF_IN_MILLISECONDS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_IN_MILLISECONDS = 60000;
+    public static final int DEFAULT_MAX_NUMBER_OF_PEERS = 128;
+    public static final long DEFAULT_TRIAL_CONNECTION_ATTEMPT_TIMEOUT_IN_MILLISECONDS = 60000;
+    private static final int MAX_BACKOFF_EXPONENT = 30;
+    private final LinkedHashMap<String, FailureHistory> mFailureHistories =
+            new LinkedHashMap<String, FailureHistory>(16, 0.75f, true);
+    private final Random mRandom;
+    private int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long mBaseBackoffInMilliseconds = DEFAULT_BASE_BACKOFF_IN_MILLISECONDS;
+    private long mMaxBackoffInMilliseconds = DEFAULT_MAX_BACKOFF_IN_MILLISECONDS;
+    private long mTrialConnectionAttemptTimeoutInMilliseconds = DEFAULT_TRIAL_CONNECTION_ATTEMPT_TIMEOUT_IN_MILLISECONDS;
+    private long mNumberOfConnectionAttemptsRejected = 0;
+
+    /**
+     * Constructor.
+     */
+    public ConnectionCircuitBreaker() {
+        this(new Random());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param random The random number generator used for the jitter.
+     */
+    ConnectionCircuitBreaker(Random random) {
+        if (random == null) {
+            throw new NullPointerException("The given random number generator is null");
+        }
+
+        mRandom = random;
+    }
+
+    /**
+     * Calculates an exponential backoff time with jitter: The backoff time is the base time
+     * doubled for each failure after the first one and capped to the maximum. The result is a
+     * random value between half of the backoff time and the backoff time.
+     *
+     * @param numberOfFailures          The number of consecutive failures (one or more).
+     * @param baseBackoffInMilliseconds The backoff time after the first failure.
+     * @param maxBackoffInMilliseconds  The maximum backoff time.
+     * @param random                    The random number generator used for the jitter.
+     * @return The backoff time in milliseconds.
+     */
+    public static long getBackoffWithJitter(
+            int numberOfFailures, long baseBackoffInMilliseconds, long maxBackoffInMilliseconds, Random random) {
+        int exponent = Math.max(0, Math.min(numberOfFailures - 1, MAX_BACKOFF_EXPONENT));
+        long backoffInMilliseconds = Math.min(baseBackoffInMilliseconds << exponent, maxBackoffInMilliseconds);
+
+        if (backoffInMilliseconds <= 1) {
+            return Math.max(backoffInMilliseconds, 0);
+        }
+
+        long halfOfBackoff = backoffInMilliseconds / 2;
+        return halfOfBackoff + (long) (random.nextDouble() * (backoffInMilliseconds - halfOfBackoff + 1));
+    }
+
+    /**
+     * @return The number of consecutive failures that opens the circuit.
+     */
+    public synchronized int getFailureThreshold() {
+        return mFailureThreshold;
+    }
+
+    /**
+     * Sets the number of consecutive failures that opens the circuit.
+     *
+     * @param failureThreshold The failure threshold. If zero or less, the circuit is never opened.
+     */
+    public synchronized void setFailureThreshold(int failureThreshold) {
+        mFailureThreshold = failureThreshold;
+    }
+
+    /**
+     * Sets the bounds of the backoff time. The changes apply to the circuits opened after this call.
+     *
+     * @param baseBackoffInMilliseconds The backoff time, when the circuit is first opened.
+     * @param maxBackoffInMilliseconds  The maximum backoff time.
+     */
+    public synchronized void setBackoff(long baseBackoffInMilliseconds, long maxBackoffInMilliseconds) {
+        if (baseBackoffInMilliseconds < 0 || maxBackoffInMilliseconds < baseBackoffInMilliseconds) {
+            throw new IllegalArgumentException("Invalid backoff time bounds");
+        }
+
+        mBaseBackoffInMilliseconds = baseBackoffInMilliseconds;
+        mMaxBackoffInMilliseconds = maxBackoffInMilliseconds;
+    }
+
+    /**
+     * @return The time after which the trial attempt is considered lost, if its outcome was not
+     * reported, in milliseconds.
+     */
+    public synchronized long getTrialConnectionAttemptTimeout() {
+        return mTrialConnectionAttemptTimeoutInMilliseconds;
+    }
+
+    /**
+     * Sets the time after which the trial attempt of a half-open circuit is considered lost, if
+     * its outcome was not reported, and another trial attempt is allowed.
+     *
+     * @param trialConnectionAttemptTimeoutInMilliseconds The trial timeout in milliseconds.
+     */
+    public synchronized void setTrialConnectionAttemptTimeout(long trialConnectionAttemptTimeoutInMilliseconds) {
+        if (trialConnectionAttemptTimeoutInMilliseconds < 0) {
+            throw new IllegalArgumentException("The trial timeout cannot be negative");
+        }
+
+        mTrialConnectionAttemptTimeoutInMilliseconds = trialConnectionAttemptTimeoutInMilliseconds;
+    }
+
+    /**
+     * Checks whether a connection attempt to the given peer is allowed. If the backoff time of an
+     * open circuit has elapsed, the circuit is half-opened and this attempt is the trial attempt.
+     * Thus, the caller must report the outcome of the attempt, if allowed.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return True, if the connection attempt is allowed. False, if the circuit is open.
+     */
+    public synchronized boolean allowConnectionAttempt(String bluetoothMacAddress) {
+        FailureHistory failureHistory = getFailureHistory(bluetoothMacAddress);
+
+        if (failureHistory == null || failureHistory.mState == State.CLOSED) {
+            return true;
+        }
+
+        if (failureHistory.mState == State.OPEN && failureHistory.getTimeUntilRetryInMilliseconds() == 0) {
+            Log.d(TAG, "allowConnectionAttempt: Half-opening the circuit of " + bluetoothMacAddress);
+            failureHistory.mState = State.HALF_OPEN;
+            failureHistory.startTrialConnectionAttempt();
+            return true;
+        }
+
+        if (failureHistory.mState == State.HALF_OPEN) {
+            if (failureHistory.mIsTrialConnectionAttemptRunning
+                    && failureHistory.getTimeSinceTrialConnectionAttemptStartedInMilliseconds()
+                        >= mTrialConnectionAttemptTimeoutInMilliseconds) {
+                Log.w(TAG, "allowConnectionAttempt: The outcome of the trial attempt to "
+                        + bluetoothMacAddress + " was not reported in time, allowing another one");
+                failureHistory.mIsTrialConnectionAttemptRunning = false;
+            }
+
+            if (!failureHistory.mIsTrialConnectionAttemptRunning) {
+                failureHistory.startTrialConnectionAttempt();
+                return true;
+            }
+        }
+
+        mNumberOfConnectionAttemptsRejected++;
+        return false;
+    }
+
+    /**
+     * Records a successful connection with the given peer and closes its circuit.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    public synchronized void onConnectionSucceeded(String bluetoothMacAddress) {
+        if (bluetoothMacAddress != null && mFailureHistories.remove(PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress)) != null) {
+            Log.d(TAG, "onConnectionSucceeded: Closed the circuit of " + bluetoothMacAddress);
+        }
+    }
+
+    /**
+     * Records a failed connection attempt (including a timeout) to the given peer. Opens the
+     * circuit, if the failure threshold is reached or if the failed attempt was the trial attempt.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    public synchronized void onConnectionFailed(String bluetoothMacAddress) {
+        if (bluetoothMacAddress == null) {
+            return;
+        }
+
+        FailureHistory failureHistory = getFailureHistory(bluetoothMacAddress);
+
+        if (failureHistory == null) {
+            failureHistory = new FailureHistory();
+            mFailureHistories.put(PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress), failureHistory);
+            evictIfFull();
+        }
+
+        failureHistory.mNumberOfConsecutiveFailures++;
+        failureHistory.mIsTrialConnectionAttemptRunning = false;
+
+        if (mFailureThreshold > 0 && failureHistory.mNumberOfConsecutiveFailures >= mFailureThreshold) {
+            long backoffInMilliseconds = getBackoffWithJitter(
+                    failureHistory.mNumberOfConsecutiveFailures - mFailureThreshold + 1,
+                    mBaseBackoffInMilliseconds, mMaxBackoffInMilliseconds, mRandom);
+            failureHistory.mState = State.OPEN;
+            failureHistory.openFor(backoffInMilliseconds);
+
+            Log.i(TAG, "onConnectionFailed: Opened the circuit of " + bluetoothMacAddress + " for "
+                    + backoffInMilliseconds + " ms after " + failureHistory.mNumberOfConsecutiveFailures
+                    + " consecutive failures");
+        }
+    }
+
+    /**
+     * Records a cancelled connection attempt to the given peer. The outcome is unknown and thus,
+     * the failure history is not changed, but another trial attempt is allowed, if the circuit is
+     * half-open.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    public synchronized void onConnectionAttemptCancelled(String bluetoothMacAddress) {
+        FailureHistory failureHistory = getFailureHistory(bluetoothMacAddress);
+
+        if (failureHistory != null) {
+            failureHistory.mIsTrialConnectionAttemptRunning = false;
+        }
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The current state of the circuit of the given peer.
+     */
+    public synchronized State getState(String bluetoothMacAddress) {
+        FailureHistory failureHistory = getFailureHistory(bluetoothMacAddress);
+
+        if (failureHistory == null) {
+            return State.CLOSED;
+        }
+
+        if (failureHistory.mState == State.OPEN && failureHistory.getTimeUntilRetryInMilliseconds() == 0) {
+            // The next attempt will be the trial attempt
+            return State.HALF_OPEN;
+        }
+
+        return failureHistory.mState;
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The time until a connection attempt to the given peer is allowed again in
+     * milliseconds or zero, if the circuit is not open.
+     */
+    public synchronized long getTimeUntilRetryInMilliseconds(String bluetoothMacAddress) {
+        FailureHistory failureHistory = getFailureHistory(bluetoothMacAddress);
+
+        if (failureHistory == null || failureHistory.mState != State.OPEN) {
+            return 0;
+        }
+
+        return failureHistory.getTimeUntilRetryInMilliseconds();
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The number of consecutive failed connection attempts to the given peer.
+     */
+    public synchronized int getNumberOfConsecutiveFailures(String bluetoothMacAddress) {
+        FailureHistory failureHistory = getFailureHistory(bluetoothMacAddress);
+        return (failureHistory != null) ? failureHistory.mNumberOfConsecutiveFailures : 0;
+    }
+
+    /**
+     * @return The number of connection attempts not allowed, since the circuit was open.
+     */
+    public synchronized long getNumberOfConnectionAttemptsRejected() {
+        return mNumberOfConnectionAttemptsRejected;
+    }
+
+    /**
+     * Forgets the failure history of the given peer i.e. closes its circuit.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    public synchronized void reset(String bluetoothMacAddress) {
+        if (bluetoothMacAddress != null) {
+            mFailureHistories.remove(PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress));
+        }
+    }
+
+    /**
+     * Forgets the failure histories of all the peers.
+     */
+    public synchronized void clear() {
+        mFailureHistories.clear();
+    }
+
+    private FailureHistory getFailureHistory(String bluetoothMacAddress) {
+        return (bluetoothMacAddress != null)
+                ? mFailureHistories.get(PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress)) : null;
+    }
+
+    private void evictIfFull() {
+        Iterator<String> iterator = mFailureHistories.keySet().iterator();
+
+        while (mFailureHistories.size() > DEFAULT_MAX_NUMBER_OF_PEERS && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove(); // The least recently used peer
+        }
+    }
+
+    private static class FailureHistory {
+        State mState = State.CLOSED;
+        int mNumberOfConsecutiveFailures = 0;
+        long mOpenUntilInNanoseconds = 0;
+        boolean mIsTrialConnectionAttemptRunning = false;
+        long mTrialConnectionAttemptStartedInNanoseconds = 0;
+
+        /**
+         * Opens the circuit for the given time. The deadline is measured with the monotonic
+         * clock, so that wall clock changes do not shorten or extend the backoff.
+         *
+         * @param backoffInMilliseconds The time the circuit is kept open.
+         */
+        void openFor(long backoffInMilliseconds) {
+            mOpenUntilInNanoseconds = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffInMilliseconds);
+        }
+
+        /**
+         * @return The time until the open circuit is half-opened in milliseconds, rounded up, or zero, if
+         * the backoff has expired.
+         */
+        long getTimeUntilRetryInMilliseconds() {
+            final long timeLeftInNanoseconds = mOpenUntilInNanoseconds - System.nanoTime();
+            return (timeLeftInNanoseconds > 0)
+                    ? (timeLeftInNanoseconds + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1)
+                    : 0;
+        }
+
+        void startTrialConnectionAttempt() {
+            mIsTrialConnectionAttemptRunning = true;
+            mTrialConnectionAttemptStartedInNanoseconds = System.nanoTime();
+        }
+
+        long getTimeSinceTrialConnectionAttemptStartedInMilliseconds() {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mTrialConnectionAttemptStartedInNanoseconds);
+        }
+    }
+}
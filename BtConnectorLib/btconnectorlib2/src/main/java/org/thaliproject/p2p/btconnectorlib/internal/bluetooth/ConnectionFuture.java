@@ -0,0 +1,342 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a single connection attempt.
+ * <p>
+ * The future is completed by the thread resolving the attempt (not the main thread) with the
+ * connected socket, or with an ExecutionException whose cause is an IOException (failed) or a
+ * TimeoutException (the connection attempt timed out). Cancelling the future cancels the attempt.
+ * <p>
+ * The listeners added with addListener() are run once the future is completed, including when
+ * it is cancelled, using the executor given with each listener. The futures of BluetoothConnector
+ * run the listeners added without an executor on a thread of their own so that the listeners are
+ * never run while BluetoothConnector is locked.
+ * <p>
+ * Only this package can complete a pending future; others can create completed futures with
+ * createConnected() and createFailed().
+ * <p>
+ * This class is thread-safe.
+ */
+public class ConnectionFuture implements Future<BluetoothSocket> {
+    /**
+     * Notified when the future is cancelled by the user so that the attempt can be cancelled too.
+     */
+    interface CancellationListener {
+        /**
+         * @param connectionFuture The cancelled future.
+         */
+        void onConnectionFutureCancelled(ConnectionFuture connectionFuture);
+    }
+
+    private enum State {
+        PENDING,
+        CONNECTED,
+        FAILED,
+        TIMED_OUT,
+        CANCELLED
+    }
+
+    private static final String TAG = ConnectionFuture.class.getName();
+    private final PeerProperties mPeerProperties;
+    private final List<Runnable> mListeners = new ArrayList<Runnable>();
+    private final Executor mListenerExecutor;
+    private CancellationListener mCancellationListener = null;
+    private State mState = State.PENDING;
+    private BluetoothSocket mBluetoothSocket = null;
+    private PeerProperties mConnectedPeerProperties = null;
+    private byte[] mInitialData = null;
+    private String mErrorMessage = null;
+
+    /**
+     * Constructor.
+     *
+     * @param peerProperties The properties of the peer to connect to.
+     */
+    ConnectionFuture(PeerProperties peerProperties) {
+        this(peerProperties, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param peerProperties   The properties of the peer to connect to.
+     * @param listenerExecutor The executor to run the listeners added without an executor with.
+     *                         If null, they are run by the thread completing the future.
+     */
+    ConnectionFuture(PeerProperties peerProperties, Executor listenerExecutor) {
+        mPeerProperties = peerProperties;
+        mListenerExecutor = listenerExecutor;
+    }
+
+    /**
+     * Creates a future completed with the given connected socket.
+     *
+     * @param bluetoothSocket The connected Bluetooth socket.
+     * @param peerProperties  The properties of the peer connected to.
+     * @return The completed future.
+     */
+    public static ConnectionFuture createConnected(BluetoothSocket bluetoothSocket, PeerProperties peerProperties) {
+        ConnectionFuture connectionFuture = new ConnectionFuture(peerProperties);
+        connectionFuture.setConnected(bluetoothSocket, peerProperties, null);
+        return connectionFuture;
+    }
+
+    /**
+     * Creates a future completed as failed.
+     *
+     * @param peerProperties The properties of the peer to connect to.
+     * @param errorMessage   The error message.
+     * @return The completed future.
+     */
+    public static ConnectionFuture createFailed(PeerProperties peerProperties, String errorMessage) {
+        ConnectionFuture connectionFuture = new ConnectionFuture(peerProperties);
+        connectionFuture.setFailed(errorMessage);
+        return connectionFuture;
+    }
+
+    /**
+     * @return The properties of the peer to connect to. Once connected, the properties resolved
+     * in the handshake, if available.
+     */
+    public synchronized PeerProperties getPeerProperties() {
+        return (mConnectedPeerProperties != null) ? mConnectedPeerProperties : mPeerProperties;
+    }
+
+    /**
+     * @return The data the peer sent right after its handshake message or null, if none or not
+     * connected.
+     */
+    public synchronized byte[] getInitialData() {
+        return mInitialData;
+    }
+
+    /**
+     * @return The error message, if the attempt failed or timed out. Null otherwise.
+     */
+    public synchronized String getErrorMessage() {
+        return mErrorMessage;
+    }
+
+    /**
+     * @return True, if the connection attempt timed out.
+     */
+    public synchronized boolean isTimedOut() {
+        return mState == State.TIMED_OUT;
+    }
+
+    /**
+     * Adds a listener run once this future is completed. If already completed, the listener is
+     * run right away.
+     *
+     * @param listener The listener.
+     * @param executor The executor to run the listener with. If null, the listener is run by the
+     *                 thread completing the future (or the listener thread of BluetoothConnector)
+     *                 and thus, it must not block.
+     */
+    public void addListener(final Runnable listener, Executor executor) {
+        if (listener == null) {
+            throw new NullPointerException("The listener is null");
+        }
+
+        final Executor listenerExecutor = (executor != null) ? executor : mListenerExecutor;
+        Runnable runnable = (listenerExecutor == null) ? listener : new Runnable() {
+            @Override
+            public void run() {
+                listenerExecutor.execute(listener);
+            }
+        };
+
+        synchronized (this) {
+            if (mState == State.PENDING) {
+                mListeners.add(runnable);
+                return;
+            }
+        }
+
+        runListener(runnable);
+    }
+
+    /**
+     * Cancels this future and the connection attempt, unless other futures are waiting for the
+     * same attempt.
+     *
+     * @param mayInterruptIfRunning Ignored; the attempt is always cancelled, if possible.
+     * @return True, if cancelled. False, if already completed.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        CancellationListener cancellationListener;
+
+        synchronized (this) {
+            cancellationListener = mCancellationListener;
+        }
+
+        if (!complete(State.CANCELLED, null, null, null, null)) {
+            return false;
+        }
+
+        if (cancellationListener != null) {
+            cancellationListener.onConnectionFutureCancelled(this);
+        }
+
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == State.CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != State.PENDING;
+    }
+
+    @Override
+    public synchronized BluetoothSocket get() throws InterruptedException, ExecutionException {
+        while (mState == State.PENDING) {
+            wait();
+        }
+
+        return getResult();
+    }
+
+    @Override
+    public synchronized BluetoothSocket get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long timeRemainingInNanoseconds = unit.toNanos(timeout);
+        final long deadline = System.nanoTime() + timeRemainingInNanoseconds;
+
+        while (mState == State.PENDING) {
+            if (timeRemainingInNanoseconds <= 0) {
+                throw new TimeoutException("Timed out waiting for the connection to " + mPeerProperties);
+            }
+
+            TimeUnit.NANOSECONDS.timedWait(this, timeRemainingInNanoseconds);
+            timeRemainingInNanoseconds = deadline - System.nanoTime();
+        }
+
+        return getResult();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[" + mPeerProperties + ", " + mState
+                + ((mErrorMessage != null) ? (", " + mErrorMessage) : "") + "]";
+    }
+
+    /**
+     * Completes this future with the connected socket.
+     *
+     * @param bluetoothSocket The connected Bluetooth socket.
+     * @param peerProperties  The peer properties resolved in the handshake.
+     * @param initialData     The data the peer sent right after its handshake message. Null, if none.
+     * @return True, if completed. False, if already completed.
+     */
+    boolean setConnected(BluetoothSocket bluetoothSocket, PeerProperties peerProperties, byte[] initialData) {
+        return complete(State.CONNECTED, bluetoothSocket, peerProperties, initialData, null);
+    }
+
+    /**
+     * Completes this future as failed.
+     *
+     * @param errorMessage The error message.
+     * @return True, if completed. False, if already completed.
+     */
+    boolean setFailed(String errorMessage) {
+        return complete(State.FAILED, null, null, null, errorMessage);
+    }
+
+    /**
+     * Completes this future as timed out.
+     *
+     * @return True, if completed. False, if already completed.
+     */
+    boolean setTimedOut() {
+        return complete(State.TIMED_OUT, null, null, null, "Connection attempt timed out");
+    }
+
+    /**
+     * Cancels this future without notifying the cancellation listener i.e. when the attempt
+     * itself was cancelled.
+     *
+     * @return True, if cancelled. False, if already completed.
+     */
+    boolean setCancelled() {
+        return complete(State.CANCELLED, null, null, null, null);
+    }
+
+    /**
+     * @param cancellationListener The listener notified, when the user cancels this future.
+     */
+    synchronized void setCancellationListener(CancellationListener cancellationListener) {
+        mCancellationListener = cancellationListener;
+    }
+
+    private boolean complete(
+            State state, BluetoothSocket bluetoothSocket, PeerProperties peerProperties,
+            byte[] initialData, String errorMessage) {
+        List<Runnable> listeners;
+
+        synchronized (this) {
+            if (mState != State.PENDING) {
+                return false;
+            }
+
+            mState = state;
+            mBluetoothSocket = bluetoothSocket;
+            mConnectedPeerProperties = peerProperties;
+            mInitialData = initialData;
+            mErrorMessage = errorMessage;
+            mCancellationListener = null;
+            listeners = new ArrayList<Runnable>(mListeners);
+            mListeners.clear();
+            notifyAll();
+        }
+
+        for (Runnable listener : listeners) {
+            runListener(listener);
+        }
+
+        return true;
+    }
+
+    private BluetoothSocket getResult() throws ExecutionException {
+        switch (mState) {
+            case CONNECTED:
+                return mBluetoothSocket;
+            case FAILED:
+                throw new ExecutionException(new IOException(mErrorMessage));
+            case TIMED_OUT:
+                throw new ExecutionException(new TimeoutException(mErrorMessage));
+            default:
+                throw new CancellationException("The connection attempt to " + mPeerProperties + " was cancelled");
+        }
+    }
+
+    private static void runListener(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "runListener: Listener failed: " + e.getMessage(), e);
+        }
+    }
+}
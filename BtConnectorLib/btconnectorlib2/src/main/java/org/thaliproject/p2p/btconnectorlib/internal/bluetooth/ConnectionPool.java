@@ -0,0 +1,305 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the connections (sockets) no longer used by the application open for a while so that
+ * the next connection to the same peer can reuse them instead of paying the cost of a new
+ * connection (paging, RFCOMM channel setup and handshake).
+ * <p>
+ * The sockets handed to the application are tracked as leased per peer (Bluetooth MAC address,
+ * see PeerProperties.normalizeBluetoothMacAddress()). When done with a socket, the application
+ * returns it with release() instead of closing it. The returned socket stays idle in the pool until
+ * leased again, until the idle timeout expires or until it is evicted to keep the number of idle
+ * connections within the limit (the one idle the longest is evicted first). Expired and evicted
+ * sockets are closed. The leased sockets no longer connected (e.g. closed without calling release()
+ * or discard()) are forgotten, when the next socket is tracked or leased, so that they are not held
+ * indefinitely.
+ * <p>
+ * Note that a returned socket must not have unread data pending, since the next user of the
+ * socket would receive it, and that a socket closed by the peer may still appear connected until
+ * read from.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ConnectionPool {
+    private static final String TAG = ConnectionPool.class.getName();
+    public static final long DEFAULT_IDLE_TIMEOUT_IN_MILLISECONDS = 30000;
+    public static final int DEFAULT_MAX_NUMBER_OF_IDLE_CONNECTIONS = 4;
+    private static final long THREAD_KEEP_ALIVE_TIME_IN_MILLISECONDS = 30000;
+    private final Map<BluetoothSocket, String> mLeasedConnections = new HashMap<>();
+    private final LinkedList<IdleConnection> mIdleConnections = new LinkedList<>(); // The oldest first
+    private final ScheduledThreadPoolExecutor mIdleTimeoutExecutor;
+    private final long mIdleTimeoutInMilliseconds;
+    private final int mMaxNumberOfIdleConnections;
+    private long mNumberOfHits = 0;
+    private long mNumberOfMisses = 0;
+    private long mNumberOfEvictions = 0;
+    private boolean mIsClosed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param idleTimeoutInMilliseconds  The time a returned connection is kept open at most.
+     * @param maxNumberOfIdleConnections The maximum number of idle connections. If zero, the
+     *                                   returned connections are closed right away.
+     */
+    public ConnectionPool(long idleTimeoutInMilliseconds, int maxNumberOfIdleConnections) {
+        if (idleTimeoutInMilliseconds <= 0 || maxNumberOfIdleConnections < 0) {
+            throw new IllegalArgumentException("Invalid idle timeout or maximum number of idle connections");
+        }
+
+        mIdleTimeoutInMilliseconds = idleTimeoutInMilliseconds;
+        mMaxNumberOfIdleConnections = maxNumberOfIdleConnections;
+
+        mIdleTimeoutExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("ConnectionPoolIdleTimeout"));
+        mIdleTimeoutExecutor.setKeepAliveTime(THREAD_KEEP_ALIVE_TIME_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        mIdleTimeoutExecutor.allowCoreThreadTimeOut(true);
+        mIdleTimeoutExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    public long getIdleTimeout() {
+        return mIdleTimeoutInMilliseconds;
+    }
+
+    public int getMaxNumberOfIdleConnections() {
+        return mMaxNumberOfIdleConnections;
+    }
+
+    /**
+     * Starts tracking the given socket handed to the application as leased.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @param bluetoothSocket     The socket connected to the peer.
+     */
+    public synchronized void track(String bluetoothMacAddress, BluetoothSocket bluetoothSocket) {
+        if (bluetoothMacAddress != null && bluetoothSocket != null && !mIsClosed) {
+            forgetDisconnectedLeasedConnections();
+            mLeasedConnections.put(bluetoothSocket, PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress));
+        }
+    }
+
+    /**
+     * Takes an idle connection to the given peer into use. The most recently returned connection
+     * is preferred.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return A connected socket or null, if the pool has no idle connection to the peer.
+     */
+    public synchronized BluetoothSocket lease(String bluetoothMacAddress) {
+        if (bluetoothMacAddress != null) {
+            final String normalizedBluetoothMacAddress = PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress);
+            ListIterator<IdleConnection> iterator = mIdleConnections.listIterator(mIdleConnections.size());
+
+            while (iterator.hasPrevious()) {
+                IdleConnection idleConnection = iterator.previous();
+
+                if (normalizedBluetoothMacAddress.equals(idleConnection.mBluetoothMacAddress)) {
+                    iterator.remove();
+                    idleConnection.cancel();
+
+                    if (idleConnection.mBluetoothSocket.isConnected()) {
+                        forgetDisconnectedLeasedConnections();
+                        mLeasedConnections.put(idleConnection.mBluetoothSocket, normalizedBluetoothMacAddress);
+                        mNumberOfHits++;
+                        return idleConnection.mBluetoothSocket;
+                    }
+
+                    close(idleConnection.mBluetoothSocket);
+                }
+            }
+        }
+
+        mNumberOfMisses++;
+        return null;
+    }
+
+    /**
+     * Returns the given leased connection to the pool. If the socket is no longer connected or
+     * the pool does not accept idle connections, the socket is closed.
+     *
+     * @param bluetoothSocket The leased socket.
+     * @return True, if the connection was added to the pool. False otherwise.
+     */
+    public synchronized boolean release(BluetoothSocket bluetoothSocket) {
+        String bluetoothMacAddress = (bluetoothSocket != null) ? mLeasedConnections.remove(bluetoothSocket) : null;
+
+        if (bluetoothMacAddress == null) {
+            Log.e(TAG, "release: The given socket is not leased from this pool");
+            return false;
+        }
+
+        if (mIsClosed || mMaxNumberOfIdleConnections == 0 || !bluetoothSocket.isConnected()) {
+            close(bluetoothSocket);
+            return false;
+        }
+
+        IdleConnection idleConnection = new IdleConnection(bluetoothMacAddress, bluetoothSocket);
+        idleConnection.mFuture = mIdleTimeoutExecutor.schedule(
+                idleConnection, mIdleTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+        mIdleConnections.add(idleConnection);
+
+        while (mIdleConnections.size() > mMaxNumberOfIdleConnections) {
+            IdleConnection oldestIdleConnection = mIdleConnections.removeFirst();
+            Log.d(TAG, "release: Evicting the connection to " + oldestIdleConnection.mBluetoothMacAddress);
+            oldestIdleConnection.cancel();
+            close(oldestIdleConnection.mBluetoothSocket);
+            mNumberOfEvictions++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Stops tracking the given leased socket e.g. since the application closed it.
+     *
+     * @param bluetoothSocket The leased socket.
+     */
+    public synchronized void discard(BluetoothSocket bluetoothSocket) {
+        if (bluetoothSocket != null) {
+            mLeasedConnections.remove(bluetoothSocket);
+        }
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return True, if the pool has an idle connection to the given peer.
+     */
+    public synchronized boolean hasIdleConnection(String bluetoothMacAddress) {
+        final String normalizedBluetoothMacAddress = PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress);
+
+        for (IdleConnection idleConnection : mIdleConnections) {
+            if (idleConnection.mBluetoothMacAddress.equals(normalizedBluetoothMacAddress)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public synchronized int getNumberOfIdleConnections() {
+        return mIdleConnections.size();
+    }
+
+    public synchronized int getNumberOfLeasedConnections() {
+        return mLeasedConnections.size();
+    }
+
+    /**
+     * @return The number of leases served with an idle connection.
+     */
+    public synchronized long getNumberOfHits() {
+        return mNumberOfHits;
+    }
+
+    /**
+     * @return The number of leases that found no idle connection.
+     */
+    public synchronized long getNumberOfMisses() {
+        return mNumberOfMisses;
+    }
+
+    /**
+     * @return The number of idle connections closed due to the idle timeout or the limit.
+     */
+    public synchronized long getNumberOfEvictions() {
+        return mNumberOfEvictions;
+    }
+
+    /**
+     * Closes all the idle connections and stops tracking the leased ones. The connections
+     * returned after this call are closed.
+     */
+    public synchronized void close() {
+        mIsClosed = true;
+
+        for (IdleConnection idleConnection : mIdleConnections) {
+            close(idleConnection.mBluetoothSocket);
+        }
+
+        mIdleConnections.clear();
+        mLeasedConnections.clear();
+        mIdleTimeoutExecutor.shutdownNow();
+    }
+
+    /**
+     * Closes the given idle connection, if still in the pool.
+     *
+     * @param idleConnection The idle connection whose timeout expired.
+     */
+    private synchronized void onIdleTimeout(IdleConnection idleConnection) {
+        Iterator<IdleConnection> iterator = mIdleConnections.iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next() == idleConnection) {
+                Log.d(TAG, "onIdleTimeout: Closing the connection to " + idleConnection.mBluetoothMacAddress);
+                iterator.remove();
+                close(idleConnection.mBluetoothSocket);
+                mNumberOfEvictions++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops tracking the leased sockets that are no longer connected.
+     */
+    private void forgetDisconnectedLeasedConnections() {
+        Iterator<BluetoothSocket> iterator = mLeasedConnections.keySet().iterator();
+
+        while (iterator.hasNext()) {
+            if (!iterator.next().isConnected()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static void close(BluetoothSocket bluetoothSocket) {
+        try {
+            bluetoothSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close: Failed to close the socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A connection returned to the pool and the idle timeout scheduled for it.
+     */
+    private class IdleConnection implements Runnable {
+        final String mBluetoothMacAddress;
+        final BluetoothSocket mBluetoothSocket;
+        ScheduledFuture<?> mFuture = null;
+
+        IdleConnection(String bluetoothMacAddress, BluetoothSocket bluetoothSocket) {
+            mBluetoothMacAddress = bluetoothMacAddress;
+            mBluetoothSocket = bluetoothSocket;
+        }
+
+        void cancel() {
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            onIdleTimeout(this);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+/**
+ * The timing of a single incoming or outgoing connection attempt broken down into phases.
+ * <p>
+ * A phase may be run several times during an attempt (e.g. creating and connecting the socket is
+ * retried). For each phase, the time it was first started, the time it was last completed, the
+ * total time spent in it and the number of times it was run are recorded. The timestamps are
+ * monotonic (System.nanoTime()) and thus, comparable only with each other.
+ * <p>
+ * Once the outcome of the attempt is set, the trace no longer changes.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ConnectionTrace {
+    public enum Phase {
+        SOCKET_CREATION, // Creating the Bluetooth socket (outgoing connections only)
+        SOCKET_CONNECT, // BluetoothSocket.connect() (outgoing connections only)
+        HANDSHAKE_WRITE, // Writing our handshake message
+        HANDSHAKE_READ // Waiting for, reading and validating the handshake message of the peer
+    }
+
+    public enum Outcome {
+        PENDING, // The attempt is still ongoing
+        CONNECTED,
+        FAILED,
+        TIMED_OUT,
+        CANCELLED
+    }
+
+    public static final int PORT_UNKNOWN = Integer.MIN_VALUE;
+    private static final int NUMBER_OF_PHASES = Phase.values().length;
+    private static final double NANOSECONDS_IN_MILLISECOND = 1000000d;
+    private final boolean mIsIncoming;
+    private final long mTimeStartedInNanoseconds;
+    private final long[] mPhaseTimeStartedInNanoseconds = new long[NUMBER_OF_PHASES];
+    private final long[] mPhaseTimeCompletedInNanoseconds = new long[NUMBER_OF_PHASES];
+    private final long[] mPhaseDurationInNanoseconds = new long[NUMBER_OF_PHASES];
+    private final long[] mRunningPhaseTimeStartedInNanoseconds = new long[NUMBER_OF_PHASES];
+    private final int[] mPhaseCount = new int[NUMBER_OF_PHASES];
+    private String mBluetoothMacAddress;
+    private int mPort = PORT_UNKNOWN;
+    private Outcome mOutcome = Outcome.PENDING;
+    private long mTimeCompletedInNanoseconds = 0;
+
+    /**
+     * Constructor. The attempt is considered started when the instance is created.
+     *
+     * @param isIncoming          True, if the connection is incoming. False, if outgoing.
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer. Null, if not known yet.
+     */
+    public ConnectionTrace(boolean isIncoming, String bluetoothMacAddress) {
+        mIsIncoming = isIncoming;
+        mBluetoothMacAddress = bluetoothMacAddress;
+        mTimeStartedInNanoseconds = System.nanoTime();
+    }
+
+    /**
+     * @return True, if the connection is incoming. False, if outgoing.
+     */
+    public boolean isIncoming() {
+        return mIsIncoming;
+    }
+
+    /**
+     * @return The Bluetooth MAC address of the peer or null, if not known.
+     */
+    public synchronized String getBluetoothMacAddress() {
+        return mBluetoothMacAddress;
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    synchronized void setBluetoothMacAddress(String bluetoothMacAddress) {
+        mBluetoothMacAddress = bluetoothMacAddress;
+    }
+
+    /**
+     * @return The RFCOMM port (channel) the socket was connected with, -1, if the system decided
+     * the port, or PORT_UNKNOWN, if not connected or if the connection is incoming.
+     */
+    public synchronized int getPort() {
+        return mPort;
+    }
+
+    /**
+     * @param port The RFCOMM port (channel) the socket was connected with.
+     */
+    synchronized void setPort(int port) {
+        if (mOutcome == Outcome.PENDING) {
+            mPort = port;
+        }
+    }
+
+    /**
+     * @return The outcome of the attempt.
+     */
+    public synchronized Outcome getOutcome() {
+        return mOutcome;
+    }
+
+    /**
+     * @return The time the attempt was started in nanoseconds (System.nanoTime()).
+     */
+    public long getTimeStartedInNanoseconds() {
+        return mTimeStartedInNanoseconds;
+    }
+
+    /**
+     * @return The time the outcome was set in nanoseconds (System.nanoTime()) or zero, if pending.
+     */
+    public synchronized long getTimeCompletedInNanoseconds() {
+        return mTimeCompletedInNanoseconds;
+    }
+
+    /**
+     * @return The time from the start of the attempt to its outcome (or to now, if still pending)
+     * in nanoseconds.
+     */
+    public synchronized long getDurationInNanoseconds() {
+        return ((mOutcome == Outcome.PENDING) ? System.nanoTime() : mTimeCompletedInNanoseconds)
+                - mTimeStartedInNanoseconds;
+    }
+
+    /**
+     * @param phase The phase.
+     * @return The number of times the phase was started.
+     */
+    public synchronized int getPhaseCount(Phase phase) {
+        return mPhaseCount[phase.ordinal()];
+    }
+
+    /**
+     * @param phase The phase.
+     * @return The time the phase was first started in nanoseconds (System.nanoTime()) or zero,
+     * if never started.
+     */
+    public synchronized long getPhaseTimeStartedInNanoseconds(Phase phase) {
+        return mPhaseTimeStartedInNanoseconds[phase.ordinal()];
+    }
+
+    /**
+     * @param phase The phase.
+     * @return The time the phase was last completed in nanoseconds (System.nanoTime()) or zero,
+     * if never completed.
+     */
+    public synchronized long getPhaseTimeCompletedInNanoseconds(Phase phase) {
+        return mPhaseTimeCompletedInNanoseconds[phase.ordinal()];
+    }
+
+    /**
+     * @param phase The phase.
+     * @return The total time spent in the completed runs of the phase in nanoseconds.
+     */
+    public synchronized long getPhaseDurationInNanoseconds(Phase phase) {
+        return mPhaseDurationInNanoseconds[phase.ordinal()];
+    }
+
+    /**
+     * @return The number of socket connection retries i.e. the number of times the socket was
+     * connected minus the first attempt.
+     */
+    public synchronized int getNumberOfRetries() {
+        return Math.max(0, mPhaseCount[Phase.SOCKET_CONNECT.ordinal()] - 1);
+    }
+
+    /**
+     * Records the start of the given phase.
+     *
+     * @param phase The phase started.
+     */
+    synchronized void onPhaseStarted(Phase phase) {
+        if (mOutcome == Outcome.PENDING) {
+            final int index = phase.ordinal();
+            final long now = System.nanoTime();
+            mRunningPhaseTimeStartedInNanoseconds[index] = now;
+            mPhaseCount[index]++;
+
+            if (mPhaseTimeStartedInNanoseconds[index] == 0) {
+                mPhaseTimeStartedInNanoseconds[index] = now;
+            }
+        }
+    }
+
+    /**
+     * Records the completion of the given phase. Does nothing, if the phase is not running.
+     *
+     * @param phase The phase completed.
+     */
+    synchronized void onPhaseCompleted(Phase phase) {
+        final int index = phase.ordinal();
+
+        if (mOutcome == Outcome.PENDING && mRunningPhaseTimeStartedInNanoseconds[index] != 0) {
+            final long now = System.nanoTime();
+            mPhaseDurationInNanoseconds[index] += now - mRunningPhaseTimeStartedInNanoseconds[index];
+            mPhaseTimeCompletedInNanoseconds[index] = now;
+            mRunningPhaseTimeStartedInNanoseconds[index] = 0;
+        }
+    }
+
+    /**
+     * Sets the outcome of the attempt. The phases still running are not recorded.
+     *
+     * @param outcome The outcome. Must not be PENDING.
+     * @return True, if the outcome was set. False, if the outcome was already set before.
+     */
+    synchronized boolean complete(Outcome outcome) {
+        if (outcome == null || outcome == Outcome.PENDING) {
+            throw new IllegalArgumentException("Invalid outcome: " + outcome);
+        }
+
+        if (mOutcome != Outcome.PENDING) {
+            return false;
+        }
+
+        mOutcome = outcome;
+        mTimeCompletedInNanoseconds = System.nanoTime();
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append("[").append(mIsIncoming ? "incoming" : "outgoing")
+                .append(" ").append(mBluetoothMacAddress)
+                .append(", ").append(mOutcome)
+                .append(", total: ").append(getDurationInNanoseconds() / NANOSECONDS_IN_MILLISECOND).append(" ms");
+
+        for (Phase phase : Phase.values()) {
+            if (mPhaseCount[phase.ordinal()] > 0) {
+                stringBuilder.append(", ").append(phase).append(": ")
+                        .append(mPhaseDurationInNanoseconds[phase.ordinal()] / NANOSECONDS_IN_MILLISECOND)
+                        .append(" ms");
+            }
+        }
+
+        if (!mIsIncoming) {
+            stringBuilder.append(", retries: ").append(getNumberOfRetries());
+
+            if (mPort != PORT_UNKNOWN) {
+                stringBuilder.append(", port: ").append(mPort);
+            }
+        }
+
+        return stringBuilder.append("]").toString();
+    }
+}
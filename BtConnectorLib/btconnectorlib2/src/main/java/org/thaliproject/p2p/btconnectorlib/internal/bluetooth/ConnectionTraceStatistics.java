@@ -0,0 +1,223 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * A rolling aggregate of completed connection traces (see ConnectionTrace).
+ * <p>
+ * The durations of the phases and the total durations of the successful attempts are kept for
+ * the latest traces (the window) and the percentiles are calculated from those. The number of
+ * attempts per outcome is counted since the creation (or the reset) of this instance.
+ * <p>
+ * Optionally, a listener is notified of every completed trace. The listener is called from the
+ * thread completing the attempt and thus, it should not block.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ConnectionTraceStatistics {
+    /**
+     * Trace listener.
+     */
+    public interface Listener {
+        /**
+         * Called when a connection attempt is completed.
+         *
+         * @param connectionTrace The trace of the completed attempt.
+         */
+        void onConnectionTraceCompleted(ConnectionTrace connectionTrace);
+    }
+
+    private static final String TAG = ConnectionTraceStatistics.class.getName();
+    public static final int DEFAULT_WINDOW_SIZE = 128;
+    private static final double NANOSECONDS_IN_MILLISECOND = 1000000d;
+    private final RollingWindow[] mPhaseDurations = new RollingWindow[ConnectionTrace.Phase.values().length];
+    private final RollingWindow mTotalDurationsOfConnectedAttempts;
+    private final long[] mNumberOfAttemptsPerOutcome = new long[ConnectionTrace.Outcome.values().length];
+    private volatile Listener mListener = null;
+
+    /**
+     * Constructor.
+     */
+    public ConnectionTraceStatistics() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param windowSize The number of latest samples per phase used for the percentiles.
+     */
+    public ConnectionTraceStatistics(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("The window size must be positive");
+        }
+
+        for (int i = 0; i < mPhaseDurations.length; ++i) {
+            mPhaseDurations[i] = new RollingWindow(windowSize);
+        }
+
+        mTotalDurationsOfConnectedAttempts = new RollingWindow(windowSize);
+    }
+
+    /**
+     * Sets the listener notified of every completed trace.
+     *
+     * @param listener The listener. If null, no notifications are sent.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @param outcome The outcome.
+     * @return The number of completed attempts with the given outcome.
+     */
+    public synchronized long getNumberOfAttempts(ConnectionTrace.Outcome outcome) {
+        return mNumberOfAttemptsPerOutcome[outcome.ordinal()];
+    }
+
+    /**
+     * @param phase The phase.
+     * @return The number of samples of the given phase in the window.
+     */
+    public synchronized int getNumberOfSamples(ConnectionTrace.Phase phase) {
+        return mPhaseDurations[phase.ordinal()].size();
+    }
+
+    /**
+     * Calculates the given percentile of the durations of the given phase (nearest rank).
+     *
+     * @param phase      The phase.
+     * @param percentile The percentile between 0 and 100 e.g. 50 for the median.
+     * @return The percentile in milliseconds or zero, if no samples were recorded.
+     */
+    public synchronized double getPhasePercentileInMilliseconds(ConnectionTrace.Phase phase, double percentile) {
+        return mPhaseDurations[phase.ordinal()].getPercentile(percentile) / NANOSECONDS_IN_MILLISECOND;
+    }
+
+    /**
+     * Calculates the given percentile of the total durations of the successful attempts.
+     *
+     * @param percentile The percentile between 0 and 100 e.g. 50 for the median.
+     * @return The percentile in milliseconds or zero, if no samples were recorded.
+     */
+    public synchronized double getConnectedPercentileInMilliseconds(double percentile) {
+        return mTotalDurationsOfConnectedAttempts.getPercentile(percentile) / NANOSECONDS_IN_MILLISECOND;
+    }
+
+    /**
+     * Clears the samples and the counters.
+     */
+    public synchronized void reset() {
+        for (RollingWindow rollingWindow : mPhaseDurations) {
+            rollingWindow.clear();
+        }
+
+        mTotalDurationsOfConnectedAttempts.clear();
+        Arrays.fill(mNumberOfAttemptsPerOutcome, 0);
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder stringBuilder = new StringBuilder("[");
+
+        for (ConnectionTrace.Outcome outcome : ConnectionTrace.Outcome.values()) {
+            if (outcome != ConnectionTrace.Outcome.PENDING) {
+                stringBuilder.append(outcome).append(": ")
+                        .append(mNumberOfAttemptsPerOutcome[outcome.ordinal()]).append(", ");
+            }
+        }
+
+        for (ConnectionTrace.Phase phase : ConnectionTrace.Phase.values()) {
+            if (mPhaseDurations[phase.ordinal()].size() > 0) {
+                stringBuilder.append(phase).append(" p50/p90/p99: ")
+                        .append(getPhasePercentileInMilliseconds(phase, 50)).append("/")
+                        .append(getPhasePercentileInMilliseconds(phase, 90)).append("/")
+                        .append(getPhasePercentileInMilliseconds(phase, 99)).append(" ms, ");
+            }
+        }
+
+        return stringBuilder.append("connected p50/p90/p99: ")
+                .append(getConnectedPercentileInMilliseconds(50)).append("/")
+                .append(getConnectedPercentileInMilliseconds(90)).append("/")
+                .append(getConnectedPercentileInMilliseconds(99)).append(" ms]").toString();
+    }
+
+    /**
+     * Completes the given trace with the given outcome, adds it to the aggregate and notifies
+     * the listener. Does nothing, if the trace was already completed.
+     *
+     * @param connectionTrace The trace of the attempt. If null, this method does nothing.
+     * @param outcome         The outcome of the attempt.
+     */
+    void complete(ConnectionTrace connectionTrace, ConnectionTrace.Outcome outcome) {
+        if (connectionTrace == null || !connectionTrace.complete(outcome)) {
+            return;
+        }
+
+        synchronized (this) {
+            for (ConnectionTrace.Phase phase : ConnectionTrace.Phase.values()) {
+                if (connectionTrace.getPhaseTimeCompletedInNanoseconds(phase) != 0) {
+                    mPhaseDurations[phase.ordinal()].add(connectionTrace.getPhaseDurationInNanoseconds(phase));
+                }
+            }
+
+            if (outcome == ConnectionTrace.Outcome.CONNECTED) {
+                mTotalDurationsOfConnectedAttempts.add(connectionTrace.getDurationInNanoseconds());
+            }
+
+            mNumberOfAttemptsPerOutcome[outcome.ordinal()]++;
+        }
+
+        Log.v(TAG, "complete: " + connectionTrace.toString());
+        final Listener listener = mListener;
+
+        if (listener != null) {
+            listener.onConnectionTraceCompleted(connectionTrace);
+        }
+    }
+
+    /**
+     * A fixed size ring buffer of the latest samples.
+     */
+    private static class RollingWindow {
+        private final long[] mSamples;
+        private int mNextIndex = 0;
+        private int mSize = 0;
+
+        RollingWindow(int capacity) {
+            mSamples = new long[capacity];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        void add(long sample) {
+            mSamples[mNextIndex] = sample;
+            mNextIndex = (mNextIndex + 1) % mSamples.length;
+            mSize = Math.min(mSize + 1, mSamples.length);
+        }
+
+        void clear() {
+            mNextIndex = 0;
+            mSize = 0;
+        }
+
+        long getPercentile(double percentile) {
+            if (mSize == 0) {
+                return 0;
+            }
+
+            long[] sortedSamples = Arrays.copyOf(mSamples, mSize);
+            Arrays.sort(sortedSamples);
+            int rank = (int) Math.ceil(Math.max(0d, Math.min(percentile, 100d)) / 100d * mSize);
+            return sortedSamples[Math.max(rank, 1) - 1];
+        }
+    }
+}
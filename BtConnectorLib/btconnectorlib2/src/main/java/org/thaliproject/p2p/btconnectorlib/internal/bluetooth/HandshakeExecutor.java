@@ -0,0 +1,230 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+
+import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the handshakes of connections using a size-bounded pool of worker threads instead of
+ * starting a new thread for every connection.
+ * <p>
+ * The incoming and the outgoing connections have separate shared instances so that peers
+ * stalling their incoming handshakes cannot occupy the workers needed by our own connection
+ * attempts.
+ * <p>
+ * The handshake IO threads are never started; their run() method is executed by a worker of
+ * this pool. If the pool is busy, the handshakes are queued. Each handshake has a deadline, which
+ * starts when the handshake is submitted. If the deadline expires before the handshake is
+ * completed, the timeout listener is notified and it is responsible for closing the socket,
+ * which in turn unblocks the worker.
+ */
+class HandshakeExecutor {
+    /**
+     * Handshake timeout listener.
+     */
+    public interface TimeoutListener {
+        /**
+         * Called when the given handshake did not complete before its deadline. Note that this is
+         * called from the deadline thread of the executor.
+         *
+         * @param handshakeThread The IO thread instance of the handshake that timed out.
+         */
+        void onHandshakeTimeout(BluetoothSocketIoThread handshakeThread);
+    }
+
+    private static final String TAG = HandshakeExecutor.class.getName();
+    static final int DEFAULT_MAX_NUMBER_OF_HANDSHAKE_THREADS = 4;
+    static final long DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS = 10000;
+    private static final long IDLE_THREAD_KEEP_ALIVE_TIME_IN_MILLISECONDS = 30000;
+    private static HandshakeExecutor mIncomingInstance = null;
+    private static HandshakeExecutor mOutgoingInstance = null;
+    private final ThreadPoolExecutor mHandshakeThreadPool;
+    private final ScheduledThreadPoolExecutor mDeadlineExecutor;
+
+    /**
+     * @return The shared instance for the handshakes of the incoming connections.
+     */
+    public static synchronized HandshakeExecutor getIncomingInstance() {
+        if (mIncomingInstance == null) {
+            mIncomingInstance = new HandshakeExecutor(DEFAULT_MAX_NUMBER_OF_HANDSHAKE_THREADS);
+        }
+
+        return mIncomingInstance;
+    }
+
+    /**
+     * @return The shared instance for the handshakes of the outgoing connections.
+     */
+    public static synchronized HandshakeExecutor getOutgoingInstance() {
+        if (mOutgoingInstance == null) {
+            mOutgoingInstance = new HandshakeExecutor(DEFAULT_MAX_NUMBER_OF_HANDSHAKE_THREADS);
+        }
+
+        return mOutgoingInstance;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxNumberOfHandshakeThreads The maximum number of handshakes run simultaneously.
+     */
+    HandshakeExecutor(int maxNumberOfHandshakeThreads) {
+        if (maxNumberOfHandshakeThreads <= 0) {
+            throw new IllegalArgumentException("The maximum number of threads must be positive");
+        }
+
+        mHandshakeThreadPool = new ThreadPoolExecutor(
+                maxNumberOfHandshakeThreads, maxNumberOfHandshakeThreads,
+                IDLE_THREAD_KEEP_ALIVE_TIME_IN_MILLISECONDS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("BluetoothHandshake"));
+        mHandshakeThreadPool.allowCoreThreadTimeOut(true);
+
+        mDeadlineExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("BluetoothHandshakeDeadline"));
+        mDeadlineExecutor.setKeepAliveTime(IDLE_THREAD_KEEP_ALIVE_TIME_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        mDeadlineExecutor.allowCoreThreadTimeOut(true);
+        mDeadlineExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Queues the given handshake to be run by the pool.
+     *
+     * @param handshakeThread          The IO thread instance of the handshake. Must not be started.
+     * @param timeoutInMilliseconds    The time the handshake is allowed to take. If zero or less, the
+     *                                 handshake has no deadline.
+     * @param timeoutListener          The listener to notify, if the handshake times out.
+     * @param uncaughtExceptionHandler The handler for exceptions thrown by the handshake (optional).
+     */
+    public void execute(
+            BluetoothSocketIoThread handshakeThread, long timeoutInMilliseconds,
+            TimeoutListener timeoutListener, Thread.UncaughtExceptionHandler uncaughtExceptionHandler) {
+        if (handshakeThread == null || timeoutListener == null) {
+            throw new NullPointerException("Either the handshake thread or the timeout listener instance is null");
+        }
+
+        final HandshakeTask handshakeTask =
+                new HandshakeTask(handshakeThread, timeoutListener, uncaughtExceptionHandler);
+
+        if (timeoutInMilliseconds > 0) {
+            handshakeTask.setDeadline(mDeadlineExecutor.schedule(
+                    handshakeTask.getDeadlineRunnable(), timeoutInMilliseconds, TimeUnit.MILLISECONDS));
+        }
+
+        mHandshakeThreadPool.execute(handshakeTask);
+    }
+
+    /**
+     * Schedules a deadline for a handshake, which is no longer run by the pool, but is not yet
+     * completed either e.g. since the response to the peer is held back.
+     *
+     * @param handshakeThread       The IO thread instance of the handshake.
+     * @param timeoutInMilliseconds The time the handshake is allowed to take from now on.
+     * @param timeoutListener       The listener to notify, when the deadline expires.
+     * @return The deadline. The caller must cancel it, once the handshake is completed.
+     */
+    public ScheduledFuture<?> scheduleDeadline(
+            final BluetoothSocketIoThread handshakeThread, long timeoutInMilliseconds,
+            final TimeoutListener timeoutListener) {
+        if (handshakeThread == null || timeoutListener == null) {
+            throw new NullPointerException("Either the handshake thread or the timeout listener instance is null");
+        }
+
+        return mDeadlineExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timeoutListener.onHandshakeTimeout(handshakeThread);
+            }
+        }, timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The number of handshakes waiting for a free worker thread.
+     */
+    public int getNumberOfQueuedHandshakes() {
+        return mHandshakeThreadPool.getQueue().size();
+    }
+
+    /**
+     * @return The number of worker threads currently alive.
+     */
+    public int getNumberOfHandshakeThreads() {
+        return mHandshakeThreadPool.getPoolSize();
+    }
+
+    /**
+     * @return The maximum number of worker threads.
+     */
+    public int getMaxNumberOfHandshakeThreads() {
+        return mHandshakeThreadPool.getMaximumPoolSize();
+    }
+
+    /**
+     * Runs a single handshake and cancels its deadline once done.
+     */
+    private class HandshakeTask implements Runnable {
+        private final BluetoothSocketIoThread mHandshakeThread;
+        private final TimeoutListener mTimeoutListener;
+        private final Thread.UncaughtExceptionHandler mUncaughtExceptionHandler;
+        private final AtomicBoolean mIsCompleted = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> mDeadline = null;
+
+        HandshakeTask(BluetoothSocketIoThread handshakeThread, TimeoutListener timeoutListener,
+                      Thread.UncaughtExceptionHandler uncaughtExceptionHandler) {
+            mHandshakeThread = handshakeThread;
+            mTimeoutListener = timeoutListener;
+            mUncaughtExceptionHandler = uncaughtExceptionHandler;
+        }
+
+        void setDeadline(ScheduledFuture<?> deadline) {
+            mDeadline = deadline;
+
+            if (mIsCompleted.get()) {
+                // Completed before we got the chance to store the deadline
+                deadline.cancel(false);
+            }
+        }
+
+        Runnable getDeadlineRunnable() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    if (mIsCompleted.compareAndSet(false, true)) {
+                        // Make sure a queued handshake is never run
+                        mHandshakeThreadPool.remove(HandshakeTask.this);
+                        Log.d(TAG, "Handshake timed out (handshake thread ID: " + mHandshakeThread.getId() + ")");
+                        mTimeoutListener.onHandshakeTimeout(mHandshakeThread);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void run() {
+            try {
+                mHandshakeThread.run();
+            } catch (RuntimeException e) {
+                if (mUncaughtExceptionHandler != null) {
+                    mUncaughtExceptionHandler.uncaughtException(Thread.currentThread(), e);
+                } else {
+                    throw e;
+                }
+            } finally {
+                mIsCompleted.set(true);
+                final ScheduledFuture<?> deadline = mDeadline;
+
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+            }
+        }
+    }
+}
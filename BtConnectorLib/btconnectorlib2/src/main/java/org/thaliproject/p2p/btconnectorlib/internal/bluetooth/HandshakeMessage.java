@@ -0,0 +1,219 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import org.thaliproject.p2p.btconnectorlib.internal.AbstractBluetoothConnectivityAgent;
+
+/**
+ * Encodes and decodes the binary handshake message.
+ * <p>
+ * The message has the following layout:
+ * <pre>
+ * Offset  Size  Content
+ * 0       2     Magic bytes (0xB7 0x1C)
+ * 2       1     Version
+ * 3       1     Total length of the message in bytes (including the header)
+ * 4       6     Bluetooth MAC address
+ * 10      1     Generation (extra information)
+ * 11      1     Flags
+ * </pre>
+ * The first magic byte is not a valid first byte of an UTF-8 encoded JSON identity string nor
+ * of the simple handshake message and thus, the formats can be told apart from the first bytes.
+ * <p>
+ * Both peers send the message using the highest version they support. Later versions may only
+ * append fields to the message, so a peer reads the fields of the versions it knows and uses the
+ * length field to determine where the message ends.
+ */
+public class HandshakeMessage {
+    private static final String TAG = HandshakeMessage.class.getName();
+    public static final int CURRENT_VERSION = 1;
+    public static final int MESSAGE_LENGTH = 12;
+    public static final int FLAG_NO_EXTRA_INFORMATION = 0x01;
+    private static final byte MAGIC_BYTE_1 = (byte) 0xB7;
+    private static final byte MAGIC_BYTE_2 = (byte) 0x1C;
+    private static final int HEADER_LENGTH = 4;
+    private static final int OFFSET_VERSION = 2;
+    private static final int OFFSET_LENGTH = 3;
+    private static final int OFFSET_BLUETOOTH_MAC_ADDRESS = 4;
+    private static final int OFFSET_GENERATION = 10;
+    private static final int OFFSET_FLAGS = 11;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Creates a binary handshake message containing the given peer properties.
+     *
+     * @param peerProperties The peer properties (our identity).
+     * @return A newly created handshake message or null, if the Bluetooth MAC address of the given
+     * properties is invalid.
+     */
+    public static byte[] createHandshakeMessage(PeerProperties peerProperties) {
+        if (peerProperties == null
+                || !BluetoothUtils.isValidBluetoothMacAddress(peerProperties.getBluetoothMacAddress())) {
+            return null;
+        }
+
+        byte[] handshakeMessage = new byte[MESSAGE_LENGTH];
+        handshakeMessage[0] = MAGIC_BYTE_1;
+        handshakeMessage[1] = MAGIC_BYTE_2;
+        handshakeMessage[OFFSET_VERSION] = (byte) CURRENT_VERSION;
+        handshakeMessage[OFFSET_LENGTH] = (byte) MESSAGE_LENGTH;
+
+        if (!writeBluetoothMacAddress(
+                peerProperties.getBluetoothMacAddress(), handshakeMessage, OFFSET_BLUETOOTH_MAC_ADDRESS)) {
+            return null;
+        }
+
+        int extraInformation = peerProperties.getExtraInformation();
+
+        if (extraInformation >= 0 && extraInformation < PeerProperties.NO_EXTRA_INFORMATION) {
+            handshakeMessage[OFFSET_GENERATION] = (byte) extraInformation;
+        } else {
+            handshakeMessage[OFFSET_FLAGS] |= FLAG_NO_EXTRA_INFORMATION;
+        }
+
+        return handshakeMessage;
+    }
+
+    /**
+     * Creates a binary handshake message from the given identity string.
+     * See AbstractBluetoothConnectivityAgent.createIdentityString()
+     *
+     * @param identityString The identity string.
+     * @return A newly created handshake message or null, if the identity string is invalid.
+     */
+    public static byte[] createHandshakeMessage(String identityString) {
+        PeerProperties peerProperties = null;
+
+        if (identityString != null) {
+            try {
+                peerProperties = AbstractBluetoothConnectivityAgent.getPropertiesFromIdentityString(identityString);
+            } catch (JSONException e) {
+                Log.d(TAG, "createHandshakeMessage: Not a valid identity string: " + identityString);
+            }
+        }
+
+        return createHandshakeMessage(peerProperties);
+    }
+
+    /**
+     * Checks whether the given bytes start with a binary handshake message or not. Note that this
+     * does not validate the content of the message.
+     *
+     * @param bytes The bytes to check.
+     * @param size  The number of valid bytes in the array.
+     * @return True, if the bytes start with a binary handshake message header.
+     */
+    public static boolean isHandshakeMessage(byte[] bytes, int size) {
+        return (bytes != null
+                && Math.min(bytes.length, size) >= HEADER_LENGTH
+                && bytes[0] == MAGIC_BYTE_1
+                && bytes[1] == MAGIC_BYTE_2);
+    }
+
+    /**
+     * @param bytes The bytes containing a binary handshake message.
+     * @param size  The number of valid bytes in the array.
+     * @return The version of the message or -1, if not a binary handshake message.
+     */
+    public static int getVersion(byte[] bytes, int size) {
+        return isHandshakeMessage(bytes, size) ? (bytes[OFFSET_VERSION] & 0xFF) : -1;
+    }
+
+    /**
+     * @param bytes The bytes containing a binary handshake message.
+     * @param size  The number of valid bytes in the array.
+     * @return The length of the message in bytes or -1, if not a binary handshake message.
+     */
+    public static int getMessageLength(byte[] bytes, int size) {
+        return isHandshakeMessage(bytes, size) ? (bytes[OFFSET_LENGTH] & 0xFF) : -1;
+    }
+
+    /**
+     * Decodes the peer properties from the given binary handshake message.
+     *
+     * @param bytes The bytes containing a binary handshake message.
+     * @param size  The number of valid bytes in the array.
+     * @return The decoded peer properties or null, if the message is invalid or incomplete.
+     */
+    public static PeerProperties decode(byte[] bytes, int size) {
+        if (getVersion(bytes, size) < 1) {
+            return null;
+        }
+
+        final int messageLength = getMessageLength(bytes, size);
+
+        if (messageLength < MESSAGE_LENGTH || messageLength > Math.min(bytes.length, size)) {
+            Log.e(TAG, "decode: Invalid or incomplete message, length: " + messageLength + ", size: " + size);
+            return null;
+        }
+
+        String bluetoothMacAddress = readBluetoothMacAddress(bytes, OFFSET_BLUETOOTH_MAC_ADDRESS);
+
+        if ((bytes[OFFSET_FLAGS] & FLAG_NO_EXTRA_INFORMATION) != 0) {
+            return new PeerProperties(bluetoothMacAddress);
+        }
+
+        return new PeerProperties(bluetoothMacAddress, bytes[OFFSET_GENERATION] & 0xFF);
+    }
+
+    /**
+     * Writes the given Bluetooth MAC address (e.g. "01:23:45:67:89:AB") as six bytes.
+     *
+     * @return True, if successful. False, if the address is malformed.
+     */
+    private static boolean writeBluetoothMacAddress(String bluetoothMacAddress, byte[] destination, int offset) {
+        int byteIndex = 0;
+        int currentValue = 0;
+        int digitCount = 0;
+
+        for (int i = 0; i <= bluetoothMacAddress.length(); i++) {
+            char c = (i < bluetoothMacAddress.length())
+                    ? bluetoothMacAddress.charAt(i) : BluetoothUtils.BLUETOOTH_ADDRESS_SEPARATOR.charAt(0);
+
+            if (c == BluetoothUtils.BLUETOOTH_ADDRESS_SEPARATOR.charAt(0)) {
+                if (digitCount == 0 || byteIndex >= BluetoothUtils.BLUETOOTH_ADDRESS_BYTE_COUNT) {
+                    return false;
+                }
+
+                destination[offset + byteIndex++] = (byte) currentValue;
+                currentValue = 0;
+                digitCount = 0;
+            } else {
+                int digit = Character.digit(c, 16);
+
+                if (digit < 0 || ++digitCount > 2) {
+                    return false;
+                }
+
+                currentValue = (currentValue << 4) | digit;
+            }
+        }
+
+        return byteIndex == BluetoothUtils.BLUETOOTH_ADDRESS_BYTE_COUNT;
+    }
+
+    /**
+     * Reads six bytes as a Bluetooth MAC address string in form "01:23:45:67:89:AB".
+     */
+    private static String readBluetoothMacAddress(byte[] source, int offset) {
+        char[] chars = new char[BluetoothUtils.BLUETOOTH_MAC_ADDRESS_STRING_LENGTH_MAX];
+        int charIndex = 0;
+
+        for (int i = 0; i < BluetoothUtils.BLUETOOTH_ADDRESS_BYTE_COUNT; i++) {
+            if (i > 0) {
+                chars[charIndex++] = BluetoothUtils.BLUETOOTH_ADDRESS_SEPARATOR.charAt(0);
+            }
+
+            int value = source[offset + i] & 0xFF;
+            chars[charIndex++] = HEX_DIGITS[value >>> 4];
+            chars[charIndex++] = HEX_DIGITS[value & 0x0F];
+        }
+
+        return new String(chars);
+    }
+}
@@ -0,0 +1,190 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing how the Bluetooth server thread accepts incoming connections.
+ * <p>
+ * The accept latency is the time between an accepted socket and the moment the server is ready
+ * to accept the next one i.e. the window during which incoming connection attempts are refused.
+ * When the server socket is recreated after every accepted connection, this includes the time
+ * it takes to close the server socket and to register a new service record.
+ * <p>
+ * In addition, the number of handshakes dropped either due to timing out or due to being evicted
+ * to make room for new incoming connections is recorded, as well as the number of times we and
+ * the peer connected to each other at the same time and one of the connections was dropped.
+ * <p>
+ * The values are updated by the server thread and can be read from any thread.
+ */
+public class IncomingConnectionStatistics {
+    private static final double NANOSECONDS_IN_MILLISECOND = 1000000d;
+    private static final double NANOSECONDS_IN_SECOND = 1000000000d;
+    private final AtomicLong mNumberOfAcceptedConnections = new AtomicLong(0);
+    private final AtomicLong mNumberOfAcceptLatencySamples = new AtomicLong(0);
+    private final AtomicLong mTotalAcceptLatencyInNanoseconds = new AtomicLong(0);
+    private final AtomicLong mMaxAcceptLatencyInNanoseconds = new AtomicLong(0);
+    private final AtomicLong mNumberOfHandshakesTimedOut = new AtomicLong(0);
+    private final AtomicLong mNumberOfHandshakesEvicted = new AtomicLong(0);
+    private final AtomicLong mNumberOfSimultaneousConnectionsResolved = new AtomicLong(0);
+    private volatile long mTimeStartedInNanoseconds = 0;
+    private volatile long mTimeLastAcceptedInNanoseconds = 0;
+
+    /**
+     * @return The number of incoming connections accepted.
+     */
+    public long getNumberOfAcceptedConnections() {
+        return mNumberOfAcceptedConnections.get();
+    }
+
+    /**
+     * @return The number of accepted connections per second since the server started listening
+     * (or since the statistics were reset). Zero, if not listening yet.
+     */
+    public double getAcceptRatePerSecond() {
+        final long timeStarted = mTimeStartedInNanoseconds;
+
+        if (timeStarted == 0) {
+            return 0d;
+        }
+
+        long elapsedTimeInNanoseconds = System.nanoTime() - timeStarted;
+
+        if (elapsedTimeInNanoseconds <= 0) {
+            return 0d;
+        }
+
+        return mNumberOfAcceptedConnections.get() / (elapsedTimeInNanoseconds / NANOSECONDS_IN_SECOND);
+    }
+
+    /**
+     * @return The average accept latency in milliseconds or zero, if no samples were recorded.
+     */
+    public double getAverageAcceptLatencyInMilliseconds() {
+        long numberOfSamples = mNumberOfAcceptLatencySamples.get();
+
+        if (numberOfSamples == 0) {
+            return 0d;
+        }
+
+        return (mTotalAcceptLatencyInNanoseconds.get() / numberOfSamples) / NANOSECONDS_IN_MILLISECOND;
+    }
+
+    /**
+     * @return The longest accept latency recorded in milliseconds.
+     */
+    public double getMaxAcceptLatencyInMilliseconds() {
+        return mMaxAcceptLatencyInNanoseconds.get() / NANOSECONDS_IN_MILLISECOND;
+    }
+
+    /**
+     * @return The number of incoming connections dropped, because the peer did not complete the
+     * handshake in time.
+     */
+    public long getNumberOfHandshakesTimedOut() {
+        return mNumberOfHandshakesTimedOut.get();
+    }
+
+    /**
+     * @return The number of incoming connections dropped, because the maximum number of pending
+     * handshakes was reached and a newer connection was accepted.
+     */
+    public long getNumberOfHandshakesEvicted() {
+        return mNumberOfHandshakesEvicted.get();
+    }
+
+    /**
+     * @return The number of times an incoming connection was received from a peer we were
+     * connecting to at the same time and only one of the two connections was kept.
+     */
+    public long getNumberOfSimultaneousConnectionsResolved() {
+        return mNumberOfSimultaneousConnectionsResolved.get();
+    }
+
+    /**
+     * Resets all the counters.
+     */
+    public void reset() {
+        mNumberOfAcceptedConnections.set(0);
+        mNumberOfAcceptLatencySamples.set(0);
+        mTotalAcceptLatencyInNanoseconds.set(0);
+        mMaxAcceptLatencyInNanoseconds.set(0);
+        mNumberOfHandshakesTimedOut.set(0);
+        mNumberOfHandshakesEvicted.set(0);
+        mNumberOfSimultaneousConnectionsResolved.set(0);
+        mTimeStartedInNanoseconds = 0;
+        mTimeLastAcceptedInNanoseconds = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "[accepted: " + getNumberOfAcceptedConnections()
+                + ", accepts/s: " + getAcceptRatePerSecond()
+                + ", average accept latency: " + getAverageAcceptLatencyInMilliseconds() + " ms"
+                + ", max accept latency: " + getMaxAcceptLatencyInMilliseconds() + " ms"
+                + ", handshakes timed out: " + getNumberOfHandshakesTimedOut()
+                + ", handshakes evicted: " + getNumberOfHandshakesEvicted()
+                + ", simultaneous connections resolved: " + getNumberOfSimultaneousConnectionsResolved() + "]";
+    }
+
+    /**
+     * Should be called right before the server starts blocking in accept().
+     */
+    void onReadyToAccept() {
+        final long now = System.nanoTime();
+
+        if (mTimeStartedInNanoseconds == 0) {
+            mTimeStartedInNanoseconds = now;
+        }
+
+        final long timeLastAccepted = mTimeLastAcceptedInNanoseconds;
+
+        if (timeLastAccepted != 0) {
+            mTimeLastAcceptedInNanoseconds = 0;
+            recordAcceptLatency(now - timeLastAccepted);
+        }
+    }
+
+    /**
+     * Should be called when accept() returns a new socket.
+     */
+    void onConnectionAccepted() {
+        mNumberOfAcceptedConnections.incrementAndGet();
+        mTimeLastAcceptedInNanoseconds = System.nanoTime();
+    }
+
+    /**
+     * Should be called when a pending handshake is dropped due to a timeout.
+     */
+    void onHandshakeTimedOut() {
+        mNumberOfHandshakesTimedOut.incrementAndGet();
+    }
+
+    /**
+     * Should be called when a pending handshake is dropped to make room for a new one.
+     */
+    void onHandshakeEvicted() {
+        mNumberOfHandshakesEvicted.incrementAndGet();
+    }
+
+    /**
+     * Should be called when an incoming connection collides with an outgoing connection attempt
+     * to the same peer and only one of them is kept.
+     */
+    void onSimultaneousConnectionResolved() {
+        mNumberOfSimultaneousConnectionsResolved.incrementAndGet();
+    }
+
+    private void recordAcceptLatency(long latencyInNanoseconds) {
+        mNumberOfAcceptLatencySamples.incrementAndGet();
+        mTotalAcceptLatencyInNanoseconds.addAndGet(latencyInNanoseconds);
+        long currentMax = mMaxAcceptLatencyInNanoseconds.get();
+
+        while (latencyInNanoseconds > currentMax
+                && !mMaxAcceptLatencyInNanoseconds.compareAndSet(currentMax, latencyInNanoseconds)) {
+            currentMax = mMaxAcceptLatencyInNanoseconds.get();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named with the given prefix followed by a running number.
+ */
+class NamedThreadFactory implements ThreadFactory {
+    private final AtomicInteger mThreadNumber = new AtomicInteger(1);
+    private final String mNamePrefix;
+
+    NamedThreadFactory(String namePrefix) {
+        mNamePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, mNamePrefix + "-" + mThreadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
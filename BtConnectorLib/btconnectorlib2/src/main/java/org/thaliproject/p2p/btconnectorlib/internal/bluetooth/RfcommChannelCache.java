@@ -0,0 +1,286 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers per peer (Bluetooth MAC address, see PeerProperties.normalizeBluetoothMacAddress())
+ * the RFCOMM channel (port) that was last used to connect successfully, so that the next
+ * connection attempt to the same peer can try it first instead of going through the configured
+ * port and the fallbacks.
+ * <p>
+ * The stored value is either a channel number (greater than zero) or
+ * BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT, if the system decided port
+ * was used. An entry is removed, when connecting using it fails, and ignored, when it is older
+ * than the maximum age. The number of entries is bounded; the least recently used entry is
+ * evicted first.
+ * <p>
+ * If shared preferences are given, the entries are persisted and restored when constructed. Since
+ * the shared preferences do not keep the order of a string set, each persisted entry contains its
+ * position in the least recently used order.
+ * <p>
+ * This class is thread-safe.
+ */
+public class RfcommChannelCache {
+    private static final String TAG = RfcommChannelCache.class.getName();
+    public static final long DEFAULT_MAX_AGE_IN_MILLISECONDS = 24 * 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_NUMBER_OF_ENTRIES = 64;
+    private static final String KEY_RFCOMM_CHANNEL_CACHE = "rfcomm_channel_cache";
+    private static final String ENTRY_SEPARATOR = "|";
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final SharedPreferences.Editor mSharedPreferencesEditor;
+    private final int mMaxNumberOfEntries;
+    private long mMaxAgeInMilliseconds = DEFAULT_MAX_AGE_IN_MILLISECONDS;
+    private long mNumberOfHits = 0;
+    private long mNumberOfMisses = 0;
+    private long mNumberOfInvalidations = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param preferences        The shared preferences to persist the entries to. If null, the
+     *                           entries are kept in memory only.
+     * @param maxNumberOfEntries The maximum number of peers to remember.
+     */
+    public RfcommChannelCache(SharedPreferences preferences, int maxNumberOfEntries) {
+        if (maxNumberOfEntries <= 0) {
+            throw new IllegalArgumentException("The maximum number of entries must be positive");
+        }
+
+        mMaxNumberOfEntries = maxNumberOfEntries;
+        mSharedPreferencesEditor = (preferences != null) ? preferences.edit() : null;
+
+        if (preferences != null) {
+            load(preferences.getStringSet(KEY_RFCOMM_CHANNEL_CACHE, null));
+        }
+    }
+
+    /**
+     * Sets the maximum age of the entries. Older entries are not used.
+     *
+     * @param maxAgeInMilliseconds The maximum age in milliseconds.
+     */
+    public synchronized void setMaxAge(long maxAgeInMilliseconds) {
+        mMaxAgeInMilliseconds = maxAgeInMilliseconds;
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The channel last used to connect to the peer successfully or null, if not known or
+     * if the entry is too old.
+     */
+    public synchronized Integer get(String bluetoothMacAddress) {
+        final String normalizedBluetoothMacAddress = PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress);
+        Entry entry = (normalizedBluetoothMacAddress != null) ? mEntries.get(normalizedBluetoothMacAddress) : null;
+
+        if (entry != null && System.currentTimeMillis() - entry.mTimeUpdatedInMilliseconds > mMaxAgeInMilliseconds) {
+            Log.v(TAG, "get: The entry of " + bluetoothMacAddress + " has expired");
+            mEntries.remove(normalizedBluetoothMacAddress);
+            persist();
+            entry = null;
+        }
+
+        if (entry == null) {
+            mNumberOfMisses++;
+            return null;
+        }
+
+        mNumberOfHits++;
+        persist(); // The entry is now the most recently used one
+        return entry.mChannel;
+    }
+
+    /**
+     * Like get(), but does not count as a lookup and does not remove an entry that is too old.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The channel last used to connect to the peer successfully or null, if not known or
+     * if the entry is too old.
+     */
+    public synchronized Integer peek(String bluetoothMacAddress) {
+        Entry entry = (bluetoothMacAddress != null) ? mEntries.get(PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress)) : null;
+
+        if (entry == null || System.currentTimeMillis() - entry.mTimeUpdatedInMilliseconds > mMaxAgeInMilliseconds) {
+            return null;
+        }
+
+        return entry.mChannel;
+    }
+
+    /**
+     * Stores the channel used to connect to the given peer successfully.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @param channel             The channel (greater than zero) or
+     *                            BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT.
+     */
+    public synchronized void put(String bluetoothMacAddress, int channel) {
+        if (bluetoothMacAddress == null
+                || (channel <= 0 && channel != BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT)) {
+            Log.e(TAG, "put: Invalid address (" + bluetoothMacAddress + ") or channel (" + channel + ")");
+            return;
+        }
+
+        mEntries.put(PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress), new Entry(channel, System.currentTimeMillis()));
+        evictIfFull();
+        persist();
+    }
+
+    /**
+     * Removes the entry of the given peer e.g. since connecting using the stored channel failed.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    public synchronized void invalidate(String bluetoothMacAddress) {
+        if (bluetoothMacAddress != null && mEntries.remove(PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress)) != null) {
+            mNumberOfInvalidations++;
+            persist();
+        }
+    }
+
+    /**
+     * Removes all the entries.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        persist();
+    }
+
+    /**
+     * @return The number of peers remembered.
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return The number of lookups that found a channel.
+     */
+    public synchronized long getNumberOfHits() {
+        return mNumberOfHits;
+    }
+
+    /**
+     * @return The number of lookups that found no (valid) channel.
+     */
+    public synchronized long getNumberOfMisses() {
+        return mNumberOfMisses;
+    }
+
+    /**
+     * @return The number of entries removed due to failing to connect using them.
+     */
+    public synchronized long getNumberOfInvalidations() {
+        return mNumberOfInvalidations;
+    }
+
+    private void evictIfFull() {
+        Iterator<String> iterator = mEntries.keySet().iterator();
+
+        while (mEntries.size() > mMaxNumberOfEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove(); // The least recently used entry
+        }
+    }
+
+    private void persist() {
+        if (mSharedPreferencesEditor != null) {
+            Set<String> serializedEntries = new LinkedHashSet<String>();
+            int position = 0; // The least recently used entry first
+
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                serializedEntries.add(entry.getKey() + ENTRY_SEPARATOR + entry.getValue().mChannel
+                        + ENTRY_SEPARATOR + entry.getValue().mTimeUpdatedInMilliseconds
+                        + ENTRY_SEPARATOR + position++);
+            }
+
+            mSharedPreferencesEditor.putStringSet(KEY_RFCOMM_CHANNEL_CACHE, serializedEntries);
+            mSharedPreferencesEditor.apply();
+        }
+    }
+
+    private void load(Set<String> serializedEntries) {
+        if (serializedEntries == null) {
+            return;
+        }
+
+        List<LoadedEntry> loadedEntries = new ArrayList<LoadedEntry>();
+
+        for (String serializedEntry : serializedEntries) {
+            String[] parts = serializedEntry.split("\\" + ENTRY_SEPARATOR);
+
+            try {
+                if (parts.length == 3 || parts.length == 4) {
+                    // Entries stored by an older version have no position; they are ordered first
+                    loadedEntries.add(new LoadedEntry(parts[0],
+                            new Entry(Integer.parseInt(parts[1]), Long.parseLong(parts[2])),
+                            (parts.length == 4) ? Integer.parseInt(parts[3]) : -1));
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // Handled below
+            }
+
+            Log.w(TAG, "load: Ignoring an invalid entry: " + serializedEntry);
+        }
+
+        // Restore the least recently used order
+        Collections.sort(loadedEntries, new Comparator<LoadedEntry>() {
+            @Override
+            public int compare(LoadedEntry loadedEntry1, LoadedEntry loadedEntry2) {
+                if (loadedEntry1.mPosition != loadedEntry2.mPosition) {
+                    return (loadedEntry1.mPosition < loadedEntry2.mPosition) ? -1 : 1;
+                }
+
+                long timeUpdated1 = loadedEntry1.mEntry.mTimeUpdatedInMilliseconds;
+                long timeUpdated2 = loadedEntry2.mEntry.mTimeUpdatedInMilliseconds;
+                return (timeUpdated1 < timeUpdated2) ? -1 : ((timeUpdated1 == timeUpdated2) ? 0 : 1);
+            }
+        });
+
+        for (LoadedEntry loadedEntry : loadedEntries) {
+            // Entries stored by an older version may not be normalized
+            mEntries.put(PeerProperties.normalizeBluetoothMacAddress(loadedEntry.mBluetoothMacAddress), loadedEntry.mEntry);
+        }
+
+        evictIfFull();
+        Log.v(TAG, "load: Loaded " + mEntries.size() + " entries");
+    }
+
+    private static class Entry {
+        final int mChannel;
+        final long mTimeUpdatedInMilliseconds;
+
+        Entry(int channel, long timeUpdatedInMilliseconds) {
+            mChannel = channel;
+            mTimeUpdatedInMilliseconds = timeUpdatedInMilliseconds;
+        }
+    }
+
+    private static class LoadedEntry {
+        final String mBluetoothMacAddress;
+        final Entry mEntry;
+        final int mPosition;
+
+        LoadedEntry(String bluetoothMacAddress, Entry entry, int position) {
+            mBluetoothMacAddress = bluetoothMacAddress;
+            mEntry = entry;
+            mPosition = position;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+/**
+ * Adjusts the size of a read buffer based on the sizes of the recent reads.
+ * <p>
+ * If a read fills the whole buffer, more data is likely pending and the buffer size is doubled.
+ * If all the reads within the window used at most a quarter of the buffer, the buffer size is
+ * halved. The size always stays within the given bounds.
+ */
+class AdaptiveBufferSizer {
+    static final int DEFAULT_WINDOW_SIZE = 8;
+    private final int mMinBufferSizeInBytes;
+    private final int mMaxBufferSizeInBytes;
+    private final int mWindowSize;
+    private int mBufferSizeInBytes;
+    private int mLargestReadInWindow = 0;
+    private int mNumberOfReadsInWindow = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param minBufferSizeInBytes     The minimum buffer size in bytes.
+     * @param maxBufferSizeInBytes     The maximum buffer size in bytes.
+     * @param initialBufferSizeInBytes The initial buffer size in bytes. Adjusted to the bounds, if needed.
+     * @param windowSize               The number of reads to observe before shrinking the buffer.
+     */
+    AdaptiveBufferSizer(int minBufferSizeInBytes, int maxBufferSizeInBytes,
+                        int initialBufferSizeInBytes, int windowSize) {
+        if (minBufferSizeInBytes <= 0 || maxBufferSizeInBytes < minBufferSizeInBytes || windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid buffer size bounds or window size");
+        }
+
+        mMinBufferSizeInBytes = minBufferSizeInBytes;
+        mMaxBufferSizeInBytes = maxBufferSizeInBytes;
+        mWindowSize = windowSize;
+        mBufferSizeInBytes = Math.max(mMinBufferSizeInBytes, Math.min(mMaxBufferSizeInBytes, initialBufferSizeInBytes));
+    }
+
+    int getMinBufferSize() {
+        return mMinBufferSizeInBytes;
+    }
+
+    int getMaxBufferSize() {
+        return mMaxBufferSizeInBytes;
+    }
+
+    /**
+     * @return The current buffer size in bytes.
+     */
+    int getBufferSize() {
+        return mBufferSizeInBytes;
+    }
+
+    /**
+     * Records the size of a read and adjusts the buffer size, if needed.
+     *
+     * @param numberOfBytesRead The number of bytes read.
+     * @return The buffer size to use for the next read.
+     */
+    int onRead(int numberOfBytesRead) {
+        if (numberOfBytesRead >= mBufferSizeInBytes) {
+            if (mBufferSizeInBytes < mMaxBufferSizeInBytes) {
+                mBufferSizeInBytes = (int) Math.min((long) mBufferSizeInBytes * 2, mMaxBufferSizeInBytes);
+            }
+
+            resetWindow();
+            return mBufferSizeInBytes;
+        }
+
+        mLargestReadInWindow = Math.max(mLargestReadInWindow, numberOfBytesRead);
+
+        if (++mNumberOfReadsInWindow >= mWindowSize) {
+            if (mLargestReadInWindow <= mBufferSizeInBytes / 4 && mBufferSizeInBytes > mMinBufferSizeInBytes) {
+                mBufferSizeInBytes = Math.max(mBufferSizeInBytes / 2, mMinBufferSizeInBytes);
+            }
+
+            resetWindow();
+        }
+
+        return mBufferSizeInBytes;
+    }
+
+    private void resetWindow() {
+        mLargestReadInWindow = 0;
+        mNumberOfReadsInWindow = 0;
+    }
+}
@@ -12,6 +12,8 @@ import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
 
 /**
  * Thread for reading bytes from a Bluetooth socket and provides a method to write bytes to a socket.
@@ -49,15 +51,68 @@ public class BluetoothSocketIoThread extends Thread {
         void onDisconnected(String reason, BluetoothSocketIoThread who);
     }
 
+    /**
+     * Listener for the frames, if framing is enabled. See setFrameListener().
+     */
+    public interface FrameListener {
+        /**
+         * Called when a complete frame was read.
+         * Note that the buffer is reused for the next frame and thus, it is only valid during this
+         * call.
+         *
+         * @param frame The frame payload.
+         * @param who   The related BluetoothSocketIoThread instance.
+         */
+        void onFrame(ByteBuffer frame, BluetoothSocketIoThread who);
+    }
+
+    /**
+     * Listener receiving the bytes read in pooled buffers. See setBufferListener().
+     */
+    public interface BufferListener {
+        /**
+         * Called when bytes were successfully read.
+         * Note that the responsibility over the buffer is transferred to the listener: The
+         * listener must call buffer.release() once done with it, but it does not need to copy
+         * the content to keep it.
+         *
+         * @param buffer The buffer containing the bytes read. Use buffer.getByteBuffer() to
+         *               access the bytes.
+         * @param who    The related BluetoothSocketIoThread instance.
+         */
+        void onBufferRead(BufferPool.PooledBuffer buffer, BluetoothSocketIoThread who);
+    }
+
+    /**
+     * Listener for the backpressure of the asynchronous writes. See writeAsync().
+     */
+    public interface WritabilityListener {
+        /**
+         * Called when the write queue reaches the high water mark (not writable) or drains to the
+         * low water mark (writable again).
+         *
+         * @param isWritable True, if writable. False, if the caller should stop writing.
+         * @param who        The related BluetoothSocketIoThread instance.
+         */
+        void onWritabilityChanged(boolean isWritable, BluetoothSocketIoThread who);
+    }
+
     private static final String TAG = BluetoothSocketIoThread.class.getName();
     protected static final int DEFAULT_BUFFER_SIZE_IN_BYTES = 256;
     private final BluetoothSocket mSocket;
     private final Listener mListener;
     private final InputStream mInputStream;
     private final OutputStream mOutputStream;
+    private final ConnectionMetrics mMetrics = new ConnectionMetrics();
     private PeerProperties mPeerProperties;
-    private int mBufferSizeInBytes = DEFAULT_BUFFER_SIZE_IN_BYTES;
+    private volatile int mBufferSizeInBytes = DEFAULT_BUFFER_SIZE_IN_BYTES;
+    private volatile BufferListener mBufferListener = null;
+    private volatile AdaptiveBufferSizer mAdaptiveBufferSizer = null;
     private boolean mExitThreadAfterRead = false;
+    private FrameCodec mFrameCodec = null;
+    private FrameCodec.Listener mFrameCodecListener = null;
+    private SocketWriter mSocketWriter = null;
+    private volatile WritabilityListener mWritabilityListener = null;
     private boolean mIsShuttingDown = false;
 
     /**
@@ -84,6 +139,13 @@ public class BluetoothSocketIoThread extends Thread {
         return mSocket;
     }
 
+    /**
+     * @return The traffic metrics of this connection. See ConnectionMetrics.getSnapshot().
+     */
+    public ConnectionMetrics getMetrics() {
+        return mMetrics;
+    }
+
     @Nullable
     public PeerProperties getPeerProperties() {
         return mPeerProperties;
@@ -103,7 +165,8 @@ public class BluetoothSocketIoThread extends Thread {
     }
 
     /**
-     * Returns the buffer size used by the input stream.
+     * Returns the buffer size used by the input stream. If the adaptive buffer size is enabled,
+     * this is the current size.
      *
      * @return The buffer size in bytes.
      */
@@ -112,17 +175,77 @@ public class BluetoothSocketIoThread extends Thread {
     }
 
     /**
-     * Sets the buffer size used by the input stream.
-     * Note that the buffer size needs to be set before calling start(). Otherwise, it will have no effect.
+     * Sets the buffer size used by the input stream. Disables the adaptive buffer size, if enabled.
+     * Note that if the thread is already running, the new size is applied after the pending read.
      *
      * @param bufferSizeInBytes The buffer size in bytes.
      */
     public void setBufferSize(int bufferSizeInBytes) {
         if (bufferSizeInBytes > 0) {
+            mAdaptiveBufferSizer = null;
             mBufferSizeInBytes = bufferSizeInBytes;
         }
     }
 
+    /**
+     * Enables the adaptive buffer size: The buffer grows when reads fill it (e.g. during bulk
+     * transfers) and shrinks when the recent reads use only a fraction of it (e.g. idle or chatty
+     * links). The size is kept within the given bounds. Calling setBufferSize() disables this mode.
+     *
+     * @param minBufferSizeInBytes The minimum buffer size in bytes.
+     * @param maxBufferSizeInBytes The maximum buffer size in bytes.
+     * @throws IllegalArgumentException Thrown, if the bounds are invalid.
+     */
+    public void setAdaptiveBufferSize(int minBufferSizeInBytes, int maxBufferSizeInBytes) {
+        AdaptiveBufferSizer adaptiveBufferSizer = new AdaptiveBufferSizer(
+                minBufferSizeInBytes, maxBufferSizeInBytes, mBufferSizeInBytes,
+                AdaptiveBufferSizer.DEFAULT_WINDOW_SIZE);
+        mBufferSizeInBytes = adaptiveBufferSizer.getBufferSize();
+        mAdaptiveBufferSizer = adaptiveBufferSizer;
+    }
+
+    /**
+     * @return True, if the adaptive buffer size is enabled.
+     */
+    public boolean isAdaptiveBufferSizeEnabled() {
+        return (mAdaptiveBufferSizer != null);
+    }
+
+    /**
+     * Sets the listener to receive the bytes read in buffers taken from the shared BufferPool
+     * instead of calling Listener.onBytesRead() with a buffer reused for every read. This way the
+     * listener can keep the bytes without copying them. Has no effect, if framing is enabled.
+     *
+     * @param bufferListener The buffer listener. If null, Listener.onBytesRead() is used.
+     */
+    public void setBufferListener(BufferListener bufferListener) {
+        mBufferListener = bufferListener;
+    }
+
+    /**
+     * Enables framing: The bytes read are decoded as length-prefixed frames (see FrameCodec) and
+     * the frames, reassembled from any number of reads, are passed to the given listener instead
+     * of calling Listener.onBytesRead(). If an invalid frame is received, the socket is closed.
+     * Note that framing needs to be enabled before calling start(). Otherwise, it will have no effect.
+     *
+     * @param frameListener       The frame listener. If null, framing is disabled.
+     * @param maxFrameSizeInBytes The maximum size of a frame payload in bytes.
+     */
+    public void setFrameListener(final FrameListener frameListener, int maxFrameSizeInBytes) {
+        if (frameListener != null) {
+            mFrameCodec = new FrameCodec(maxFrameSizeInBytes);
+            mFrameCodecListener = new FrameCodec.Listener() {
+                @Override
+                public void onFrame(ByteBuffer frame) {
+                    frameListener.onFrame(frame, BluetoothSocketIoThread.this);
+                }
+            };
+        } else {
+            mFrameCodec = null;
+            mFrameCodecListener = null;
+        }
+    }
+
     /**
      * From Thread.
      * <p>
@@ -132,13 +255,34 @@ public class BluetoothSocketIoThread extends Thread {
     @Override
     public void run() {
         Log.d(TAG, "Entering thread (ID: " + getId() + ")");
-        byte[] buffer = new byte[mBufferSizeInBytes];
+        byte[] buffer = null;
         int numberOfBytesRead = 0;
+        registerMetrics();
 
         while (!mIsShuttingDown) {
+            final BufferListener bufferListener = (mFrameCodec == null) ? mBufferListener : null;
+            BufferPool.PooledBuffer pooledBuffer = null;
+            byte[] readBuffer;
+
+            if (bufferListener != null) {
+                pooledBuffer = BufferPool.getInstance().acquire(mBufferSizeInBytes);
+                readBuffer = pooledBuffer.getArray();
+            } else {
+                if (buffer == null || buffer.length != mBufferSizeInBytes) {
+                    // (Re)allocate to apply the buffer size set after the thread was started
+                    buffer = new byte[mBufferSizeInBytes];
+                }
+
+                readBuffer = buffer;
+            }
+
             try {
-                numberOfBytesRead = mInputStream.read(buffer); // Blocking call
+                numberOfBytesRead = mInputStream.read(readBuffer); // Blocking call
             } catch (IOException e) {
+                if (pooledBuffer != null) {
+                    pooledBuffer.release();
+                }
+
                 if (!mIsShuttingDown) {
                     Log.d(TAG, "Disconnected: " + e.getMessage());
                     mListener.onDisconnected(e.getMessage(), this);
@@ -148,7 +292,32 @@ public class BluetoothSocketIoThread extends Thread {
             }
 
             if (numberOfBytesRead > 0) {
-                mListener.onBytesRead(buffer, numberOfBytesRead, this);
+                mMetrics.onRead(numberOfBytesRead);
+            }
+
+            final AdaptiveBufferSizer adaptiveBufferSizer = mAdaptiveBufferSizer;
+
+            if (adaptiveBufferSizer != null && numberOfBytesRead > 0) {
+                mBufferSizeInBytes = adaptiveBufferSizer.onRead(numberOfBytesRead);
+            }
+
+            if (pooledBuffer != null) {
+                if (numberOfBytesRead > 0) {
+                    // The listener is now responsible for releasing the buffer
+                    pooledBuffer.setSize(numberOfBytesRead);
+                    bufferListener.onBufferRead(pooledBuffer, this);
+                } else {
+                    pooledBuffer.release();
+                }
+            } else if (numberOfBytesRead > 0) {
+                if (mFrameCodec == null) {
+                    mListener.onBytesRead(buffer, numberOfBytesRead, this);
+                } else if (!mFrameCodec.decode(buffer, 0, numberOfBytesRead, mFrameCodecListener)) {
+                    Log.e(TAG, "Received an invalid frame, closing (thread ID: " + getId() + ")");
+                    close(true, true);
+                    mListener.onDisconnected("Invalid frame", this);
+                    break;
+                }
             }
 
             if (mExitThreadAfterRead) {
@@ -159,8 +328,36 @@ public class BluetoothSocketIoThread extends Thread {
         Log.d(TAG, "Exiting thread (ID: " + getId() + ")");
     }
 
+    /**
+     * Includes the metrics of this connection in the aggregated snapshot. A handshake thread,
+     * which exits after a single read and hands its socket over, is not a live connection and is
+     * thus not registered.
+     */
+    private synchronized void registerMetrics() {
+        if (!mExitThreadAfterRead && !mIsShuttingDown) {
+            mMetrics.register();
+        }
+    }
+
+    /**
+     * Sets the listener notified when the asynchronous writes should be paused and resumed.
+     *
+     * @param writabilityListener The writability listener.
+     */
+    public void setWritabilityListener(WritabilityListener writabilityListener) {
+        mWritabilityListener = writabilityListener;
+    }
+
+    /**
+     * @return True, if the asynchronous write queue has not reached its high water mark.
+     */
+    public synchronized boolean isWritable() {
+        return (mSocketWriter == null || mSocketWriter.isWritable());
+    }
+
     /**
      * Writes the given bytes to the output stream of the socket.
+     * Note that this method blocks until the bytes are written. See writeAsync().
      *
      * @param bytes The bytes to write.
      * @return True, if the given bytes were written successfully. False otherwise.
@@ -170,7 +367,15 @@ public class BluetoothSocketIoThread extends Thread {
 
         if (mOutputStream != null) {
             try {
-                mOutputStream.write(bytes);
+                final long timeStartedInNanoseconds = System.nanoTime();
+
+                synchronized (mOutputStream) {
+                    mOutputStream.write(bytes);
+                }
+
+                final long timeBlockedInNanoseconds = System.nanoTime() - timeStartedInNanoseconds;
+                mMetrics.onWriteOperation(bytes.length, timeBlockedInNanoseconds);
+                mMetrics.onWriteCompleted(timeBlockedInNanoseconds);
                 wasSuccessful = true;
             } catch (IOException e) {
                 if (!mIsShuttingDown) {
@@ -188,6 +393,40 @@ public class BluetoothSocketIoThread extends Thread {
         return wasSuccessful;
     }
 
+    /**
+     * Queues the given bytes to be written to the output stream of the socket by the writer
+     * thread of this instance and returns immediately. Small writes are coalesced. When written,
+     * Listener.onBytesWritten() is called from the writer thread. If the queue fills up, the
+     * WritabilityListener is notified and, if the queue is full, the write is rejected.
+     * <p>
+     * Note that the order of the bytes is only guaranteed between the asynchronous writes, not in
+     * relation to the blocking write().
+     *
+     * @param bytes The bytes to write. The array must not be modified after calling this method.
+     * @return A handle for waiting the completion of the write. The result is true, if the bytes
+     * were written successfully.
+     */
+    public Future<Boolean> writeAsync(byte[] bytes) {
+        SocketWriter socketWriter = getSocketWriter();
+
+        if (socketWriter == null) {
+            return SocketWriter.createFailedWrite();
+        }
+
+        return socketWriter.write(bytes);
+    }
+
+    /**
+     * Writes the given payload to the output stream of the socket as a single length-prefixed
+     * frame. See FrameCodec.
+     *
+     * @param payload The frame payload.
+     * @return True, if the frame was written successfully. False otherwise.
+     */
+    public boolean writeFrame(byte[] payload) {
+        return write(FrameCodec.encode(payload));
+    }
+
     /**
      * Closes, if requested, the input and output streams and the socket.
      * Note that after calling this method, this instance is no longer in valid state and must be
@@ -199,6 +438,11 @@ public class BluetoothSocketIoThread extends Thread {
     public synchronized void close(boolean closeStreams, boolean closeSocket) {
         Log.d(TAG, "close. " + ThreadUtils.currentThreadToString());
         mIsShuttingDown = true;
+        mMetrics.unregister();
+
+        if (mSocketWriter != null) {
+            mSocketWriter.close();
+        }
 
         if (closeStreams) {
             if (mInputStream != null) {
@@ -229,4 +473,37 @@ public class BluetoothSocketIoThread extends Thread {
             }
         }
     }
+
+    /**
+     * Creates the socket writer, if not created yet.
+     *
+     * @return The socket writer or null, if there is no output stream or this instance is closed.
+     */
+    private synchronized SocketWriter getSocketWriter() {
+        if (mSocketWriter == null) {
+            if (mOutputStream == null || mIsShuttingDown) {
+                Log.e(TAG, "getSocketWriter: No output stream or already closed");
+                return null;
+            }
+
+            mSocketWriter = new SocketWriter(mOutputStream, new SocketWriter.Listener() {
+                @Override
+                public void onBytesWritten(byte[] bytes) {
+                    mListener.onBytesWritten(bytes, bytes.length, BluetoothSocketIoThread.this);
+                }
+
+                @Override
+                public void onWritabilityChanged(boolean isWritable) {
+                    WritabilityListener writabilityListener = mWritabilityListener;
+
+                    if (writabilityListener != null) {
+                        writabilityListener.onWritabilityChanged(isWritable, BluetoothSocketIoThread.this);
+                    }
+                }
+            }, "BluetoothSocketWriter-" + getId());
+            mSocketWriter.setConnectionMetrics(mMetrics);
+        }
+
+        return mSocketWriter;
+    }
 }
@@ -0,0 +1,213 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable byte buffers divided into size classes (powers of two). A buffer is taken
+ * from the smallest size class fitting the requested size and returned to the pool when released.
+ * The number of buffers retained per size class is capped, so that the memory held by the pool
+ * stays predictable. Buffers larger than the largest size class are not pooled.
+ * <p>
+ * This class is thread-safe.
+ */
+public class BufferPool {
+    private static final String TAG = BufferPool.class.getName();
+    public static final int MIN_BUFFER_SIZE_IN_BYTES = 256;
+    public static final int MAX_BUFFER_SIZE_IN_BYTES = 64 * 1024;
+    public static final int DEFAULT_MAX_NUMBER_OF_RETAINED_BUFFERS_PER_SIZE = 16;
+    private static BufferPool mInstance = null;
+    private final SizeClass[] mSizeClasses;
+    private final int mMaxNumberOfRetainedBuffersPerSize;
+
+    /**
+     * @return The shared instance of this class.
+     */
+    public static synchronized BufferPool getInstance() {
+        if (mInstance == null) {
+            mInstance = new BufferPool(DEFAULT_MAX_NUMBER_OF_RETAINED_BUFFERS_PER_SIZE);
+        }
+
+        return mInstance;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxNumberOfRetainedBuffersPerSize The maximum number of free buffers kept per size class.
+     */
+    public BufferPool(int maxNumberOfRetainedBuffersPerSize) {
+        if (maxNumberOfRetainedBuffersPerSize < 0) {
+            throw new IllegalArgumentException("The maximum number of retained buffers cannot be negative");
+        }
+
+        mMaxNumberOfRetainedBuffersPerSize = maxNumberOfRetainedBuffersPerSize;
+        int numberOfSizeClasses = getSizeClassIndex(MAX_BUFFER_SIZE_IN_BYTES) + 1;
+        mSizeClasses = new SizeClass[numberOfSizeClasses];
+
+        for (int i = 0; i < numberOfSizeClasses; i++) {
+            mSizeClasses[i] = new SizeClass(MIN_BUFFER_SIZE_IN_BYTES << i);
+        }
+    }
+
+    /**
+     * Takes a buffer of at least the given size from the pool or allocates a new one, if the pool
+     * has no free buffer of the size. The buffer must be released once no longer used.
+     *
+     * @param minSizeInBytes The minimum capacity of the buffer in bytes.
+     * @return A buffer.
+     */
+    public PooledBuffer acquire(int minSizeInBytes) {
+        if (minSizeInBytes <= 0) {
+            throw new IllegalArgumentException("The buffer size must be positive");
+        }
+
+        if (minSizeInBytes > MAX_BUFFER_SIZE_IN_BYTES) {
+            // Too large to be pooled
+            return new PooledBuffer(null, new byte[minSizeInBytes]);
+        }
+
+        SizeClass sizeClass = mSizeClasses[getSizeClassIndex(minSizeInBytes)];
+        PooledBuffer buffer = sizeClass.mFreeBuffers.poll();
+
+        if (buffer != null) {
+            sizeClass.mNumberOfFreeBuffers.decrementAndGet();
+            buffer.mIsReleased.set(false);
+        } else {
+            buffer = new PooledBuffer(this, new byte[sizeClass.mBufferSizeInBytes]);
+        }
+
+        buffer.setSize(0);
+        return buffer;
+    }
+
+    /**
+     * @return The total number of free buffers currently retained by the pool.
+     */
+    public int getNumberOfFreeBuffers() {
+        int numberOfFreeBuffers = 0;
+
+        for (SizeClass sizeClass : mSizeClasses) {
+            numberOfFreeBuffers += sizeClass.mNumberOfFreeBuffers.get();
+        }
+
+        return numberOfFreeBuffers;
+    }
+
+    /**
+     * Returns the given buffer to the pool, unless the pool already retains the maximum number of
+     * buffers of the size.
+     */
+    private void recycle(PooledBuffer buffer) {
+        SizeClass sizeClass = mSizeClasses[getSizeClassIndex(buffer.mArray.length)];
+
+        if (sizeClass.mNumberOfFreeBuffers.incrementAndGet() <= mMaxNumberOfRetainedBuffersPerSize) {
+            sizeClass.mFreeBuffers.offer(buffer);
+        } else {
+            sizeClass.mNumberOfFreeBuffers.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param sizeInBytes The buffer size in bytes.
+     * @return The index of the smallest size class fitting the given size.
+     */
+    private static int getSizeClassIndex(int sizeInBytes) {
+        int index = 0;
+
+        while ((MIN_BUFFER_SIZE_IN_BYTES << index) < sizeInBytes) {
+            index++;
+        }
+
+        return index;
+    }
+
+    /**
+     * The free buffers of a single size.
+     */
+    private static class SizeClass {
+        final int mBufferSizeInBytes;
+        final ConcurrentLinkedQueue<PooledBuffer> mFreeBuffers = new ConcurrentLinkedQueue<PooledBuffer>();
+        final AtomicInteger mNumberOfFreeBuffers = new AtomicInteger(0);
+
+        SizeClass(int bufferSizeInBytes) {
+            mBufferSizeInBytes = bufferSizeInBytes;
+        }
+    }
+
+    /**
+     * A buffer taken from the pool. The content is exposed as a read-only ByteBuffer, so that it
+     * can be passed on without copying. Once done with the buffer, its holder must call release().
+     */
+    public static class PooledBuffer {
+        private final BufferPool mPool;
+        private final byte[] mArray;
+        private final ByteBuffer mReadOnlyView;
+        private final AtomicBoolean mIsReleased = new AtomicBoolean(false);
+        private int mSize = 0;
+
+        PooledBuffer(BufferPool pool, byte[] array) {
+            mPool = pool;
+            mArray = array;
+            mReadOnlyView = ByteBuffer.wrap(mArray).asReadOnlyBuffer();
+        }
+
+        /**
+         * @return The capacity of the buffer in bytes.
+         */
+        public int getCapacity() {
+            return mArray.length;
+        }
+
+        /**
+         * @return The number of valid bytes in the buffer.
+         */
+        public int getSize() {
+            return mSize;
+        }
+
+        /**
+         * Returns a read-only view of the valid bytes in the buffer. The view is owned by this
+         * buffer and must not be used after the buffer is released.
+         *
+         * @return The valid bytes of the buffer with the position set to zero.
+         */
+        public ByteBuffer getByteBuffer() {
+            mReadOnlyView.clear();
+            mReadOnlyView.limit(mSize);
+            return mReadOnlyView;
+        }
+
+        /**
+         * Returns the buffer to the pool. The buffer must not be used after calling this method.
+         */
+        public void release() {
+            if (!mIsReleased.compareAndSet(false, true)) {
+                Log.w(TAG, "release: The buffer is already released");
+                return;
+            }
+
+            if (mPool != null) {
+                mPool.recycle(this);
+            }
+        }
+
+        /**
+         * @return The backing array to fill.
+         */
+        byte[] getArray() {
+            return mArray;
+        }
+
+        void setSize(int size) {
+            mSize = size;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters describing the traffic of a single connection (socket): the bytes and operations in
+ * and out, a histogram of the read sizes, a histogram of the write latencies and the time spent
+ * blocked in OutputStream.write().
+ * <p>
+ * The write latency is the time from requesting a write to its completion. For the blocking
+ * writes it equals the time blocked in the write, whereas for the asynchronous writes it also
+ * includes the time spent in the write queue.
+ * <p>
+ * The histograms use power-of-two buckets: Bucket i counts the values greater than 2^(i-1) and
+ * at most 2^i (bucket 0 counts the values up to 1). The read sizes are recorded in bytes and the
+ * latencies in milliseconds. The last bucket counts also all the larger values.
+ * <p>
+ * The counters are updated with atomic operations and can be read from any thread using
+ * getSnapshot(). The metrics of all the live connections can be aggregated with
+ * getAggregatedSnapshot().
+ */
+public class ConnectionMetrics {
+    public static final int NUMBER_OF_HISTOGRAM_BUCKETS = 17;
+    private static final double NANOSECONDS_IN_MILLISECOND = 1000000d;
+    private static final Set<ConnectionMetrics> mLiveConnectionMetrics =
+            Collections.newSetFromMap(new WeakHashMap<ConnectionMetrics, Boolean>());
+    private final AtomicLong mNumberOfBytesRead = new AtomicLong(0);
+    private final AtomicLong mNumberOfReadOperations = new AtomicLong(0);
+    private final AtomicLong mNumberOfBytesWritten = new AtomicLong(0);
+    private final AtomicLong mNumberOfWriteOperations = new AtomicLong(0);
+    private final AtomicLong mNumberOfWritesCompleted = new AtomicLong(0);
+    private final AtomicLong mTotalWriteLatencyInNanoseconds = new AtomicLong(0);
+    private final AtomicLong mTimeBlockedInWriteInNanoseconds = new AtomicLong(0);
+    private final AtomicLongArray mReadSizeHistogram = new AtomicLongArray(NUMBER_OF_HISTOGRAM_BUCKETS);
+    private final AtomicLongArray mWriteLatencyHistogram = new AtomicLongArray(NUMBER_OF_HISTOGRAM_BUCKETS);
+    private final long mTimeCreatedInNanoseconds = System.nanoTime();
+
+    /**
+     * Adds this instance to the live connections included in the aggregated snapshot.
+     */
+    void register() {
+        synchronized (mLiveConnectionMetrics) {
+            mLiveConnectionMetrics.add(this);
+        }
+    }
+
+    /**
+     * Removes this instance from the live connections.
+     */
+    void unregister() {
+        synchronized (mLiveConnectionMetrics) {
+            mLiveConnectionMetrics.remove(this);
+        }
+    }
+
+    /**
+     * Records a completed read.
+     *
+     * @param numberOfBytesRead The number of bytes read.
+     */
+    void onRead(int numberOfBytesRead) {
+        mNumberOfBytesRead.addAndGet(numberOfBytesRead);
+        mNumberOfReadOperations.incrementAndGet();
+        mReadSizeHistogram.incrementAndGet(getBucketIndex(numberOfBytesRead));
+    }
+
+    /**
+     * Records a single OutputStream.write() call.
+     *
+     * @param numberOfBytesWritten              The number of bytes written.
+     * @param timeBlockedInWriteInNanoseconds   The time the write call took.
+     */
+    void onWriteOperation(int numberOfBytesWritten, long timeBlockedInWriteInNanoseconds) {
+        mNumberOfBytesWritten.addAndGet(numberOfBytesWritten);
+        mNumberOfWriteOperations.incrementAndGet();
+        mTimeBlockedInWriteInNanoseconds.addAndGet(timeBlockedInWriteInNanoseconds);
+    }
+
+    /**
+     * Records the latency of a completed write request.
+     *
+     * @param writeLatencyInNanoseconds The time from requesting the write to its completion.
+     */
+    void onWriteCompleted(long writeLatencyInNanoseconds) {
+        mNumberOfWritesCompleted.incrementAndGet();
+        mTotalWriteLatencyInNanoseconds.addAndGet(writeLatencyInNanoseconds);
+        mWriteLatencyHistogram.incrementAndGet(
+                getBucketIndex((long) Math.ceil(writeLatencyInNanoseconds / NANOSECONDS_IN_MILLISECOND)));
+    }
+
+    /**
+     * @return The current values of the counters.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.add(this);
+        return snapshot;
+    }
+
+    /**
+     * @return The sum of the counters of all the live connections.
+     */
+    public static Snapshot getAggregatedSnapshot() {
+        List<ConnectionMetrics> liveConnectionMetrics;
+
+        synchronized (mLiveConnectionMetrics) {
+            liveConnectionMetrics = new ArrayList<ConnectionMetrics>(mLiveConnectionMetrics);
+        }
+
+        Snapshot snapshot = new Snapshot();
+
+        for (ConnectionMetrics connectionMetrics : liveConnectionMetrics) {
+            snapshot.add(connectionMetrics);
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * @return The number of live connections.
+     */
+    public static int getNumberOfLiveConnections() {
+        synchronized (mLiveConnectionMetrics) {
+            return mLiveConnectionMetrics.size();
+        }
+    }
+
+    /**
+     * @param value The value to record.
+     * @return The index of the histogram bucket for the given value.
+     */
+    static int getBucketIndex(long value) {
+        if (value <= 1) {
+            return 0;
+        }
+
+        return Math.min(64 - Long.numberOfLeadingZeros(value - 1), NUMBER_OF_HISTOGRAM_BUCKETS - 1);
+    }
+
+    /**
+     * An immutable copy of the counters of one or more connections.
+     */
+    public static class Snapshot {
+        private long mNumberOfConnections = 0;
+        private long mNumberOfBytesRead = 0;
+        private long mNumberOfReadOperations = 0;
+        private long mNumberOfBytesWritten = 0;
+        private long mNumberOfWriteOperations = 0;
+        private long mNumberOfWritesCompleted = 0;
+        private long mTotalWriteLatencyInNanoseconds = 0;
+        private long mTimeBlockedInWriteInNanoseconds = 0;
+        private long mLongestLifetimeInNanoseconds = 0;
+        private final long[] mReadSizeHistogram = new long[NUMBER_OF_HISTOGRAM_BUCKETS];
+        private final long[] mWriteLatencyHistogram = new long[NUMBER_OF_HISTOGRAM_BUCKETS];
+
+        Snapshot() {
+        }
+
+        public long getNumberOfConnections() {
+            return mNumberOfConnections;
+        }
+
+        public long getNumberOfBytesRead() {
+            return mNumberOfBytesRead;
+        }
+
+        public long getNumberOfReadOperations() {
+            return mNumberOfReadOperations;
+        }
+
+        public long getNumberOfBytesWritten() {
+            return mNumberOfBytesWritten;
+        }
+
+        public long getNumberOfWriteOperations() {
+            return mNumberOfWriteOperations;
+        }
+
+        public long getNumberOfWritesCompleted() {
+            return mNumberOfWritesCompleted;
+        }
+
+        /**
+         * @return The average write latency in milliseconds or zero, if nothing was written.
+         */
+        public double getAverageWriteLatencyInMilliseconds() {
+            if (mNumberOfWritesCompleted == 0) {
+                return 0d;
+            }
+
+            return (mTotalWriteLatencyInNanoseconds / mNumberOfWritesCompleted) / NANOSECONDS_IN_MILLISECOND;
+        }
+
+        /**
+         * @return The total time spent blocked in OutputStream.write() in milliseconds.
+         */
+        public double getTimeBlockedInWriteInMilliseconds() {
+            return mTimeBlockedInWriteInNanoseconds / NANOSECONDS_IN_MILLISECOND;
+        }
+
+        /**
+         * @return The bytes read per second over the lifetime of the connection (the longest
+         * lifetime, if aggregated). Zero, if no time has elapsed.
+         */
+        public double getReadThroughputInBytesPerSecond() {
+            return getBytesPerSecond(mNumberOfBytesRead);
+        }
+
+        /**
+         * @return The bytes written per second over the lifetime of the connection (the longest
+         * lifetime, if aggregated). Zero, if no time has elapsed.
+         */
+        public double getWriteThroughputInBytesPerSecond() {
+            return getBytesPerSecond(mNumberOfBytesWritten);
+        }
+
+        /**
+         * @return A copy of the read size histogram. See ConnectionMetrics.
+         */
+        public long[] getReadSizeHistogram() {
+            return mReadSizeHistogram.clone();
+        }
+
+        /**
+         * @return A copy of the write latency histogram. See ConnectionMetrics.
+         */
+        public long[] getWriteLatencyHistogram() {
+            return mWriteLatencyHistogram.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "[connections: " + mNumberOfConnections
+                    + ", bytes read: " + mNumberOfBytesRead + " in " + mNumberOfReadOperations + " reads"
+                    + ", bytes written: " + mNumberOfBytesWritten + " in " + mNumberOfWriteOperations + " writes"
+                    + ", average write latency: " + getAverageWriteLatencyInMilliseconds() + " ms"
+                    + ", time blocked in write: " + getTimeBlockedInWriteInMilliseconds() + " ms]";
+        }
+
+        private double getBytesPerSecond(long numberOfBytes) {
+            if (mLongestLifetimeInNanoseconds <= 0) {
+                return 0d;
+            }
+
+            return numberOfBytes / (mLongestLifetimeInNanoseconds / (NANOSECONDS_IN_MILLISECOND * 1000d));
+        }
+
+        private void add(ConnectionMetrics connectionMetrics) {
+            mNumberOfConnections++;
+            mNumberOfBytesRead += connectionMetrics.mNumberOfBytesRead.get();
+            mNumberOfReadOperations += connectionMetrics.mNumberOfReadOperations.get();
+            mNumberOfBytesWritten += connectionMetrics.mNumberOfBytesWritten.get();
+            mNumberOfWriteOperations += connectionMetrics.mNumberOfWriteOperations.get();
+            mNumberOfWritesCompleted += connectionMetrics.mNumberOfWritesCompleted.get();
+            mTotalWriteLatencyInNanoseconds += connectionMetrics.mTotalWriteLatencyInNanoseconds.get();
+            mTimeBlockedInWriteInNanoseconds += connectionMetrics.mTimeBlockedInWriteInNanoseconds.get();
+            mLongestLifetimeInNanoseconds = Math.max(mLongestLifetimeInNanoseconds,
+                    System.nanoTime() - connectionMetrics.mTimeCreatedInNanoseconds);
+
+            for (int i = 0; i < NUMBER_OF_HISTOGRAM_BUCKETS; i++) {
+                mReadSizeHistogram[i] += connectionMetrics.mReadSizeHistogram.get(i);
+                mWriteLatencyHistogram[i] += connectionMetrics.mWriteLatencyHistogram.get(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes length-prefixed frames. Each frame is preceded by its length encoded as an
+ * unsigned varint (seven bits per byte, least significant group first, the highest bit set in all
+ * but the last byte).
+ * <p>
+ * The decoder accepts the bytes in chunks of any size, as they are read from a stream, and
+ * reassembles the frames into a buffer that is reused for all the frames. The buffer grows on
+ * demand up to the maximum frame size. Frames exceeding the maximum size are rejected.
+ * <p>
+ * This class is not thread-safe; a decoder instance is meant to be used by a single reader.
+ */
+public class FrameCodec {
+    /**
+     * Frame listener.
+     */
+    public interface Listener {
+        /**
+         * Called when a complete frame was decoded.
+         * Note that the buffer is reused for the next frame and thus, it is only valid during this
+         * call. Copy the content, if it is needed later.
+         *
+         * @param frame The frame payload. The position is set to the start and the limit to the
+         *              end of the payload.
+         */
+        void onFrame(ByteBuffer frame);
+    }
+
+    private static final String TAG = FrameCodec.class.getName();
+    public static final int DEFAULT_MAX_FRAME_SIZE_IN_BYTES = 64 * 1024;
+    private static final int MAX_LENGTH_PREFIX_SIZE_IN_BYTES = 5;
+    private static final int INITIAL_FRAME_BUFFER_SIZE_IN_BYTES = 256;
+    private final int mMaxFrameSizeInBytes;
+    private byte[] mFrameBuffer = null;
+    private ByteBuffer mFrame = null;
+    private int mFrameLength = 0;
+    private int mNumberOfFrameBytesReceived = 0;
+    private int mNumberOfLengthPrefixBytesReceived = 0;
+    private boolean mIsReadingLengthPrefix = true;
+    private boolean mIsCorrupted = false;
+
+    /**
+     * Constructor.
+     *
+     * @param maxFrameSizeInBytes The maximum size of a frame payload in bytes.
+     */
+    public FrameCodec(int maxFrameSizeInBytes) {
+        if (maxFrameSizeInBytes <= 0) {
+            throw new IllegalArgumentException("The maximum frame size must be positive");
+        }
+
+        mMaxFrameSizeInBytes = maxFrameSizeInBytes;
+    }
+
+    public int getMaxFrameSize() {
+        return mMaxFrameSizeInBytes;
+    }
+
+    /**
+     * Encodes the given payload as a frame.
+     *
+     * @param payload The frame payload.
+     * @return The length prefix followed by the payload.
+     */
+    public static byte[] encode(byte[] payload) {
+        return encode(payload, 0, payload.length);
+    }
+
+    /**
+     * Encodes the given part of the payload as a frame.
+     *
+     * @param payload The array containing the frame payload.
+     * @param offset  The offset of the payload in the array.
+     * @param length  The length of the payload.
+     * @return The length prefix followed by the payload.
+     */
+    public static byte[] encode(byte[] payload, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > payload.length) {
+            throw new IndexOutOfBoundsException("Invalid offset (" + offset + ") or length (" + length + ")");
+        }
+
+        byte[] frame = new byte[getLengthPrefixSize(length) + length];
+        int index = 0;
+        int remainingLength = length;
+
+        while ((remainingLength & ~0x7F) != 0) {
+            frame[index++] = (byte) ((remainingLength & 0x7F) | 0x80);
+            remainingLength >>>= 7;
+        }
+
+        frame[index++] = (byte) remainingLength;
+        System.arraycopy(payload, offset, frame, index, length);
+        return frame;
+    }
+
+    /**
+     * @param length The length of a frame payload.
+     * @return The number of bytes needed to encode the given length.
+     */
+    public static int getLengthPrefixSize(int length) {
+        int size = 1;
+
+        while ((length & ~0x7F) != 0) {
+            length >>>= 7;
+            size++;
+        }
+
+        return size;
+    }
+
+    /**
+     * Decodes the given bytes and notifies the listener for every completed frame. Any incomplete
+     * frame at the end is kept until the rest of it is received.
+     *
+     * @param bytes    The bytes to decode.
+     * @param offset   The offset of the first byte to decode.
+     * @param size     The number of bytes to decode.
+     * @param listener The listener to notify about the frames.
+     * @return True, if the bytes were decoded successfully. False, if the bytes contain an invalid
+     * length prefix or a frame larger than the maximum frame size. In that case the stream cannot
+     * be recovered and this instance will reject all the bytes until reset.
+     */
+    public boolean decode(byte[] bytes, int offset, int size, Listener listener) {
+        if (mIsCorrupted) {
+            return false;
+        }
+
+        final int end = offset + size;
+        int index = offset;
+
+        while (index < end) {
+            if (mIsReadingLengthPrefix) {
+                final int value = bytes[index++] & 0xFF;
+                mFrameLength |= (value & 0x7F) << (7 * mNumberOfLengthPrefixBytesReceived);
+                mNumberOfLengthPrefixBytesReceived++;
+
+                if ((value & 0x80) != 0) {
+                    if (mNumberOfLengthPrefixBytesReceived >= MAX_LENGTH_PREFIX_SIZE_IN_BYTES) {
+                        Log.e(TAG, "decode: Invalid length prefix");
+                        mIsCorrupted = true;
+                        return false;
+                    }
+
+                    continue;
+                }
+
+                if (mFrameLength < 0 || mFrameLength > mMaxFrameSizeInBytes) {
+                    Log.e(TAG, "decode: The frame length (" + mFrameLength
+                            + ") exceeds the maximum frame size (" + mMaxFrameSizeInBytes + ")");
+                    mIsCorrupted = true;
+                    return false;
+                }
+
+                ensureFrameBufferCapacity(mFrameLength);
+                mIsReadingLengthPrefix = false;
+                mNumberOfFrameBytesReceived = 0;
+            }
+
+            final int numberOfBytesToCopy = Math.min(end - index, mFrameLength - mNumberOfFrameBytesReceived);
+            System.arraycopy(bytes, index, mFrameBuffer, mNumberOfFrameBytesReceived, numberOfBytesToCopy);
+            mNumberOfFrameBytesReceived += numberOfBytesToCopy;
+            index += numberOfBytesToCopy;
+
+            if (mNumberOfFrameBytesReceived == mFrameLength) {
+                mFrame.clear();
+                mFrame.limit(mFrameLength);
+                startNextFrame();
+                listener.onFrame(mFrame);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Discards any partially received frame and clears the error state. The frame buffer is kept.
+     */
+    public void reset() {
+        startNextFrame();
+        mIsCorrupted = false;
+    }
+
+    private void startNextFrame() {
+        mIsReadingLengthPrefix = true;
+        mFrameLength = 0;
+        mNumberOfFrameBytesReceived = 0;
+        mNumberOfLengthPrefixBytesReceived = 0;
+    }
+
+    /**
+     * Makes sure the frame buffer can hold a frame of the given size. Grows the buffer by doubling
+     * its size, but never beyond the maximum frame size.
+     */
+    private void ensureFrameBufferCapacity(int frameLength) {
+        if (mFrameBuffer == null || mFrameBuffer.length < frameLength) {
+            int newSize = (mFrameBuffer == null)
+                    ? Math.min(INITIAL_FRAME_BUFFER_SIZE_IN_BYTES, mMaxFrameSizeInBytes) : mFrameBuffer.length;
+
+            while (newSize < frameLength) {
+                newSize = (int) Math.min((long) newSize * 2, mMaxFrameSizeInBytes);
+            }
+
+            mFrameBuffer = new byte[newSize];
+            mFrame = ByteBuffer.wrap(mFrameBuffer);
+        }
+    }
+}
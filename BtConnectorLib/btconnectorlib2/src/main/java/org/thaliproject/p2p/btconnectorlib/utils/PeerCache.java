@@ -0,0 +1,572 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An on-disk cache of the recently seen peers, used to warm start after the app is restarted:
+ * The peers seen within the time-to-live can be offered as probable peers and connected to
+ * speculatively, without waiting for the peer discovery to find them again.
+ * <p>
+ * For each peer, the cache stores the Bluetooth MAC address, the generation (the extra
+ * information), the time the peer was last seen, the RFCOMM channel last used to connect to it
+ * successfully and the number of successful and failed connection attempts. The entries are
+ * saved to a compact binary file, 25 bytes per peer. The number of entries is bounded; the least
+ * recently seen peer is evicted first.
+ * <p>
+ * Add the cache as a listener of the peer model to record the sightings (see
+ * DiscoveryManager.setPeerCache()) and record the connection attempts (see
+ * ConnectionManager.setPeerCache()). The file is read and written by a background thread (see
+ * loadAsync() and saveAsync()).
+ * <p>
+ * This class is thread-safe.
+ */
+public class PeerCache implements PeerModel.Listener {
+    public interface Listener {
+        /**
+         * Called when the cache has been loaded. Called by the background thread and thus, the
+         * listener should not block.
+         *
+         * @param probablePeers The probable peers (see getProbablePeers()).
+         */
+        void onPeerCacheLoaded(List<PeerProperties> probablePeers);
+    }
+
+    /**
+     * An immutable entry of a cached peer.
+     */
+    public static final class CachedPeer {
+        private final String mBluetoothMacAddress;
+        private final int mExtraInformation;
+        private final long mTimeLastSeenInMilliseconds;
+        private final int mLastSuccessfulPort;
+        private final int mNumberOfSuccessfulConnections;
+        private final int mNumberOfFailedConnections;
+
+        private CachedPeer(
+                String bluetoothMacAddress, int extraInformation, long timeLastSeenInMilliseconds,
+                int lastSuccessfulPort, int numberOfSuccessfulConnections, int numberOfFailedConnections) {
+            mBluetoothMacAddress = bluetoothMacAddress;
+            mExtraInformation = extraInformation;
+            mTimeLastSeenInMilliseconds = timeLastSeenInMilliseconds;
+            mLastSuccessfulPort = lastSuccessfulPort;
+            mNumberOfSuccessfulConnections = numberOfSuccessfulConnections;
+            mNumberOfFailedConnections = numberOfFailedConnections;
+        }
+
+        public String getBluetoothMacAddress() {
+            return mBluetoothMacAddress;
+        }
+
+        /**
+         * @return The generation of the peer or PeerProperties.NO_EXTRA_INFORMATION, if not known.
+         */
+        public int getExtraInformation() {
+            return mExtraInformation;
+        }
+
+        public long getTimeLastSeen() {
+            return mTimeLastSeenInMilliseconds;
+        }
+
+        /**
+         * @return The RFCOMM channel last used to connect to the peer successfully,
+         * ConnectionManagerSettings.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT, if the system
+         * decided port was used, or PORT_UNKNOWN.
+         */
+        public int getLastSuccessfulPort() {
+            return mLastSuccessfulPort;
+        }
+
+        public int getNumberOfSuccessfulConnections() {
+            return mNumberOfSuccessfulConnections;
+        }
+
+        public int getNumberOfFailedConnections() {
+            return mNumberOfFailedConnections;
+        }
+
+        /**
+         * @return New peer properties based on this entry.
+         */
+        public PeerProperties toPeerProperties() {
+            return new PeerProperties(mBluetoothMacAddress, mExtraInformation);
+        }
+
+        @Override
+        public String toString() {
+            return "[" + mBluetoothMacAddress + ", generation " + mExtraInformation
+                    + ", last seen " + mTimeLastSeenInMilliseconds + ", port " + mLastSuccessfulPort
+                    + ", " + mNumberOfSuccessfulConnections + "/" + mNumberOfFailedConnections + " succeeded/failed]";
+        }
+    }
+
+    private static final String TAG = PeerCache.class.getName();
+    public static final long DEFAULT_TIME_TO_LIVE_IN_MILLISECONDS = 10 * 60 * 1000;
+    public static final int DEFAULT_MAX_NUMBER_OF_ENTRIES = 128;
+    public static final int PORT_UNKNOWN = 0;
+    private static final int FILE_MAGIC = 0x50454552; // "PEER"
+    private static final int FILE_FORMAT_VERSION = 1;
+    private static final int BLUETOOTH_MAC_ADDRESS_LENGTH_IN_BYTES = 6;
+    private static final long IO_THREAD_KEEP_ALIVE_TIME_IN_SECONDS = 10;
+    private final LinkedHashMap<String, CachedPeer> mCachedPeers = new LinkedHashMap<>(); // The least recently seen peer first
+    private final File mFile;
+    private final long mTimeToLiveInMilliseconds;
+    private final int mMaxNumberOfEntries;
+    private final ThreadPoolExecutor mIoExecutor;
+    private boolean mIsDirty = false;
+
+    /**
+     * Constructor.
+     *
+     * @param file                     The file to store the cache to.
+     * @param timeToLiveInMilliseconds The time after which a peer not seen is not a probable peer
+     *                                 anymore and is not loaded.
+     * @param maxNumberOfEntries       The maximum number of peers to remember.
+     */
+    public PeerCache(File file, long timeToLiveInMilliseconds, int maxNumberOfEntries) {
+        if (file == null) {
+            throw new NullPointerException("The file is null");
+        }
+
+        if (timeToLiveInMilliseconds <= 0 || maxNumberOfEntries <= 0) {
+            throw new IllegalArgumentException("Invalid time-to-live (" + timeToLiveInMilliseconds
+                    + " ms) or maximum number of entries (" + maxNumberOfEntries + ")");
+        }
+
+        mFile = file;
+        mTimeToLiveInMilliseconds = timeToLiveInMilliseconds;
+        mMaxNumberOfEntries = maxNumberOfEntries;
+
+        // A single thread, which is let go when idle
+        mIoExecutor = new ThreadPoolExecutor(1, 1, IO_THREAD_KEEP_ALIVE_TIME_IN_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "PeerCacheIo");
+            }
+        });
+        mIoExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Loads the cache from the file using a background thread.
+     *
+     * @param listener The listener notified, when loaded. Can be null.
+     */
+    public void loadAsync(final Listener listener) {
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+
+                if (listener != null) {
+                    listener.onPeerCacheLoaded(getProbablePeers());
+                }
+            }
+        });
+    }
+
+    /**
+     * Saves the cache to the file using a background thread, if changed since loaded or saved.
+     */
+    public void saveAsync() {
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    /**
+     * Loads the cache from the file. The entries older than the time-to-live are dropped. The
+     * entries already in the cache are kept, if newer than the loaded ones.
+     * <p>
+     * Note that this method does file I/O and thus, should not be called on the main thread.
+     *
+     * @return True, if loaded. False, if the file does not exist or could not be read.
+     */
+    public boolean load() {
+        final long timeNow = System.currentTimeMillis();
+        List<CachedPeer> loadedPeers = new ArrayList<>();
+        DataInputStream inputStream = null;
+
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+
+            if (inputStream.readInt() != FILE_MAGIC || inputStream.readUnsignedByte() != FILE_FORMAT_VERSION) {
+                Log.e(TAG, "load: Unknown file format in " + mFile);
+                return false;
+            }
+
+            int numberOfEntries = inputStream.readInt();
+            byte[] bluetoothMacAddressBytes = new byte[BLUETOOTH_MAC_ADDRESS_LENGTH_IN_BYTES];
+
+            for (int i = 0; i < numberOfEntries; i++) {
+                inputStream.readFully(bluetoothMacAddressBytes);
+                CachedPeer cachedPeer = new CachedPeer(
+                        bluetoothMacAddressToString(bluetoothMacAddressBytes),
+                        inputStream.readUnsignedShort(),
+                        inputStream.readLong(),
+                        inputStream.readByte(),
+                        inputStream.readInt(),
+                        inputStream.readInt());
+
+                if (timeNow - cachedPeer.getTimeLastSeen() <= mTimeToLiveInMilliseconds) {
+                    loadedPeers.add(cachedPeer);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "load: No cache file " + mFile);
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "load: Failed to read " + mFile + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        synchronized (this) {
+            for (CachedPeer loadedPeer : loadedPeers) {
+                // The entries recorded before loading are more recent
+                if (!mCachedPeers.containsKey(loadedPeer.getBluetoothMacAddress())) {
+                    mCachedPeers.put(loadedPeer.getBluetoothMacAddress(), loadedPeer);
+                }
+            }
+
+            sortByTimeLastSeen();
+            evictIfFull();
+        }
+
+        Log.i(TAG, "load: Loaded " + loadedPeers.size() + " peer(s) from " + mFile);
+        return true;
+    }
+
+    /**
+     * Saves the cache to the file, if changed since loaded or saved. The file is replaced only
+     * once completely written.
+     * <p>
+     * Note that this method does file I/O and thus, should not be called on the main thread.
+     *
+     * @return True, if saved or if there was nothing to save. False in case of a failure.
+     */
+    public boolean save() {
+        List<CachedPeer> cachedPeers;
+
+        synchronized (this) {
+            if (!mIsDirty) {
+                return true;
+            }
+
+            cachedPeers = new ArrayList<>(mCachedPeers.values());
+            mIsDirty = false;
+        }
+
+        File temporaryFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream outputStream = null;
+        boolean wasSaved = false;
+
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+            outputStream.writeInt(FILE_MAGIC);
+            outputStream.writeByte(FILE_FORMAT_VERSION);
+            outputStream.writeInt(cachedPeers.size());
+
+            for (CachedPeer cachedPeer : cachedPeers) {
+                outputStream.write(bluetoothMacAddressToBytes(cachedPeer.getBluetoothMacAddress()));
+                outputStream.writeShort(cachedPeer.getExtraInformation());
+                outputStream.writeLong(cachedPeer.getTimeLastSeen());
+                outputStream.writeByte(cachedPeer.getLastSuccessfulPort());
+                outputStream.writeInt(cachedPeer.getNumberOfSuccessfulConnections());
+                outputStream.writeInt(cachedPeer.getNumberOfFailedConnections());
+            }
+
+            outputStream.close();
+            outputStream = null;
+            wasSaved = temporaryFile.renameTo(mFile);
+        } catch (IOException e) {
+            Log.e(TAG, "save: Failed to write " + temporaryFile + ": " + e.getMessage());
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+
+        if (wasSaved) {
+            Log.v(TAG, "save: Saved " + cachedPeers.size() + " peer(s) to " + mFile);
+        } else {
+            Log.e(TAG, "save: Failed to save the cache to " + mFile);
+            temporaryFile.delete();
+
+            synchronized (this) {
+                mIsDirty = true; // Try again next time
+            }
+        }
+
+        return wasSaved;
+    }
+
+    /**
+     * @return The peers seen within the time-to-live, the most recently seen peer first.
+     */
+    public synchronized List<PeerProperties> getProbablePeers() {
+        final long timeNow = System.currentTimeMillis();
+        List<PeerProperties> probablePeers = new ArrayList<>();
+
+        for (CachedPeer cachedPeer : mCachedPeers.values()) {
+            if (timeNow - cachedPeer.getTimeLastSeen() <= mTimeToLiveInMilliseconds) {
+                probablePeers.add(cachedPeer.toPeerProperties());
+            }
+        }
+
+        Collections.reverse(probablePeers);
+        return probablePeers;
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     * @return The entry of the given peer or null, if not found.
+     */
+    public synchronized CachedPeer getCachedPeer(String bluetoothMacAddress) {
+        String key = normalizeBluetoothMacAddress(bluetoothMacAddress);
+        return (key != null) ? mCachedPeers.get(key) : null;
+    }
+
+    /**
+     * @return The number of peers in the cache.
+     */
+    public synchronized int size() {
+        return mCachedPeers.size();
+    }
+
+    /**
+     * Records that the given peer was seen now.
+     *
+     * @param peerProperties The properties of the peer.
+     */
+    public synchronized void recordSeen(PeerProperties peerProperties) {
+        CachedPeer cachedPeer = getOrCreateCachedPeer(peerProperties);
+
+        if (cachedPeer != null) {
+            putCachedPeer(new CachedPeer(cachedPeer.getBluetoothMacAddress(),
+                    peerProperties.getExtraInformation(), System.currentTimeMillis(),
+                    cachedPeer.getLastSuccessfulPort(), cachedPeer.getNumberOfSuccessfulConnections(),
+                    cachedPeer.getNumberOfFailedConnections()));
+        }
+    }
+
+    /**
+     * Records a successful connection to the given peer. Also counts as a sighting.
+     *
+     * @param peerProperties The properties of the peer.
+     * @param port           The RFCOMM channel used or PORT_UNKNOWN (e.g. for incoming
+     *                       connections), if the previous one should be kept.
+     */
+    public synchronized void recordConnectionSucceeded(PeerProperties peerProperties, int port) {
+        CachedPeer cachedPeer = getOrCreateCachedPeer(peerProperties);
+
+        if (cachedPeer != null) {
+            putCachedPeer(new CachedPeer(cachedPeer.getBluetoothMacAddress(),
+                    cachedPeer.getExtraInformation(), System.currentTimeMillis(),
+                    (port != PORT_UNKNOWN) ? port : cachedPeer.getLastSuccessfulPort(),
+                    cachedPeer.getNumberOfSuccessfulConnections() + 1,
+                    cachedPeer.getNumberOfFailedConnections()));
+        }
+    }
+
+    /**
+     * Records a failed connection attempt to the given peer. Does nothing, if the peer is not in
+     * the cache.
+     *
+     * @param bluetoothMacAddress The Bluetooth MAC address of the peer.
+     */
+    public synchronized void recordConnectionFailed(String bluetoothMacAddress) {
+        CachedPeer cachedPeer = getCachedPeer(bluetoothMacAddress);
+
+        if (cachedPeer != null) {
+            // Replace without changing the order, since the peer was not seen
+            mCachedPeers.put(cachedPeer.getBluetoothMacAddress(), new CachedPeer(
+                    cachedPeer.getBluetoothMacAddress(), cachedPeer.getExtraInformation(),
+                    cachedPeer.getTimeLastSeen(), cachedPeer.getLastSuccessfulPort(),
+                    cachedPeer.getNumberOfSuccessfulConnections(),
+                    cachedPeer.getNumberOfFailedConnections() + 1));
+            mIsDirty = true;
+        }
+    }
+
+    /**
+     * Removes all the entries. The file is cleared, when saved the next time.
+     */
+    public synchronized void clear() {
+        mCachedPeers.clear();
+        mIsDirty = true;
+    }
+
+    /**
+     * From PeerModel.Listener
+     *
+     * @param peerProperties The properties of the added peer.
+     */
+    @Override
+    public void onPeerAdded(PeerProperties peerProperties) {
+        recordSeen(peerProperties);
+    }
+
+    /**
+     * From PeerModel.Listener
+     *
+     * @param peerProperties The properties of the updated peer.
+     */
+    @Override
+    public void onPeerUpdated(PeerProperties peerProperties) {
+        recordSeen(peerProperties);
+    }
+
+    /**
+     * From PeerModel.Listener
+     * <p>
+     * Does nothing; the peer is kept in the cache until its time-to-live is exceeded.
+     *
+     * @param peerProperties The properties of the expired and removed peer.
+     */
+    @Override
+    public void onPeerExpiredAndRemoved(PeerProperties peerProperties) {
+    }
+
+    /**
+     * @param peerProperties The properties of the peer.
+     * @return The existing entry, a new one, if not found, or null, if the peer has no valid
+     * Bluetooth MAC address.
+     */
+    private CachedPeer getOrCreateCachedPeer(PeerProperties peerProperties) {
+        String bluetoothMacAddress = (peerProperties != null)
+                ? normalizeBluetoothMacAddress(peerProperties.getBluetoothMacAddress()) : null;
+
+        if (bluetoothMacAddress == null) {
+            Log.v(TAG, "getOrCreateCachedPeer: No valid Bluetooth MAC address: " + peerProperties);
+            return null;
+        }
+
+        CachedPeer cachedPeer = mCachedPeers.get(bluetoothMacAddress);
+
+        if (cachedPeer == null) {
+            cachedPeer = new CachedPeer(bluetoothMacAddress, peerProperties.getExtraInformation(), 0,
+                    PORT_UNKNOWN, 0, 0);
+        }
+
+        return cachedPeer;
+    }
+
+    /**
+     * Puts the given entry as the most recently seen one and evicts the least recently seen one,
+     * if the cache is full.
+     *
+     * @param cachedPeer The entry.
+     */
+    private void putCachedPeer(CachedPeer cachedPeer) {
+        mCachedPeers.remove(cachedPeer.getBluetoothMacAddress());
+        mCachedPeers.put(cachedPeer.getBluetoothMacAddress(), cachedPeer);
+        evictIfFull();
+        mIsDirty = true;
+    }
+
+    private void sortByTimeLastSeen() {
+        List<CachedPeer> cachedPeers = new ArrayList<>(mCachedPeers.values());
+
+        Collections.sort(cachedPeers, new Comparator<CachedPeer>() {
+            @Override
+            public int compare(CachedPeer cachedPeer1, CachedPeer cachedPeer2) {
+                long timeLastSeen1 = cachedPeer1.getTimeLastSeen();
+                long timeLastSeen2 = cachedPeer2.getTimeLastSeen();
+                return (timeLastSeen1 < timeLastSeen2) ? -1 : ((timeLastSeen1 == timeLastSeen2) ? 0 : 1);
+            }
+        });
+
+        mCachedPeers.clear();
+
+        for (CachedPeer cachedPeer : cachedPeers) {
+            mCachedPeers.put(cachedPeer.getBluetoothMacAddress(), cachedPeer);
+        }
+    }
+
+    private void evictIfFull() {
+        Iterator<String> iterator = mCachedPeers.keySet().iterator();
+
+        while (mCachedPeers.size() > mMaxNumberOfEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove(); // The least recently seen peer
+        }
+    }
+
+    /**
+     * @param bluetoothMacAddress The Bluetooth MAC address e.g. "01:23:45:67:89:AB".
+     * @return The address in upper case or null, if not a valid address. Note that
+     * PeerProperties.BLUETOOTH_MAC_ADDRESS_UNKNOWN is not a valid address.
+     */
+    static String normalizeBluetoothMacAddress(String bluetoothMacAddress) {
+        String normalizedBluetoothMacAddress = PeerProperties.normalizeBluetoothMacAddress(bluetoothMacAddress);
+        return (normalizedBluetoothMacAddress != null) && normalizedBluetoothMacAddress.matches("([0-9A-F]{2}:){5}[0-9A-F]{2}")
+                ? normalizedBluetoothMacAddress : null;
+    }
+
+    private static byte[] bluetoothMacAddressToBytes(String bluetoothMacAddress) {
+        byte[] bytes = new byte[BLUETOOTH_MAC_ADDRESS_LENGTH_IN_BYTES];
+        String[] parts = bluetoothMacAddress.split(":");
+
+        for (int i = 0; i < BLUETOOTH_MAC_ADDRESS_LENGTH_IN_BYTES; i++) {
+            bytes[i] = (byte) Integer.parseInt(parts[i], 16);
+        }
+
+        return bytes;
+    }
+
+    private static String bluetoothMacAddressToString(byte[] bytes) {
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (int i = 0; i < bytes.length; i++) {
+            if (i > 0) {
+                stringBuilder.append(':');
+            }
+
+            stringBuilder.append(String.format(Locale.US, "%02X", bytes[i] & 0xff));
+        }
+
+        return stringBuilder.toString();
+    }
+}
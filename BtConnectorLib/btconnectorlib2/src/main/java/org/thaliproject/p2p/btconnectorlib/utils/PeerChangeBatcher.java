@@ -0,0 +1,208 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.os.Handler;
+import android.util.Log;
+
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Collects the peer changes of a peer model and delivers them in batches via the given handler.
+ * A batch is delivered when the flush interval has elapsed since the first pending change or
+ * right away, when the number of pending changes reaches the maximum batch size. Thus, instead
+ * of one handler post per peer change, there is one per batch.
+ * <p>
+ * The changes of a peer within a batch are coalesced: A peer added and then updated is reported
+ * as added (with the latest properties), a peer added and then removed is not reported at all and
+ * a peer removed and then added again is reported as updated.
+ * <p>
+ * This class is thread-safe.
+ */
+public class PeerChangeBatcher implements PeerModel.Listener {
+    public interface Listener {
+        /**
+         * Called with a batch of peer changes. At least one of the lists is not empty.
+         *
+         * @param addedPeers   The properties of the new peers.
+         * @param updatedPeers The properties of the updated peers.
+         * @param removedPeers The properties of the expired and removed peers.
+         */
+        void onPeersChanged(
+                List<PeerProperties> addedPeers, List<PeerProperties> updatedPeers, List<PeerProperties> removedPeers);
+    }
+
+    private enum FlushState {
+        NOT_SCHEDULED,
+        SCHEDULED_WITH_DELAY,
+        SCHEDULED
+    }
+
+    private static final String TAG = PeerChangeBatcher.class.getName();
+    public static final long DEFAULT_FLUSH_INTERVAL_IN_MILLISECONDS = 500;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final long mFlushIntervalInMilliseconds;
+    private final int mMaxBatchSize;
+    private final LinkedHashMap<String, PeerProperties> mAddedPeers = new LinkedHashMap<>(); // Key: Normalized Bluetooth MAC address
+    private final LinkedHashMap<String, PeerProperties> mUpdatedPeers = new LinkedHashMap<>();
+    private final LinkedHashMap<String, PeerProperties> mRemovedPeers = new LinkedHashMap<>();
+    private FlushState mFlushState = FlushState.NOT_SCHEDULED;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param handler                     The handler the batches are delivered with.
+     * @param listener                    The listener.
+     * @param flushIntervalInMilliseconds The maximum time a change is held before delivering it.
+     * @param maxBatchSize                The number of pending changes, which causes the batch to
+     *                                    be delivered right away.
+     */
+    public PeerChangeBatcher(
+            Handler handler, Listener listener, long flushIntervalInMilliseconds, int maxBatchSize) {
+        if (handler == null || listener == null) {
+            throw new NullPointerException("Both the handler and the listener are required");
+        }
+
+        if (flushIntervalInMilliseconds < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid flush interval (" + flushIntervalInMilliseconds
+                    + " ms) or maximum batch size (" + maxBatchSize + ")");
+        }
+
+        mHandler = handler;
+        mListener = listener;
+        mFlushIntervalInMilliseconds = flushIntervalInMilliseconds;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return The number of pending (coalesced) peer changes.
+     */
+    public synchronized int getNumberOfPendingChanges() {
+        return mAddedPeers.size() + mUpdatedPeers.size() + mRemovedPeers.size();
+    }
+
+    /**
+     * From PeerModel.Listener
+     *
+     * @param peerProperties The properties of the added peer.
+     */
+    @Override
+    public synchronized void onPeerAdded(PeerProperties peerProperties) {
+        String key = PeerProperties.normalizeBluetoothMacAddress(peerProperties.getBluetoothMacAddress());
+
+        if (mRemovedPeers.remove(key) != null) {
+            // The peer was lost and found within the same batch
+            mUpdatedPeers.put(key, peerProperties);
+        } else {
+            mAddedPeers.put(key, peerProperties);
+        }
+
+        onChangeAdded();
+    }
+
+    /**
+     * From PeerModel.Listener
+     *
+     * @param peerProperties The properties of the updated peer.
+     */
+    @Override
+    public synchronized void onPeerUpdated(PeerProperties peerProperties) {
+        String key = PeerProperties.normalizeBluetoothMacAddress(peerProperties.getBluetoothMacAddress());
+
+        if (mAddedPeers.containsKey(key)) {
+            mAddedPeers.put(key, peerProperties);
+        } else {
+            mUpdatedPeers.put(key, peerProperties);
+        }
+
+        onChangeAdded();
+    }
+
+    /**
+     * From PeerModel.Listener
+     *
+     * @param peerProperties The properties of the expired and removed peer.
+     */
+    @Override
+    public synchronized void onPeerExpiredAndRemoved(PeerProperties peerProperties) {
+        String key = PeerProperties.normalizeBluetoothMacAddress(peerProperties.getBluetoothMacAddress());
+
+        if (mAddedPeers.remove(key) == null) {
+            mUpdatedPeers.remove(key);
+            mRemovedPeers.put(key, peerProperties);
+        }
+
+        onChangeAdded();
+    }
+
+    /**
+     * Delivers the pending changes, if any, to the listener right away using the calling thread.
+     */
+    public void flush() {
+        List<PeerProperties> addedPeers;
+        List<PeerProperties> updatedPeers;
+        List<PeerProperties> removedPeers;
+
+        synchronized (this) {
+            if (mFlushState != FlushState.NOT_SCHEDULED) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushState = FlushState.NOT_SCHEDULED;
+            }
+
+            if (getNumberOfPendingChanges() == 0) {
+                return;
+            }
+
+            addedPeers = new ArrayList<>(mAddedPeers.values());
+            updatedPeers = new ArrayList<>(mUpdatedPeers.values());
+            removedPeers = new ArrayList<>(mRemovedPeers.values());
+            mAddedPeers.clear();
+            mUpdatedPeers.clear();
+            mRemovedPeers.clear();
+        }
+
+        Log.v(TAG, "flush: " + addedPeers.size() + " added, " + updatedPeers.size() + " updated, "
+                + removedPeers.size() + " removed");
+        mListener.onPeersChanged(addedPeers, updatedPeers, removedPeers);
+    }
+
+    /**
+     * Drops the pending changes without delivering them.
+     */
+    public synchronized void clear() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mFlushState = FlushState.NOT_SCHEDULED;
+        mAddedPeers.clear();
+        mUpdatedPeers.clear();
+        mRemovedPeers.clear();
+    }
+
+    /**
+     * Schedules the delivery of the pending changes based on the number of them.
+     */
+    private void onChangeAdded() {
+        if (mFlushState != FlushState.SCHEDULED
+                && (getNumberOfPendingChanges() >= mMaxBatchSize || mFlushIntervalInMilliseconds == 0)) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.post(mFlushRunnable);
+            mFlushState = FlushState.SCHEDULED;
+        } else if (mFlushState == FlushState.NOT_SCHEDULED) {
+            mHandler.postDelayed(mFlushRunnable, mFlushIntervalInMilliseconds);
+            mFlushState = FlushState.SCHEDULED_WITH_DELAY;
+        }
+    }
+}
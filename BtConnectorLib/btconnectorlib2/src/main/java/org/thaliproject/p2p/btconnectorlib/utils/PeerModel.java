@@ -7,18 +7,63 @@ import android.os.CountDownTimer;
 import android.util.Log;
 import org.thaliproject.p2p.btconnectorlib.DiscoveryManagerSettings;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
-import java.sql.Timestamp;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A model for discovered peers.
  *
- * Peer expiration is based on a time elapsed since we last saw the peer.
+ * The peers are indexed by their (normalized) Bluetooth MAC address, which is the identity of a
+ * peer, and by their device address. Thus, both the lookups and the updates take constant time
+ * regardless of the number of peers.
+ *
+ * Peer expiration is based on a time elapsed since we last saw the peer. The peers are kept in
+ * the order they were last seen, which is also the order they expire in, since the expiration
+ * time is the same for all. Thus, when checking for expired peers, only the ones due are touched
+ * and the timer is set to fire when the least recently seen peer is about to expire.
+ *
+ * The current peers can also be read, without locking the model, from an immutable snapshot,
+ * which is replaced with a new version whenever a peer is added, updated or removed.
  */
 public class PeerModel {
+    /**
+     * An immutable snapshot of the discovered peers.
+     */
+    public static final class Snapshot {
+        private final long mVersion;
+        private final List<PeerProperties> mPeers;
+
+        private Snapshot(long version, List<PeerProperties> peers) {
+            mVersion = version;
+            mPeers = peers;
+        }
+
+        /**
+         * @return The version of this snapshot. A snapshot with a greater version is newer. If the
+         * version has not changed, the peers have not changed either.
+         */
+        public long getVersion() {
+            return mVersion;
+        }
+
+        /**
+         * @return An unmodifiable list of the discovered peers in no particular order.
+         */
+        public List<PeerProperties> getPeers() {
+            return mPeers;
+        }
+
+        @Override
+        public String toString() {
+            return "[version " + mVersion + ", " + mPeers.size() + " peer(s)]";
+        }
+    }
+
     public interface Listener {
         /**
          * Called when a new peer is added to the model.
@@ -41,10 +86,12 @@ public class PeerModel {
     }
 
     private static final String TAG = PeerModel.class.getName();
-    private final HashMap<PeerProperties, Timestamp> mDiscoveredPeers = new HashMap<>();
+    private final LinkedHashMap<String, DiscoveredPeer> mDiscoveredPeers = new LinkedHashMap<>(); // Key: Normalized Bluetooth MAC address, the least recently seen peer first
+    private final HashMap<String, String> mBluetoothMacAddressesByDeviceAddress = new HashMap<>(); // Both normalized
     private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
     private final DiscoveryManagerSettings mSettings;
     private CountDownTimer mCheckExpiredPeersTimer = null;
+    private volatile Snapshot mSnapshot = new Snapshot(0, Collections.<PeerProperties>emptyList());
 
     /**
      * Constructor.
@@ -87,7 +134,11 @@ public class PeerModel {
             mCheckExpiredPeersTimer = null;
         }
 
-        mDiscoveredPeers.clear();
+        synchronized (this) {
+            mDiscoveredPeers.clear();
+            mBluetoothMacAddressesByDeviceAddress.clear();
+            publishSnapshot();
+        }
     }
 
     /**
@@ -99,10 +150,26 @@ public class PeerModel {
      * settings, where the timer will retrieve it when reconstructed.
      */
     public void onPeerExpirationTimeChanged() {
-        if (mCheckExpiredPeersTimer != null) {
-            // Recreate the timer
-            createCheckPeerExpirationTimer();
-        }
+        // Recreate the timer, since the time when the next peer expires has changed
+        createCheckPeerExpirationTimer();
+    }
+
+    /**
+     * Returns the latest snapshot of the discovered peers. This method does not lock the model
+     * and thus, never blocks. Note that peers seen again without any new information do not
+     * change the snapshot.
+     * @return The latest snapshot.
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * A cheap way to check whether the peers have changed without getting the snapshot.
+     * @return The version of the latest snapshot.
+     */
+    public long getVersion() {
+        return mSnapshot.getVersion();
     }
 
     /**
@@ -111,18 +178,8 @@ public class PeerModel {
      * @return A peer properties instance if found, null if not.
      */
     public synchronized PeerProperties getDiscoveredPeerByBluetoothMacAddress(final String bluetoothMacAddress) {
-        PeerProperties foundPeerProperties = null;
-
-        for (PeerProperties peerProperties : mDiscoveredPeers.keySet()) {
-            if (peerProperties != null
-                    && peerProperties.getBluetoothMacAddress() != null
-                    && peerProperties.getBluetoothMacAddress().equals(bluetoothMacAddress)) {
-                foundPeerProperties = peerProperties;
-                break;
-            }
-        }
-
-        return foundPeerProperties;
+        DiscoveredPeer discoveredPeer = mDiscoveredPeers.get(normalizeAddress(bluetoothMacAddress));
+        return (discoveredPeer != null) ? discoveredPeer.mPeerProperties : null;
     }
 
     /**
@@ -131,18 +188,16 @@ public class PeerModel {
      * @return A peer properties instance if found, null if not.
      */
     public synchronized PeerProperties getDiscoveredPeerByDeviceAddress(final String deviceAddress) {
-        PeerProperties foundPeerProperties = null;
-
-        for (PeerProperties peerProperties : mDiscoveredPeers.keySet()) {
-            if (peerProperties != null
-                    && peerProperties.getDeviceAddress() != null
-                    && peerProperties.getDeviceAddress().equalsIgnoreCase(deviceAddress)) {
-                foundPeerProperties = peerProperties;
-                break;
-            }
-        }
+        String bluetoothMacAddress = mBluetoothMacAddressesByDeviceAddress.get(normalizeAddress(deviceAddress));
+        DiscoveredPeer discoveredPeer = (bluetoothMacAddress != null) ? mDiscoveredPeers.get(bluetoothMacAddress) : null;
+        return (discoveredPeer != null) ? discoveredPeer.mPeerProperties : null;
+    }
 
-        return foundPeerProperties;
+    /**
+     * @return The number of discovered peers.
+     */
+    public synchronized int getNumberOfDiscoveredPeers() {
+        return mDiscoveredPeers.size();
     }
 
     /**
@@ -154,20 +209,12 @@ public class PeerModel {
         PeerProperties oldPeerProperties = null;
 
         if (peerPropertiesToRemove != null) {
-            Iterator iterator = mDiscoveredPeers.entrySet().iterator();
-
-            while (iterator.hasNext()) {
-                HashMap.Entry entry = (HashMap.Entry) iterator.next();
-
-                if (entry != null) {
-                    PeerProperties peerProperties = (PeerProperties) entry.getKey();
+            DiscoveredPeer discoveredPeer =
+                    removeDiscoveredPeer(normalizeAddress(peerPropertiesToRemove.getBluetoothMacAddress()));
 
-                    if (peerProperties.equals(peerPropertiesToRemove)) {
-                        oldPeerProperties = peerProperties;
-                        iterator.remove();
-                        break;
-                    }
-                }
+            if (discoveredPeer != null) {
+                oldPeerProperties = discoveredPeer.mPeerProperties;
+                publishSnapshot();
             }
         }
 
@@ -180,9 +227,18 @@ public class PeerModel {
      */
     public void addOrUpdateDiscoveredPeer(PeerProperties peerPropertiesToAddOrUpdate) {
         synchronized (this) {
-            if (peerPropertiesToAddOrUpdate != null) {
+            final String bluetoothMacAddress = (peerPropertiesToAddOrUpdate != null)
+                    ? normalizeAddress(peerPropertiesToAddOrUpdate.getBluetoothMacAddress()) : null;
+
+            if (peerPropertiesToAddOrUpdate != null && bluetoothMacAddress == null) {
+                Log.e(TAG, "addOrUpdateDiscoveredPeer: The peer has no Bluetooth MAC address: " + peerPropertiesToAddOrUpdate);
+            } else if (peerPropertiesToAddOrUpdate != null) {
                 Log.v(TAG, "addOrUpdateDiscoveredPeer: " + peerPropertiesToAddOrUpdate.toString());
-                PeerProperties oldPeerProperties = removePeer(peerPropertiesToAddOrUpdate);
+                // Removing and putting back the peer moves it to the end of the expiration order
+                DiscoveredPeer discoveredPeer = removeDiscoveredPeer(bluetoothMacAddress);
+                PeerProperties oldPeerProperties = (discoveredPeer != null) ? discoveredPeer.mPeerProperties : null;
+                boolean peerUpdated = false;
+
                 if (oldPeerProperties != null) {
                     // This one was already in the list
 
@@ -195,24 +251,40 @@ public class PeerModel {
                     PeerProperties.copyMissingValuesFromOldPeer(oldPeerProperties, peerPropertiesToAddOrUpdate);
                     boolean hasMoreInfo = peerPropertiesToAddOrUpdate.hasMoreInformation(oldPeerProperties);
                     Log.d(TAG, "has more info: " + hasMoreInfo + ",  extra info differs: " + extraInformationDiffers);
-                    if (peerPropertiesToAddOrUpdate.hasMoreInformation(oldPeerProperties)
-                            || extraInformationDiffers) {
-                        // The new discovery result has new/more information than the old one
-                        Log.d(TAG, "Want to call onPeerUpdated. Listeners size = " + mListeners.size());
-                        for (Listener listener : mListeners) {
-                            listener.onPeerUpdated(peerPropertiesToAddOrUpdate);
-                        }
-                    }
+                    // The new discovery result may have new/more information than the old one
+                    peerUpdated = (hasMoreInfo || extraInformationDiffers);
+                }
+
+                if (discoveredPeer != null) {
+                    discoveredPeer.mPeerProperties = peerPropertiesToAddOrUpdate;
+                    discoveredPeer.mTimeLastSeenInMilliseconds = System.currentTimeMillis();
                 } else {
+                    discoveredPeer = new DiscoveredPeer(peerPropertiesToAddOrUpdate, System.currentTimeMillis());
+                }
+
+                mDiscoveredPeers.put(bluetoothMacAddress, discoveredPeer);
+                String deviceAddress = normalizeAddress(peerPropertiesToAddOrUpdate.getDeviceAddress());
+
+                if (deviceAddress != null) {
+                    mBluetoothMacAddressesByDeviceAddress.put(deviceAddress, bluetoothMacAddress);
+                }
+
+                // Publish the snapshot before notifying the listeners so that they see the change
+                if (oldPeerProperties == null) {
+                    publishSnapshot();
                     Log.d(TAG, "Want to call onPeerAdded. Listeners size = " + mListeners.size());
                     // The given peer was not in the list before, hence it is a new one
                     for (Listener listener : mListeners) {
                         listener.onPeerAdded(peerPropertiesToAddOrUpdate);
                     }
+                } else if (peerUpdated) {
+                    publishSnapshot();
+                    Log.d(TAG, "Want to call onPeerUpdated. Listeners size = " + mListeners.size());
+                    for (Listener listener : mListeners) {
+                        listener.onPeerUpdated(peerPropertiesToAddOrUpdate);
+                    }
                 }
 
-                mDiscoveredPeers.put(peerPropertiesToAddOrUpdate, new Timestamp(new Date().getTime()));
-
                 Log.v(TAG, "addOrUpdateDiscoveredPeer: "
                         + ((oldPeerProperties == null)
                             ? ("New peer, " + peerPropertiesToAddOrUpdate.toString() + ", added")
@@ -220,8 +292,8 @@ public class PeerModel {
                         + " - the peer count is " + mDiscoveredPeers.size());
 
                 if (mCheckExpiredPeersTimer == null) {
+                    // If the timer exists, it is already set to fire before this peer expires
                     createCheckPeerExpirationTimer();
-                    mCheckExpiredPeersTimer.start();
                 }
             }
         }
@@ -229,45 +301,105 @@ public class PeerModel {
 
     /**
      * Checks the list of peers for expired ones, removes them if found and notifies the listener.
+     * Since the peers are in the order they were last seen, the check stops at the first peer,
+     * which has not expired.
      */
     public synchronized void checkListForExpiredPeers() {
-        final Timestamp timestampNow = new Timestamp(new Date().getTime());
-        Iterator iterator = mDiscoveredPeers.entrySet().iterator();
-        CopyOnWriteArrayList<PeerProperties> expiredPeers = new CopyOnWriteArrayList<>();
+        final long peerExpirationInMilliseconds = mSettings.getPeerExpiration();
+        final long timeNow = System.currentTimeMillis();
+        Iterator<DiscoveredPeer> iterator = mDiscoveredPeers.values().iterator();
+        List<PeerProperties> expiredPeers = null;
 
-        // Find and copy expired peers to a separate list
+        // First remove all the expired peers from the list and only then notify the listener
         while (iterator.hasNext()) {
-            HashMap.Entry entry = (HashMap.Entry)iterator.next();
-            PeerProperties entryPeerProperties = (PeerProperties) entry.getKey();
-            Timestamp entryTimestamp = (Timestamp) entry.getValue();
+            DiscoveredPeer discoveredPeer = iterator.next();
+
+            if (timeNow - discoveredPeer.mTimeLastSeenInMilliseconds <= peerExpirationInMilliseconds) {
+                break;
+            }
 
-            //Log.v(TAG, "checkListForExpiredPeers: Peer " + entryPeerProperties.toString() + " is now "
-            //        + ((timestampNow.getTime() - entryTimestamp.getTime()) / 1000) + " seconds old");
+            PeerProperties expiredPeer = discoveredPeer.mPeerProperties;
+            Log.d(TAG, "checkListForExpiredPeers: Peer " + expiredPeer.toString() + " expired");
+            iterator.remove();
+            removeDeviceAddressIndex(expiredPeer, normalizeAddress(expiredPeer.getBluetoothMacAddress()));
 
-            if (timestampNow.getTime() - entryTimestamp.getTime() > mSettings.getPeerExpiration()) {
-                Log.d(TAG, "checkListForExpiredPeers: Peer " + entryPeerProperties.toString() + " expired");
-                expiredPeers.add(entryPeerProperties);
+            if (expiredPeers == null) {
+                expiredPeers = new ArrayList<>();
             }
+
+            expiredPeers.add(expiredPeer);
         }
 
-        if (expiredPeers.size() > 0) {
-            // First remove all the expired peers from the list and only then notify the listener
-            for (PeerProperties expiredPeer : expiredPeers) {
-                removePeer(expiredPeer);
-            }
+        if (expiredPeers != null) {
+            publishSnapshot();
 
             for (PeerProperties expiredPeer : expiredPeers) {
                 for (Listener listener : mListeners) {
                     listener.onPeerExpiredAndRemoved(expiredPeer);
                 }
             }
+        }
+    }
+
+    /**
+     * Replaces the snapshot with a new version containing the current peers. Must be called
+     * while holding the lock.
+     */
+    private void publishSnapshot() {
+        List<PeerProperties> peers = new ArrayList<>(mDiscoveredPeers.size());
 
-            expiredPeers.clear();
+        for (DiscoveredPeer discoveredPeer : mDiscoveredPeers.values()) {
+            peers.add(discoveredPeer.mPeerProperties);
         }
+
+        mSnapshot = new Snapshot(mSnapshot.getVersion() + 1, Collections.unmodifiableList(peers));
     }
 
     /**
-     * Creates the timer for checking peers expired (not seen for a while).
+     * Removes the peer with the given Bluetooth MAC address from the collection and the index.
+     * @param bluetoothMacAddress The normalized Bluetooth MAC address of the peer.
+     * @return The removed peer or null, if not found.
+     */
+    private DiscoveredPeer removeDiscoveredPeer(String bluetoothMacAddress) {
+        DiscoveredPeer discoveredPeer = (bluetoothMacAddress != null) ? mDiscoveredPeers.remove(bluetoothMacAddress) : null;
+
+        if (discoveredPeer != null) {
+            removeDeviceAddressIndex(discoveredPeer.mPeerProperties, bluetoothMacAddress);
+        }
+
+        return discoveredPeer;
+    }
+
+    /**
+     * Removes the device address of the given peer from the index, if it still points to the peer.
+     * @param peerProperties      The peer properties.
+     * @param bluetoothMacAddress The normalized Bluetooth MAC address of the peer.
+     */
+    private void removeDeviceAddressIndex(PeerProperties peerProperties, String bluetoothMacAddress) {
+        String deviceAddress = normalizeAddress(peerProperties.getDeviceAddress());
+
+        if (deviceAddress != null
+                && bluetoothMacAddress.equals(mBluetoothMacAddressesByDeviceAddress.get(deviceAddress))) {
+            mBluetoothMacAddressesByDeviceAddress.remove(deviceAddress);
+        }
+    }
+
+    /**
+     * Normalizes the given address so that it can be used as a key (the case of the hex digits
+     * and any surrounding whitespace do not matter). The device addresses are normalized the same
+     * way as the Bluetooth MAC addresses so that the keys agree with PeerProperties.equals().
+     * @param address The Bluetooth MAC address or the device address.
+     * @return The normalized address or null, if the given address is null or empty.
+     */
+    private static String normalizeAddress(String address) {
+        String normalizedAddress = PeerProperties.normalizeBluetoothMacAddress(address);
+        return (normalizedAddress == null || normalizedAddress.isEmpty()) ? null : normalizedAddress;
+    }
+
+    /**
+     * Creates and starts the timer for checking peers expired (not seen for a while). The timer
+     * fires, when the least recently seen peer expires. If there are no peers or if the peers
+     * never expire, no timer is needed.
      */
     private synchronized void createCheckPeerExpirationTimer() {
         if (mCheckExpiredPeersTimer != null) {
@@ -277,8 +409,12 @@ public class PeerModel {
 
         long peerExpirationInMilliseconds = mSettings.getPeerExpiration();
 
-        if (peerExpirationInMilliseconds > 0) {
-            long timerTimeout = peerExpirationInMilliseconds / 2;
+        if (peerExpirationInMilliseconds > 0 && !mDiscoveredPeers.isEmpty()) {
+            DiscoveredPeer leastRecentlySeenPeer = mDiscoveredPeers.values().iterator().next();
+
+            // The peer expires, when its age exceeds the expiration time, hence the extra millisecond
+            long timerTimeout = Math.max(leastRecentlySeenPeer.mTimeLastSeenInMilliseconds
+                    + peerExpirationInMilliseconds - System.currentTimeMillis(), 0) + 1;
 
             mCheckExpiredPeersTimer = new CountDownTimer(timerTimeout, timerTimeout) {
                 @Override
@@ -288,18 +424,35 @@ public class PeerModel {
 
                 @Override
                 public void onFinish() {
-                    checkListForExpiredPeers();
+                    synchronized (PeerModel.this) {
+                        if (mCheckExpiredPeersTimer != this) {
+                            // This timer was replaced
+                            return;
+                        }
 
-                    if (mDiscoveredPeers.size() == 0) {
-                        // No more peers, dispose this timer
-                        this.cancel();
                         mCheckExpiredPeersTimer = null;
-                    } else {
-                        // Restart the timer
-                        this.start();
+                        checkListForExpiredPeers();
+
+                        // Set the timer for the next peer to expire, if any
+                        createCheckPeerExpirationTimer();
                     }
                 }
             };
+
+            mCheckExpiredPeersTimer.start();
+        }
+    }
+
+    /**
+     * A discovered peer and the time it was last seen.
+     */
+    static class DiscoveredPeer {
+        PeerProperties mPeerProperties;
+        long mTimeLastSeenInMilliseconds;
+
+        DiscoveredPeer(PeerProperties peerProperties, long timeLastSeenInMilliseconds) {
+            mPeerProperties = peerProperties;
+            mTimeLastSeenInMilliseconds = timeLastSeenInMilliseconds;
         }
     }
 }
@@ -0,0 +1,437 @@
+/* Copyright (c) 2016 Microsoft Corporation. This software is licensed under the MIT License.
+ * See the license file delivered with this project for further information.
+ */
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes to an output stream asynchronously using a dedicated writer thread and a bounded queue.
+ * <p>
+ * Small writes queued while the previous write is in progress are coalesced into a single
+ * OutputStream.write() call. The number of queued bytes is tracked against a high and a low
+ * water mark: When the high water mark is reached, the writer is no longer writable and the
+ * listener is notified. Once the queue has drained to the low water mark, the writer becomes
+ * writable again. Writes exceeding the capacity of the queue are rejected.
+ */
+public class SocketWriter {
+    /**
+     * Writer listener.
+     */
+    public interface Listener {
+        /**
+         * Called when the given bytes were written successfully. Called from the writer thread.
+         *
+         * @param bytes The bytes written.
+         */
+        void onBytesWritten(byte[] bytes);
+
+        /**
+         * Called when the writer becomes writable or not writable. The callers should stop
+         * writing when not writable and continue once writable again.
+         *
+         * @param isWritable True, if the queue has drained to the low water mark. False, if the
+         *                   queue has reached the high water mark.
+         */
+        void onWritabilityChanged(boolean isWritable);
+    }
+
+    private static final String TAG = SocketWriter.class.getName();
+    public static final int DEFAULT_MAX_NUMBER_OF_QUEUED_BYTES = 256 * 1024;
+    public static final int DEFAULT_HIGH_WATER_MARK_IN_BYTES = 64 * 1024;
+    public static final int DEFAULT_LOW_WATER_MARK_IN_BYTES = 16 * 1024;
+    public static final int DEFAULT_MAX_BATCH_SIZE_IN_BYTES = 4 * 1024;
+    private final OutputStream mOutputStream;
+    private final Listener mListener;
+    private final String mName;
+    private final int mMaxNumberOfQueuedBytes;
+    private final int mHighWaterMarkInBytes;
+    private final int mLowWaterMarkInBytes;
+    private final byte[] mBatchBuffer;
+    private final ArrayDeque<WriteFuture> mQueue = new ArrayDeque<WriteFuture>();
+    private int mNumberOfQueuedBytes = 0;
+    private boolean mIsWritable = true;
+    private boolean mIsClosed = false;
+    private Thread mWriterThread = null;
+    private volatile ConnectionMetrics mConnectionMetrics = null;
+
+    /**
+     * Constructor. Uses the default queue capacity, water marks and batch size.
+     *
+     * @param outputStream The output stream to write to.
+     * @param listener     The listener.
+     * @param name         The name of the writer thread.
+     */
+    public SocketWriter(OutputStream outputStream, Listener listener, String name) {
+        this(outputStream, listener, name, DEFAULT_MAX_NUMBER_OF_QUEUED_BYTES,
+                DEFAULT_HIGH_WATER_MARK_IN_BYTES, DEFAULT_LOW_WATER_MARK_IN_BYTES,
+                DEFAULT_MAX_BATCH_SIZE_IN_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param outputStream           The output stream to write to.
+     * @param listener               The listener.
+     * @param name                   The name of the writer thread.
+     * @param maxNumberOfQueuedBytes The capacity of the queue in bytes.
+     * @param highWaterMarkInBytes   The number of queued bytes at which the writer is no longer writable.
+     * @param lowWaterMarkInBytes    The number of queued bytes at which the writer is writable again.
+     * @param maxBatchSizeInBytes    The maximum number of bytes coalesced into a single write.
+     * @throws NullPointerException     Thrown, if either the output stream or the listener is null.
+     * @throws IllegalArgumentException Thrown, if the sizes are not positive or the water marks
+     *                                  are not in order.
+     */
+    public SocketWriter(OutputStream outputStream, Listener listener, String name,
+                        int maxNumberOfQueuedBytes, int highWaterMarkInBytes,
+                        int lowWaterMarkInBytes, int maxBatchSizeInBytes) {
+        if (outputStream == null || listener == null) {
+            throw new NullPointerException("Either the output stream or the listener instance is null");
+        }
+
+        if (maxBatchSizeInBytes <= 0 || lowWaterMarkInBytes < 0
+                || lowWaterMarkInBytes >= highWaterMarkInBytes
+                || highWaterMarkInBytes > maxNumberOfQueuedBytes) {
+            throw new IllegalArgumentException("Invalid queue capacity, water marks or batch size");
+        }
+
+        mOutputStream = outputStream;
+        mListener = listener;
+        mName = name;
+        mMaxNumberOfQueuedBytes = maxNumberOfQueuedBytes;
+        mHighWaterMarkInBytes = highWaterMarkInBytes;
+        mLowWaterMarkInBytes = lowWaterMarkInBytes;
+        mBatchBuffer = new byte[maxBatchSizeInBytes];
+    }
+
+    /**
+     * Sets the metrics to record the writes to.
+     *
+     * @param connectionMetrics The connection metrics.
+     */
+    void setConnectionMetrics(ConnectionMetrics connectionMetrics) {
+        mConnectionMetrics = connectionMetrics;
+    }
+
+    /**
+     * Creates a completion handle of a write that has already failed.
+     *
+     * @return A completed handle with result false.
+     */
+    public static Future<Boolean> createFailedWrite() {
+        WriteFuture writeFuture = new WriteFuture(null, new byte[0]);
+        writeFuture.complete(false);
+        return writeFuture;
+    }
+
+    /**
+     * Queues the given bytes to be written. Does not block.
+     *
+     * @param bytes The bytes to write. The array must not be modified after calling this method.
+     * @return A handle for waiting the completion of the write. The result is true, if the bytes
+     * were written successfully, and false, if the write failed or was rejected.
+     */
+    public Future<Boolean> write(byte[] bytes) {
+        final WriteFuture writeFuture = new WriteFuture(this, bytes);
+        boolean writabilityChanged = false;
+
+        synchronized (this) {
+            if (mIsClosed) {
+                Log.e(TAG, "write: Already closed");
+                writeFuture.complete(false);
+                return writeFuture;
+            }
+
+            if (mNumberOfQueuedBytes + bytes.length > mMaxNumberOfQueuedBytes) {
+                Log.e(TAG, "write: The queue is full, rejecting " + bytes.length + " bytes ("
+                        + mNumberOfQueuedBytes + " bytes queued)");
+                writeFuture.complete(false);
+                return writeFuture;
+            }
+
+            mQueue.add(writeFuture);
+            mNumberOfQueuedBytes += bytes.length;
+
+            if (mIsWritable && mNumberOfQueuedBytes >= mHighWaterMarkInBytes) {
+                mIsWritable = false;
+                writabilityChanged = true;
+            }
+
+            if (mWriterThread == null) {
+                mWriterThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeQueuedBytes();
+                    }
+                }, mName);
+                mWriterThread.setDaemon(true);
+                mWriterThread.start();
+            }
+
+            notifyAll();
+        }
+
+        if (writabilityChanged) {
+            mListener.onWritabilityChanged(false);
+        }
+
+        return writeFuture;
+    }
+
+    /**
+     * @return The number of bytes waiting to be written.
+     */
+    public synchronized int getNumberOfQueuedBytes() {
+        return mNumberOfQueuedBytes;
+    }
+
+    /**
+     * @return True, if the high water mark has not been reached. False otherwise.
+     */
+    public synchronized boolean isWritable() {
+        return mIsWritable;
+    }
+
+    /**
+     * Stops the writer thread and fails all the queued writes. Does not close the output stream.
+     */
+    public void close() {
+        List<WriteFuture> failedWrites;
+
+        synchronized (this) {
+            if (mIsClosed) {
+                return;
+            }
+
+            mIsClosed = true;
+            failedWrites = new ArrayList<WriteFuture>(mQueue);
+            mQueue.clear();
+            mNumberOfQueuedBytes = 0;
+            notifyAll();
+        }
+
+        for (WriteFuture writeFuture : failedWrites) {
+            writeFuture.complete(false);
+        }
+    }
+
+    /**
+     * The loop of the writer thread. Takes as many queued writes as fit in a batch and writes them
+     * with a single call.
+     */
+    private void writeQueuedBytes() {
+        final List<WriteFuture> batch = new ArrayList<WriteFuture>();
+
+        while (true) {
+            int batchSizeInBytes = 0;
+
+            synchronized (this) {
+                while (mQueue.isEmpty() && !mIsClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Log.w(TAG, "writeQueuedBytes: Interrupted: " + e.getMessage());
+                    }
+                }
+
+                if (mIsClosed) {
+                    break;
+                }
+
+                do {
+                    WriteFuture writeFuture = mQueue.poll();
+                    batch.add(writeFuture);
+                    batchSizeInBytes += writeFuture.mBytes.length;
+                } while (!mQueue.isEmpty()
+                        && batchSizeInBytes + mQueue.peek().mBytes.length <= mBatchBuffer.length);
+            }
+
+            final long timeStartedInNanoseconds = System.nanoTime();
+            boolean wasSuccessful = write(batch, batchSizeInBytes);
+            final ConnectionMetrics connectionMetrics = mConnectionMetrics;
+
+            if (wasSuccessful && connectionMetrics != null) {
+                final long timeCompletedInNanoseconds = System.nanoTime();
+                connectionMetrics.onWriteOperation(
+                        batchSizeInBytes, timeCompletedInNanoseconds - timeStartedInNanoseconds);
+
+                for (WriteFuture writeFuture : batch) {
+                    connectionMetrics.onWriteCompleted(
+                            timeCompletedInNanoseconds - writeFuture.mTimeQueuedInNanoseconds);
+                }
+            }
+            boolean writabilityChanged = false;
+
+            synchronized (this) {
+                mNumberOfQueuedBytes = Math.max(0, mNumberOfQueuedBytes - batchSizeInBytes);
+
+                if (!mIsWritable && mNumberOfQueuedBytes <= mLowWaterMarkInBytes) {
+                    mIsWritable = true;
+                    writabilityChanged = true;
+                }
+            }
+
+            if (wasSuccessful && writabilityChanged) {
+                mListener.onWritabilityChanged(true);
+            }
+
+            for (WriteFuture writeFuture : batch) {
+                if (wasSuccessful) {
+                    mListener.onBytesWritten(writeFuture.mBytes);
+                }
+
+                writeFuture.complete(wasSuccessful);
+            }
+
+            batch.clear();
+
+            if (!wasSuccessful) {
+                close();
+                break;
+            }
+        }
+
+        Log.d(TAG, "writeQueuedBytes: Exiting writer thread " + mName);
+    }
+
+    /**
+     * Writes the given batch. A single write is written as is; multiple writes are first copied
+     * to the batch buffer.
+     *
+     * @return True, if successful. False otherwise.
+     */
+    private boolean write(List<WriteFuture> batch, int batchSizeInBytes) {
+        try {
+            synchronized (mOutputStream) {
+                if (batch.size() == 1) {
+                    mOutputStream.write(batch.get(0).mBytes);
+                } else {
+                    int offset = 0;
+
+                    for (WriteFuture writeFuture : batch) {
+                        System.arraycopy(writeFuture.mBytes, 0, mBatchBuffer, offset, writeFuture.mBytes.length);
+                        offset += writeFuture.mBytes.length;
+                    }
+
+                    mOutputStream.write(mBatchBuffer, 0, batchSizeInBytes);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "write: Failed to write to output stream: " + e.getMessage(), e);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes the given write from the queue, if it has not been taken by the writer thread yet.
+     * Notifies the listener, if the queue drained to the low water mark.
+     *
+     * @return True, if removed. False otherwise.
+     */
+    private boolean remove(WriteFuture writeFuture) {
+        boolean writabilityChanged = false;
+
+        synchronized (this) {
+            if (!mQueue.remove(writeFuture)) {
+                return false;
+            }
+
+            mNumberOfQueuedBytes = Math.max(0, mNumberOfQueuedBytes - writeFuture.mBytes.length);
+
+            if (!mIsWritable && mNumberOfQueuedBytes <= mLowWaterMarkInBytes) {
+                mIsWritable = true;
+                writabilityChanged = true;
+            }
+        }
+
+        if (writabilityChanged) {
+            mListener.onWritabilityChanged(true);
+        }
+
+        return true;
+    }
+
+    /**
+     * The completion handle of a single write.
+     */
+    private static class WriteFuture implements Future<Boolean> {
+        private final SocketWriter mSocketWriter;
+        private final byte[] mBytes;
+        private final long mTimeQueuedInNanoseconds = System.nanoTime();
+        private final CountDownLatch mCompletedLatch = new CountDownLatch(1);
+        private volatile boolean mResult = false;
+        private volatile boolean mIsCancelled = false;
+
+        WriteFuture(SocketWriter socketWriter, byte[] bytes) {
+            mSocketWriter = socketWriter;
+            mBytes = bytes;
+        }
+
+        void complete(boolean result) {
+            mResult = result;
+            mCompletedLatch.countDown();
+        }
+
+        /**
+         * Cancels the write, if it is still queued. A write in progress cannot be cancelled.
+         */
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (mSocketWriter != null && mSocketWriter.remove(this)) {
+                mIsCancelled = true;
+                complete(false);
+                return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mCompletedLatch.getCount() == 0;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException, ExecutionException {
+            mCompletedLatch.await();
+            return getResult();
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mCompletedLatch.await(timeout, unit)) {
+                throw new TimeoutException("The write did not complete in time");
+            }
+
+            return getResult();
+        }
+
+        private Boolean getResult() {
+            if (mIsCancelled) {
+                throw new CancellationException("The write was cancelled");
+            }
+
+            return mResult;
+        }
+    }
+}
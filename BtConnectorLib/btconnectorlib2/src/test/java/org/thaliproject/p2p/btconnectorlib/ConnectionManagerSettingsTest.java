@@ -324,18 +324,134 @@ public class ConnectionManagerSettingsTest {
         assertThat("Apply count is not incremented", applyCnt, is(equalTo(2)));
     }
 
+    @Test
+    public void testPersistentServerSocket() throws Exception {
+        // default value
+        assertThat("The default value of the persistent server socket is set",
+                mConnectionManagerSettings.getPersistentServerSocket(),
+                is(ConnectionManagerSettings.DEFAULT_PERSISTENT_SERVER_SOCKET));
+
+        mConnectionManagerSettings.setPersistentServerSocket(true);
+        assertThat("The persistent server socket is properly set (true)",
+                mConnectionManagerSettings.getPersistentServerSocket(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("persistent_server_socket"),
+                is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        // set the same value second time
+        mConnectionManagerSettings.setPersistentServerSocket(true);
+        assertThat("Set the same value is not possible",
+                mConnectionManagerSettings.getPersistentServerSocket(), is(true));
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setPersistentServerSocket(false);
+        assertThat("The persistent server socket is properly set (false)",
+                mConnectionManagerSettings.getPersistentServerSocket(), is(false));
+        assertThat((Boolean) mSharedPreferencesMap.get("persistent_server_socket"),
+                is(false));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
+    @Test
+    public void testHandshakeTimeout() throws Exception {
+
+        assertThat("Default handshake timeout is set", mConnectionManagerSettings.getHandshakeTimeout(),
+                is(equalTo(ConnectionManagerSettings.DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS)));
+        mConnectionManagerSettings.setHandshakeTimeout(100L);
+        assertThat(mConnectionManagerSettings.getHandshakeTimeout(), is(equalTo(100L)));
+        assertThat((Long) mSharedPreferencesMap.get("handshake_timeout"), is(equalTo(100L)));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+        mConnectionManagerSettings.setHandshakeTimeout(100L);
+        assertThat("The timeout should not change",
+                mConnectionManagerSettings.getHandshakeTimeout(), is(equalTo(100L)));
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+    }
+
+    @Test
+    public void testMaxNumberOfPendingIncomingHandshakes() throws Exception {
+
+        assertThat("Default max number of pending incoming handshakes is set",
+                mConnectionManagerSettings.getMaxNumberOfPendingIncomingHandshakes(),
+                is(equalTo(ConnectionManagerSettings.DEFAULT_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES)));
+
+        boolean wasSet = mConnectionManagerSettings.setMaxNumberOfPendingIncomingHandshakes(3);
+        assertThat("The value is set", wasSet, is(true));
+        assertThat(mConnectionManagerSettings.getMaxNumberOfPendingIncomingHandshakes(), is(equalTo(3)));
+        assertThat((Integer) mSharedPreferencesMap.get("max_number_of_pending_incoming_handshakes"),
+                is(equalTo(3)));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        wasSet = mConnectionManagerSettings.setMaxNumberOfPendingIncomingHandshakes(3);
+        assertThat("Set the same value is not possible", wasSet, is(false));
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        wasSet = mConnectionManagerSettings.setMaxNumberOfPendingIncomingHandshakes(0);
+        assertThat("Zero is not a valid value", wasSet, is(false));
+        assertThat(mConnectionManagerSettings.getMaxNumberOfPendingIncomingHandshakes(), is(equalTo(3)));
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+    }
+
+    @Test
+    public void testBinaryHandshake() throws Exception {
+        assertThat("The default value of the binary handshake is set",
+                mConnectionManagerSettings.getBinaryHandshake(),
+                is(ConnectionManagerSettings.DEFAULT_BINARY_HANDSHAKE));
+
+        mConnectionManagerSettings.setBinaryHandshake(true);
+        assertThat("The binary handshake is properly set",
+                mConnectionManagerSettings.getBinaryHandshake(), is(true));
+        assertThat((Boolean) mSharedPreferencesMap.get("binary_handshake"), is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        mConnectionManagerSettings.setBinaryHandshake(true);
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+    }
+
+    @Test
+    public void testMaxNumberOfConcurrentConnectionAttempts() throws Exception {
+        assertThat("Default max number of concurrent connection attempts is set",
+                mConnectionManagerSettings.getMaxNumberOfConcurrentConnectionAttempts(),
+                is(equalTo(ConnectionManagerSettings.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS)));
+
+        boolean wasSet = mConnectionManagerSettings.setMaxNumberOfConcurrentConnectionAttempts(3);
+        assertThat("The value is set", wasSet, is(true));
+        assertThat(mConnectionManagerSettings.getMaxNumberOfConcurrentConnectionAttempts(), is(equalTo(3)));
+        assertThat((Integer) mSharedPreferencesMap.get("max_number_of_concurrent_connection_attempts"),
+                is(equalTo(3)));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(1)));
+
+        wasSet = mConnectionManagerSettings.setMaxNumberOfConcurrentConnectionAttempts(-1);
+        assertThat("A negative value is not valid", wasSet, is(false));
+        assertThat(mConnectionManagerSettings.getMaxNumberOfConcurrentConnectionAttempts(), is(equalTo(3)));
+        assertThat("Apply count is not incremented", applyCnt, is(equalTo(1)));
+
+        wasSet = mConnectionManagerSettings.setMaxNumberOfConcurrentConnectionAttempts(0);
+        assertThat("Zero (no limit) is a valid value", wasSet, is(true));
+        assertThat("Apply count is incremented", applyCnt, is(equalTo(2)));
+    }
+
     @Test
     public void testLoad() throws Exception {
         mConnectionManagerSettings.load();
 
         verify(mMockSharedPreferences, atLeast(1))
                 .getBoolean(contains("require_handshake"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("persistent_server_socket"), anyBoolean());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getBoolean(contains("binary_handshake"), anyBoolean());
         verify(mMockSharedPreferences, atLeast(1))
                 .getLong(contains("connection_timeout"), anyInt());
         verify(mMockSharedPreferences, atLeast(1))
                 .getInt(contains("port_number"), anyInt());
         verify(mMockSharedPreferences, atLeast(1))
                 .getInt(contains("max_number_of_connection_attempt_retries"), anyInt());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getLong(contains("handshake_timeout"), anyInt());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getInt(contains("max_number_of_pending_incoming_handshakes"), anyInt());
+        verify(mMockSharedPreferences, atLeast(1))
+                .getInt(contains("max_number_of_concurrent_connection_attempts"), anyInt());
     }
 
     @Test
@@ -356,5 +472,24 @@ public class ConnectionManagerSettingsTest {
         assertThat("Require a handshake protocol is properly set to default",
                 mConnectionManagerSettings.getHandshakeRequired(),
                 is(BluetoothConnector.DEFAULT_HANDSHAKE_REQUIRED));
+
+        assertThat("Persistent server socket is properly set to default",
+                mConnectionManagerSettings.getPersistentServerSocket(),
+                is(BluetoothConnector.DEFAULT_PERSISTENT_SERVER_SOCKET));
+
+        assertThat("Default handshake timeout", mConnectionManagerSettings.getHandshakeTimeout(),
+                is(equalTo(BluetoothConnector.DEFAULT_HANDSHAKE_TIMEOUT_IN_MILLISECONDS)));
+
+        assertThat("Default max number of pending incoming handshakes",
+                mConnectionManagerSettings.getMaxNumberOfPendingIncomingHandshakes(),
+                is(equalTo(BluetoothConnector.DEFAULT_MAX_NUMBER_OF_PENDING_INCOMING_HANDSHAKES)));
+
+        assertThat("Binary handshake is properly set to default",
+                mConnectionManagerSettings.getBinaryHandshake(),
+                is(BluetoothConnector.DEFAULT_BINARY_HANDSHAKE));
+
+        assertThat("Default max number of concurrent connection attempts",
+                mConnectionManagerSettings.getMaxNumberOfConcurrentConnectionAttempts(),
+                is(equalTo(BluetoothConnector.DEFAULT_MAX_NUMBER_OF_CONCURRENT_CONNECTION_ATTEMPTS)));
     }
 }
\ No newline at end of file
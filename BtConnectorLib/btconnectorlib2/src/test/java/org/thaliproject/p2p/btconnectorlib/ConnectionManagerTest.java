@@ -19,6 +19,8 @@ import org.mockito.runners.MockitoJUnitRunner;
 import org.mockito.stubbing.Answer;
 import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.BluetoothConnector;
 import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.BluetoothManager;
+import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.ConnectionCircuitBreaker;
+import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.ConnectionPool;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
@@ -29,6 +31,8 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.atLeastOnce;
@@ -169,7 +173,7 @@ public class ConnectionManagerTest {
         when(mMockPeerProperties.getBluetoothMacAddress()).thenReturn("01:02:03:04:05:06 ");
         when(mMockBluetoothManager.getRemoteDevice(anyString())).thenReturn(mBluetoothDevice);
         when(mMockBluetoothConnector.connect(isA(BluetoothDevice.class),
-                isA(PeerProperties.class))).thenReturn(true);
+                isA(PeerProperties.class), any(byte[].class), anyInt())).thenReturn(true);
         Field field = cm.getClass().getDeclaredField("mBluetoothConnector");
         field.setAccessible(true);
         Field modifiersField = Field.class.getDeclaredField("modifiers");
@@ -270,11 +274,11 @@ public class ConnectionManagerTest {
 
         when(mMockBluetoothManager.getRemoteDevice(anyString())).thenReturn(mMockBluetoothDevice);
         when(mMockBluetoothConnector.connect(
-                isA(BluetoothDevice.class), isA(PeerProperties.class))).thenReturn(true);
+                isA(BluetoothDevice.class), isA(PeerProperties.class), any(byte[].class), anyInt())).thenReturn(true);
         assertThat("Returns true if connected",
                 connectionManager.connect(mMockPeerProperties), is(true));
         when(mMockBluetoothConnector.connect(
-                isA(BluetoothDevice.class), isA(PeerProperties.class))).thenReturn(false);
+                isA(BluetoothDevice.class), isA(PeerProperties.class), any(byte[].class), anyInt())).thenReturn(false);
         assertThat("Returns false if cannot connect",
                 connectionManager.connect(mMockPeerProperties), is(false));
 
@@ -282,6 +286,93 @@ public class ConnectionManagerTest {
                 connectionManager.connect(null), is(false));
     }
 
+    @Test
+    public void testConnect_circuitOpen() throws Exception {
+        Field handlerField = connectionManager.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(connectionManager, mHander);
+
+        when(mMockPeerProperties.getBluetoothMacAddress()).thenReturn("01:02:03:04:05:06");
+        when(mMockBluetoothManager.getRemoteDevice(anyString())).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothConnector.connect(
+                isA(BluetoothDevice.class), isA(PeerProperties.class), any(byte[].class), anyInt())).thenReturn(true);
+
+        for (int i = 0; i < ConnectionCircuitBreaker.DEFAULT_FAILURE_THRESHOLD; i++) {
+            assertThat("The circuit is closed until the threshold is reached",
+                    connectionManager.getCircuitState(mMockPeerProperties), is(ConnectionCircuitBreaker.State.CLOSED));
+            connectionManager.onConnectionFailed(mMockPeerProperties, "message");
+        }
+
+        assertThat("The circuit is open", connectionManager.getCircuitState(mMockPeerProperties),
+                is(ConnectionCircuitBreaker.State.OPEN));
+        assertThat("Returns false if the circuit is open",
+                connectionManager.connect(mMockPeerProperties), is(false));
+        verify(mMockBluetoothConnector, never()).connect(
+                isA(BluetoothDevice.class), isA(PeerProperties.class), any(byte[].class), anyInt());
+
+        connectionManager.onConnected(bluetoothSocket, true, mMockPeerProperties, null);
+
+        assertThat("A connection closes the circuit", connectionManager.getCircuitState(mMockPeerProperties),
+                is(ConnectionCircuitBreaker.State.CLOSED));
+        assertThat("Returns true after the circuit is closed",
+                connectionManager.connect(mMockPeerProperties), is(true));
+    }
+
+    @Test
+    public void testOnConnectionAttemptCancelled() throws Exception {
+        Field handlerField = connectionManager.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(connectionManager, mHander);
+
+        ConnectionCircuitBreaker connectionCircuitBreaker = connectionManager.getConnectionCircuitBreaker();
+        connectionCircuitBreaker.setBackoff(0, 0);
+        when(mMockPeerProperties.getBluetoothMacAddress()).thenReturn("01:02:03:04:05:06");
+        when(mMockBluetoothManager.getRemoteDevice(anyString())).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothConnector.connect(
+                isA(BluetoothDevice.class), isA(PeerProperties.class), any(byte[].class), anyInt())).thenReturn(true);
+
+        for (int i = 0; i < ConnectionCircuitBreaker.DEFAULT_FAILURE_THRESHOLD; i++) {
+            connectionManager.onConnectionFailed(mMockPeerProperties, "message");
+        }
+
+        assertThat("The trial attempt is started", connectionManager.connect(mMockPeerProperties), is(true));
+        assertThat("Returns false while the trial attempt is running",
+                connectionManager.connect(mMockPeerProperties), is(false));
+
+        connectionManager.onConnectionAttemptCancelled(mMockPeerProperties);
+
+        assertThat("Returns true, since the cancelled trial attempt frees the slot",
+                connectionManager.connect(mMockPeerProperties), is(true));
+    }
+
+    @Test
+    public void testConnect_pooled() throws Exception {
+        Field handlerField = connectionManager.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(connectionManager, mHander);
+
+        ConnectionPool connectionPool = new ConnectionPool(10000, 1);
+        connectionManager.setConnectionPool(connectionPool);
+        when(mMockPeerProperties.getBluetoothMacAddress()).thenReturn("01:02:03:04:05:06");
+        when(bluetoothSocket.isConnected()).thenReturn(true);
+
+        connectionManager.onConnected(bluetoothSocket, true, mMockPeerProperties, null);
+
+        assertThat("The sockets handed out are tracked", connectionPool.getNumberOfLeasedConnections(), is(1));
+        assertThat(connectionPool.release(bluetoothSocket), is(true));
+        connectionManager.getConnectionCircuitBreaker().onConnectionFailed("01:02:03:04:05:06");
+        assertThat("Returns true if a pooled connection is reused",
+                connectionManager.connect(mMockPeerProperties), is(true));
+        assertThat("The reused connection is tracked once", connectionPool.getNumberOfLeasedConnections(), is(1));
+        assertThat("The reused connection is not recorded as a new connection", connectionManager
+                .getConnectionCircuitBreaker().getNumberOfConsecutiveFailures("01:02:03:04:05:06"), is(1));
+        verify(mMockBluetoothConnector, never()).connect(
+                isA(BluetoothDevice.class), isA(PeerProperties.class), any(byte[].class), anyInt());
+        verify(mHander, times(2)).post(isA(Runnable.class));
+        assertThat(connectionPool.getNumberOfHits(), is(1L));
+        connectionPool.close();
+    }
+
     @Test
     public void testCancelConnectionAttempt() throws Exception {
 
@@ -516,7 +607,7 @@ public class ConnectionManagerTest {
         handlerField.setAccessible(true);
         handlerField.set(connectionManager, mHander);
 
-        connectionManager.onConnected(bluetoothSocket, true, mMockPeerProperties);
+        connectionManager.onConnected(bluetoothSocket, true, mMockPeerProperties, null);
 
         verify(mHander, atLeastOnce())
                 .post(isA(Runnable.class));
@@ -23,11 +23,14 @@ import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.BluetoothManager;
 import org.thaliproject.p2p.btconnectorlib.internal.bluetooth.le.BlePeerDiscoverer;
 import org.thaliproject.p2p.btconnectorlib.internal.wifi.WifiDirectManager;
 import org.thaliproject.p2p.btconnectorlib.internal.wifi.WifiPeerDiscoverer;
+import org.thaliproject.p2p.btconnectorlib.utils.PeerChangeBatcher;
 import org.thaliproject.p2p.btconnectorlib.utils.PeerModel;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.UUID;
 
 import static org.hamcrest.CoreMatchers.equalTo;
@@ -35,12 +38,15 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Mockito.atLeastOnce;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -1819,4 +1825,31 @@ public class DiscoveryManagerTest {
                 true, true);
         checker.check(DiscoveryManager.DiscoveryManagerState.PROVIDING_BLUETOOTH_MAC_ADDRESS, true, true);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSetPeerChangesListener() throws Exception {
+        Field handlerField = discoveryManager.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(discoveryManager, mHandler);
+        PeerChangeBatcher.Listener mockPeerChangesListener = mock(PeerChangeBatcher.Listener.class);
+        PeerProperties peerProperties = new PeerProperties("00:11:22:33:44:55");
+        List<PeerProperties> noPeers = Collections.emptyList();
+
+        discoveryManager.setPeerChangesListener(mockPeerChangesListener, 1000, 10);
+        discoveryManager.onPeerAdded(peerProperties);
+
+        verify(mHandler, never()).post(isA(Runnable.class));
+        verify(mHandler, times(1)).postDelayed(isA(Runnable.class), eq(1000L));
+
+        discoveryManager.onPeersChanged(Collections.singletonList(peerProperties), noPeers, noPeers);
+
+        verify(mockPeerChangesListener, times(1))
+                .onPeersChanged(Collections.singletonList(peerProperties), noPeers, noPeers);
+        verify(mMockManagerListener, times(1)).onPeerDiscovered(peerProperties);
+
+        discoveryManager.setPeerChangesListener(null);
+        discoveryManager.onPeerUpdated(peerProperties);
+
+        verify(mHandler, atLeastOnce()).post(isA(Runnable.class));
+    }
+}
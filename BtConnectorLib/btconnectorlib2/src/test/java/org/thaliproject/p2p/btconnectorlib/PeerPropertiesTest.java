@@ -171,6 +171,15 @@ public class PeerPropertiesTest {
         assertThat(pp2.equals(pp3), is(false));
     }
 
+    @Test
+    public void testEquals_CaseInsensitive() {
+        PeerProperties pp1 = new PeerProperties("0a:1b:2c:3d:4e:5f");
+        PeerProperties pp2 = new PeerProperties("0A:1B:2C:3D:4E:5F");
+        assertThat("The case of the address does not matter", pp1.equals(pp2), is(true));
+        assertThat("The hash codes agree with equals()", pp1.hashCode(), is(pp2.hashCode()));
+        assertThat(PeerProperties.normalizeBluetoothMacAddress(" 0a:1b:2c:3d:4e:5f "), is("0A:1B:2C:3D:4E:5F"));
+    }
+
     @Test
     public void testToString() {
         assertThat(bluetoothPeerProperties.toString(), is(equalTo("[" + TEST_MAC + " " + TEST_EXTRA_INFO + "]")));
@@ -6,7 +6,6 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.os.CountDownTimer;
 import android.os.Handler;
 
 import org.junit.After;
@@ -20,20 +19,28 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
 
 import java.lang.reflect.Field;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
-import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -62,8 +69,6 @@ public class BluetoothConnectorTest {
     @Mock
     PeerProperties mMockPeerProperties;
     @Mock
-    CountDownTimer mMockConnectionTimeoutTimer;
-    @Mock
     BluetoothClientThread mMockBluetoothClientThread;
     @Mock
     BluetoothServerThread mMockServerThread;
@@ -117,55 +122,101 @@ public class BluetoothConnectorTest {
         Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
         clientThreadsField.setAccessible(true);
         CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
 
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
+        // No client threads added
+        mBluetoothConnector.setConnectionTimeout(1000);
 
-        mBluetoothConnector.setConnectionTimeout(
-                BluetoothConnector.DEFAULT_CONNECTION_TIMEOUT_IN_MILLISECONDS);
-        assertThat("No timeout is set If the given value is the same as the current one",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+        assertThat("No timeout is set If the client threads is list is empty",
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(0));
+
+        // With client threads added
+        myClientThreads.add(mMockBluetoothClientThread);
+        mBluetoothConnector.setConnectionTimeout(1500);
+
+        assertThat("The timeout is set for the running connection attempt",
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(1));
+
+        mBluetoothConnector.setConnectionTimeout(2000);
+
+        assertThat("The timeout is rescheduled, not added",
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(1));
 
         mBluetoothConnector.setConnectionTimeout(-1);
         assertThat("No timeout is set If the given value is negative",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(0));
 
+        mBluetoothConnector.setConnectionTimeout(1500);
         mBluetoothConnector.setConnectionTimeout(0);
         assertThat("No timeout is set If the given value is 0",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(0));
+    }
 
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+    @Test
+    public void testConnectionTimeout() throws Exception {
+        final long connectionTimeoutInMilliseconds = 3000;
+        final long elapsedTimeInMilliseconds = 1000;
 
-        // No client threads added
-        mBluetoothConnector.setConnectionTimeout(1000);
+        Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(mBluetoothConnector, mMockHandler);
 
-        assertThat("No timeout is set If the client threads is list is empty",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
 
-        // check if the timer is canceled
-        verify(mMockConnectionTimeoutTimer, times(1))
-                .cancel();
+        when(mMockBluetoothClientThread.getPeerProperties()).thenReturn(mMockPeerProperties);
 
-        reset(mMockConnectionTimeoutTimer);
+        assertThat("Nothing is scheduled when no attempts are running",
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(0));
 
-        // With client threads added
-        myClientThreads.add(mMockBluetoothClientThread);
-        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+        // The deadline is relative to the time the attempt was started
+        when(mMockBluetoothClientThread.getTimeStartedInNanoseconds()).thenReturn(
+                System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(elapsedTimeInMilliseconds));
+        mBluetoothConnector.setConnectionTimeout(connectionTimeoutInMilliseconds);
 
-        mBluetoothConnector.setConnectionTimeout(1500);
+        long delayInMilliseconds = getConnectionTimeoutFuture(mMockBluetoothClientThread)
+                .getDelay(TimeUnit.MILLISECONDS);
+
+        assertThat("The timeout does not fire after the deadline",
+                delayInMilliseconds <= connectionTimeoutInMilliseconds - elapsedTimeInMilliseconds, is(true));
+        assertThat("The timeout does not fire long before the deadline",
+                delayInMilliseconds > connectionTimeoutInMilliseconds - elapsedTimeInMilliseconds - 500, is(true));
+
+        // Let the timeout fire
+        final long timeStartedInNanoseconds = System.nanoTime();
+        when(mMockBluetoothClientThread.getTimeStartedInNanoseconds()).thenReturn(timeStartedInNanoseconds);
+        mBluetoothConnector.setConnectionTimeout(300);
 
-        assertThat("The proper timeout is set",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                instanceOf(CountDownTimer.class));
+        verify(mMockBluetoothClientThread, timeout(2000)).shutdown();
+        verify(mMockHandler, timeout(2000)).post(any(Runnable.class));
 
-        // check if the timer is not canceled
-        verify(mMockConnectionTimeoutTimer, never())
-                .cancel();
+        assertThat("The timeout does not fire before the deadline",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - timeStartedInNanoseconds) >= 300, is(true));
+        assertThat("The attempt is removed", myClientThreads.isEmpty(), is(true));
+        assertThat("Nothing is left scheduled after the timeout",
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(0));
+        verify(mMockListener, never()).onConnectionTimeout(any(PeerProperties.class));
+
+        // The listener is notified via the handler
+        final ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+        verify(mMockHandler, times(1)).post(captor.capture());
+        captor.getValue().run();
+
+        verify(mMockListener, times(1)).onConnectionTimeout(mMockPeerProperties);
+    }
+
+    private ScheduledFuture<?> getConnectionTimeoutFuture(BluetoothClientThread bluetoothClientThread)
+            throws Exception {
+        Field connectionTimeoutsField = mBluetoothConnector.getClass().getDeclaredField("mConnectionTimeouts");
+        connectionTimeoutsField.setAccessible(true);
+        Object connectionTimeoutTask =
+                ((Map<?, ?>) connectionTimeoutsField.get(mBluetoothConnector)).get(bluetoothClientThread);
+        Field futureField = connectionTimeoutTask.getClass().getDeclaredField("mFuture");
+        futureField.setAccessible(true);
+        return (ScheduledFuture<?>) futureField.get(connectionTimeoutTask);
     }
 
     @Test
@@ -319,6 +370,39 @@ public class BluetoothConnectorTest {
 
     }
 
+    @Test
+    public void testStartListeningForIncomingConnections_binaryHandshake() throws Exception {
+        byte[] myBinaryHandshakeMessage =
+                HandshakeMessage.createHandshakeMessage(new PeerProperties("00:11:22:33:44:55", 1));
+        byte[] peerBinaryHandshakeMessage =
+                HandshakeMessage.createHandshakeMessage(new PeerProperties("0A:1B:2C:3D:4E:5F", 2));
+
+        Field binaryHandshakeMessageField = mBluetoothConnector.getClass()
+                .getDeclaredField("mMyBinaryHandshakeMessage");
+        binaryHandshakeMessageField.setAccessible(true);
+        binaryHandshakeMessageField.set(mBluetoothConnector, myBinaryHandshakeMessage);
+
+        assertThat("The connector was started successfully",
+                mBluetoothConnector.startListeningForIncomingConnections(), is(true));
+
+        Field serverThreadField = mBluetoothConnector.getClass()
+                .getDeclaredField("mServerThread");
+        serverThreadField.setAccessible(true);
+        BluetoothServerThread serverThread = (BluetoothServerThread) serverThreadField.get(mBluetoothConnector);
+
+        BluetoothSocketIoThread mockBluetoothSocketIoThread = mock(BluetoothSocketIoThread.class);
+        when(mockBluetoothSocketIoThread.getSocket()).thenReturn(mMockBluetoothSocket);
+        when(mockBluetoothSocketIoThread.write(any(byte[].class))).thenReturn(true);
+        when(mMockBluetoothDevice.getAddress()).thenReturn("0A:1B:2C:3D:4E:5F");
+
+        // A client using the binary handshake
+        serverThread.onBytesRead(peerBinaryHandshakeMessage,
+                peerBinaryHandshakeMessage.length, mockBluetoothSocketIoThread);
+
+        // check if the server responded using the binary format
+        verify(mockBluetoothSocketIoThread, times(1)).write(myBinaryHandshakeMessage);
+    }
+
     @Test
     public void testStopListeningForIncomingConnections() throws Exception {
         Field serverThreadField = mBluetoothConnector.getClass()
@@ -362,10 +446,7 @@ public class BluetoothConnectorTest {
     @Test
     public void testShutdown() throws Exception {
 
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        mBluetoothConnector.scheduleConnectionTimeout(mMockBluetoothClientThread);
 
         Field stoppingServerField = mBluetoothConnector.getClass()
                 .getDeclaredField("mIsStoppingServer");
@@ -459,6 +540,164 @@ public class BluetoothConnectorTest {
         verify(mMockListener, times(1)).onConnecting(name, address);
     }
 
+    @Test
+    public void testConnect_queued() throws Exception {
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+        when(mMockBluetoothClientThread.getId()).thenReturn(123456789L);
+
+        when(mMockBluetoothDevice.getName()).thenReturn("my device name");
+        when(mMockBluetoothDevice.getAddress()).thenReturn("my device address");
+        mBluetoothConnector.setMaxNumberOfConcurrentConnectionAttempts(1);
+        ConnectionAttemptScheduler scheduler = mBluetoothConnector.getConnectionAttemptScheduler();
+
+        assertThat("Is true as the connection attempt is queued",
+                mBluetoothConnector.connect(mMockBluetoothDevice, mMockPeerProperties), is(true));
+        assertThat("No thread is started as the limit is reached", myClientThreads.size(), is(1));
+        assertThat("The attempt is queued", scheduler.getQueueDepth(), is(1));
+        verify(mMockListener, times(1)).onConnecting("my device name", "my device address");
+
+        assertThat("Is true as the queued attempt is cancelled",
+                mBluetoothConnector.cancelConnectionAttempt(mMockPeerProperties), is(true));
+        assertThat("The queue is empty", scheduler.getQueueDepth(), is(0));
+        assertThat("The running attempt is not affected", myClientThreads.size(), is(1));
+        verify(mMockListener, times(1)).onConnectionAttemptCancelled(mMockPeerProperties);
+
+        mBluetoothConnector.connect(mMockBluetoothDevice, mMockPeerProperties);
+        mBluetoothConnector.onConnectionFailed(null, "error", mMockBluetoothClientThread);
+
+        assertThat("The queued attempt is started when the running one completes",
+                scheduler.getQueueDepth(), is(0));
+        assertThat("The queued attempt is started when the running one completes",
+                scheduler.getNumberOfConnectionAttemptsStarted(), is(1L));
+    }
+
+    @Test
+    public void testConnect_coalesced() throws Exception {
+        String name = "my device name";
+        String address = "my device address";
+
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+
+        when(mMockBluetoothDevice.getName()).thenReturn(name);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(address);
+        mBluetoothConnector.setMaxNumberOfConcurrentConnectionAttempts(1);
+        ConnectionAttemptScheduler scheduler = mBluetoothConnector.getConnectionAttemptScheduler();
+
+        // Queued attempt
+        assertThat("Is true as the connection attempt is queued",
+                mBluetoothConnector.connect(mMockBluetoothDevice, mMockPeerProperties), is(true));
+        assertThat("Is true as the request is joined to the queued attempt",
+                mBluetoothConnector.connect(mMockBluetoothDevice, mMockPeerProperties), is(true));
+        assertThat("Only one attempt is queued", scheduler.getQueueDepth(), is(1));
+        assertThat("The coalesced request is counted",
+                scheduler.getNumberOfConnectionAttemptsCoalesced(), is(1L));
+        verify(mMockListener, times(1)).onConnecting(name, address);
+
+        // Running attempt
+        mBluetoothConnector.cancelAllConnectionAttempts();
+        myClientThreads.add(mMockBluetoothClientThread);
+        when(mMockBluetoothClientThread.getBluetoothDeviceAddress()).thenReturn(address);
+
+        assertThat("Is true as the request is joined to the running attempt",
+                mBluetoothConnector.connect(mMockBluetoothDevice, mMockPeerProperties), is(true));
+        assertThat("No attempt is queued", scheduler.getQueueDepth(), is(0));
+        assertThat("No thread is added", myClientThreads.size(), is(1));
+        assertThat("The coalesced request is counted",
+                scheduler.getNumberOfConnectionAttemptsCoalesced(), is(2L));
+        verify(mMockListener, times(1)).onConnecting(name, address);
+    }
+
+    @Test
+    public void testConnectAsync_noDevice() throws Exception {
+        ConnectionFuture connectionFuture = mBluetoothConnector.connectAsync(
+                null, mMockPeerProperties, null, BluetoothConnector.DEFAULT_CONNECTION_ATTEMPT_PRIORITY);
+
+        assertThat("The future is failed as no bluetooth device is provided",
+                connectionFuture.isDone() && !connectionFuture.isCancelled(), is(true));
+        assertThat("The failure is described", connectionFuture.getErrorMessage(), is(notNullValue()));
+    }
+
+    @Test
+    public void testConnectAsync_cancelled() throws Exception {
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+
+        when(mMockBluetoothDevice.getAddress()).thenReturn("my device address");
+        mBluetoothConnector.setMaxNumberOfConcurrentConnectionAttempts(1);
+        ConnectionAttemptScheduler scheduler = mBluetoothConnector.getConnectionAttemptScheduler();
+
+        ConnectionFuture connectionFuture1 = mBluetoothConnector.connectAsync(
+                mMockBluetoothDevice, mMockPeerProperties, null, BluetoothConnector.DEFAULT_CONNECTION_ATTEMPT_PRIORITY);
+        ConnectionFuture connectionFuture2 = mBluetoothConnector.connectAsync(
+                mMockBluetoothDevice, mMockPeerProperties, null, BluetoothConnector.DEFAULT_CONNECTION_ATTEMPT_PRIORITY);
+
+        assertThat("The attempt is queued", scheduler.getQueueDepth(), is(1));
+        assertThat("The future is pending", connectionFuture1.isDone(), is(false));
+
+        assertThat("The future is cancelled", connectionFuture1.cancel(true), is(true));
+        assertThat("The attempt is kept for the other future", scheduler.getQueueDepth(), is(1));
+        assertThat("The other future is pending", connectionFuture2.isDone(), is(false));
+        verify(mMockListener, never()).onConnectionAttemptCancelled(any(PeerProperties.class));
+
+        connectionFuture2.cancel(true);
+
+        assertThat("The attempt is cancelled with the last future", scheduler.getQueueDepth(), is(0));
+        assertThat("The future is cancelled", connectionFuture2.isCancelled(), is(true));
+        verify(mMockListener, times(1)).onConnectionAttemptCancelled(mMockPeerProperties);
+    }
+
+    @Test
+    public void testConnectAsync_failed() throws Exception {
+        String address = "my device address";
+
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+
+        when(mMockBluetoothDevice.getAddress()).thenReturn(address);
+        when(mMockBluetoothClientThread.getBluetoothDeviceAddress()).thenReturn(address);
+        when(mMockBluetoothClientThread.getId()).thenReturn(123456789L);
+
+        // Joined to the running attempt
+        ConnectionFuture connectionFuture = mBluetoothConnector.connectAsync(
+                mMockBluetoothDevice, mMockPeerProperties, null, BluetoothConnector.DEFAULT_CONNECTION_ATTEMPT_PRIORITY);
+        final CountDownLatch listenerLatch = new CountDownLatch(1);
+        final AtomicBoolean connectorLockedInListener = new AtomicBoolean(true);
+        connectionFuture.addListener(new Runnable() {
+            @Override
+            public void run() {
+                connectorLockedInListener.set(Thread.holdsLock(mBluetoothConnector));
+                listenerLatch.countDown();
+            }
+        }, null);
+
+        synchronized (mBluetoothConnector) {
+            mBluetoothConnector.onConnectionFailed(mMockPeerProperties, "error", mMockBluetoothClientThread);
+
+            assertThat("The future is completed with the failure", connectionFuture.getErrorMessage(), is("error"));
+            assertThat("The listener is not called while the connector is locked",
+                    listenerLatch.await(100, TimeUnit.MILLISECONDS), is(false));
+        }
+
+        assertThat("The listener is called", listenerLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The listener is called without the connector lock", connectorLockedInListener.get(), is(false));
+        thrown.expect(ExecutionException.class);
+        connectionFuture.get();
+    }
+
     @Test
     public void testCancelConnectionAttempt_exception() throws Exception {
         thrown.expect(NullPointerException.class);
@@ -467,10 +706,7 @@ public class BluetoothConnectorTest {
 
     @Test
     public void testCancelConnectionAttempt() throws Exception {
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        mBluetoothConnector.scheduleConnectionTimeout(mMockBluetoothClientThread);
 
         Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
         clientThreadsField.setAccessible(true);
@@ -491,9 +727,9 @@ public class BluetoothConnectorTest {
                 mBluetoothConnector.cancelConnectionAttempt(mMockPeerProperties),
                 is(true));
 
-        // check if the timer was canceled
-        verify(mMockConnectionTimeoutTimer, times(1))
-                .cancel();
+        assertThat("The connection timeout is cancelled",
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(0));
+        verify(mMockListener, times(1)).onConnectionAttemptCancelled(mMockPeerProperties);
 
         // Wait for the other thread
         Thread.sleep(500);
@@ -501,6 +737,30 @@ public class BluetoothConnectorTest {
                 .shutdown();
     }
 
+    @Test
+    public void testCancelAllConnectionAttempts() throws Exception {
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        myClientThreads.add(mMockBluetoothClientThread);
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+        PeerProperties runningPeerProperties = new PeerProperties("01:02:03:04:05:06");
+        when(mMockBluetoothClientThread.getPeerProperties()).thenReturn(runningPeerProperties);
+
+        when(mMockBluetoothDevice.getAddress()).thenReturn("my device address");
+        mBluetoothConnector.setMaxNumberOfConcurrentConnectionAttempts(1);
+        mBluetoothConnector.connect(mMockBluetoothDevice, mMockPeerProperties);
+
+        mBluetoothConnector.cancelAllConnectionAttempts();
+
+        assertThat("The queue is empty",
+                mBluetoothConnector.getConnectionAttemptScheduler().getQueueDepth(), is(0));
+        assertThat("The running attempt is removed", myClientThreads.isEmpty(), is(true));
+        verify(mMockListener, times(1)).onConnectionAttemptCancelled(mMockPeerProperties);
+        verify(mMockListener, times(1)).onConnectionAttemptCancelled(runningPeerProperties);
+        verify(mMockBluetoothClientThread, timeout(2000)).shutdown();
+    }
+
     @Test
     public void testOnIncomingConnectionConnected_connected() throws Exception {
         Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
@@ -511,7 +771,7 @@ public class BluetoothConnectorTest {
 
         when(mMockBluetoothSocket.isConnected()).thenReturn(true);
 
-        mBluetoothConnector.onIncomingConnectionConnected(mMockBluetoothSocket, mMockPeerProperties);
+        mBluetoothConnector.onIncomingConnectionConnected(mMockBluetoothSocket, mMockPeerProperties, null);
         verify(mMockHandler, times(1)).post(captor.capture());
 
         Thread thread = new Thread(captor.getValue());
@@ -519,7 +779,7 @@ public class BluetoothConnectorTest {
         // Wait for the other thread
         Thread.sleep(500);
 
-        verify(mMockListener, times(1)).onConnected(mMockBluetoothSocket, true, mMockPeerProperties);
+        verify(mMockListener, times(1)).onConnected(mMockBluetoothSocket, true, mMockPeerProperties, null);
     }
 
     @Test
@@ -532,7 +792,7 @@ public class BluetoothConnectorTest {
 
         when(mMockBluetoothSocket.isConnected()).thenReturn(false);
 
-        mBluetoothConnector.onIncomingConnectionConnected(mMockBluetoothSocket, mMockPeerProperties);
+        mBluetoothConnector.onIncomingConnectionConnected(mMockBluetoothSocket, mMockPeerProperties, null);
         verify(mMockHandler, times(1)).post(captor.capture());
 
         Thread thread = new Thread(captor.getValue());
@@ -540,7 +800,55 @@ public class BluetoothConnectorTest {
         // Wait for the other thread
         Thread.sleep(500);
 
-        verify(mMockListener, never()).onConnected(mMockBluetoothSocket, true, mMockPeerProperties);
+        verify(mMockListener, never()).onConnected(mMockBluetoothSocket, true, mMockPeerProperties, null);
+    }
+
+    @Test
+    public void testOnIncomingHandshakeReceived() throws Exception {
+        String myAddress = "0A:1B:2C:3D:4E:5F";
+        String lesserAddress = "01:02:03:04:05:06";
+        String greaterAddress = "A1:A2:A3:A4:A5:A6";
+
+        Field myBluetoothMacAddressField = mBluetoothConnector.getClass()
+                .getDeclaredField("mMyBluetoothMacAddress");
+        myBluetoothMacAddressField.setAccessible(true);
+        myBluetoothMacAddressField.set(mBluetoothConnector, myAddress);
+
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothClientThread> myClientThreads = new CopyOnWriteArrayList<>();
+        clientThreadsField.set(mBluetoothConnector, myClientThreads);
+        when(mMockBluetoothClientThread.getId()).thenReturn(123456789L);
+
+        assertThat("The handshake is not held, if we are not connecting to the peer",
+                mBluetoothConnector.onIncomingHandshakeReceived(new PeerProperties(lesserAddress)),
+                is(false));
+
+        // Our connection wins
+        myClientThreads.add(mMockBluetoothClientThread);
+        when(mMockBluetoothClientThread.getBluetoothDeviceAddress()).thenReturn(lesserAddress);
+
+        assertThat("The handshake is held, since our address is greater",
+                mBluetoothConnector.onIncomingHandshakeReceived(new PeerProperties(lesserAddress)),
+                is(true));
+        assertThat("Our connection attempt is kept", myClientThreads.size(), is(1));
+
+        // The incoming connection wins
+        PeerProperties greaterPeerProperties = new PeerProperties(greaterAddress);
+        when(mMockBluetoothClientThread.getBluetoothDeviceAddress()).thenReturn(greaterAddress);
+        when(mMockBluetoothClientThread.getPeerProperties()).thenReturn(greaterPeerProperties);
+        verify(mMockListener, never()).onConnectionAttemptCancelled(any(PeerProperties.class));
+
+        assertThat("The handshake is not held, since the address of the peer is greater",
+                mBluetoothConnector.onIncomingHandshakeReceived(new PeerProperties(greaterAddress)),
+                is(false));
+        assertThat("Our connection attempt is removed", myClientThreads.isEmpty(), is(true));
+        verify(mMockBluetoothClientThread, timeout(2000)).shutdown();
+        verify(mMockListener, never()).onConnectionFailed(any(PeerProperties.class), anyString());
+        verify(mMockListener, times(1)).onConnectionAttemptCancelled(greaterPeerProperties);
+
+        assertThat("The resolved connections are counted", mBluetoothConnector
+                .getIncomingConnectionStatistics().getNumberOfSimultaneousConnectionsResolved(), is(2L));
     }
 
     @Test
@@ -643,10 +951,7 @@ public class BluetoothConnectorTest {
 
     @Test
     public void testOnSocketConnected() throws Exception {
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        mBluetoothConnector.scheduleConnectionTimeout(mMockBluetoothClientThread);
 
         Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
         handlerField.setAccessible(true);
@@ -680,10 +985,8 @@ public class BluetoothConnectorTest {
         mBluetoothConnector.onSocketConnected(mMockBluetoothSocket, mMockPeerProperties,
                 mMockBluetoothClientThread);
 
-        verify(mMockConnectionTimeoutTimer, times(1)).cancel();
-        assertThat("No timeout is set If the client threads is list is empty",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+        assertThat("The connection timeout is cancelled",
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(0));
         verify(mMockHandler, never()).post(captor.capture());
 
         // handshake required, notify the listener
@@ -699,10 +1002,8 @@ public class BluetoothConnectorTest {
         mBluetoothConnector.onSocketConnected(mMockBluetoothSocket, mMockPeerProperties,
                 mMockBluetoothClientThread);
 
-        verify(mMockConnectionTimeoutTimer, times(1)).cancel();
-        assertThat("No timeout is set If the client threads is list is empty",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+        assertThat("The connection timeout is cancelled",
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(0));
         verify(mMockHandler, times(1)).post(captor.capture());
 
         Thread thread = new Thread(captor.getValue());
@@ -710,15 +1011,12 @@ public class BluetoothConnectorTest {
         // Wait for the other thread
         Thread.sleep(500);
 
-        verify(mMockListener, never()).onConnected(mMockBluetoothSocket, false, mMockPeerProperties);
+        verify(mMockListener, never()).onConnected(mMockBluetoothSocket, false, mMockPeerProperties, null);
     }
 
     @Test
     public void testOnSocketConnected_success() throws Exception {
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        mBluetoothConnector.scheduleConnectionTimeout(mMockBluetoothClientThread);
 
         Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
         handlerField.setAccessible(true);
@@ -750,10 +1048,8 @@ public class BluetoothConnectorTest {
         mBluetoothConnector.onSocketConnected(mMockBluetoothSocket, mMockPeerProperties,
                 mMockBluetoothClientThread);
 
-        verify(mMockConnectionTimeoutTimer, times(1)).cancel();
-        assertThat("No timeout is set If the client threads is list is empty",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+        assertThat("The connection timeout is cancelled",
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(0));
         verify(mMockHandler, times(1)).post(captor.capture());
 
         Thread thread = new Thread(captor.getValue());
@@ -761,15 +1057,12 @@ public class BluetoothConnectorTest {
         // Wait for the other thread
         Thread.sleep(500);
 
-        verify(mMockListener, times(1)).onConnected(mMockBluetoothSocket, false, mMockPeerProperties);
+        verify(mMockListener, times(1)).onConnected(mMockBluetoothSocket, false, mMockPeerProperties, null);
     }
 
     @Test
     public void testOnHandshakeSucceeded() throws Exception {
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        mBluetoothConnector.scheduleConnectionTimeout(mMockBluetoothClientThread);
 
         Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
         handlerField.setAccessible(true);
@@ -799,12 +1092,10 @@ public class BluetoothConnectorTest {
         shuttingDownField.set(mBluetoothConnector, false);
 
         mBluetoothConnector.onHandshakeSucceeded(mMockBluetoothSocket, mMockPeerProperties,
-                mMockBluetoothClientThread);
+                null, mMockBluetoothClientThread);
 
-        verify(mMockConnectionTimeoutTimer, times(1)).cancel();
-        assertThat("No timeout is set If the client threads is list is empty",
-                connectionTimeoutTimerField.get(mBluetoothConnector),
-                is(nullValue()));
+        assertThat("The connection timeout is cancelled",
+                mBluetoothConnector.getNumberOfScheduledConnectionTimeouts(), is(0));
         verify(mMockHandler, times(1)).post(captor.capture());
 
         Thread thread = new Thread(captor.getValue());
@@ -812,15 +1103,30 @@ public class BluetoothConnectorTest {
         // Wait for the other thread
         Thread.sleep(500);
 
-        verify(mMockListener, times(1)).onConnected(mMockBluetoothSocket, false, mMockPeerProperties);
+        verify(mMockListener, times(1)).onConnected(mMockBluetoothSocket, false, mMockPeerProperties, null);
+    }
+
+    @Test
+    public void testOnHandshakeSucceeded_attemptNoLongerActive() throws Exception {
+        Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(mBluetoothConnector, mMockHandler);
+
+        // The attempt already timed out or was cancelled, so the thread is no longer tracked
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        clientThreadsField.set(mBluetoothConnector, new CopyOnWriteArrayList<BluetoothClientThread>());
+
+        mBluetoothConnector.onHandshakeSucceeded(mMockBluetoothSocket, mMockPeerProperties,
+                null, mMockBluetoothClientThread);
+
+        verify(mMockHandler, never()).post(any(Runnable.class));
+        verify(mMockBluetoothSocket, times(1)).close();
     }
 
     @Test
     public void testOnConnectionFailed() throws Exception {
-        Field connectionTimeoutTimerField = mBluetoothConnector.getClass()
-                .getDeclaredField("mConnectionTimeoutTimer");
-        connectionTimeoutTimerField.setAccessible(true);
-        connectionTimeoutTimerField.set(mBluetoothConnector, mMockConnectionTimeoutTimer);
+        mBluetoothConnector.scheduleConnectionTimeout(mMockBluetoothClientThread);
 
         Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
         handlerField.setAccessible(true);
@@ -853,4 +1159,21 @@ public class BluetoothConnectorTest {
 
         verify(mMockListener, times(1)).onConnectionFailed(mMockPeerProperties, msg);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testOnConnectionFailed_afterTimeout() throws Exception {
+        Field handlerField = mBluetoothConnector.getClass().getDeclaredField("mHandler");
+        handlerField.setAccessible(true);
+        handlerField.set(mBluetoothConnector, mMockHandler);
+
+        // The timeout already removed the thread and reported the outcome
+        Field clientThreadsField = mBluetoothConnector.getClass().getDeclaredField("mClientThreads");
+        clientThreadsField.setAccessible(true);
+        clientThreadsField.set(mBluetoothConnector, new CopyOnWriteArrayList<BluetoothClientThread>());
+
+        mBluetoothConnector.onConnectionFailed(mMockPeerProperties, "Handshake timed out",
+                mMockBluetoothClientThread);
+
+        verify(mMockHandler, never()).post(any(Runnable.class));
+    }
+}
@@ -30,11 +30,13 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -138,7 +140,7 @@ public class BluetoothServerThreadTest {
                 is(mMockBluetoothSocket));
 
         verify(mMockListener, never()).onIncomingConnectionConnected(any(BluetoothSocket.class),
-                any(PeerProperties.class));
+                any(PeerProperties.class), any(byte[].class));
 
         verify(mMockListener, times(1)).onServerStopped();
     }
@@ -180,7 +182,7 @@ public class BluetoothServerThreadTest {
                 = ArgumentCaptor.forClass(PeerProperties.class);
 
         verify(mMockListener, times(1)).onIncomingConnectionConnected(btSocketCaptor.capture(),
-                ppCaptor.capture());
+                ppCaptor.capture(), any(byte[].class));
 
         assertThat("The proper BT address is set",
                 ppCaptor.getValue().getBluetoothMacAddress(),
@@ -190,6 +192,225 @@ public class BluetoothServerThreadTest {
     }
 
 
+    @Test
+    public void testOnBytesRead_BinaryHandshake() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+        byte[] myBinaryHandshakeMessage =
+                HandshakeMessage.createHandshakeMessage(new PeerProperties("00:11:22:33:44:55", 1));
+        byte[] peerBinaryHandshakeMessage =
+                HandshakeMessage.createHandshakeMessage(new PeerProperties(macAddress, 2));
+        mBluetoothServerThread.setBinaryHandshakeMessage(myBinaryHandshakeMessage);
+
+        when(mMockBluetoothSocketIoThread.getSocket()).thenReturn(mMockBluetoothSocket);
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+        when(mMockBluetoothSocketIoThread.write(any(byte[].class))).thenReturn(true);
+
+        mBluetoothServerThread.onBytesRead(peerBinaryHandshakeMessage,
+                peerBinaryHandshakeMessage.length, mMockBluetoothSocketIoThread);
+
+        // check if responded using the binary format
+        verify(mMockBluetoothSocketIoThread, times(1)).write(myBinaryHandshakeMessage);
+
+        mBluetoothServerThread.onBytesRead(BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY,
+                15, mMockBluetoothSocketIoThread);
+
+        // check if responded to the legacy format with our identity string
+        verify(mMockBluetoothSocketIoThread, times(1))
+                .write(myIdentityId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testOnHandshakeTimeout() throws Exception {
+        Field mSocketIoThreadsField = mBluetoothServerThread.getClass()
+                .getDeclaredField("mSocketIoThreads");
+        mSocketIoThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothSocketIoThread> mySocketIoThreads
+                = new CopyOnWriteArrayList<>();
+        mSocketIoThreadsField.set(mBluetoothServerThread, mySocketIoThreads);
+        mySocketIoThreads.add(mMockBluetoothSocketIoThread);
+
+        mBluetoothServerThread.onHandshakeTimeout(mMockBluetoothSocketIoThread);
+
+        verify(mMockBluetoothSocketIoThread, times(1)).close(true, true);
+        assertThat("The timed out handshake thread is removed",
+                mySocketIoThreads.isEmpty(), is(true));
+
+        assertThat("The timeout is counted",
+                mBluetoothServerThread.getStatistics().getNumberOfHandshakesTimedOut(), is(1L));
+
+        // Already completed or failed handshake
+        mBluetoothServerThread.onHandshakeTimeout(mMockBluetoothSocketIoThread);
+        verify(mMockBluetoothSocketIoThread, times(1)).close(true, true);
+        assertThat("The timeout is not counted again",
+                mBluetoothServerThread.getStatistics().getNumberOfHandshakesTimedOut(), is(1L));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testRun_EvictOldestPendingHandshake() throws Exception {
+        final int maxNumberOfPendingHandshakes = 2;
+        final int numberOfConnections = 4;
+        mBluetoothServerThread.setHandshakeRequired(true);
+        mBluetoothServerThread.setPersistentServerSocket(true);
+        mBluetoothServerThread.setMaxNumberOfPendingHandshakes(maxNumberOfPendingHandshakes);
+        mBluetoothServerThread.setHandshakeExecutor(new HandshakeExecutor(numberOfConnections));
+
+        Field mSocketIoThreadsField = mBluetoothServerThread.getClass()
+                .getDeclaredField("mSocketIoThreads");
+        mSocketIoThreadsField.setAccessible(true);
+
+        when(mMockBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(myServerName, myUUID))
+                .thenReturn(mMockBluetoothServerSocket);
+
+        // mock blocking call mBluetoothServerSocket.accept()
+        when(mMockBluetoothServerSocket.accept()).thenAnswer(new Answer<BluetoothSocket>() {
+            private int acceptCount = 0;
+
+            @Override
+            public BluetoothSocket answer(InvocationOnMock invocation) throws
+                    InterruptedException, IllegalAccessException {
+                if (++acceptCount == numberOfConnections) {
+                    mStopThreadField.set(mBluetoothServerThread, true);
+                }
+                return mMockBluetoothSocket;
+            }
+        });
+
+        // The peers never send their identity
+        when(mMockBluetoothSocket.getInputStream()).thenReturn(mMockInputStream);
+        when(mMockInputStream.read(any(byte[].class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws InterruptedException {
+                Thread.sleep(MAX_TIMEOUT);
+                return 0;
+            }
+        });
+
+        // Actual test
+        Thread service = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mBluetoothServerThread.run();
+            }
+        });
+        service.start();
+        service.join(MAX_TIMEOUT);
+
+        CopyOnWriteArrayList<BluetoothSocketIoThread> mSocketIoThreads
+                = (CopyOnWriteArrayList<BluetoothSocketIoThread>)
+                mSocketIoThreadsField.get(mBluetoothServerThread);
+
+        assertThat("The number of pending handshakes does not exceed the maximum",
+                mSocketIoThreads.size(), is(maxNumberOfPendingHandshakes));
+        assertThat("The evicted handshakes are counted",
+                mBluetoothServerThread.getStatistics().getNumberOfHandshakesEvicted(),
+                is((long) (numberOfConnections - maxNumberOfPendingHandshakes)));
+
+        verify(mMockListener, never()).onIncomingConnectionConnected(any(BluetoothSocket.class),
+                any(PeerProperties.class), any(byte[].class));
+        verify(mMockListener, times(1)).onServerStopped();
+    }
+
+    @Test
+    public void testRun_PersistentServerSocket() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+        final int numberOfConnections = 3;
+        mBluetoothServerThread.setHandshakeRequired(false);
+        mBluetoothServerThread.setPersistentServerSocket(true);
+
+        when(mMockBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(myServerName, myUUID))
+                .thenReturn(mMockBluetoothServerSocket);
+
+        // mock blocking call mBluetoothServerSocket.accept()
+        when(mMockBluetoothServerSocket.accept()).thenAnswer(new Answer<BluetoothSocket>() {
+            private int acceptCount = 0;
+
+            @Override
+            public BluetoothSocket answer(InvocationOnMock invocation) throws
+                    InterruptedException, IllegalAccessException {
+                if (++acceptCount == numberOfConnections) {
+                    mStopThreadField.set(mBluetoothServerThread, true);
+                }
+                return mMockBluetoothSocket;
+            }
+        });
+
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+
+        // Actual test
+        Thread service = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mBluetoothServerThread.run();
+            }
+        });
+        service.start();
+        service.join(MAX_TIMEOUT);
+
+        verify(mMockBluetoothAdapter, times(1))
+                .listenUsingInsecureRfcommWithServiceRecord(myServerName, myUUID);
+        verify(mMockListener, times(numberOfConnections)).onIncomingConnectionConnected(
+                any(BluetoothSocket.class), any(PeerProperties.class), any(byte[].class));
+        verify(mMockBluetoothServerSocket, times(1)).close();
+
+        assertThat("All the accepted connections are counted",
+                mBluetoothServerThread.getStatistics().getNumberOfAcceptedConnections(),
+                is((long) numberOfConnections));
+
+        verify(mMockListener, times(1)).onServerStopped();
+    }
+
+    @Test
+    public void testRun_NonPersistentServerSocket() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+        final int numberOfConnections = 3;
+        mBluetoothServerThread.setHandshakeRequired(false);
+        mBluetoothServerThread.setPersistentServerSocket(false);
+
+        when(mMockBluetoothAdapter.listenUsingInsecureRfcommWithServiceRecord(myServerName, myUUID))
+                .thenReturn(mMockBluetoothServerSocket);
+
+        // mock blocking call mBluetoothServerSocket.accept()
+        when(mMockBluetoothServerSocket.accept()).thenAnswer(new Answer<BluetoothSocket>() {
+            private int acceptCount = 0;
+
+            @Override
+            public BluetoothSocket answer(InvocationOnMock invocation) throws
+                    InterruptedException, IllegalAccessException {
+                if (++acceptCount == numberOfConnections) {
+                    mStopThreadField.set(mBluetoothServerThread, true);
+                }
+                return mMockBluetoothSocket;
+            }
+        });
+
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+
+        // Actual test
+        Thread service = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mBluetoothServerThread.run();
+            }
+        });
+        service.start();
+        service.join(MAX_TIMEOUT);
+
+        verify(mMockBluetoothAdapter, times(numberOfConnections))
+                .listenUsingInsecureRfcommWithServiceRecord(myServerName, myUUID);
+        verify(mMockBluetoothServerSocket, times(numberOfConnections)).close();
+
+        assertThat("The accept latency is recorded between the connections",
+                mBluetoothServerThread.getStatistics().getMaxAcceptLatencyInMilliseconds() > 0d,
+                is(true));
+
+        verify(mMockListener, times(1)).onServerStopped();
+    }
+
     @Test
     public void testRun_FailedInvalidAddress() throws Exception {
         String invalifMacAddress = "IN:VA:LI:D0:AD:DR";
@@ -223,7 +444,7 @@ public class BluetoothServerThreadTest {
         service.join(MAX_TIMEOUT);
 
         verify(mMockListener, never()).onIncomingConnectionConnected(any(BluetoothSocket.class),
-                any(PeerProperties.class));
+                any(PeerProperties.class), any(byte[].class));
 
         verify(mMockListener, times(1)).onIncomingConnectionFailed(anyString());
         verify(mMockListener, times(1)).onServerStopped();
@@ -370,6 +591,119 @@ public class BluetoothServerThreadTest {
                 mySocketIoThreads.isEmpty(), is(false));
     }
 
+    @Test
+    public void testOnBytesRead_heldHandshake() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+
+        Field mSocketIoThreadsField = mBluetoothServerThread.getClass()
+                .getDeclaredField("mSocketIoThreads");
+        mSocketIoThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothSocketIoThread> mySocketIoThreads
+                = new CopyOnWriteArrayList<>();
+        mSocketIoThreadsField.set(mBluetoothServerThread, mySocketIoThreads);
+        mySocketIoThreads.add(mMockBluetoothSocketIoThread);
+
+        when(mMockBluetoothSocketIoThread.getSocket()).thenReturn(mMockBluetoothSocket);
+        when(mMockBluetoothSocketIoThread.getPeerProperties()).thenReturn(new PeerProperties(macAddress));
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+        when(mMockBluetoothSocketIoThread.write(
+                myIdentityId.getBytes(StandardCharsets.UTF_8))).thenReturn(true);
+        when(mMockListener.onIncomingHandshakeReceived(any(PeerProperties.class))).thenReturn(true);
+
+        mBluetoothServerThread.onBytesRead(BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY,
+                15, mMockBluetoothSocketIoThread);
+
+        // check if the response is held
+        verify(mMockBluetoothSocketIoThread, never()).write(any(byte[].class));
+        assertThat("No held handshake of other peers is found",
+                mBluetoothServerThread.resolveHeldHandshakes("01:02:03:04:05:06", true), is(false));
+
+        assertThat("The held handshake is found",
+                mBluetoothServerThread.resolveHeldHandshakes(macAddress, true), is(true));
+
+        // check if responded with our own identity
+        verify(mMockBluetoothSocketIoThread, times(1))
+                .write(myIdentityId.getBytes(StandardCharsets.UTF_8));
+
+        assertThat("The handshake is resolved only once",
+                mBluetoothServerThread.resolveHeldHandshakes(macAddress, true), is(false));
+
+        // Hold again and drop
+        mBluetoothServerThread.onBytesRead(BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY,
+                15, mMockBluetoothSocketIoThread);
+
+        assertThat("The held handshake is found",
+                mBluetoothServerThread.resolveHeldHandshakes(macAddress, false), is(true));
+        verify(mMockBluetoothSocketIoThread, times(1)).close(true, true);
+        assertThat("The thread is removed from the list of IO threads",
+                mySocketIoThreads.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testOnBytesRead_heldHandshakeTimeout() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+
+        Field mSocketIoThreadsField = mBluetoothServerThread.getClass()
+                .getDeclaredField("mSocketIoThreads");
+        mSocketIoThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothSocketIoThread> mySocketIoThreads
+                = new CopyOnWriteArrayList<>();
+        mSocketIoThreadsField.set(mBluetoothServerThread, mySocketIoThreads);
+        mySocketIoThreads.add(mMockBluetoothSocketIoThread);
+
+        when(mMockBluetoothSocketIoThread.getSocket()).thenReturn(mMockBluetoothSocket);
+        when(mMockBluetoothSocketIoThread.getPeerProperties()).thenReturn(new PeerProperties(macAddress));
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+        when(mMockListener.onIncomingHandshakeReceived(any(PeerProperties.class))).thenReturn(true);
+        mBluetoothServerThread.setHeldHandshakeTimeout(100);
+
+        mBluetoothServerThread.onBytesRead(BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY,
+                15, mMockBluetoothSocketIoThread);
+
+        verify(mMockBluetoothSocketIoThread, timeout((int) MAX_TIMEOUT)).close(true, true);
+        verify(mMockBluetoothSocketIoThread, never()).write(any(byte[].class));
+        assertThat("The thread is removed from the list of IO threads",
+                mySocketIoThreads.isEmpty(), is(true));
+        assertThat("The held handshake is no longer found",
+                mBluetoothServerThread.resolveHeldHandshakes(macAddress, true), is(false));
+        assertThat("The timeout is counted",
+                mBluetoothServerThread.getStatistics().getNumberOfHandshakesTimedOut(), is(1L));
+    }
+
+    @Test
+    public void testOnBytesRead_heldHandshakeResolvedBeforeTimeout() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+
+        Field mSocketIoThreadsField = mBluetoothServerThread.getClass()
+                .getDeclaredField("mSocketIoThreads");
+        mSocketIoThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothSocketIoThread> mySocketIoThreads
+                = new CopyOnWriteArrayList<>();
+        mSocketIoThreadsField.set(mBluetoothServerThread, mySocketIoThreads);
+        mySocketIoThreads.add(mMockBluetoothSocketIoThread);
+
+        when(mMockBluetoothSocketIoThread.getSocket()).thenReturn(mMockBluetoothSocket);
+        when(mMockBluetoothSocketIoThread.getPeerProperties()).thenReturn(new PeerProperties(macAddress));
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+        when(mMockBluetoothSocketIoThread.write(any(byte[].class))).thenReturn(true);
+        when(mMockListener.onIncomingHandshakeReceived(any(PeerProperties.class))).thenReturn(true);
+        mBluetoothServerThread.setHeldHandshakeTimeout(100);
+
+        mBluetoothServerThread.onBytesRead(BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY,
+                15, mMockBluetoothSocketIoThread);
+        mBluetoothServerThread.resolveHeldHandshakes(macAddress, true);
+        Thread.sleep(300);
+
+        verify(mMockBluetoothSocketIoThread, never()).close(anyBoolean(), anyBoolean());
+        assertThat("The thread waits for the response to be written",
+                mySocketIoThreads.size(), is(1));
+        assertThat("No timeout is counted",
+                mBluetoothServerThread.getStatistics().getNumberOfHandshakesTimedOut(), is(0L));
+    }
+
     @Test
     public void testOnBytesRead_notValidIdentity() throws Exception {
 
@@ -398,6 +732,44 @@ public class BluetoothServerThreadTest {
                 mySocketIoThreads.isEmpty(), is(true));
     }
 
+    @Test
+    public void testOnBytesRead_withInitialData() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+        byte[] initialData = "data".getBytes(StandardCharsets.UTF_8);
+        byte[] handshakeMessage = BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY;
+        byte[] bytesRead = new byte[256];
+        System.arraycopy(handshakeMessage, 0, bytesRead, 0, handshakeMessage.length);
+        System.arraycopy(initialData, 0, bytesRead, handshakeMessage.length, initialData.length);
+
+        Field mSocketIoThreadsField = mBluetoothServerThread.getClass()
+                .getDeclaredField("mSocketIoThreads");
+        mSocketIoThreadsField.setAccessible(true);
+        CopyOnWriteArrayList<BluetoothSocketIoThread> mySocketIoThreads
+                = new CopyOnWriteArrayList<>();
+        mSocketIoThreadsField.set(mBluetoothServerThread, mySocketIoThreads);
+        mySocketIoThreads.add(mMockBluetoothSocketIoThread);
+
+        when(mMockBluetoothSocketIoThread.getSocket()).thenReturn(mMockBluetoothSocket);
+        when(mMockBluetoothSocket.getRemoteDevice()).thenReturn(mMockBluetoothDevice);
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+        when(mMockBluetoothSocketIoThread.write(
+                myIdentityId.getBytes(StandardCharsets.UTF_8))).thenReturn(true);
+
+        mBluetoothServerThread.onBytesRead(bytesRead, handshakeMessage.length + initialData.length,
+                mMockBluetoothSocketIoThread);
+
+        // check if the handshake was accepted despite the data following it
+        verify(mMockBluetoothSocketIoThread, times(1))
+                .write(myIdentityId.getBytes(StandardCharsets.UTF_8));
+
+        mBluetoothServerThread.onBytesWritten(myIdentityId.getBytes(StandardCharsets.UTF_8),
+                myIdentityId.length(), mMockBluetoothSocketIoThread);
+
+        // check if the data following the handshake message is passed to the listener
+        verify(mMockListener, times(1)).onIncomingConnectionConnected(
+                any(BluetoothSocket.class), any(PeerProperties.class), aryEq(initialData));
+    }
+
     @Test
     public void testOnBytesRead_notValidResponse() throws Exception {
         String macAddress = "0A:1B:2C:3D:4E:5F";
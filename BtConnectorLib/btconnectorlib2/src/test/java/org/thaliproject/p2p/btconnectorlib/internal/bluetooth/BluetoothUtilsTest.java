@@ -11,9 +11,15 @@ import org.mockito.MockitoAnnotations;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -88,6 +94,87 @@ public class BluetoothUtilsTest {
                 BluetoothUtils.isValidBluetoothMacAddress("0A:1B:2C:3D:4E:5F"), is(true));
     }
 
+    @Test
+    public void testCompareBluetoothMacAddresses() throws Exception {
+        assertThat("The same addresses are equal",
+                BluetoothUtils.compareBluetoothMacAddresses("0A:1B:2C:3D:4E:5F", "0A:1B:2C:3D:4E:5F"), is(0));
+
+        assertThat("The addresses are compared numerically regardless of the formatting",
+                BluetoothUtils.compareBluetoothMacAddresses("0:0:0:0:0:A", "00:00:00:00:00:0A"), is(0));
+
+        assertThat("The lesser address is less",
+                BluetoothUtils.compareBluetoothMacAddresses("0A:1B:2C:3D:4E:5F", "0A:1B:2C:3D:4E:60") < 0, is(true));
+
+        assertThat("The most significant byte decides",
+                BluetoothUtils.compareBluetoothMacAddresses("F0:00:00:00:00:00", "0F:FF:FF:FF:FF:FF") > 0, is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompareBluetoothMacAddresses_invalid() throws Exception {
+        BluetoothUtils.compareBluetoothMacAddresses("0A:1B:2C:3D:4E:5F", null);
+    }
+
+    @Test
+    public void testValidateReceivedHandshakeMessage_BinaryHandshake() throws Exception {
+        String macAddress = "0A:1B:2C:3D:4E:5F";
+        when(mMockBluetoothDevice.getAddress()).thenReturn(macAddress);
+        byte[] handshakeMessage = HandshakeMessage.createHandshakeMessage(new PeerProperties(macAddress, 2));
+
+        PeerProperties peerProperties = BluetoothUtils.validateReceivedHandshakeMessage(
+                handshakeMessage, handshakeMessage.length, mMockBluetoothSocket);
+
+        assertThat("The proper object is returned if the message is correct",
+                peerProperties.getBluetoothMacAddress(), is(macAddress));
+        assertThat("The generation is resolved", peerProperties.getExtraInformation(), is(2));
+
+        assertThat("The received object is null if the message is incomplete",
+                BluetoothUtils.validateReceivedHandshakeMessage(
+                        handshakeMessage, handshakeMessage.length - 1, mMockBluetoothSocket),
+                is(nullValue()));
+
+        when(mMockBluetoothDevice.getAddress()).thenReturn("00:11:22:33:44:55");
+
+        assertThat("The received object is null if the address does not match the sender",
+                BluetoothUtils.validateReceivedHandshakeMessage(
+                        handshakeMessage, handshakeMessage.length, mMockBluetoothSocket),
+                is(nullValue()));
+    }
+
+    @Test
+    public void testGetHandshakeMessageLength() throws Exception {
+        byte[] initialData = "data".getBytes(StandardCharsets.UTF_8);
+        byte[] binaryHandshakeMessage =
+                HandshakeMessage.createHandshakeMessage(new PeerProperties("0A:1B:2C:3D:4E:5F", 2));
+        byte[] simpleHandshakeMessage = BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY;
+        byte[] identityString = "{\"pn\":2,\"bmac\":\"0A:1B:2C:3D:4E:5F\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertThat("The length of the binary handshake message is read from the header",
+                BluetoothUtils.getHandshakeMessageLength(
+                        concatenate(binaryHandshakeMessage, initialData), binaryHandshakeMessage.length + 4),
+                is(HandshakeMessage.MESSAGE_LENGTH));
+        assertThat("The length of an incomplete binary handshake message is the number of bytes read",
+                BluetoothUtils.getHandshakeMessageLength(binaryHandshakeMessage, 6), is(6));
+        assertThat("The length of the simple handshake message is fixed",
+                BluetoothUtils.getHandshakeMessageLength(
+                        concatenate(simpleHandshakeMessage, initialData), simpleHandshakeMessage.length + 4),
+                is(simpleHandshakeMessage.length));
+        assertThat("The identity string ends with the first closing curly bracket",
+                BluetoothUtils.getHandshakeMessageLength(
+                        concatenate(identityString, initialData), identityString.length + 4),
+                is(identityString.length));
+        assertThat("Only the valid bytes are considered",
+                BluetoothUtils.getHandshakeMessageLength(new byte[256], 10), is(10));
+        assertThat("The length is zero if there is nothing to resolve",
+                BluetoothUtils.getHandshakeMessageLength(null, 10), is(0));
+    }
+
+    private static byte[] concatenate(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
     @Test
     public void testGetBluetoothMacAddressFromSocket() throws Exception {
         String macAddress = "0A:1B:2C:3D:4E:5F";
@@ -168,4 +255,22 @@ public class BluetoothUtilsTest {
                 BluetoothUtils.getPreviouslyUsedAlternativeChannelOrPort(),
                 is(MAX_ALTERNATIVE_CHANNEL - 2));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCreateBluetoothSocketToServiceRecordWithNextPort() throws Exception {
+        BluetoothSocketFactory mockBluetoothSocketFactory = mock(BluetoothSocketFactory.class);
+        UUID serviceRecordUuid = UUID.randomUUID();
+        BluetoothUtils.setNextAlternativeChannelOrPort(5);
+        when(mockBluetoothSocketFactory.createSocketToServiceRecord(
+                mMockBluetoothDevice, serviceRecordUuid, 5, false)).thenReturn(mMockBluetoothSocket);
+
+        assertThat("The socket is created by the given factory",
+                BluetoothUtils.createBluetoothSocketToServiceRecordWithNextPort(
+                        mockBluetoothSocketFactory, mMockBluetoothDevice, serviceRecordUuid, false),
+                is(mMockBluetoothSocket));
+        assertThat("The channel used is stored",
+                BluetoothUtils.getPreviouslyUsedAlternativeChannelOrPort(), is(5));
+        verify(mockBluetoothSocketFactory, times(1)).createSocketToServiceRecord(
+                mMockBluetoothDevice, serviceRecordUuid, 5, false);
+    }
+}
@@ -0,0 +1,90 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.UUID;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+/*
+ The hidden constructor of BluetoothSocket, the hidden methods of BluetoothDevice and the private
+ fields of the sockets are not available in the Android SDK used for unit testing. Thus, these
+ tests cover the fallbacks.
+*/
+public class CachedBluetoothSocketFactoryTest {
+    @Mock
+    BluetoothDevice mMockBluetoothDevice;
+    @Mock
+    BluetoothSocket mMockBluetoothSocket;
+    @Mock
+    BluetoothServerSocket mMockBluetoothServerSocket;
+
+    private CachedBluetoothSocketFactory mBluetoothSocketFactory;
+    private UUID mServiceRecordUuid;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mBluetoothSocketFactory = new CachedBluetoothSocketFactory();
+        mServiceRecordUuid = UUID.randomUUID();
+    }
+
+    @Test
+    public void testGetInstance() throws Exception {
+        assertThat("The shared instance is reused", CachedBluetoothSocketFactory.getInstance(),
+                is(CachedBluetoothSocketFactory.getInstance()));
+    }
+
+    @Test
+    public void testCreateInsecureSocketToServiceRecord() throws Exception {
+        when(mMockBluetoothDevice.createInsecureRfcommSocketToServiceRecord(mServiceRecordUuid))
+                .thenReturn(mMockBluetoothSocket);
+
+        assertThat("The public API is used",
+                mBluetoothSocketFactory.createInsecureSocketToServiceRecord(mMockBluetoothDevice, mServiceRecordUuid),
+                is(mMockBluetoothSocket));
+    }
+
+    @Test
+    public void testCreateSocketToServiceRecord_fallback() throws Exception {
+        when(mMockBluetoothDevice.createInsecureRfcommSocketToServiceRecord(mServiceRecordUuid))
+                .thenReturn(mMockBluetoothSocket);
+
+        assertThat("Falls back to the public API, if the constructor is not available",
+                mBluetoothSocketFactory.createSocketToServiceRecord(
+                        mMockBluetoothDevice, mServiceRecordUuid, 5, false),
+                is(mMockBluetoothSocket));
+        assertThat("The failed lookup is not retried, but the fallback still works",
+                mBluetoothSocketFactory.createSocketToServiceRecord(
+                        mMockBluetoothDevice, mServiceRecordUuid, 6, false),
+                is(mMockBluetoothSocket));
+    }
+
+    @Test
+    public void testCreateSocket_methodNotAvailable() throws Exception {
+        assertThat("No socket, if the method is not available",
+                mBluetoothSocketFactory.createSocket(mMockBluetoothDevice, 5, false), is(nullValue()));
+        assertThat("No socket, if the method is not available",
+                mBluetoothSocketFactory.createSocket(mMockBluetoothDevice, 5, true), is(nullValue()));
+    }
+
+    @Test
+    public void testPortAndTypeToString_fieldsNotAvailable() throws Exception {
+        assertThat("Empty string, if the fields are not available",
+                mBluetoothSocketFactory.portAndTypeToString(mMockBluetoothSocket), is(""));
+        assertThat("Empty string, if the fields are not available",
+                mBluetoothSocketFactory.portAndTypeToString(mMockBluetoothServerSocket), is(""));
+        assertThat("Empty string, if no socket",
+                mBluetoothSocketFactory.portAndTypeToString((BluetoothSocket) null), is(""));
+    }
+}
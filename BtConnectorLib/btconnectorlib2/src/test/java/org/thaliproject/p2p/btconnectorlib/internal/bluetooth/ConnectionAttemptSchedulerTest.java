@@ -0,0 +1,164 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.when;
+
+public class ConnectionAttemptSchedulerTest {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    @Mock
+    BluetoothClientThread mMockFirstClientThread;
+    @Mock
+    BluetoothClientThread mMockSecondClientThread;
+    @Mock
+    BluetoothClientThread mMockThirdClientThread;
+    @Mock
+    PeerProperties mMockFirstPeerProperties;
+    @Mock
+    PeerProperties mMockSecondPeerProperties;
+    @Mock
+    PeerProperties mMockThirdPeerProperties;
+    private ConnectionAttemptScheduler mConnectionAttemptScheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mMockFirstClientThread.getPeerProperties()).thenReturn(mMockFirstPeerProperties);
+        when(mMockSecondClientThread.getPeerProperties()).thenReturn(mMockSecondPeerProperties);
+        when(mMockThirdClientThread.getPeerProperties()).thenReturn(mMockThirdPeerProperties);
+        mConnectionAttemptScheduler = new ConnectionAttemptScheduler();
+    }
+
+    @Test
+    public void testAdd_exception() throws Exception {
+        thrown.expect(NullPointerException.class);
+        mConnectionAttemptScheduler.add(null, ConnectionAttemptScheduler.DEFAULT_PRIORITY);
+    }
+
+    @Test
+    public void testPollNext_concurrencyLimit() throws Exception {
+        mConnectionAttemptScheduler.setMaxNumberOfConcurrentConnectionAttempts(1);
+        mConnectionAttemptScheduler.add(mMockFirstClientThread, 0);
+        mConnectionAttemptScheduler.add(mMockSecondClientThread, 0);
+
+        assertThat("The attempt starts when no attempts are running",
+                mConnectionAttemptScheduler.pollNext(0), is(mMockFirstClientThread));
+        assertThat("No attempt starts when the limit is reached",
+                mConnectionAttemptScheduler.pollNext(1), is(nullValue()));
+        assertThat("The attempt remains queued", mConnectionAttemptScheduler.getQueueDepth(), is(1));
+
+        mConnectionAttemptScheduler.setMaxNumberOfConcurrentConnectionAttempts(0);
+
+        assertThat("The attempt starts when the number is not limited",
+                mConnectionAttemptScheduler.pollNext(1), is(mMockSecondClientThread));
+        assertThat("Nothing is returned when the queue is empty",
+                mConnectionAttemptScheduler.pollNext(0), is(nullValue()));
+        assertThat("The started attempts are counted",
+                mConnectionAttemptScheduler.getNumberOfConnectionAttemptsStarted(), is(2L));
+        assertThat("The maximum queue depth is recorded",
+                mConnectionAttemptScheduler.getMaxQueueDepth(), is(2));
+    }
+
+    @Test
+    public void testPollNext_order() throws Exception {
+        mConnectionAttemptScheduler.setPeerScorer(new ConnectionAttemptScheduler.PeerScorer() {
+            @Override
+            public double getScore(PeerProperties peerProperties) {
+                return (peerProperties == mMockThirdPeerProperties) ? 1d : 0d;
+            }
+        });
+
+        mConnectionAttemptScheduler.add(mMockFirstClientThread, 0);
+        mConnectionAttemptScheduler.add(mMockSecondClientThread, 0);
+        mConnectionAttemptScheduler.add(mMockThirdClientThread, 0);
+
+        assertThat("The peer with the highest score starts first",
+                mConnectionAttemptScheduler.pollNext(0), is(mMockThirdClientThread));
+        assertThat("The peers with the same score start in the order added",
+                mConnectionAttemptScheduler.pollNext(0), is(mMockFirstClientThread));
+
+        mConnectionAttemptScheduler.add(mMockThirdClientThread, 1);
+
+        assertThat("The attempt with a higher priority starts first",
+                mConnectionAttemptScheduler.pollNext(0), is(mMockThirdClientThread));
+        assertThat("The remaining attempt starts last",
+                mConnectionAttemptScheduler.pollNext(0), is(mMockSecondClientThread));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        mConnectionAttemptScheduler.add(mMockFirstClientThread, 0);
+        mConnectionAttemptScheduler.add(mMockSecondClientThread, 0);
+
+        assertThat("Nothing is removed for a peer not queued",
+                mConnectionAttemptScheduler.remove(mMockThirdPeerProperties), is(nullValue()));
+        assertThat("The attempt to the given peer is removed",
+                mConnectionAttemptScheduler.remove(mMockSecondPeerProperties), is(mMockSecondClientThread));
+        assertThat("The other attempt remains queued", mConnectionAttemptScheduler.getQueueDepth(), is(1));
+
+        assertThat("All the remaining attempts are removed",
+                mConnectionAttemptScheduler.removeAll().size(), is(1));
+        assertThat("The queue is empty", mConnectionAttemptScheduler.getQueueDepth(), is(0));
+        assertThat("The removed attempts are counted as cancelled",
+                mConnectionAttemptScheduler.getNumberOfConnectionAttemptsCancelled(), is(2L));
+        assertThat("No wait time is recorded for cancelled attempts",
+                mConnectionAttemptScheduler.getAverageWaitTimeInMilliseconds(), is(0d));
+    }
+
+    @Test
+    public void testJoin() throws Exception {
+        when(mMockFirstClientThread.getBluetoothDeviceAddress()).thenReturn("01:02:03:04:05:06");
+        when(mMockSecondClientThread.getBluetoothDeviceAddress()).thenReturn("06:05:04:03:02:01");
+        mConnectionAttemptScheduler.add(mMockFirstClientThread, 0);
+        mConnectionAttemptScheduler.add(mMockSecondClientThread, 0);
+
+        assertThat("Cannot join without an address",
+                mConnectionAttemptScheduler.join(null, 0), is(false));
+        assertThat("Cannot join when no attempt to the device is pending",
+                mConnectionAttemptScheduler.join("0A:0B:0C:0D:0E:0F", 0), is(false));
+        assertThat("The request is joined to the pending attempt",
+                mConnectionAttemptScheduler.join("06:05:04:03:02:01", 1), is(true));
+        assertThat("No attempt is added", mConnectionAttemptScheduler.getQueueDepth(), is(2));
+        assertThat("The joined request raised the priority of the attempt",
+                mConnectionAttemptScheduler.pollNext(0), is(mMockSecondClientThread));
+
+        mConnectionAttemptScheduler.onConnectionAttemptCoalesced();
+
+        assertThat("The coalesced requests are counted",
+                mConnectionAttemptScheduler.getNumberOfConnectionAttemptsCoalesced(), is(2L));
+    }
+
+    @Test
+    public void testJoin_addressCaseIsIgnored() throws Exception {
+        when(mMockFirstClientThread.getBluetoothDeviceAddress()).thenReturn("0a:0b:0c:0d:0e:0f");
+        mConnectionAttemptScheduler.add(mMockFirstClientThread, 0);
+
+        assertThat("The request is joined regardless of the case",
+                mConnectionAttemptScheduler.join("0A:0B:0C:0D:0E:0F", 0), is(true));
+        assertThat("No attempt is added", mConnectionAttemptScheduler.getQueueDepth(), is(1));
+    }
+
+    @Test
+    public void testWaitTime() throws Exception {
+        mConnectionAttemptScheduler.add(mMockFirstClientThread, 0);
+        Thread.sleep(20);
+        mConnectionAttemptScheduler.pollNext(0);
+
+        assertThat("The wait time is recorded",
+                mConnectionAttemptScheduler.getAverageWaitTimeInMilliseconds() >= 20d, is(true));
+        assertThat("The maximum wait time is recorded",
+                mConnectionAttemptScheduler.getMaxWaitTimeInMilliseconds()
+                        >= mConnectionAttemptScheduler.getAverageWaitTimeInMilliseconds(), is(true));
+    }
+}
@@ -0,0 +1,192 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConnectionCircuitBreakerTest {
+
+    private static final String ADDRESS_1 = "01:02:03:04:05:06";
+    private static final String ADDRESS_2 = "06:05:04:03:02:01";
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    private ConnectionCircuitBreaker mConnectionCircuitBreaker;
+
+    @Before
+    public void setUp() throws Exception {
+        mConnectionCircuitBreaker = new ConnectionCircuitBreaker(new Random(1));
+        mConnectionCircuitBreaker.setFailureThreshold(2);
+        mConnectionCircuitBreaker.setBackoff(100, 400);
+    }
+
+    @Test
+    public void testConstructor_exception() throws Exception {
+        thrown.expect(NullPointerException.class);
+        new ConnectionCircuitBreaker(null);
+    }
+
+    @Test
+    public void testSetBackoff_exception() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        mConnectionCircuitBreaker.setBackoff(200, 100);
+    }
+
+    @Test
+    public void testGetBackoffWithJitter() throws Exception {
+        Random random = new Random(1);
+
+        for (int i = 0; i < 100; i++) {
+            long backoff = ConnectionCircuitBreaker.getBackoffWithJitter(1, 100, 1000, random);
+            assertThat(backoff >= 50L, is(true));
+            assertThat(backoff <= 100L, is(true));
+
+            backoff = ConnectionCircuitBreaker.getBackoffWithJitter(3, 100, 1000, random);
+            assertThat("The backoff doubles per failure", backoff >= 200L, is(true));
+            assertThat(backoff <= 400L, is(true));
+
+            backoff = ConnectionCircuitBreaker.getBackoffWithJitter(100, 100, 1000, random);
+            assertThat("The backoff is capped", backoff >= 500L, is(true));
+            assertThat(backoff <= 1000L, is(true));
+        }
+
+        assertThat(ConnectionCircuitBreaker.getBackoffWithJitter(1, 0, 0, random), is(0L));
+    }
+
+    @Test
+    public void testOpenAfterThreshold() throws Exception {
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+
+        assertThat(mConnectionCircuitBreaker.getState(ADDRESS_1), is(ConnectionCircuitBreaker.State.CLOSED));
+        assertThat(mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(true));
+        assertThat(mConnectionCircuitBreaker.getNumberOfConsecutiveFailures(ADDRESS_1), is(1));
+
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+
+        assertThat(mConnectionCircuitBreaker.getState(ADDRESS_1), is(ConnectionCircuitBreaker.State.OPEN));
+        assertThat(mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(false));
+        assertThat(mConnectionCircuitBreaker.getTimeUntilRetryInMilliseconds(ADDRESS_1) > 0, is(true));
+        assertThat(mConnectionCircuitBreaker.getNumberOfConnectionAttemptsRejected(), is(1L));
+
+        assertThat("Other peers are not affected",
+                mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_2), is(true));
+        assertThat(mConnectionCircuitBreaker.getState(null), is(ConnectionCircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void testHalfOpen() throws Exception {
+        mConnectionCircuitBreaker.setBackoff(10, 10);
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+        Thread.sleep(20);
+
+        assertThat(mConnectionCircuitBreaker.getState(ADDRESS_1), is(ConnectionCircuitBreaker.State.HALF_OPEN));
+        assertThat("A trial attempt is allowed",
+                mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(true));
+        assertThat("Only a single trial attempt is allowed",
+                mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(false));
+
+        mConnectionCircuitBreaker.onConnectionAttemptCancelled(ADDRESS_1);
+
+        assertThat("A new trial attempt is allowed after a cancellation",
+                mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(true));
+
+        mConnectionCircuitBreaker.onConnectionSucceeded(ADDRESS_1);
+
+        assertThat(mConnectionCircuitBreaker.getState(ADDRESS_1), is(ConnectionCircuitBreaker.State.CLOSED));
+        assertThat(mConnectionCircuitBreaker.getNumberOfConsecutiveFailures(ADDRESS_1), is(0));
+    }
+
+    @Test
+    public void testTrialAttemptTimeout() throws Exception {
+        mConnectionCircuitBreaker.setBackoff(10, 10);
+        mConnectionCircuitBreaker.setTrialConnectionAttemptTimeout(50);
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+        Thread.sleep(20);
+
+        assertThat(mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(true));
+        assertThat("The trial attempt is running",
+                mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(false));
+
+        Thread.sleep(100);
+
+        assertThat("A new trial attempt is allowed, since the outcome was not reported in time",
+                mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(true));
+        assertThat("Only a single new trial attempt is allowed",
+                mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(false));
+    }
+
+    @Test
+    public void testSetTrialConnectionAttemptTimeout_exception() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        mConnectionCircuitBreaker.setTrialConnectionAttemptTimeout(-1);
+    }
+
+    @Test
+    public void testTrialAttemptFails() throws Exception {
+        mConnectionCircuitBreaker.setBackoff(10, 1000);
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+        Thread.sleep(20);
+
+        assertThat(mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(true));
+
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+
+        assertThat("The circuit is opened again",
+                mConnectionCircuitBreaker.getState(ADDRESS_1), is(ConnectionCircuitBreaker.State.OPEN));
+        assertThat("The backoff is longer",
+                mConnectionCircuitBreaker.getTimeUntilRetryInMilliseconds(ADDRESS_1) > 5, is(true));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        mConnectionCircuitBreaker.setFailureThreshold(0);
+
+        for (int i = 0; i < 10; i++) {
+            mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+        }
+
+        assertThat(mConnectionCircuitBreaker.allowConnectionAttempt(ADDRESS_1), is(true));
+        assertThat(mConnectionCircuitBreaker.getNumberOfConsecutiveFailures(ADDRESS_1), is(10));
+    }
+
+    @Test
+    public void testResetAndClear() throws Exception {
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_1);
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_2);
+        mConnectionCircuitBreaker.onConnectionFailed(ADDRESS_2);
+
+        mConnectionCircuitBreaker.reset(ADDRESS_1);
+
+        assertThat(mConnectionCircuitBreaker.getState(ADDRESS_1), is(ConnectionCircuitBreaker.State.CLOSED));
+        assertThat(mConnectionCircuitBreaker.getState(ADDRESS_2), is(ConnectionCircuitBreaker.State.OPEN));
+
+        mConnectionCircuitBreaker.clear();
+
+        assertThat(mConnectionCircuitBreaker.getState(ADDRESS_2), is(ConnectionCircuitBreaker.State.CLOSED));
+    }
+
+    @Test
+    public void testAddressCaseIsIgnored() throws Exception {
+        mConnectionCircuitBreaker.onConnectionFailed("0a:1b:2c:3d:4e:5f");
+        mConnectionCircuitBreaker.onConnectionFailed(" 0A:1B:2C:3D:4E:5F");
+
+        assertThat("The failures are counted for the same peer",
+                mConnectionCircuitBreaker.getState("0A:1B:2C:3D:4E:5F"), is(ConnectionCircuitBreaker.State.OPEN));
+        assertThat(mConnectionCircuitBreaker.allowConnectionAttempt("0a:1b:2c:3d:4e:5f"), is(false));
+
+        mConnectionCircuitBreaker.onConnectionSucceeded("0A:1b:2C:3d:4E:5f");
+
+        assertThat("The circuit is closed regardless of the case",
+                mConnectionCircuitBreaker.getState("0a:1b:2c:3d:4e:5f"), is(ConnectionCircuitBreaker.State.CLOSED));
+    }
+}
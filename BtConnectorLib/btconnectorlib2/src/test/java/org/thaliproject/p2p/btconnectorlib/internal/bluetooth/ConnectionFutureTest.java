@@ -0,0 +1,224 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ConnectionFutureTest {
+    @Mock
+    BluetoothSocket mMockBluetoothSocket;
+    @Mock
+    PeerProperties mMockPeerProperties;
+    @Mock
+    PeerProperties mMockConnectedPeerProperties;
+
+    private ConnectionFuture mConnectionFuture;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mConnectionFuture = new ConnectionFuture(mMockPeerProperties);
+    }
+
+    @Test
+    public void testInitialValues() throws Exception {
+        assertThat("Pending", mConnectionFuture.isDone(), is(false));
+        assertThat("Not cancelled", mConnectionFuture.isCancelled(), is(false));
+        assertThat("The given peer properties", mConnectionFuture.getPeerProperties(), is(mMockPeerProperties));
+        assertThat("No error", mConnectionFuture.getErrorMessage(), is(nullValue()));
+    }
+
+    @Test
+    public void testSetConnected() throws Exception {
+        byte[] initialData = new byte[] { 1, 2, 3 };
+
+        assertThat("Completed", mConnectionFuture.setConnected(
+                mMockBluetoothSocket, mMockConnectedPeerProperties, initialData), is(true));
+        assertThat("Completed only once", mConnectionFuture.setFailed("error"), is(false));
+        assertThat("The socket is the result", mConnectionFuture.get(), is(mMockBluetoothSocket));
+        assertThat("Done", mConnectionFuture.isDone(), is(true));
+        assertThat("The resolved peer properties",
+                mConnectionFuture.getPeerProperties(), is(mMockConnectedPeerProperties));
+        assertThat("The initial data", mConnectionFuture.getInitialData(), is(initialData));
+        assertThat("Cannot be cancelled once completed", mConnectionFuture.cancel(true), is(false));
+    }
+
+    @Test
+    public void testSetFailed() throws Exception {
+        mConnectionFuture.setFailed("error");
+
+        try {
+            mConnectionFuture.get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertThat("The cause is an IOException", e.getCause(), instanceOf(IOException.class));
+            assertThat("The error message", e.getCause().getMessage(), is("error"));
+        }
+
+        assertThat("Not timed out", mConnectionFuture.isTimedOut(), is(false));
+    }
+
+    @Test
+    public void testSetTimedOut() throws Exception {
+        mConnectionFuture.setTimedOut();
+
+        try {
+            mConnectionFuture.get();
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            assertThat("The cause is a TimeoutException", e.getCause(), instanceOf(TimeoutException.class));
+        }
+
+        assertThat("Timed out", mConnectionFuture.isTimedOut(), is(true));
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        ConnectionFuture.CancellationListener mockCancellationListener =
+                mock(ConnectionFuture.CancellationListener.class);
+        mConnectionFuture.setCancellationListener(mockCancellationListener);
+
+        assertThat("Cancelled", mConnectionFuture.cancel(true), is(true));
+        assertThat("Cancelled", mConnectionFuture.isCancelled(), is(true));
+        assertThat("Cancelled only once", mConnectionFuture.cancel(true), is(false));
+        verify(mockCancellationListener, times(1)).onConnectionFutureCancelled(mConnectionFuture);
+
+        try {
+            mConnectionFuture.get();
+            fail("CancellationException expected");
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSetCancelled() throws Exception {
+        ConnectionFuture.CancellationListener mockCancellationListener =
+                mock(ConnectionFuture.CancellationListener.class);
+        mConnectionFuture.setCancellationListener(mockCancellationListener);
+
+        assertThat("Cancelled", mConnectionFuture.setCancelled(), is(true));
+        assertThat("Cancelled", mConnectionFuture.isCancelled(), is(true));
+        verify(mockCancellationListener, never()).onConnectionFutureCancelled(mConnectionFuture);
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testGet_timeout() throws Exception {
+        mConnectionFuture.get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testGet_completedByAnotherThread() throws Exception {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+
+                mConnectionFuture.setConnected(mMockBluetoothSocket, mMockPeerProperties, null);
+            }
+        }.start();
+
+        assertThat("The waiting thread gets the result",
+                mConnectionFuture.get(5, TimeUnit.SECONDS), is(mMockBluetoothSocket));
+    }
+
+    @Test
+    public void testAddListener() throws Exception {
+        final AtomicInteger numberOfListenerCalls = new AtomicInteger(0);
+        final AtomicInteger numberOfExecutions = new AtomicInteger(0);
+        Runnable listener = new Runnable() {
+            @Override
+            public void run() {
+                numberOfListenerCalls.incrementAndGet();
+            }
+        };
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                numberOfExecutions.incrementAndGet();
+                runnable.run();
+            }
+        };
+
+        mConnectionFuture.addListener(listener, executor);
+        mConnectionFuture.addListener(listener, null);
+
+        assertThat("Not called before completion", numberOfListenerCalls.get(), is(0));
+
+        mConnectionFuture.setFailed("error");
+
+        assertThat("Called on completion", numberOfListenerCalls.get(), is(2));
+        assertThat("The given executor is used", numberOfExecutions.get(), is(1));
+
+        mConnectionFuture.addListener(listener, executor);
+
+        assertThat("Called right away, if already completed", numberOfListenerCalls.get(), is(3));
+        assertThat("The given executor is used", numberOfExecutions.get(), is(2));
+    }
+
+    @Test
+    public void testAddListener_listenerExecutor() throws Exception {
+        final AtomicInteger numberOfListenerCalls = new AtomicInteger(0);
+        final AtomicInteger numberOfExecutions = new AtomicInteger(0);
+        Executor listenerExecutor = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                numberOfExecutions.incrementAndGet();
+                runnable.run();
+            }
+        };
+        ConnectionFuture connectionFuture = new ConnectionFuture(mMockPeerProperties, listenerExecutor);
+
+        connectionFuture.addListener(new Runnable() {
+            @Override
+            public void run() {
+                numberOfListenerCalls.incrementAndGet();
+            }
+        }, null);
+        connectionFuture.setFailed("error");
+
+        assertThat("Called on completion", numberOfListenerCalls.get(), is(1));
+        assertThat("The listener executor of the future is used", numberOfExecutions.get(), is(1));
+    }
+
+    @Test
+    public void testCreateCompleted() throws Exception {
+        ConnectionFuture connectionFuture =
+                ConnectionFuture.createConnected(mMockBluetoothSocket, mMockPeerProperties);
+
+        assertThat("Done", connectionFuture.isDone(), is(true));
+        assertThat("The socket is the result", connectionFuture.get(), is(mMockBluetoothSocket));
+
+        connectionFuture = ConnectionFuture.createFailed(mMockPeerProperties, "error");
+
+        assertThat("Done", connectionFuture.isDone(), is(true));
+        assertThat("Not cancelled", connectionFuture.isCancelled(), is(false));
+        assertThat("The error message", connectionFuture.getErrorMessage(), is("error"));
+    }
+}
@@ -0,0 +1,170 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ConnectionPoolTest {
+
+    private static final String ADDRESS_1 = "01:02:03:04:05:06";
+    private static final String ADDRESS_2 = "06:05:04:03:02:01";
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    private ConnectionPool mConnectionPool;
+
+    @Before
+    public void setUp() throws Exception {
+        mConnectionPool = new ConnectionPool(10000, 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mConnectionPool.close();
+    }
+
+    private BluetoothSocket createConnectedSocket() {
+        BluetoothSocket bluetoothSocket = mock(BluetoothSocket.class);
+        when(bluetoothSocket.isConnected()).thenReturn(true);
+        return bluetoothSocket;
+    }
+
+    @Test
+    public void testConstructor_exception() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        new ConnectionPool(0, 1);
+    }
+
+    @Test
+    public void testReleaseAndLease() throws Exception {
+        BluetoothSocket bluetoothSocket = createConnectedSocket();
+
+        assertThat("Nothing is pooled initially", mConnectionPool.lease(ADDRESS_1), is(nullValue()));
+
+        mConnectionPool.track(ADDRESS_1, bluetoothSocket);
+
+        assertThat(mConnectionPool.getNumberOfLeasedConnections(), is(1));
+        assertThat(mConnectionPool.release(bluetoothSocket), is(true));
+        assertThat(mConnectionPool.getNumberOfLeasedConnections(), is(0));
+        assertThat(mConnectionPool.hasIdleConnection(ADDRESS_1), is(true));
+        assertThat("Other peers have no idle connection", mConnectionPool.lease(ADDRESS_2), is(nullValue()));
+        assertThat("The returned connection is reused",
+                mConnectionPool.lease(ADDRESS_1), is(sameInstance(bluetoothSocket)));
+        assertThat(mConnectionPool.getNumberOfLeasedConnections(), is(1));
+        assertThat(mConnectionPool.getNumberOfIdleConnections(), is(0));
+        assertThat(mConnectionPool.getNumberOfHits(), is(1L));
+        assertThat(mConnectionPool.getNumberOfMisses(), is(2L));
+        verify(bluetoothSocket, never()).close();
+    }
+
+    @Test
+    public void testRelease_notLeasedOrDisconnected() throws Exception {
+        BluetoothSocket bluetoothSocket = createConnectedSocket();
+
+        assertThat("Untracked sockets are not accepted", mConnectionPool.release(bluetoothSocket), is(false));
+
+        mConnectionPool.track(ADDRESS_1, bluetoothSocket);
+        when(bluetoothSocket.isConnected()).thenReturn(false);
+
+        assertThat("Disconnected sockets are not accepted", mConnectionPool.release(bluetoothSocket), is(false));
+        verify(bluetoothSocket).close();
+    }
+
+    @Test
+    public void testTrack_forgetsDisconnectedLeasedConnections() throws Exception {
+        BluetoothSocket bluetoothSocket = createConnectedSocket();
+        BluetoothSocket otherBluetoothSocket = createConnectedSocket();
+        mConnectionPool.track(ADDRESS_1, bluetoothSocket);
+        when(bluetoothSocket.isConnected()).thenReturn(false);
+
+        mConnectionPool.track(ADDRESS_2, otherBluetoothSocket);
+
+        assertThat("The disconnected socket is no longer tracked",
+                mConnectionPool.getNumberOfLeasedConnections(), is(1));
+        assertThat(mConnectionPool.release(bluetoothSocket), is(false));
+    }
+
+    @Test
+    public void testLease_disconnectedWhileIdle() throws Exception {
+        BluetoothSocket bluetoothSocket = createConnectedSocket();
+        mConnectionPool.track(ADDRESS_1, bluetoothSocket);
+        mConnectionPool.release(bluetoothSocket);
+        when(bluetoothSocket.isConnected()).thenReturn(false);
+
+        assertThat(mConnectionPool.lease(ADDRESS_1), is(nullValue()));
+        assertThat(mConnectionPool.getNumberOfIdleConnections(), is(0));
+        verify(bluetoothSocket).close();
+    }
+
+    @Test
+    public void testMaxNumberOfIdleConnections() throws Exception {
+        BluetoothSocket[] bluetoothSockets = new BluetoothSocket[3];
+
+        for (int i = 0; i < bluetoothSockets.length; i++) {
+            bluetoothSockets[i] = createConnectedSocket();
+            mConnectionPool.track((i == 2) ? ADDRESS_2 : ADDRESS_1, bluetoothSockets[i]);
+            mConnectionPool.release(bluetoothSockets[i]);
+        }
+
+        assertThat(mConnectionPool.getNumberOfIdleConnections(), is(2));
+        assertThat(mConnectionPool.getNumberOfEvictions(), is(1L));
+        verify(bluetoothSockets[0]).close();
+        assertThat("The remaining connection to the peer is reused",
+                mConnectionPool.lease(ADDRESS_1), is(sameInstance(bluetoothSockets[1])));
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        ConnectionPool connectionPool = new ConnectionPool(50, 2);
+        BluetoothSocket bluetoothSocket = createConnectedSocket();
+        connectionPool.track(ADDRESS_1, bluetoothSocket);
+        connectionPool.release(bluetoothSocket);
+
+        verify(bluetoothSocket, timeout(1000)).close();
+        assertThat(connectionPool.getNumberOfIdleConnections(), is(0));
+        assertThat(connectionPool.getNumberOfEvictions(), is(1L));
+        connectionPool.close();
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        BluetoothSocket bluetoothSocket = createConnectedSocket();
+        BluetoothSocket otherBluetoothSocket = createConnectedSocket();
+        mConnectionPool.track(ADDRESS_1, bluetoothSocket);
+        mConnectionPool.track(ADDRESS_2, otherBluetoothSocket);
+        mConnectionPool.release(bluetoothSocket);
+
+        mConnectionPool.close();
+
+        verify(bluetoothSocket).close();
+        assertThat(mConnectionPool.getNumberOfIdleConnections(), is(0));
+        assertThat("The leased connections are no longer tracked",
+                mConnectionPool.release(otherBluetoothSocket), is(false));
+    }
+
+    @Test
+    public void testAddressCaseIsIgnored() throws Exception {
+        BluetoothSocket bluetoothSocket = createConnectedSocket();
+
+        mConnectionPool.track("0a:1b:2c:3d:4e:5f", bluetoothSocket);
+        mConnectionPool.release(bluetoothSocket);
+
+        assertThat(mConnectionPool.hasIdleConnection("0A:1B:2C:3D:4E:5F"), is(true));
+        assertThat("The connection is reused regardless of the case",
+                mConnectionPool.lease("0A:1B:2C:3D:4E:5F"), is(sameInstance(bluetoothSocket)));
+    }
+}
@@ -0,0 +1,118 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConnectionTraceStatisticsTest {
+    ConnectionTraceStatistics mStatistics;
+
+    @Before
+    public void setUp() throws Exception {
+        mStatistics = new ConnectionTraceStatistics(4);
+    }
+
+    @Test
+    public void testInitialValues() throws Exception {
+        assertThat("No attempts", mStatistics.getNumberOfAttempts(ConnectionTrace.Outcome.CONNECTED), is(0L));
+        assertThat("No samples", mStatistics.getNumberOfSamples(ConnectionTrace.Phase.SOCKET_CONNECT), is(0));
+        assertThat("No percentile without samples",
+                mStatistics.getPhasePercentileInMilliseconds(ConnectionTrace.Phase.SOCKET_CONNECT, 50), is(0d));
+        assertThat("No percentile without samples", mStatistics.getConnectedPercentileInMilliseconds(50), is(0d));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_invalidWindowSize() throws Exception {
+        new ConnectionTraceStatistics(0);
+    }
+
+    @Test
+    public void testComplete() throws Exception {
+        final List<ConnectionTrace> completedTraces = new ArrayList<ConnectionTrace>();
+
+        mStatistics.setListener(new ConnectionTraceStatistics.Listener() {
+            @Override
+            public void onConnectionTraceCompleted(ConnectionTrace connectionTrace) {
+                completedTraces.add(connectionTrace);
+            }
+        });
+
+        ConnectionTrace connectionTrace = createTrace(ConnectionTrace.Phase.SOCKET_CONNECT);
+        mStatistics.complete(connectionTrace, ConnectionTrace.Outcome.CONNECTED);
+        mStatistics.complete(connectionTrace, ConnectionTrace.Outcome.FAILED);
+        mStatistics.complete(createTrace(ConnectionTrace.Phase.HANDSHAKE_READ), ConnectionTrace.Outcome.TIMED_OUT);
+        mStatistics.complete(null, ConnectionTrace.Outcome.FAILED);
+
+        assertThat("The trace is completed", connectionTrace.getOutcome(), is(ConnectionTrace.Outcome.CONNECTED));
+        assertThat("The listener is notified once per trace", completedTraces.size(), is(2));
+        assertThat("The connected attempt is counted",
+                mStatistics.getNumberOfAttempts(ConnectionTrace.Outcome.CONNECTED), is(1L));
+        assertThat("A trace is counted only once",
+                mStatistics.getNumberOfAttempts(ConnectionTrace.Outcome.FAILED), is(0L));
+        assertThat("The timed out attempt is counted",
+                mStatistics.getNumberOfAttempts(ConnectionTrace.Outcome.TIMED_OUT), is(1L));
+        assertThat("The completed phases are sampled",
+                mStatistics.getNumberOfSamples(ConnectionTrace.Phase.SOCKET_CONNECT), is(1));
+        assertThat("The completed phases are sampled regardless of the outcome",
+                mStatistics.getNumberOfSamples(ConnectionTrace.Phase.HANDSHAKE_READ), is(1));
+        assertThat("The phases not run are not sampled",
+                mStatistics.getNumberOfSamples(ConnectionTrace.Phase.SOCKET_CREATION), is(0));
+        assertThat("The total duration of the connected attempt is sampled",
+                mStatistics.getConnectedPercentileInMilliseconds(100)
+                        >= mStatistics.getPhasePercentileInMilliseconds(ConnectionTrace.Phase.SOCKET_CONNECT, 100),
+                is(true));
+    }
+
+    @Test
+    public void testPercentiles() throws Exception {
+        final long[] durationsInMilliseconds = { 40, 10, 30, 20, 5 };
+
+        for (long durationInMilliseconds : durationsInMilliseconds) {
+            ConnectionTrace connectionTrace = new ConnectionTrace(false, "00:11:22:33:44:55");
+            connectionTrace.onPhaseStarted(ConnectionTrace.Phase.SOCKET_CONNECT);
+            Thread.sleep(durationInMilliseconds);
+            connectionTrace.onPhaseCompleted(ConnectionTrace.Phase.SOCKET_CONNECT);
+            mStatistics.complete(connectionTrace, ConnectionTrace.Outcome.FAILED);
+        }
+
+        assertThat("Only the latest samples are kept",
+                mStatistics.getNumberOfSamples(ConnectionTrace.Phase.SOCKET_CONNECT), is(4));
+        assertThat("The oldest sample is dropped",
+                mStatistics.getPhasePercentileInMilliseconds(ConnectionTrace.Phase.SOCKET_CONNECT, 100) < 40d,
+                is(true));
+
+        final double median = mStatistics.getPhasePercentileInMilliseconds(ConnectionTrace.Phase.SOCKET_CONNECT, 50);
+        final double max = mStatistics.getPhasePercentileInMilliseconds(ConnectionTrace.Phase.SOCKET_CONNECT, 100);
+
+        assertThat("The median is the second smallest of four samples", median >= 10d && median < 20d, is(true));
+        assertThat("The maximum is the largest sample", max >= 30d, is(true));
+        assertThat("The minimum is the smallest sample",
+                mStatistics.getPhasePercentileInMilliseconds(ConnectionTrace.Phase.SOCKET_CONNECT, 0) < median,
+                is(true));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        mStatistics.complete(createTrace(ConnectionTrace.Phase.SOCKET_CONNECT), ConnectionTrace.Outcome.CONNECTED);
+
+        mStatistics.reset();
+
+        assertThat("The counters are reset",
+                mStatistics.getNumberOfAttempts(ConnectionTrace.Outcome.CONNECTED), is(0L));
+        assertThat("The samples are reset",
+                mStatistics.getNumberOfSamples(ConnectionTrace.Phase.SOCKET_CONNECT), is(0));
+        assertThat("The percentiles are reset", mStatistics.getConnectedPercentileInMilliseconds(50), is(0d));
+    }
+
+    private static ConnectionTrace createTrace(ConnectionTrace.Phase completedPhase) {
+        ConnectionTrace connectionTrace = new ConnectionTrace(false, "00:11:22:33:44:55");
+        connectionTrace.onPhaseStarted(completedPhase);
+        connectionTrace.onPhaseCompleted(completedPhase);
+        return connectionTrace;
+    }
+}
@@ -0,0 +1,78 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ConnectionTraceTest {
+    @Test
+    public void testInitialValues() throws Exception {
+        ConnectionTrace connectionTrace = new ConnectionTrace(true, null);
+
+        assertThat("The direction is stored", connectionTrace.isIncoming(), is(true));
+        assertThat("The address is not known", connectionTrace.getBluetoothMacAddress(), is(nullValue()));
+        assertThat("The port is not known", connectionTrace.getPort(), is(ConnectionTrace.PORT_UNKNOWN));
+        assertThat("The attempt is pending", connectionTrace.getOutcome(), is(ConnectionTrace.Outcome.PENDING));
+        assertThat("No retries", connectionTrace.getNumberOfRetries(), is(0));
+        assertThat("No phases run", connectionTrace.getPhaseCount(ConnectionTrace.Phase.HANDSHAKE_READ), is(0));
+    }
+
+    @Test
+    public void testPhases() throws Exception {
+        ConnectionTrace connectionTrace = new ConnectionTrace(false, "00:11:22:33:44:55");
+
+        connectionTrace.onPhaseStarted(ConnectionTrace.Phase.SOCKET_CONNECT);
+        Thread.sleep(10);
+        connectionTrace.onPhaseCompleted(ConnectionTrace.Phase.SOCKET_CONNECT);
+        final long firstDuration = connectionTrace.getPhaseDurationInNanoseconds(ConnectionTrace.Phase.SOCKET_CONNECT);
+        connectionTrace.onPhaseStarted(ConnectionTrace.Phase.SOCKET_CONNECT);
+        Thread.sleep(10);
+        connectionTrace.onPhaseCompleted(ConnectionTrace.Phase.SOCKET_CONNECT);
+        connectionTrace.setPort(3);
+
+        assertThat("The phase is run twice",
+                connectionTrace.getPhaseCount(ConnectionTrace.Phase.SOCKET_CONNECT), is(2));
+        assertThat("The second run is a retry", connectionTrace.getNumberOfRetries(), is(1));
+        assertThat("The first run is recorded", firstDuration >= 10000000L, is(true));
+        assertThat("The durations of the runs are summed",
+                connectionTrace.getPhaseDurationInNanoseconds(ConnectionTrace.Phase.SOCKET_CONNECT)
+                        >= firstDuration + 10000000L, is(true));
+        assertThat("The phase started after the attempt",
+                connectionTrace.getPhaseTimeStartedInNanoseconds(ConnectionTrace.Phase.SOCKET_CONNECT)
+                        >= connectionTrace.getTimeStartedInNanoseconds(), is(true));
+        assertThat("The port is stored", connectionTrace.getPort(), is(3));
+
+        connectionTrace.onPhaseCompleted(ConnectionTrace.Phase.HANDSHAKE_READ);
+
+        assertThat("A phase not started cannot be completed",
+                connectionTrace.getPhaseTimeCompletedInNanoseconds(ConnectionTrace.Phase.HANDSHAKE_READ), is(0L));
+    }
+
+    @Test
+    public void testComplete() throws Exception {
+        ConnectionTrace connectionTrace = new ConnectionTrace(false, "00:11:22:33:44:55");
+        connectionTrace.onPhaseStarted(ConnectionTrace.Phase.HANDSHAKE_WRITE);
+
+        assertThat("The outcome is set", connectionTrace.complete(ConnectionTrace.Outcome.TIMED_OUT), is(true));
+        assertThat("The outcome is set only once",
+                connectionTrace.complete(ConnectionTrace.Outcome.FAILED), is(false));
+        assertThat("The first outcome is kept", connectionTrace.getOutcome(), is(ConnectionTrace.Outcome.TIMED_OUT));
+
+        final long duration = connectionTrace.getDurationInNanoseconds();
+        Thread.sleep(5);
+        connectionTrace.onPhaseCompleted(ConnectionTrace.Phase.HANDSHAKE_WRITE);
+        connectionTrace.setPort(5);
+
+        assertThat("The duration no longer changes", connectionTrace.getDurationInNanoseconds(), is(duration));
+        assertThat("The running phase is not recorded after completion",
+                connectionTrace.getPhaseTimeCompletedInNanoseconds(ConnectionTrace.Phase.HANDSHAKE_WRITE), is(0L));
+        assertThat("The port no longer changes", connectionTrace.getPort(), is(ConnectionTrace.PORT_UNKNOWN));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testComplete_pending() throws Exception {
+        new ConnectionTrace(true, null).complete(ConnectionTrace.Outcome.PENDING);
+    }
+}
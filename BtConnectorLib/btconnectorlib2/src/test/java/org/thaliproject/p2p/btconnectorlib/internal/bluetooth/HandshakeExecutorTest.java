@@ -0,0 +1,215 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class HandshakeExecutorTest {
+    private static final int MAX_NUMBER_OF_THREADS = 2;
+    private static final long MAX_TIMEOUT = 5000;
+
+    @Mock
+    HandshakeExecutor.TimeoutListener mMockTimeoutListener;
+
+    HandshakeExecutor mHandshakeExecutor;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mHandshakeExecutor = new HandshakeExecutor(MAX_NUMBER_OF_THREADS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructor_InvalidNumberOfThreads() throws Exception {
+        new HandshakeExecutor(0);
+    }
+
+    @Test
+    public void testGetInstance() throws Exception {
+        assertThat("The same incoming instance is returned",
+                HandshakeExecutor.getIncomingInstance() == HandshakeExecutor.getIncomingInstance(), is(true));
+        assertThat("The same outgoing instance is returned",
+                HandshakeExecutor.getOutgoingInstance() == HandshakeExecutor.getOutgoingInstance(), is(true));
+        assertThat("The incoming and outgoing handshakes do not share the workers",
+                HandshakeExecutor.getIncomingInstance() == HandshakeExecutor.getOutgoingInstance(), is(false));
+        assertThat("The default number of threads is used",
+                HandshakeExecutor.getIncomingInstance().getMaxNumberOfHandshakeThreads(),
+                is(HandshakeExecutor.DEFAULT_MAX_NUMBER_OF_HANDSHAKE_THREADS));
+        assertThat("The default number of threads is used",
+                HandshakeExecutor.getOutgoingInstance().getMaxNumberOfHandshakeThreads(),
+                is(HandshakeExecutor.DEFAULT_MAX_NUMBER_OF_HANDSHAKE_THREADS));
+    }
+
+    @Test
+    public void testExecute_StalledIncomingHandshakesDoNotDelayOutgoing() throws Exception {
+        final HandshakeExecutor incomingHandshakeExecutor = HandshakeExecutor.getIncomingInstance();
+        final int numberOfStalledHandshakes = BluetoothServerThread.DEFAULT_MAX_NUMBER_OF_PENDING_HANDSHAKES;
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+
+        try {
+            // Peers connecting to us, but never sending their identity
+            for (int i = 0; i < numberOfStalledHandshakes; i++) {
+                BluetoothSocketIoThread stalledHandshakeThread = mock(BluetoothSocketIoThread.class);
+
+                doAnswer(new Answer<Void>() {
+                    @Override
+                    public Void answer(InvocationOnMock invocation) throws Throwable {
+                        releaseLatch.await(MAX_TIMEOUT, TimeUnit.MILLISECONDS);
+                        return null;
+                    }
+                }).when(stalledHandshakeThread).run();
+
+                incomingHandshakeExecutor.execute(stalledHandshakeThread, 0, mMockTimeoutListener, null);
+            }
+
+            BluetoothSocketIoThread outgoingHandshakeThread = mock(BluetoothSocketIoThread.class);
+            HandshakeExecutor.getOutgoingInstance().execute(
+                    outgoingHandshakeThread, 500, mMockTimeoutListener, null);
+
+            verify(outgoingHandshakeThread, timeout(400)).run();
+            Thread.sleep(200);
+            verify(mMockTimeoutListener, never()).onHandshakeTimeout(outgoingHandshakeThread);
+        } finally {
+            releaseLatch.countDown();
+        }
+    }
+
+    @Test
+    public void testExecute_ThreadCountIsBounded() throws Exception {
+        final int numberOfHandshakes = MAX_NUMBER_OF_THREADS * 3;
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final CountDownLatch completedLatch = new CountDownLatch(numberOfHandshakes);
+        final AtomicInteger numberOfRunningHandshakes = new AtomicInteger(0);
+        final AtomicInteger maxNumberOfRunningHandshakes = new AtomicInteger(0);
+
+        for (int i = 0; i < numberOfHandshakes; i++) {
+            BluetoothSocketIoThread handshakeThread = mock(BluetoothSocketIoThread.class);
+
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) throws Throwable {
+                    int running = numberOfRunningHandshakes.incrementAndGet();
+
+                    if (running > maxNumberOfRunningHandshakes.get()) {
+                        maxNumberOfRunningHandshakes.set(running);
+                    }
+
+                    releaseLatch.await(MAX_TIMEOUT, TimeUnit.MILLISECONDS);
+                    numberOfRunningHandshakes.decrementAndGet();
+                    completedLatch.countDown();
+                    return null;
+                }
+            }).when(handshakeThread).run();
+
+            mHandshakeExecutor.execute(handshakeThread, 0, mMockTimeoutListener, null);
+        }
+
+        assertThat("The number of threads does not exceed the maximum",
+                mHandshakeExecutor.getNumberOfHandshakeThreads(), is(MAX_NUMBER_OF_THREADS));
+        assertThat("The rest of the handshakes are queued",
+                mHandshakeExecutor.getNumberOfQueuedHandshakes() > 0, is(true));
+
+        releaseLatch.countDown();
+
+        assertThat("All the handshakes are run",
+                completedLatch.await(MAX_TIMEOUT, TimeUnit.MILLISECONDS), is(true));
+        assertThat("No more than the maximum number of handshakes were run simultaneously",
+                maxNumberOfRunningHandshakes.get() <= MAX_NUMBER_OF_THREADS, is(true));
+        verify(mMockTimeoutListener, never()).onHandshakeTimeout(any(BluetoothSocketIoThread.class));
+    }
+
+    @Test
+    public void testExecute_Timeout() throws Exception {
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+        final BluetoothSocketIoThread handshakeThread = mock(BluetoothSocketIoThread.class);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                releaseLatch.await(MAX_TIMEOUT, TimeUnit.MILLISECONDS);
+                return null;
+            }
+        }).when(handshakeThread).run();
+
+        mHandshakeExecutor.execute(handshakeThread, 100, mMockTimeoutListener, null);
+
+        verify(mMockTimeoutListener, timeout((int) MAX_TIMEOUT)).onHandshakeTimeout(handshakeThread);
+        releaseLatch.countDown();
+    }
+
+    @Test
+    public void testExecute_CompletedBeforeDeadline() throws Exception {
+        final BluetoothSocketIoThread handshakeThread = mock(BluetoothSocketIoThread.class);
+
+        mHandshakeExecutor.execute(handshakeThread, 200, mMockTimeoutListener, null);
+
+        verify(handshakeThread, timeout((int) MAX_TIMEOUT)).run();
+        Thread.sleep(400);
+        verify(mMockTimeoutListener, never()).onHandshakeTimeout(any(BluetoothSocketIoThread.class));
+    }
+
+    @Test
+    public void testExecute_QueuedHandshakeTimesOut() throws Exception {
+        final CountDownLatch releaseLatch = new CountDownLatch(1);
+
+        for (int i = 0; i < MAX_NUMBER_OF_THREADS; i++) {
+            BluetoothSocketIoThread blockingHandshakeThread = mock(BluetoothSocketIoThread.class);
+
+            doAnswer(new Answer<Void>() {
+                @Override
+                public Void answer(InvocationOnMock invocation) throws Throwable {
+                    releaseLatch.await(MAX_TIMEOUT, TimeUnit.MILLISECONDS);
+                    return null;
+                }
+            }).when(blockingHandshakeThread).run();
+
+            mHandshakeExecutor.execute(blockingHandshakeThread, 0, mMockTimeoutListener, null);
+        }
+
+        BluetoothSocketIoThread queuedHandshakeThread = mock(BluetoothSocketIoThread.class);
+        mHandshakeExecutor.execute(queuedHandshakeThread, 100, mMockTimeoutListener, null);
+
+        verify(mMockTimeoutListener, timeout((int) MAX_TIMEOUT)).onHandshakeTimeout(queuedHandshakeThread);
+        assertThat("The timed out handshake is removed from the queue",
+                mHandshakeExecutor.getNumberOfQueuedHandshakes(), is(0));
+
+        releaseLatch.countDown();
+        Thread.sleep(200);
+        verify(queuedHandshakeThread, never()).run();
+    }
+
+    @Test
+    public void testExecute_UncaughtException() throws Exception {
+        final BluetoothSocketIoThread handshakeThread = mock(BluetoothSocketIoThread.class);
+        final RuntimeException exception = new RuntimeException("Handshake failure");
+        Thread.UncaughtExceptionHandler mockHandler = mock(Thread.UncaughtExceptionHandler.class);
+
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                throw exception;
+            }
+        }).when(handshakeThread).run();
+
+        mHandshakeExecutor.execute(handshakeThread, 0, mMockTimeoutListener, mockHandler);
+
+        verify(mockHandler, timeout((int) MAX_TIMEOUT)).uncaughtException(any(Thread.class), any(Throwable.class));
+    }
+}
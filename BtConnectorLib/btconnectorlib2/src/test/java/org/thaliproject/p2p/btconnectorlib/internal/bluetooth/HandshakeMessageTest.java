@@ -0,0 +1,125 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Test;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class HandshakeMessageTest {
+    private static final String MAC_ADDRESS = "0A:1B:2C:3D:4E:5F";
+
+    @Test
+    public void testCreateHandshakeMessage() throws Exception {
+        byte[] handshakeMessage = HandshakeMessage.createHandshakeMessage(new PeerProperties(MAC_ADDRESS, 7));
+
+        assertThat("The handshake message is created", handshakeMessage, is(notNullValue()));
+        assertThat("The handshake message has the proper length",
+                handshakeMessage.length, is(HandshakeMessage.MESSAGE_LENGTH));
+        assertThat("The handshake message is recognized",
+                HandshakeMessage.isHandshakeMessage(handshakeMessage, handshakeMessage.length), is(true));
+        assertThat("The version is set", HandshakeMessage.getVersion(handshakeMessage, handshakeMessage.length),
+                is(HandshakeMessage.CURRENT_VERSION));
+        assertThat("The length is set", HandshakeMessage.getMessageLength(handshakeMessage, handshakeMessage.length),
+                is(HandshakeMessage.MESSAGE_LENGTH));
+    }
+
+    @Test
+    public void testCreateHandshakeMessage_Invalid() throws Exception {
+        assertThat("No message without peer properties",
+                HandshakeMessage.createHandshakeMessage((PeerProperties) null), is(nullValue()));
+        assertThat("No message with unknown Bluetooth MAC address",
+                HandshakeMessage.createHandshakeMessage(new PeerProperties(PeerProperties.BLUETOOTH_MAC_ADDRESS_UNKNOWN)),
+                is(nullValue()));
+        assertThat("No message with invalid identity string",
+                HandshakeMessage.createHandshakeMessage("not an identity"), is(nullValue()));
+        assertThat("No message with null identity string",
+                HandshakeMessage.createHandshakeMessage((String) null), is(nullValue()));
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        byte[] handshakeMessage = HandshakeMessage.createHandshakeMessage(new PeerProperties(MAC_ADDRESS, 255));
+        PeerProperties peerProperties = HandshakeMessage.decode(handshakeMessage, handshakeMessage.length);
+
+        assertThat("The peer properties are decoded", peerProperties, is(notNullValue()));
+        assertThat("The Bluetooth MAC address is decoded", peerProperties.getBluetoothMacAddress(), is(MAC_ADDRESS));
+        assertThat("The generation is decoded", peerProperties.getExtraInformation(), is(255));
+
+        handshakeMessage = HandshakeMessage.createHandshakeMessage(new PeerProperties("00:11:22:33:44:55"));
+        peerProperties = HandshakeMessage.decode(handshakeMessage, handshakeMessage.length);
+
+        assertThat("The Bluetooth MAC address is decoded",
+                peerProperties.getBluetoothMacAddress(), is("00:11:22:33:44:55"));
+        assertThat("No extra information is decoded",
+                peerProperties.getExtraInformation(), is(PeerProperties.NO_EXTRA_INFORMATION));
+    }
+
+    @Test
+    public void testDecode_LargerBuffer() throws Exception {
+        byte[] handshakeMessage = HandshakeMessage.createHandshakeMessage(new PeerProperties(MAC_ADDRESS, 1));
+        byte[] buffer = Arrays.copyOf(handshakeMessage, 256);
+
+        assertThat("The message is decoded from a larger read buffer",
+                HandshakeMessage.decode(buffer, handshakeMessage.length).getBluetoothMacAddress(),
+                is(MAC_ADDRESS));
+    }
+
+    @Test
+    public void testDecode_NewerVersion() throws Exception {
+        byte[] handshakeMessage = HandshakeMessage.createHandshakeMessage(new PeerProperties(MAC_ADDRESS, 3));
+        byte[] newerHandshakeMessage = Arrays.copyOf(handshakeMessage, HandshakeMessage.MESSAGE_LENGTH + 4);
+        newerHandshakeMessage[2] = (byte) (HandshakeMessage.CURRENT_VERSION + 1);
+        newerHandshakeMessage[3] = (byte) newerHandshakeMessage.length;
+
+        assertThat("The message length includes the unknown fields",
+                HandshakeMessage.getMessageLength(newerHandshakeMessage, newerHandshakeMessage.length),
+                is(newerHandshakeMessage.length));
+
+        PeerProperties peerProperties = HandshakeMessage.decode(newerHandshakeMessage, newerHandshakeMessage.length);
+
+        assertThat("The known fields of a newer version are decoded",
+                peerProperties.getBluetoothMacAddress(), is(MAC_ADDRESS));
+        assertThat(peerProperties.getExtraInformation(), is(3));
+    }
+
+    @Test
+    public void testDecode_Invalid() throws Exception {
+        byte[] handshakeMessage = HandshakeMessage.createHandshakeMessage(new PeerProperties(MAC_ADDRESS, 1));
+
+        assertThat("Incomplete message is not decoded",
+                HandshakeMessage.decode(handshakeMessage, handshakeMessage.length - 1), is(nullValue()));
+
+        byte[] invalidVersion = handshakeMessage.clone();
+        invalidVersion[2] = 0;
+        assertThat("Message with an invalid version is not decoded",
+                HandshakeMessage.decode(invalidVersion, invalidVersion.length), is(nullValue()));
+
+        byte[] invalidLength = handshakeMessage.clone();
+        invalidLength[3] = 5;
+        assertThat("Message with an invalid length is not decoded",
+                HandshakeMessage.decode(invalidLength, invalidLength.length), is(nullValue()));
+
+        assertThat("Null is not decoded", HandshakeMessage.decode(null, 12), is(nullValue()));
+    }
+
+    @Test
+    public void testIsHandshakeMessage_LegacyFormats() throws Exception {
+        byte[] jsonIdentity = "{\"generation\":1,\"address\":\"0A:1B:2C:3D:4E:5F\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertThat("The JSON identity is not a binary handshake message",
+                HandshakeMessage.isHandshakeMessage(jsonIdentity, jsonIdentity.length), is(false));
+        assertThat("The simple handshake message is not a binary handshake message",
+                HandshakeMessage.isHandshakeMessage(BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY,
+                        BluetoothUtils.SIMPLE_HANDSHAKE_MESSAGE_AS_BYTE_ARRAY.length), is(false));
+        assertThat("Too short message is not a binary handshake message",
+                HandshakeMessage.isHandshakeMessage(new byte[] { (byte) 0xB7, 0x1C }, 2), is(false));
+        assertThat("The version of a non-binary message is unknown",
+                HandshakeMessage.getVersion(jsonIdentity, jsonIdentity.length), is(-1));
+    }
+}
@@ -0,0 +1,79 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class IncomingConnectionStatisticsTest {
+    IncomingConnectionStatistics mStatistics;
+
+    @Before
+    public void setUp() throws Exception {
+        mStatistics = new IncomingConnectionStatistics();
+    }
+
+    @Test
+    public void testInitialValues() throws Exception {
+        assertThat("No connections accepted", mStatistics.getNumberOfAcceptedConnections(), is(0L));
+        assertThat("No accept rate before listening", mStatistics.getAcceptRatePerSecond(), is(0d));
+        assertThat("No average latency without samples",
+                mStatistics.getAverageAcceptLatencyInMilliseconds(), is(0d));
+        assertThat("No max latency without samples",
+                mStatistics.getMaxAcceptLatencyInMilliseconds(), is(0d));
+    }
+
+    @Test
+    public void testAcceptLatency() throws Exception {
+        mStatistics.onReadyToAccept();
+
+        assertThat("The first accept has no latency sample",
+                mStatistics.getAverageAcceptLatencyInMilliseconds(), is(0d));
+
+        mStatistics.onConnectionAccepted();
+        Thread.sleep(20);
+        mStatistics.onReadyToAccept();
+
+        assertThat("The accepted connection is counted",
+                mStatistics.getNumberOfAcceptedConnections(), is(1L));
+        assertThat("The time between accepting and being ready again is recorded",
+                mStatistics.getAverageAcceptLatencyInMilliseconds() >= 20d, is(true));
+        assertThat("The max latency is recorded",
+                mStatistics.getMaxAcceptLatencyInMilliseconds()
+                        >= mStatistics.getAverageAcceptLatencyInMilliseconds(), is(true));
+        assertThat("The accept rate is positive", mStatistics.getAcceptRatePerSecond() > 0d, is(true));
+    }
+
+    @Test
+    public void testDroppedHandshakes() throws Exception {
+        mStatistics.onHandshakeTimedOut();
+        mStatistics.onHandshakeEvicted();
+        mStatistics.onHandshakeEvicted();
+
+        assertThat("The timed out handshakes are counted",
+                mStatistics.getNumberOfHandshakesTimedOut(), is(1L));
+        assertThat("The evicted handshakes are counted",
+                mStatistics.getNumberOfHandshakesEvicted(), is(2L));
+    }
+
+    @Test
+    public void testReset() throws Exception {
+        mStatistics.onReadyToAccept();
+        mStatistics.onConnectionAccepted();
+        mStatistics.onReadyToAccept();
+        mStatistics.onHandshakeTimedOut();
+        mStatistics.onHandshakeEvicted();
+
+        mStatistics.reset();
+
+        assertThat("The accepted connections are reset",
+                mStatistics.getNumberOfAcceptedConnections(), is(0L));
+        assertThat("The accept rate is reset", mStatistics.getAcceptRatePerSecond(), is(0d));
+        assertThat("The latency is reset", mStatistics.getMaxAcceptLatencyInMilliseconds(), is(0d));
+        assertThat("The timed out handshakes are reset",
+                mStatistics.getNumberOfHandshakesTimedOut(), is(0L));
+        assertThat("The evicted handshakes are reset",
+                mStatistics.getNumberOfHandshakesEvicted(), is(0L));
+    }
+}
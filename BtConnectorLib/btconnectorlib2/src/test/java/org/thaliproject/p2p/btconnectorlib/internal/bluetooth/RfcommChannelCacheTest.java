@@ -0,0 +1,165 @@
+package org.thaliproject.p2p.btconnectorlib.internal.bluetooth;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RfcommChannelCacheTest {
+
+    private static final String ADDRESS_1 = "01:02:03:04:05:06";
+    private static final String ADDRESS_2 = "06:05:04:03:02:01";
+    private static final String ADDRESS_3 = "0A:0B:0C:0D:0E:0F";
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+    @Mock
+    SharedPreferences mMockSharedPreferences;
+    @Mock
+    SharedPreferences.Editor mMockEditor;
+    private RfcommChannelCache mRfcommChannelCache;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mRfcommChannelCache = new RfcommChannelCache(null, 2);
+    }
+
+    @Test
+    public void testConstructor_exception() throws Exception {
+        thrown.expect(IllegalArgumentException.class);
+        new RfcommChannelCache(null, 0);
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception {
+        assertThat("Nothing is cached initially", mRfcommChannelCache.get(ADDRESS_1), is(nullValue()));
+
+        mRfcommChannelCache.put(ADDRESS_1, 5);
+        mRfcommChannelCache.put(ADDRESS_2, BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT);
+        mRfcommChannelCache.put(ADDRESS_3, 0);
+        mRfcommChannelCache.put(null, 5);
+
+        assertThat("The channel is cached", mRfcommChannelCache.get(ADDRESS_1), is(5));
+        assertThat("The system decided port is cached", mRfcommChannelCache.get(ADDRESS_2),
+                is(BluetoothClientThread.SYSTEM_DECIDED_INSECURE_RFCOMM_SOCKET_PORT));
+        assertThat("The rotating port is not a valid channel", mRfcommChannelCache.get(ADDRESS_3), is(nullValue()));
+        assertThat("The hits are counted", mRfcommChannelCache.getNumberOfHits(), is(2L));
+        assertThat("The misses are counted", mRfcommChannelCache.getNumberOfMisses(), is(2L));
+
+        mRfcommChannelCache.put(ADDRESS_1, 7);
+        assertThat("The channel is updated", mRfcommChannelCache.get(ADDRESS_1), is(7));
+    }
+
+    @Test
+    public void testPeek() throws Exception {
+        mRfcommChannelCache.put(ADDRESS_1, 5);
+
+        assertThat("The channel is returned", mRfcommChannelCache.peek(ADDRESS_1), is(5));
+        assertThat("Nothing is returned for an unknown address", mRfcommChannelCache.peek(ADDRESS_2), is(nullValue()));
+        assertThat("The hits are not counted", mRfcommChannelCache.getNumberOfHits(), is(0L));
+        assertThat("The misses are not counted", mRfcommChannelCache.getNumberOfMisses(), is(0L));
+    }
+
+    @Test
+    public void testAddressCaseIsIgnored() throws Exception {
+        mRfcommChannelCache.put(ADDRESS_3.toLowerCase(), 5);
+
+        assertThat("The channel is found regardless of the case", mRfcommChannelCache.get(ADDRESS_3), is(5));
+        assertThat(mRfcommChannelCache.peek(" " + ADDRESS_3), is(5));
+
+        mRfcommChannelCache.invalidate(ADDRESS_3);
+
+        assertThat("The entry is removed", mRfcommChannelCache.peek(ADDRESS_3.toLowerCase()), is(nullValue()));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        mRfcommChannelCache.put(ADDRESS_1, 5);
+        mRfcommChannelCache.invalidate(ADDRESS_1);
+        mRfcommChannelCache.invalidate(ADDRESS_2);
+
+        assertThat("The entry is removed", mRfcommChannelCache.get(ADDRESS_1), is(nullValue()));
+        assertThat("Only the removed entries are counted", mRfcommChannelCache.getNumberOfInvalidations(), is(1L));
+    }
+
+    @Test
+    public void testMaxAge() throws Exception {
+        mRfcommChannelCache.put(ADDRESS_1, 5);
+        mRfcommChannelCache.setMaxAge(-1);
+
+        assertThat("The expired entry is not used", mRfcommChannelCache.get(ADDRESS_1), is(nullValue()));
+        assertThat("The expired entry is removed", mRfcommChannelCache.size(), is(0));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        mRfcommChannelCache.put(ADDRESS_1, 1);
+        mRfcommChannelCache.put(ADDRESS_2, 2);
+        mRfcommChannelCache.get(ADDRESS_1);
+        mRfcommChannelCache.put(ADDRESS_3, 3);
+
+        assertThat("The number of entries is bounded", mRfcommChannelCache.size(), is(2));
+        assertThat("The least recently used entry is evicted", mRfcommChannelCache.get(ADDRESS_2), is(nullValue()));
+        assertThat("The recently used entry is kept", mRfcommChannelCache.get(ADDRESS_1), is(1));
+        assertThat("The new entry is kept", mRfcommChannelCache.get(ADDRESS_3), is(3));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        Set<String> storedEntries = new HashSet<>();
+        storedEntries.add(ADDRESS_1 + "|5|" + System.currentTimeMillis());
+        storedEntries.add("invalid entry");
+        when(mMockSharedPreferences.edit()).thenReturn(mMockEditor);
+        when(mMockSharedPreferences.getStringSet(anyString(), anySetOf(String.class)))
+                .thenReturn(storedEntries);
+
+        RfcommChannelCache rfcommChannelCache = new RfcommChannelCache(mMockSharedPreferences, 2);
+
+        assertThat("The valid entry is restored", rfcommChannelCache.size(), is(1));
+        assertThat("The restored channel is used", rfcommChannelCache.get(ADDRESS_1), is(5));
+
+        rfcommChannelCache.put(ADDRESS_2, 3);
+
+        ArgumentCaptor<Set> captor = ArgumentCaptor.forClass(Set.class);
+        verify(mMockEditor, atLeastOnce()).putStringSet(anyString(), captor.capture());
+        verify(mMockEditor, atLeastOnce()).apply();
+        assertThat("Both entries are persisted", captor.getValue().size(), is(2));
+    }
+
+    @Test
+    public void testPersistenceKeepsLeastRecentlyUsedOrder() throws Exception {
+        final long timeNow = System.currentTimeMillis();
+        Set<String> storedEntries = new HashSet<>();
+        storedEntries.add(ADDRESS_3 + "|3|" + timeNow + "|1");
+        storedEntries.add(ADDRESS_1 + "|1|" + timeNow + "|2");
+        storedEntries.add(ADDRESS_2 + "|2|" + timeNow + "|0");
+        when(mMockSharedPreferences.edit()).thenReturn(mMockEditor);
+        when(mMockSharedPreferences.getStringSet(anyString(), anySetOf(String.class)))
+                .thenReturn(storedEntries);
+
+        RfcommChannelCache rfcommChannelCache = new RfcommChannelCache(mMockSharedPreferences, 3);
+        rfcommChannelCache.put("0F:0E:0D:0C:0B:0A", 4);
+
+        assertThat("The least recently used entry is evicted", rfcommChannelCache.peek(ADDRESS_2), is(nullValue()));
+        assertThat("The more recently used entry is kept", rfcommChannelCache.peek(ADDRESS_3), is(3));
+        assertThat("The most recently used entry is kept", rfcommChannelCache.peek(ADDRESS_1), is(1));
+    }
+}
@@ -0,0 +1,58 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AdaptiveBufferSizerTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorWithInvalidBounds() throws Exception {
+        new AdaptiveBufferSizer(1024, 256, 512, 4);
+    }
+
+    @Test
+    public void testInitialSizeIsWithinBounds() throws Exception {
+        assertThat("The initial size is raised to the minimum",
+                new AdaptiveBufferSizer(256, 4096, 100, 4).getBufferSize(), is(256));
+        assertThat("The initial size is lowered to the maximum",
+                new AdaptiveBufferSizer(256, 4096, 10000, 4).getBufferSize(), is(4096));
+    }
+
+    @Test
+    public void testGrowsWhenReadsFillTheBuffer() throws Exception {
+        AdaptiveBufferSizer adaptiveBufferSizer = new AdaptiveBufferSizer(256, 3000, 256, 4);
+
+        assertThat("Grows when a read fills the buffer", adaptiveBufferSizer.onRead(256), is(512));
+        assertThat("Does not grow when a read does not fill the buffer", adaptiveBufferSizer.onRead(300), is(512));
+        assertThat("Keeps growing", adaptiveBufferSizer.onRead(512), is(1024));
+        assertThat("Keeps growing", adaptiveBufferSizer.onRead(1024), is(2048));
+        assertThat("Does not grow beyond the maximum", adaptiveBufferSizer.onRead(2048), is(3000));
+        assertThat("Does not grow beyond the maximum", adaptiveBufferSizer.onRead(3000), is(3000));
+    }
+
+    @Test
+    public void testShrinksWhenReadsAreSmall() throws Exception {
+        AdaptiveBufferSizer adaptiveBufferSizer = new AdaptiveBufferSizer(256, 4096, 4096, 4);
+
+        for (int i = 0; i < 3; i++) {
+            assertThat("Does not shrink before the window is full", adaptiveBufferSizer.onRead(10), is(4096));
+        }
+
+        assertThat("Shrinks once the window is full of small reads", adaptiveBufferSizer.onRead(10), is(2048));
+
+        adaptiveBufferSizer.onRead(10);
+        adaptiveBufferSizer.onRead(10);
+        adaptiveBufferSizer.onRead(1000);
+
+        assertThat("Does not shrink if a read in the window used more than a quarter",
+                adaptiveBufferSizer.onRead(10), is(2048));
+
+        for (int i = 0; i < 100; i++) {
+            adaptiveBufferSizer.onRead(1);
+        }
+
+        assertThat("Does not shrink below the minimum", adaptiveBufferSizer.getBufferSize(), is(256));
+    }
+}
@@ -7,12 +7,19 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -147,6 +154,181 @@ public class BluetoothSocketIoThreadTest {
 
     }
 
+    @Test
+    public void testLiveConnectionMetrics() throws Exception {
+        final int numberOfLiveConnectionsBefore = ConnectionMetrics.getNumberOfLiveConnections();
+
+        // A completed handshake hands the socket over and is not counted as a live connection
+        mBluetoothSocketIoThread.setExitThreadAfterRead(true);
+        when(mMockInputStream.read(any(byte[].class))).thenReturn(1);
+        mBluetoothSocketIoThread.run();
+
+        verify(mMockListener, times(1)).onBytesRead(any(byte[].class),
+                anyInt(), any(BluetoothSocketIoThread.class));
+        assertThat("The completed handshake is not a live connection",
+                ConnectionMetrics.getNumberOfLiveConnections(), is(numberOfLiveConnectionsBefore));
+
+        // The connection using the socket afterwards is counted until closed
+        final CountDownLatch readLatch = new CountDownLatch(1);
+        BluetoothSocketIoThread connectionThread =
+                new BluetoothSocketIoThread(mMockBluetoothSocket, mMockListener);
+        when(mMockInputStream.read(any(byte[].class))).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                readLatch.countDown();
+                Thread.sleep(100);
+                return 0;
+            }
+        });
+        connectionThread.start();
+
+        assertThat("The connection thread is reading", readLatch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The running connection is a live connection",
+                ConnectionMetrics.getNumberOfLiveConnections(), is(numberOfLiveConnectionsBefore + 1));
+
+        connectionThread.close(false, false);
+        connectionThread.join(5000);
+
+        assertThat("The closed connection is no longer a live connection",
+                ConnectionMetrics.getNumberOfLiveConnections(), is(numberOfLiveConnectionsBefore));
+    }
+
+    @Test
+    public void testRunWithFrameListener() throws Exception {
+        final byte[] frame = FrameCodec.encode("some text".getBytes(StandardCharsets.UTF_8));
+        final List<String> frames = new ArrayList<>();
+
+        mBluetoothSocketIoThread.setFrameListener(new BluetoothSocketIoThread.FrameListener() {
+            @Override
+            public void onFrame(ByteBuffer frame, BluetoothSocketIoThread who) {
+                byte[] payload = new byte[frame.remaining()];
+                frame.get(payload);
+                frames.add(new String(payload, StandardCharsets.UTF_8));
+            }
+        }, FrameCodec.DEFAULT_MAX_FRAME_SIZE_IN_BYTES);
+
+        // Deliver the frame in two reads and then disconnect
+        when(mMockInputStream.read(any(byte[].class))).thenAnswer(new Answer<Integer>() {
+            int mReadCount = 0;
+
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                byte[] buffer = (byte[]) invocation.getArguments()[0];
+
+                switch (mReadCount++) {
+                    case 0:
+                        System.arraycopy(frame, 0, buffer, 0, 4);
+                        return 4;
+                    case 1:
+                        System.arraycopy(frame, 4, buffer, 0, frame.length - 4);
+                        return frame.length - 4;
+                    default:
+                        throw new IOException("Disconnected");
+                }
+            }
+        });
+
+        mBluetoothSocketIoThread.run();
+
+        assertThat("The frame is reassembled from the reads", frames.size(), is(1));
+        assertThat("The frame is correct", frames.get(0), is("some text"));
+        verify(mMockListener, never()).onBytesRead(any(byte[].class),
+                anyInt(), any(BluetoothSocketIoThread.class));
+        verify(mMockListener, times(1)).onDisconnected(anyString(),
+                any(BluetoothSocketIoThread.class));
+    }
+
+    @Test
+    public void testWriteFrame() throws Exception {
+        byte[] payload = "some text".getBytes(StandardCharsets.UTF_8);
+
+        assertThat("should return true if written properly",
+                mBluetoothSocketIoThread.writeFrame(payload), is(true));
+        verify(mMockOutputStream, times(1)).write(FrameCodec.encode(payload));
+    }
+
+    @Test
+    public void testRunWithBufferListener() throws Exception {
+        final List<String> reads = new ArrayList<>();
+        final List<BufferPool.PooledBuffer> buffers = new ArrayList<>();
+
+        mBluetoothSocketIoThread.setBufferListener(new BluetoothSocketIoThread.BufferListener() {
+            @Override
+            public void onBufferRead(BufferPool.PooledBuffer buffer, BluetoothSocketIoThread who) {
+                ByteBuffer byteBuffer = buffer.getByteBuffer();
+                byte[] bytes = new byte[byteBuffer.remaining()];
+                byteBuffer.get(bytes);
+                reads.add(new String(bytes, StandardCharsets.UTF_8));
+                buffers.add(buffer);
+            }
+        });
+
+        when(mMockInputStream.read(any(byte[].class))).thenAnswer(new Answer<Integer>() {
+            int mReadCount = 0;
+
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                byte[] buffer = (byte[]) invocation.getArguments()[0];
+
+                if (mReadCount++ < 2) {
+                    byte[] bytes = ("read " + mReadCount).getBytes(StandardCharsets.UTF_8);
+                    System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+                    return bytes.length;
+                }
+
+                throw new IOException("Disconnected");
+            }
+        });
+
+        mBluetoothSocketIoThread.run();
+
+        assertThat("Both reads are delivered", reads.size(), is(2));
+        assertThat("The reads are recorded in the metrics",
+                mBluetoothSocketIoThread.getMetrics().getSnapshot().getNumberOfReadOperations(), is(2L));
+        assertThat("The first read is correct", reads.get(0), is("read 1"));
+        assertThat("The second read is correct", reads.get(1), is("read 2"));
+        assertThat("Each read is delivered in its own buffer",
+                buffers.get(0) == buffers.get(1), is(false));
+        verify(mMockListener, never()).onBytesRead(any(byte[].class),
+                anyInt(), any(BluetoothSocketIoThread.class));
+
+        for (BufferPool.PooledBuffer buffer : buffers) {
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testRunWithAdaptiveBufferSize() throws Exception {
+        mBluetoothSocketIoThread.setAdaptiveBufferSize(256, 1024);
+
+        assertThat("The adaptive buffer size is enabled",
+                mBluetoothSocketIoThread.isAdaptiveBufferSizeEnabled(), is(true));
+
+        // Fill the buffer twice and then disconnect
+        when(mMockInputStream.read(any(byte[].class))).thenAnswer(new Answer<Integer>() {
+            int mReadCount = 0;
+
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                if (mReadCount++ < 2) {
+                    return ((byte[]) invocation.getArguments()[0]).length;
+                }
+
+                throw new IOException("Disconnected");
+            }
+        });
+
+        mBluetoothSocketIoThread.run();
+
+        assertThat("The buffer grows when the reads fill it",
+                mBluetoothSocketIoThread.getBufferSize(), is(1024));
+
+        mBluetoothSocketIoThread.setBufferSize(100);
+
+        assertThat("Setting the buffer size disables the adaptive buffer size",
+                mBluetoothSocketIoThread.isAdaptiveBufferSizeEnabled(), is(false));
+    }
+
     @Test
     public void testRunThrowsException() throws Exception {
 
@@ -193,6 +375,26 @@ public class BluetoothSocketIoThreadTest {
                 any(BluetoothSocketIoThread.class));
     }
 
+    @Test
+    public void testWriteAsync() throws Exception {
+        byte[] bytes = "some text".getBytes(StandardCharsets.UTF_8);
+
+        assertThat("should complete with true if written properly",
+                mBluetoothSocketIoThread.writeAsync(bytes).get(5, TimeUnit.SECONDS), is(true));
+        verify(mMockOutputStream, times(1)).write(bytes);
+        verify(mMockListener, times(1)).onBytesWritten(bytes, bytes.length, mBluetoothSocketIoThread);
+        assertThat("should record the write in the metrics",
+                mBluetoothSocketIoThread.getMetrics().getSnapshot().getNumberOfBytesWritten(),
+                is((long) bytes.length));
+        assertThat("should be writable when the queue is empty",
+                mBluetoothSocketIoThread.isWritable(), is(true));
+
+        mBluetoothSocketIoThread.close(true, true);
+
+        assertThat("should complete with false when closed",
+                mBluetoothSocketIoThread.writeAsync(bytes).get(5, TimeUnit.SECONDS), is(false));
+    }
+
     @Test
     public void testClose() throws Exception {
         Field shuttingDownField = mBluetoothSocketIoThread.getClass().getDeclaredField("mIsShuttingDown");
@@ -0,0 +1,84 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class BufferPoolTest {
+
+    private BufferPool mBufferPool;
+
+    @Before
+    public void setUp() throws Exception {
+        mBufferPool = new BufferPool(2);
+    }
+
+    @Test
+    public void testAcquireUsesSizeClasses() throws Exception {
+        assertThat("The smallest size class is used for small buffers",
+                mBufferPool.acquire(1).getCapacity(), is(BufferPool.MIN_BUFFER_SIZE_IN_BYTES));
+        assertThat("The size is rounded up to the next power of two",
+                mBufferPool.acquire(1000).getCapacity(), is(1024));
+        assertThat("An exact size class is used as is",
+                mBufferPool.acquire(1024).getCapacity(), is(1024));
+        assertThat("Buffers larger than the largest size class are allocated as requested",
+                mBufferPool.acquire(BufferPool.MAX_BUFFER_SIZE_IN_BYTES + 1).getCapacity(),
+                is(BufferPool.MAX_BUFFER_SIZE_IN_BYTES + 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAcquireWithInvalidSize() throws Exception {
+        mBufferPool.acquire(0);
+    }
+
+    @Test
+    public void testReleaseRecyclesBuffer() throws Exception {
+        BufferPool.PooledBuffer buffer = mBufferPool.acquire(300);
+        buffer.release();
+
+        assertThat("The released buffer is retained", mBufferPool.getNumberOfFreeBuffers(), is(1));
+        assertThat("The released buffer is reused", mBufferPool.acquire(400), is(sameInstance(buffer)));
+        assertThat("The reused buffer is no longer free", mBufferPool.getNumberOfFreeBuffers(), is(0));
+        assertThat("A buffer of another size class is not reused",
+                mBufferPool.acquire(100), is(not(sameInstance(buffer))));
+
+        buffer.release();
+        buffer.release();
+
+        assertThat("A buffer is recycled only once", mBufferPool.getNumberOfFreeBuffers(), is(1));
+    }
+
+    @Test
+    public void testNumberOfRetainedBuffersIsCapped() throws Exception {
+        BufferPool.PooledBuffer first = mBufferPool.acquire(256);
+        BufferPool.PooledBuffer second = mBufferPool.acquire(256);
+        BufferPool.PooledBuffer third = mBufferPool.acquire(256);
+
+        first.release();
+        second.release();
+        third.release();
+
+        assertThat("Only the maximum number of buffers is retained",
+                mBufferPool.getNumberOfFreeBuffers(), is(2));
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void testByteBufferIsReadOnly() throws Exception {
+        BufferPool.PooledBuffer buffer = mBufferPool.acquire(256);
+        buffer.getArray()[0] = 42;
+        buffer.setSize(1);
+
+        ByteBuffer byteBuffer = buffer.getByteBuffer();
+        assertThat("The view contains only the valid bytes", byteBuffer.remaining(), is(1));
+        assertThat("The view exposes the content", byteBuffer.get(0), is((byte) 42));
+
+        byteBuffer.put(0, (byte) 0);
+    }
+}
@@ -0,0 +1,81 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ConnectionMetricsTest {
+
+    @Test
+    public void testGetBucketIndex() throws Exception {
+        assertThat("Values up to one go to the first bucket", ConnectionMetrics.getBucketIndex(0), is(0));
+        assertThat("Values up to one go to the first bucket", ConnectionMetrics.getBucketIndex(1), is(0));
+        assertThat("Powers of two are the upper bounds", ConnectionMetrics.getBucketIndex(2), is(1));
+        assertThat("Powers of two are the upper bounds", ConnectionMetrics.getBucketIndex(256), is(8));
+        assertThat("The next value goes to the next bucket", ConnectionMetrics.getBucketIndex(257), is(9));
+        assertThat("Large values go to the last bucket", ConnectionMetrics.getBucketIndex(Long.MAX_VALUE),
+                is(ConnectionMetrics.NUMBER_OF_HISTOGRAM_BUCKETS - 1));
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        ConnectionMetrics connectionMetrics = new ConnectionMetrics();
+        connectionMetrics.onRead(100);
+        connectionMetrics.onRead(200);
+        connectionMetrics.onWriteOperation(50, 2000000);
+        connectionMetrics.onWriteCompleted(2000000);
+        connectionMetrics.onWriteCompleted(4000000);
+
+        ConnectionMetrics.Snapshot snapshot = connectionMetrics.getSnapshot();
+
+        assertThat("The bytes read are counted", snapshot.getNumberOfBytesRead(), is(300L));
+        assertThat("The reads are counted", snapshot.getNumberOfReadOperations(), is(2L));
+        assertThat("The bytes written are counted", snapshot.getNumberOfBytesWritten(), is(50L));
+        assertThat("The writes are counted", snapshot.getNumberOfWriteOperations(), is(1L));
+        assertThat("The completed writes are counted", snapshot.getNumberOfWritesCompleted(), is(2L));
+        assertThat("The average write latency is correct",
+                snapshot.getAverageWriteLatencyInMilliseconds(), is(3d));
+        assertThat("The time blocked in write is correct",
+                snapshot.getTimeBlockedInWriteInMilliseconds(), is(2d));
+        assertThat("The read sizes are in the histogram",
+                snapshot.getReadSizeHistogram()[ConnectionMetrics.getBucketIndex(100)], is(1L));
+        assertThat("The read sizes are in the histogram",
+                snapshot.getReadSizeHistogram()[ConnectionMetrics.getBucketIndex(200)], is(1L));
+        assertThat("The write latencies are in the histogram",
+                snapshot.getWriteLatencyHistogram()[ConnectionMetrics.getBucketIndex(2)], is(1L));
+        assertThat("The write latencies are in the histogram",
+                snapshot.getWriteLatencyHistogram()[ConnectionMetrics.getBucketIndex(4)], is(1L));
+
+        connectionMetrics.onRead(100);
+
+        assertThat("The snapshot does not change", snapshot.getNumberOfBytesRead(), is(300L));
+    }
+
+    @Test
+    public void testAggregatedSnapshot() throws Exception {
+        ConnectionMetrics first = new ConnectionMetrics();
+        ConnectionMetrics second = new ConnectionMetrics();
+        ConnectionMetrics.Snapshot before = ConnectionMetrics.getAggregatedSnapshot();
+
+        first.register();
+        second.register();
+        first.onRead(10);
+        second.onRead(20);
+
+        ConnectionMetrics.Snapshot snapshot = ConnectionMetrics.getAggregatedSnapshot();
+
+        assertThat("The live connections are aggregated",
+                snapshot.getNumberOfConnections() - before.getNumberOfConnections(), is(2L));
+        assertThat("The bytes of the live connections are summed",
+                snapshot.getNumberOfBytesRead() - before.getNumberOfBytesRead(), is(30L));
+
+        second.unregister();
+
+        assertThat("Unregistered connections are not aggregated",
+                ConnectionMetrics.getAggregatedSnapshot().getNumberOfBytesRead()
+                        - before.getNumberOfBytesRead(), is(10L));
+
+        first.unregister();
+    }
+}
@@ -0,0 +1,123 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class FrameCodecTest {
+
+    private FrameCodec mFrameCodec;
+    private List<String> mFrames;
+    private FrameCodec.Listener mListener;
+
+    @Before
+    public void setUp() throws Exception {
+        mFrameCodec = new FrameCodec(1024);
+        mFrames = new ArrayList<>();
+        mListener = new FrameCodec.Listener() {
+            @Override
+            public void onFrame(ByteBuffer frame) {
+                byte[] payload = new byte[frame.remaining()];
+                frame.get(payload);
+                mFrames.add(new String(payload, StandardCharsets.UTF_8));
+            }
+        };
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorWithInvalidMaxFrameSize() throws Exception {
+        new FrameCodec(0);
+    }
+
+    @Test
+    public void testEncode() throws Exception {
+        byte[] frame = FrameCodec.encode("abc".getBytes(StandardCharsets.UTF_8));
+
+        assertThat("The length prefix is a single byte for short frames", frame.length, is(4));
+        assertThat("The length prefix is correct", frame[0], is((byte) 3));
+
+        frame = FrameCodec.encode(new byte[300]);
+
+        assertThat("The length prefix takes two bytes", frame.length, is(302));
+        assertThat("The first byte has the continuation bit set", frame[0], is((byte) 0xAC));
+        assertThat("The second byte contains the high bits", frame[1], is((byte) 0x02));
+
+        assertThat("The prefix size is resolved correctly", FrameCodec.getLengthPrefixSize(0), is(1));
+        assertThat("The prefix size is resolved correctly", FrameCodec.getLengthPrefixSize(127), is(1));
+        assertThat("The prefix size is resolved correctly", FrameCodec.getLengthPrefixSize(128), is(2));
+        assertThat("The prefix size is resolved correctly",
+                FrameCodec.getLengthPrefixSize(Integer.MAX_VALUE), is(5));
+    }
+
+    @Test
+    public void testDecodeMultipleFramesInOneChunk() throws Exception {
+        byte[] first = FrameCodec.encode("first".getBytes(StandardCharsets.UTF_8));
+        byte[] empty = FrameCodec.encode(new byte[0]);
+        byte[] second = FrameCodec.encode("second".getBytes(StandardCharsets.UTF_8));
+        byte[] bytes = new byte[first.length + empty.length + second.length];
+        System.arraycopy(first, 0, bytes, 0, first.length);
+        System.arraycopy(empty, 0, bytes, first.length, empty.length);
+        System.arraycopy(second, 0, bytes, first.length + empty.length, second.length);
+
+        assertThat("The bytes are decoded", mFrameCodec.decode(bytes, 0, bytes.length, mListener), is(true));
+        assertThat("All the frames are decoded", mFrames.size(), is(3));
+        assertThat("The first frame is correct", mFrames.get(0), is("first"));
+        assertThat("The empty frame is correct", mFrames.get(1), is(""));
+        assertThat("The second frame is correct", mFrames.get(2), is("second"));
+    }
+
+    @Test
+    public void testDecodeFragmentedFrame() throws Exception {
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (int i = 0; i < 500; i++) {
+            stringBuilder.append((char) ('a' + i % 26));
+        }
+
+        byte[] bytes = FrameCodec.encode(stringBuilder.toString().getBytes(StandardCharsets.UTF_8));
+
+        // Feed the frame one byte at a time, splitting also the length prefix
+        for (int i = 0; i < bytes.length; i++) {
+            assertThat("The bytes are decoded", mFrameCodec.decode(bytes, i, 1, mListener), is(true));
+            assertThat("The frame is not complete before the last byte",
+                    mFrames.size(), is(i == bytes.length - 1 ? 1 : 0));
+        }
+
+        assertThat("The frame is reassembled correctly", mFrames.get(0), is(stringBuilder.toString()));
+    }
+
+    @Test
+    public void testDecodeTooLargeFrame() throws Exception {
+        byte[] bytes = FrameCodec.encode(new byte[1025]);
+
+        assertThat("A too large frame is rejected",
+                mFrameCodec.decode(bytes, 0, bytes.length, mListener), is(false));
+        assertThat("No frame is delivered", mFrames.size(), is(0));
+
+        byte[] validFrame = FrameCodec.encode("valid".getBytes(StandardCharsets.UTF_8));
+
+        assertThat("The bytes are rejected until reset",
+                mFrameCodec.decode(validFrame, 0, validFrame.length, mListener), is(false));
+
+        mFrameCodec.reset();
+
+        assertThat("The bytes are decoded after reset",
+                mFrameCodec.decode(validFrame, 0, validFrame.length, mListener), is(true));
+        assertThat("The frame is correct", mFrames.get(0), is("valid"));
+    }
+
+    @Test
+    public void testDecodeInvalidLengthPrefix() throws Exception {
+        byte[] bytes = new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01 };
+
+        assertThat("An overlong length prefix is rejected",
+                mFrameCodec.decode(bytes, 0, bytes.length, mListener), is(false));
+    }
+}
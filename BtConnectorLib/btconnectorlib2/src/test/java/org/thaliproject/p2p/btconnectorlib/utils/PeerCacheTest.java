@@ -0,0 +1,161 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PeerCacheTest {
+    private static final String ADDRESS_1 = "01:02:03:04:05:06";
+    private static final String ADDRESS_2 = "0A:0B:0C:0D:0E:0F";
+    private static final String ADDRESS_3 = "F0:E0:D0:C0:B0:A0";
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+    private File mFile;
+    private PeerCache mPeerCache;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(mTemporaryFolder.getRoot(), "peers.bin");
+        mPeerCache = new PeerCache(mFile, PeerCache.DEFAULT_TIME_TO_LIVE_IN_MILLISECONDS, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorWithInvalidMaxNumberOfEntries() throws Exception {
+        new PeerCache(mFile, PeerCache.DEFAULT_TIME_TO_LIVE_IN_MILLISECONDS, 0);
+    }
+
+    @Test
+    public void testRecordSeen() throws Exception {
+        mPeerCache.recordSeen(new PeerProperties(ADDRESS_1.toLowerCase(), 3));
+        mPeerCache.recordSeen(new PeerProperties(PeerProperties.BLUETOOTH_MAC_ADDRESS_UNKNOWN));
+        mPeerCache.recordSeen(new PeerProperties("not an address"));
+
+        assertThat("Only the peer with a valid address is cached", mPeerCache.size(), is(1));
+
+        PeerCache.CachedPeer cachedPeer = mPeerCache.getCachedPeer(ADDRESS_1);
+        assertThat("The peer is found regardless of the case", cachedPeer, is(notNullValue()));
+        assertThat("The extra information is cached", cachedPeer.getExtraInformation(), is(3));
+        assertThat("The port is not known", cachedPeer.getLastSuccessfulPort(), is(PeerCache.PORT_UNKNOWN));
+    }
+
+    @Test
+    public void testRecordConnectionAttempts() throws Exception {
+        mPeerCache.recordConnectionFailed(ADDRESS_1);
+        assertThat("The failure of an unknown peer is not cached", mPeerCache.size(), is(0));
+
+        PeerProperties peerProperties = new PeerProperties(ADDRESS_1);
+        mPeerCache.recordConnectionSucceeded(peerProperties, 5);
+        mPeerCache.recordConnectionSucceeded(peerProperties, PeerCache.PORT_UNKNOWN);
+        mPeerCache.recordConnectionFailed(ADDRESS_1);
+
+        PeerCache.CachedPeer cachedPeer = mPeerCache.getCachedPeer(ADDRESS_1);
+        assertThat("The successes are counted", cachedPeer.getNumberOfSuccessfulConnections(), is(2));
+        assertThat("The failures are counted", cachedPeer.getNumberOfFailedConnections(), is(1));
+        assertThat("The known port is kept", cachedPeer.getLastSuccessfulPort(), is(5));
+    }
+
+    @Test
+    public void testGetProbablePeersAndEviction() throws Exception {
+        mPeerCache.recordSeen(new PeerProperties(ADDRESS_1));
+        mPeerCache.recordSeen(new PeerProperties(ADDRESS_2));
+        mPeerCache.recordSeen(new PeerProperties(ADDRESS_1));
+        mPeerCache.recordSeen(new PeerProperties(ADDRESS_3));
+
+        List<PeerProperties> probablePeers = mPeerCache.getProbablePeers();
+
+        assertThat("The number of entries is bounded", probablePeers.size(), is(2));
+        assertThat("The most recently seen peer is first",
+                probablePeers.get(0).getBluetoothMacAddress(), is(ADDRESS_3));
+        assertThat("The least recently seen peer is evicted",
+                mPeerCache.getCachedPeer(ADDRESS_2), is(nullValue()));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        assertThat("Nothing to save", mPeerCache.save(), is(true));
+        assertThat("The file is not written when there is nothing to save", mFile.exists(), is(false));
+
+        mPeerCache.recordSeen(new PeerProperties(ADDRESS_1, 7));
+        mPeerCache.recordConnectionSucceeded(new PeerProperties(ADDRESS_2), 12);
+        mPeerCache.recordConnectionFailed(ADDRESS_2);
+
+        assertThat("The cache is saved", mPeerCache.save(), is(true));
+        assertThat("The temporary file is replaced", new File(mFile.getPath() + ".tmp").exists(), is(false));
+
+        PeerCache peerCache = new PeerCache(mFile, PeerCache.DEFAULT_TIME_TO_LIVE_IN_MILLISECONDS, 2);
+
+        assertThat("The cache is loaded", peerCache.load(), is(true));
+        assertThat("The entries are loaded", peerCache.size(), is(2));
+
+        PeerCache.CachedPeer cachedPeer1 = peerCache.getCachedPeer(ADDRESS_1);
+        PeerCache.CachedPeer cachedPeer2 = peerCache.getCachedPeer(ADDRESS_2);
+        PeerCache.CachedPeer originalCachedPeer2 = mPeerCache.getCachedPeer(ADDRESS_2);
+        assertThat("The extra information is restored", cachedPeer1.getExtraInformation(), is(7));
+        assertThat("The time last seen is restored",
+                cachedPeer2.getTimeLastSeen(), is(originalCachedPeer2.getTimeLastSeen()));
+        assertThat("The port is restored", cachedPeer2.getLastSuccessfulPort(), is(12));
+        assertThat("The successes are restored", cachedPeer2.getNumberOfSuccessfulConnections(), is(1));
+        assertThat("The failures are restored", cachedPeer2.getNumberOfFailedConnections(), is(1));
+        assertThat("The order is restored",
+                peerCache.getProbablePeers().get(0).getBluetoothMacAddress(), is(ADDRESS_2));
+    }
+
+    @Test
+    public void testLoadDropsExpiredPeers() throws Exception {
+        mPeerCache.recordSeen(new PeerProperties(ADDRESS_1));
+        mPeerCache.save();
+        Thread.sleep(10);
+
+        PeerCache peerCache = new PeerCache(mFile, 1, 2);
+
+        assertThat("The cache is loaded", peerCache.load(), is(true));
+        assertThat("The expired peer is dropped", peerCache.size(), is(0));
+    }
+
+    @Test
+    public void testLoadInvalidFile() throws Exception {
+        assertThat("A missing file is not loaded", mPeerCache.load(), is(false));
+
+        FileOutputStream outputStream = new FileOutputStream(mFile);
+        outputStream.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+        outputStream.close();
+
+        assertThat("An invalid file is not loaded", mPeerCache.load(), is(false));
+        assertThat("Nothing is cached", mPeerCache.size(), is(0));
+    }
+
+    @Test
+    public void testLoadAsync() throws Exception {
+        mPeerCache.recordSeen(new PeerProperties(ADDRESS_1));
+        mPeerCache.save();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final int[] numberOfProbablePeers = { -1 };
+        PeerCache peerCache = new PeerCache(mFile, PeerCache.DEFAULT_TIME_TO_LIVE_IN_MILLISECONDS, 2);
+
+        peerCache.loadAsync(new PeerCache.Listener() {
+            @Override
+            public void onPeerCacheLoaded(List<PeerProperties> probablePeers) {
+                numberOfProbablePeers[0] = probablePeers.size();
+                latch.countDown();
+            }
+        });
+
+        assertThat("The listener is notified", latch.await(5, TimeUnit.SECONDS), is(true));
+        assertThat("The probable peers are delivered", numberOfProbablePeers[0], is(1));
+    }
+}
@@ -0,0 +1,144 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.thaliproject.p2p.btconnectorlib.PeerProperties;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class PeerChangeBatcherTest {
+    @Mock
+    Handler mMockHandler;
+    @Mock
+    PeerChangeBatcher.Listener mMockListener;
+    @Captor
+    ArgumentCaptor<List<PeerProperties>> mAddedPeersCaptor;
+
+    private PeerChangeBatcher mPeerChangeBatcher;
+    private PeerProperties mPeerProperties1;
+    private PeerProperties mPeerProperties2;
+    private List<PeerProperties> mNoPeers;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        mPeerChangeBatcher = new PeerChangeBatcher(mMockHandler, mMockListener, 500, 3);
+        mPeerProperties1 = new PeerProperties("00:00:00:00:00:01");
+        mPeerProperties2 = new PeerProperties("00:00:00:00:00:02");
+        mNoPeers = Collections.emptyList();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorWithInvalidBatchSize() throws Exception {
+        new PeerChangeBatcher(mMockHandler, mMockListener, 500, 0);
+    }
+
+    @Test
+    public void testFlushIsScheduledOnceWithDelay() throws Exception {
+        mPeerChangeBatcher.onPeerAdded(mPeerProperties1);
+        mPeerChangeBatcher.onPeerAdded(mPeerProperties2);
+
+        verify(mMockHandler, times(1)).postDelayed(isA(Runnable.class), eq(500L));
+        verify(mMockHandler, never()).post(isA(Runnable.class));
+        verify(mMockListener, never()).onPeersChanged(
+                anyListOf(PeerProperties.class), anyListOf(PeerProperties.class), anyListOf(PeerProperties.class));
+        assertThat("The changes are pending", mPeerChangeBatcher.getNumberOfPendingChanges(), is(2));
+    }
+
+    @Test
+    public void testFlushIsScheduledRightAwayWhenBatchIsFull() throws Exception {
+        mPeerChangeBatcher.onPeerAdded(mPeerProperties1);
+        mPeerChangeBatcher.onPeerAdded(mPeerProperties2);
+        mPeerChangeBatcher.onPeerAdded(new PeerProperties("00:00:00:00:00:03"));
+        mPeerChangeBatcher.onPeerAdded(new PeerProperties("00:00:00:00:00:04"));
+
+        verify(mMockHandler, times(1)).post(isA(Runnable.class));
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        mPeerChangeBatcher.onPeerAdded(mPeerProperties1);
+        mPeerChangeBatcher.onPeerExpiredAndRemoved(mPeerProperties2);
+        mPeerChangeBatcher.flush();
+
+        verify(mMockListener, times(1)).onPeersChanged(
+                Collections.singletonList(mPeerProperties1), mNoPeers, Collections.singletonList(mPeerProperties2));
+        assertThat("No changes are pending", mPeerChangeBatcher.getNumberOfPendingChanges(), is(0));
+
+        mPeerChangeBatcher.flush();
+
+        verify(mMockListener, times(1)).onPeersChanged(
+                anyListOf(PeerProperties.class), anyListOf(PeerProperties.class), anyListOf(PeerProperties.class));
+    }
+
+    @Test
+    public void testChangesAreCoalesced() throws Exception {
+        PeerProperties updatedPeerProperties1 = new PeerProperties("00:00:00:00:00:01", 5);
+
+        // Added and updated -> added with the latest properties
+        mPeerChangeBatcher.onPeerAdded(mPeerProperties1);
+        mPeerChangeBatcher.onPeerUpdated(updatedPeerProperties1);
+
+        // Removed and added again -> updated
+        mPeerChangeBatcher.onPeerExpiredAndRemoved(mPeerProperties2);
+        mPeerChangeBatcher.onPeerAdded(mPeerProperties2);
+
+        mPeerChangeBatcher.flush();
+
+        verify(mMockListener, times(1)).onPeersChanged(
+                mAddedPeersCaptor.capture(), eq(Collections.singletonList(mPeerProperties2)), eq(mNoPeers));
+        assertThat("The peer is reported once", mAddedPeersCaptor.getValue().size(), is(1));
+        assertThat("The latest properties are delivered",
+                mAddedPeersCaptor.getValue().get(0), is(sameInstance(updatedPeerProperties1)));
+    }
+
+    @Test
+    public void testAddedAndRemovedPeerIsNotReported() throws Exception {
+        mPeerChangeBatcher.onPeerUpdated(mPeerProperties2);
+        mPeerChangeBatcher.onPeerAdded(mPeerProperties1);
+        mPeerChangeBatcher.onPeerExpiredAndRemoved(mPeerProperties1);
+        mPeerChangeBatcher.onPeerExpiredAndRemoved(mPeerProperties2);
+        mPeerChangeBatcher.flush();
+
+        verify(mMockListener, times(1)).onPeersChanged(
+                mNoPeers, mNoPeers, Collections.singletonList(mPeerProperties2));
+    }
+
+    @Test
+    public void testAddressCaseIsIgnored() throws Exception {
+        mPeerChangeBatcher.onPeerAdded(new PeerProperties("00:00:00:00:00:0a"));
+        mPeerChangeBatcher.onPeerExpiredAndRemoved(new PeerProperties("00:00:00:00:00:0A"));
+        mPeerChangeBatcher.flush();
+
+        verify(mMockListener, never()).onPeersChanged(
+                anyListOf(PeerProperties.class), anyListOf(PeerProperties.class), anyListOf(PeerProperties.class));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        mPeerChangeBatcher.onPeerAdded(mPeerProperties1);
+        mPeerChangeBatcher.clear();
+        mPeerChangeBatcher.flush();
+
+        verify(mMockHandler, times(1)).removeCallbacks(isA(Runnable.class));
+        verify(mMockListener, never()).onPeersChanged(
+                anyListOf(PeerProperties.class), anyListOf(PeerProperties.class), anyListOf(PeerProperties.class));
+    }
+}
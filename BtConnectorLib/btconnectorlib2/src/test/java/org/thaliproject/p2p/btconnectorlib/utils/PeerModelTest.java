@@ -11,9 +11,8 @@ import org.thaliproject.p2p.btconnectorlib.DiscoveryManagerSettings;
 import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 
 import java.lang.reflect.Field;
-import java.sql.Timestamp;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import static org.hamcrest.CoreMatchers.is;
@@ -42,7 +41,7 @@ public class PeerModelTest {
     CountDownTimer mMockCheckExpiredPeersTimer;
 
     @Mock
-    HashMap mMockMap;
+    LinkedHashMap mMockMap;
 
     @Mock
     PeerProperties mMockPeerProperties;
@@ -56,9 +55,30 @@ public class PeerModelTest {
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
+        when(mMockPeerProperties.getBluetoothMacAddress()).thenReturn("01:00:00:00:00:E0");
+        when(mMockPeerProperties2.getBluetoothMacAddress()).thenReturn("02:00:00:00:00:E0");
         mPeerModel = new PeerModel(mMockListener, mMockDiscoveryManagerSettings);
     }
 
+    /*
+     The peers are expected to be given in the order they were last seen, i.e. the least recently
+     seen first.
+    */
+    private LinkedHashMap<String, PeerModel.DiscoveredPeer> setDiscoveredPeers(
+            PeerProperties[] peerPropertiesArray, long[] timesLastSeen) throws Exception {
+        LinkedHashMap<String, PeerModel.DiscoveredPeer> discoveredPeers = new LinkedHashMap<>();
+
+        for (int i = 0; i < peerPropertiesArray.length; i++) {
+            discoveredPeers.put(peerPropertiesArray[i].getBluetoothMacAddress(),
+                    new PeerModel.DiscoveredPeer(peerPropertiesArray[i], timesLastSeen[i]));
+        }
+
+        Field discoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
+        discoveredPeersField.setAccessible(true);
+        discoveredPeersField.set(mPeerModel, discoveredPeers);
+        return discoveredPeers;
+    }
+
     @After
     public void tearDown() throws Exception {
 
@@ -159,6 +179,7 @@ public class PeerModelTest {
         Field mCheckExpiredPeersTimerField = mPeerModel.getClass().getDeclaredField("mCheckExpiredPeersTimer");
         mCheckExpiredPeersTimerField.setAccessible(true);
         mCheckExpiredPeersTimerField.set(mPeerModel, mMockCheckExpiredPeersTimer);
+        setDiscoveredPeers(new PeerProperties[] { mMockPeerProperties }, new long[] { new Date().getTime() });
         when(mMockDiscoveryManagerSettings.getPeerExpiration()).thenReturn(500L);
         mPeerModel.onPeerExpirationTimeChanged();
 
@@ -172,12 +193,6 @@ public class PeerModelTest {
 
     @Test
     public void testGetDiscoveredPeerByBluetoothMacAddress_NoPeers() throws Exception {
-
-        HashMap<PeerProperties, Timestamp> mDiscoveredPeers = new HashMap<>();
-
-        Field mDiscoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
-        mDiscoveredPeersField.setAccessible(true);
-        mDiscoveredPeersField.set(mPeerModel, mDiscoveredPeers);
         PeerProperties pp = mPeerModel.getDiscoveredPeerByBluetoothMacAddress("testBTAddres");
         assertThat("Is null when no peers found",
                 pp, is(nullValue()));
@@ -187,27 +202,20 @@ public class PeerModelTest {
     public void testGetDiscoveredPeerByBluetoothMacAddress_PeersFound() throws Exception {
         String testBTAddress = "01:00:00:00:00:00:00:E0";
 
-        HashMap<PeerProperties, Timestamp> mDiscoveredPeers = new HashMap<>();
-
-        mDiscoveredPeers.put(mMockPeerProperties, new Timestamp(1000L));
-
         when(mMockPeerProperties.getBluetoothMacAddress()).thenReturn(testBTAddress);
+        setDiscoveredPeers(new PeerProperties[] { mMockPeerProperties }, new long[] { 1000L });
 
-        Field mDiscoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
-        mDiscoveredPeersField.setAccessible(true);
-        mDiscoveredPeersField.set(mPeerModel, mDiscoveredPeers);
         PeerProperties pp = mPeerModel.getDiscoveredPeerByBluetoothMacAddress(testBTAddress);
         assertThat("The proper peer properties instance is returned",
                 pp, is(mMockPeerProperties));
+
+        pp = mPeerModel.getDiscoveredPeerByBluetoothMacAddress(testBTAddress.toLowerCase());
+        assertThat("The case of the address does not matter",
+                pp, is(mMockPeerProperties));
     }
 
     @Test
     public void testGetDiscoveredPeerByDeviceAddress_NoPeers() throws Exception {
-        HashMap<PeerProperties, Timestamp> mDiscoveredPeers = new HashMap<>();
-
-        Field mDiscoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
-        mDiscoveredPeersField.setAccessible(true);
-        mDiscoveredPeersField.set(mPeerModel, mDiscoveredPeers);
         PeerProperties pp = mPeerModel.getDiscoveredPeerByDeviceAddress("testBTAddres");
         assertThat("Is null when no peers found",
                 pp, is(nullValue()));
@@ -218,31 +226,29 @@ public class PeerModelTest {
     public void testGetDiscoveredPeerByDeviceAddress_PeerFound() throws Exception {
         String testDeviceAddress = "testDeviceAddress";
 
-        HashMap<PeerProperties, Timestamp> mDiscoveredPeers = new HashMap<>();
-
-        mDiscoveredPeers.put(mMockPeerProperties, new Timestamp(1000L));
-
         when(mMockPeerProperties.getDeviceAddress()).thenReturn(testDeviceAddress);
+        when(mMockDiscoveryManagerSettings.getPeerExpiration()).thenReturn(500L);
+        mPeerModel.addOrUpdateDiscoveredPeer(mMockPeerProperties);
 
-        Field mDiscoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
-        mDiscoveredPeersField.setAccessible(true);
-        mDiscoveredPeersField.set(mPeerModel, mDiscoveredPeers);
         PeerProperties pp = mPeerModel.getDiscoveredPeerByDeviceAddress(testDeviceAddress);
         assertThat("The proper peer properties instance is returned",
                 pp, is(mMockPeerProperties));
 
+        pp = mPeerModel.getDiscoveredPeerByDeviceAddress(testDeviceAddress.toUpperCase());
+        assertThat("The case of the address does not matter",
+                pp, is(mMockPeerProperties));
+
+        mPeerModel.removePeer(mMockPeerProperties);
+        pp = mPeerModel.getDiscoveredPeerByDeviceAddress(testDeviceAddress);
+        assertThat("Is null when the peer is removed",
+                pp, is(nullValue()));
+
     }
 
     @Test
     public void testRemovePeer() throws Exception {
-
-        HashMap<PeerProperties, Timestamp> mDiscoveredPeers = new HashMap<>();
-
-        mDiscoveredPeers.put(mMockPeerProperties, new Timestamp(1000L));
-
-        Field mDiscoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
-        mDiscoveredPeersField.setAccessible(true);
-        mDiscoveredPeersField.set(mPeerModel, mDiscoveredPeers);
+        LinkedHashMap<String, PeerModel.DiscoveredPeer> mDiscoveredPeers = setDiscoveredPeers(
+                new PeerProperties[] { mMockPeerProperties }, new long[] { 1000L });
 
         PeerProperties pp = mPeerModel.removePeer(mMockPeerProperties);
         assertThat("The proper peer properties instance is returned",
@@ -276,8 +282,8 @@ public class PeerModelTest {
         Field discoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
         discoveredPeersField.setAccessible(true);
         @SuppressWarnings("unchecked")
-        HashMap<PeerProperties, Timestamp> peers
-                = (HashMap<PeerProperties, Timestamp>) discoveredPeersField.get(mPeerModel);
+        LinkedHashMap<String, PeerModel.DiscoveredPeer> peers
+                = (LinkedHashMap<String, PeerModel.DiscoveredPeer>) discoveredPeersField.get(mPeerModel);
 
         assertThat("The peer is added", peers.size(), is(1));
     }
@@ -285,12 +291,7 @@ public class PeerModelTest {
     @Test
     public void testAddOrUpdateDiscoveredPeer_Update() throws Exception {
         // prepare a peer's list
-        HashMap<PeerProperties, Timestamp> mDiscoveredPeers = new HashMap<>();
-        mDiscoveredPeers.put(mMockPeerProperties, new Timestamp(1000L));
-
-        Field mDiscoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
-        mDiscoveredPeersField.setAccessible(true);
-        mDiscoveredPeersField.set(mPeerModel, mDiscoveredPeers);
+        setDiscoveredPeers(new PeerProperties[] { mMockPeerProperties }, new long[] { 1000L });
 
         doNothing().when(mMockListener).onPeerUpdated(isA(PeerProperties.class));
         when(mMockDiscoveryManagerSettings.getPeerExpiration()).thenReturn(500L);
@@ -305,8 +306,8 @@ public class PeerModelTest {
         Field discoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
         discoveredPeersField.setAccessible(true);
         @SuppressWarnings("unchecked")
-        HashMap<PeerProperties, Timestamp> peers
-                = (HashMap<PeerProperties, Timestamp>) discoveredPeersField.get(mPeerModel);
+        LinkedHashMap<String, PeerModel.DiscoveredPeer> peers
+                = (LinkedHashMap<String, PeerModel.DiscoveredPeer>) discoveredPeersField.get(mPeerModel);
 
         assertThat("The peer is added", peers.size(), is(1));
     }
@@ -314,12 +315,7 @@ public class PeerModelTest {
     @Test
     public void testAddOrUpdateDiscoveredPeer_Update2() throws Exception {
         // prepare a peer's list
-        HashMap<PeerProperties, Timestamp> mDiscoveredPeers = new HashMap<>();
-        mDiscoveredPeers.put(mMockPeerProperties, new Timestamp(1000L));
-
-        Field mDiscoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
-        mDiscoveredPeersField.setAccessible(true);
-        mDiscoveredPeersField.set(mPeerModel, mDiscoveredPeers);
+        setDiscoveredPeers(new PeerProperties[] { mMockPeerProperties }, new long[] { 1000L });
 
         doNothing().when(mMockListener).onPeerUpdated(isA(PeerProperties.class));
         when(mMockDiscoveryManagerSettings.getPeerExpiration()).thenReturn(500L);
@@ -334,36 +330,127 @@ public class PeerModelTest {
         Field discoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
         discoveredPeersField.setAccessible(true);
         @SuppressWarnings("unchecked")
-        HashMap<PeerProperties, Timestamp> peers
-                = (HashMap<PeerProperties, Timestamp>) discoveredPeersField.get(mPeerModel);
+        LinkedHashMap<String, PeerModel.DiscoveredPeer> peers
+                = (LinkedHashMap<String, PeerModel.DiscoveredPeer>) discoveredPeersField.get(mPeerModel);
 
         assertThat("The peer is added", peers.size(), is(1));
     }
 
     @Test
     public void testCheckListForExpiredPeers() throws Exception {
-        HashMap<PeerProperties, Timestamp> mDiscoveredPeers = new HashMap<>();
         long hourBefore = new Date().getTime() - 3600 * 1000;
         long dayBefore = new Date().getTime() - 24 * 3600 * 1000;
         long halfDay = 12 * 3600 * 1000;
 
         when(mMockDiscoveryManagerSettings.getPeerExpiration()).thenReturn(halfDay);
 
-        mDiscoveredPeers.put(mMockPeerProperties, new Timestamp(hourBefore));
-        mDiscoveredPeers.put(mMockPeerProperties2, new Timestamp(dayBefore));
-
-        Field mDiscoveredPeersField = mPeerModel.getClass().getDeclaredField("mDiscoveredPeers");
-        mDiscoveredPeersField.setAccessible(true);
-        mDiscoveredPeersField.set(mPeerModel, mDiscoveredPeers);
+        LinkedHashMap<String, PeerModel.DiscoveredPeer> peers = setDiscoveredPeers(
+                new PeerProperties[] { mMockPeerProperties2, mMockPeerProperties },
+                new long[] { dayBefore, hourBefore });
 
         mPeerModel.checkListForExpiredPeers();
 
-        @SuppressWarnings("unchecked")
-        HashMap<PeerProperties, Timestamp> peers
-                = (HashMap<PeerProperties, Timestamp>) mDiscoveredPeersField.get(mPeerModel);
-
         assertThat("The expired peer is removed", peers.size(), is(1));
 
         verify(mMockListener, times(1)).onPeerExpiredAndRemoved(isA(PeerProperties.class));
+        verify(mMockListener, times(1)).onPeerExpiredAndRemoved(mMockPeerProperties2);
+    }
+
+    @Test
+    public void testCheckListForExpiredPeers_UpdatedPeerDoesNotExpire() throws Exception {
+        long dayBefore = new Date().getTime() - 24 * 3600 * 1000;
+        long halfDay = 12 * 3600 * 1000;
+
+        when(mMockDiscoveryManagerSettings.getPeerExpiration()).thenReturn(halfDay);
+        setDiscoveredPeers(
+                new PeerProperties[] { mMockPeerProperties, mMockPeerProperties2 },
+                new long[] { dayBefore, dayBefore });
+
+        // Seeing the peer again moves it to the end of the expiration order
+        mPeerModel.addOrUpdateDiscoveredPeer(mMockPeerProperties);
+        mPeerModel.checkListForExpiredPeers();
+
+        verify(mMockListener, times(1)).onPeerExpiredAndRemoved(mMockPeerProperties2);
+        verify(mMockListener, never()).onPeerExpiredAndRemoved(mMockPeerProperties);
+        assertThat("The updated peer is kept",
+                mPeerModel.getDiscoveredPeerByBluetoothMacAddress("01:00:00:00:00:E0"), is(mMockPeerProperties));
+        assertThat("The expired peer is removed", mPeerModel.getNumberOfDiscoveredPeers(), is(1));
+    }
+
+    @Test
+    public void testAddOrUpdateDiscoveredPeer_NoBluetoothMacAddress() throws Exception {
+        when(mMockPeerProperties.getBluetoothMacAddress()).thenReturn(null);
+        when(mMockDiscoveryManagerSettings.getPeerExpiration()).thenReturn(500L);
+
+        mPeerModel.addOrUpdateDiscoveredPeer(mMockPeerProperties);
+
+        verify(mMockListener, never()).onPeerAdded(isA(PeerProperties.class));
+        assertThat("The peer without a Bluetooth MAC address is not added",
+                mPeerModel.getNumberOfDiscoveredPeers(), is(0));
+    }
+
+    @Test
+    public void testAddOrUpdateDiscoveredPeer_IndexedLookup() throws Exception {
+        when(mMockDiscoveryManagerSettings.getPeerExpiration()).thenReturn(500L);
+        mPeerModel.removeListener(mMockListener);
+        final int numberOfPeers = 2000;
+
+        for (int i = 0; i < numberOfPeers; i++) {
+            mPeerModel.addOrUpdateDiscoveredPeer(new PeerProperties(String.format("00:00:00:00:%02x:%02x", i / 256, i % 256)));
+        }
+
+        for (int i = 0; i < numberOfPeers; i++) {
+            mPeerModel.addOrUpdateDiscoveredPeer(new PeerProperties(String.format("00:00:00:00:%02X:%02X", i / 256, i % 256)));
+        }
+
+        assertThat("Updating with the address in another case does not add peers",
+                mPeerModel.getNumberOfDiscoveredPeers(), is(numberOfPeers));
+
+        for (int i = 0; i < numberOfPeers; i++) {
+            String bluetoothMacAddress = String.format("00:00:00:00:%02x:%02x", i / 256, i % 256);
+            PeerProperties peerProperties = mPeerModel.getDiscoveredPeerByBluetoothMacAddress(bluetoothMacAddress);
+
+            assertThat("Every peer is found by its address", peerProperties, is(notNullValue()));
+            assertThat("The peer found agrees with equals()",
+                    peerProperties.equals(new PeerProperties(bluetoothMacAddress)), is(true));
+        }
+    }
+
+    @Test
+    public void testGetSnapshot() throws Exception {
+        when(mMockDiscoveryManagerSettings.getPeerExpiration()).thenReturn(500L);
+        PeerModel.Snapshot initialSnapshot = mPeerModel.getSnapshot();
+
+        assertThat("The initial snapshot is empty", initialSnapshot.getPeers().size(), is(0));
+
+        PeerProperties peerProperties = new PeerProperties("00:00:00:00:00:01");
+        mPeerModel.addOrUpdateDiscoveredPeer(peerProperties);
+        PeerModel.Snapshot snapshot = mPeerModel.getSnapshot();
+
+        assertThat("A new version is published", snapshot.getVersion(), is(initialSnapshot.getVersion() + 1));
+        assertThat("The version is the one of the latest snapshot", mPeerModel.getVersion(), is(snapshot.getVersion()));
+        assertThat("The added peer is in the snapshot", snapshot.getPeers().get(0), is(peerProperties));
+        assertThat("The old snapshot is not changed", initialSnapshot.getPeers().size(), is(0));
+
+        mPeerModel.addOrUpdateDiscoveredPeer(new PeerProperties("00:00:00:00:00:01"));
+
+        assertThat("Seeing the peer again without new information does not change the snapshot",
+                mPeerModel.getSnapshot(), is(snapshot));
+
+        mPeerModel.addOrUpdateDiscoveredPeer(new PeerProperties("00:00:00:00:00:01", 5));
+
+        assertThat("Updating the peer publishes a new version",
+                mPeerModel.getVersion(), is(snapshot.getVersion() + 1));
+
+        mPeerModel.removePeer(peerProperties);
+
+        assertThat("Removing the peer publishes a new version",
+                mPeerModel.getVersion(), is(snapshot.getVersion() + 2));
+        assertThat("The removed peer is not in the snapshot", mPeerModel.getSnapshot().getPeers().size(), is(0));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotIsImmutable() throws Exception {
+        mPeerModel.getSnapshot().getPeers().add(new PeerProperties("00:00:00:00:00:01"));
     }
-}
\ No newline at end of file
+}
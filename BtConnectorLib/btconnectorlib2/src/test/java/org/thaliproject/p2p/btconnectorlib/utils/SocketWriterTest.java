@@ -0,0 +1,198 @@
+package org.thaliproject.p2p.btconnectorlib.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SocketWriterTest {
+
+    private static final long TIMEOUT_IN_SECONDS = 5;
+    private BlockingOutputStream mOutputStream;
+    private List<Boolean> mWritabilityChanges;
+    private List<byte[]> mBytesWritten;
+    private SocketWriter mSocketWriter;
+
+    /**
+     * Records the writes and blocks the first write until released.
+     */
+    private static class BlockingOutputStream extends OutputStream {
+        final List<Integer> mWriteSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch mFirstWriteStarted = new CountDownLatch(1);
+        final CountDownLatch mReleaseFirstWrite = new CountDownLatch(1);
+        volatile boolean mFail = false;
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            write(new byte[] { (byte) oneByte }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mFail) {
+                throw new IOException("Broken pipe");
+            }
+
+            mFirstWriteStarted.countDown();
+
+            try {
+                mReleaseFirstWrite.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e.getMessage());
+            }
+
+            mWriteSizes.add(count);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mOutputStream = new BlockingOutputStream();
+        mWritabilityChanges = Collections.synchronizedList(new ArrayList<Boolean>());
+        mBytesWritten = Collections.synchronizedList(new ArrayList<byte[]>());
+        mSocketWriter = new SocketWriter(mOutputStream, new SocketWriter.Listener() {
+            @Override
+            public void onBytesWritten(byte[] bytes) {
+                mBytesWritten.add(bytes);
+            }
+
+            @Override
+            public void onWritabilityChanged(boolean isWritable) {
+                mWritabilityChanges.add(isWritable);
+            }
+        }, "TestSocketWriter", 100, 50, 10, 40);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mOutputStream.mReleaseFirstWrite.countDown();
+        mSocketWriter.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorWithInvalidWaterMarks() throws Exception {
+        new SocketWriter(mOutputStream, new SocketWriter.Listener() {
+            @Override
+            public void onBytesWritten(byte[] bytes) {
+            }
+
+            @Override
+            public void onWritabilityChanged(boolean isWritable) {
+            }
+        }, "TestSocketWriter", 100, 10, 50, 40);
+    }
+
+    @Test
+    public void testWriteCoalescesQueuedWrites() throws Exception {
+        Future<Boolean> first = mSocketWriter.write(new byte[5]);
+        assertThat("The first write is started",
+                mOutputStream.mFirstWriteStarted.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(true));
+
+        // Queued while the first write is blocked
+        Future<Boolean> second = mSocketWriter.write(new byte[10]);
+        Future<Boolean> third = mSocketWriter.write(new byte[20]);
+        Future<Boolean> fourth = mSocketWriter.write(new byte[30]);
+
+        assertThat("The write does not block", second.isDone(), is(false));
+        assertThat("The queued bytes are counted", mSocketWriter.getNumberOfQueuedBytes(), is(65));
+
+        mOutputStream.mReleaseFirstWrite.countDown();
+
+        assertThat("The first write succeeds", first.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(true));
+        assertThat("The second write succeeds", second.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(true));
+        assertThat("The third write succeeds", third.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(true));
+        assertThat("The fourth write succeeds", fourth.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(true));
+
+        assertThat("The writes fitting in a batch are coalesced",
+                mOutputStream.mWriteSizes.toString(), is("[5, 30, 30]"));
+        assertThat("The listener is notified about every write", mBytesWritten.size(), is(4));
+        assertThat("No bytes are queued", mSocketWriter.getNumberOfQueuedBytes(), is(0));
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        mSocketWriter.write(new byte[1]);
+        assertThat("The first write is started",
+                mOutputStream.mFirstWriteStarted.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(true));
+
+        mSocketWriter.write(new byte[30]);
+        assertThat("Writable below the high water mark", mSocketWriter.isWritable(), is(true));
+
+        mSocketWriter.write(new byte[30]);
+        assertThat("Not writable at the high water mark", mSocketWriter.isWritable(), is(false));
+        assertThat("The listener is notified", mWritabilityChanges.toString(), is("[false]"));
+
+        Future<Boolean> rejected = mSocketWriter.write(new byte[50]);
+        assertThat("A write exceeding the capacity is rejected",
+                rejected.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(false));
+
+        Future<Boolean> cancelled = mSocketWriter.write(new byte[5]);
+        assertThat("A queued write can be cancelled", cancelled.cancel(false), is(true));
+        assertThat("The write is cancelled", cancelled.isCancelled(), is(true));
+
+        mOutputStream.mReleaseFirstWrite.countDown();
+        Future<Boolean> last = mSocketWriter.write(new byte[1]);
+        last.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+
+        assertThat("Writable again after draining", mSocketWriter.isWritable(), is(true));
+        assertThat("The listener is notified", mWritabilityChanges.toString(), is("[false, true]"));
+    }
+
+    @Test
+    public void testCancelRestoresWritability() throws Exception {
+        mSocketWriter.write(new byte[1]);
+        assertThat("The first write is started",
+                mOutputStream.mFirstWriteStarted.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(true));
+
+        Future<Boolean> second = mSocketWriter.write(new byte[30]);
+        Future<Boolean> third = mSocketWriter.write(new byte[30]);
+        assertThat("Not writable at the high water mark", mSocketWriter.isWritable(), is(false));
+
+        second.cancel(false);
+        assertThat("Not writable above the low water mark", mSocketWriter.isWritable(), is(false));
+
+        third.cancel(false);
+        assertThat("Writable again, while the first write is still blocked",
+                mSocketWriter.isWritable(), is(true));
+        assertThat("No bytes are queued", mSocketWriter.getNumberOfQueuedBytes(), is(0));
+        assertThat("The listener is notified", mWritabilityChanges.toString(), is("[false, true]"));
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        mOutputStream.mFail = true;
+        mOutputStream.mReleaseFirstWrite.countDown();
+
+        assertThat("A failed write completes with false",
+                mSocketWriter.write(new byte[5]).get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(false));
+        assertThat("The writes are rejected after a failure",
+                mSocketWriter.write(new byte[5]).get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(false));
+        assertThat("The listener is not notified", mBytesWritten.size(), is(0));
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        mSocketWriter.write(new byte[1]);
+        assertThat("The first write is started",
+                mOutputStream.mFirstWriteStarted.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(true));
+        Future<Boolean> queued = mSocketWriter.write(new byte[5]);
+
+        mSocketWriter.close();
+
+        assertThat("The queued writes fail on close",
+                queued.get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(false));
+        assertThat("The writes are rejected after close",
+                mSocketWriter.write(new byte[5]).get(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS), is(false));
+    }
+}
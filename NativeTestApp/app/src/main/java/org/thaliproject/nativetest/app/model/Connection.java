@@ -9,6 +9,11 @@ import org.thaliproject.p2p.btconnectorlib.PeerProperties;
 import org.thaliproject.p2p.btconnectorlib.utils.BluetoothSocketIoThread;
 import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Represents a two-way connection to a peer.
@@ -29,6 +34,7 @@ public class Connection implements BluetoothSocketIoThread.Listener {
     private static final byte[] PING_PACKAGE = new String("Is there anybody out there?").getBytes();
     private Listener mListener = null;
     private BluetoothSocketIoThread mBluetoothSocketIoThread = null;
+    private final ExecutorService mWriteResultExecutor = Executors.newSingleThreadExecutor();
     private PeerProperties mPeerProperties = null;
     private String mPeerId = null;
     private boolean mIsIncoming = false;
@@ -119,8 +125,43 @@ public class Connection implements BluetoothSocketIoThread.Listener {
      * @param bytes The bytes to send.
      */
     public void send(byte[] bytes) {
-        SocketWriterThread thread = new SocketWriterThread();
-        thread.write(bytes);
+        final Future<Boolean> writeFuture = mBluetoothSocketIoThread.writeAsync(bytes);
+        final int numberOfBytes = bytes.length;
+
+        if (writeFuture.isDone()) {
+            // Rejected right away e.g. the write queue is full
+            logIfWriteFailed(writeFuture, numberOfBytes);
+        } else {
+            try {
+                mWriteResultExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        logIfWriteFailed(writeFuture, numberOfBytes);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.d(TAG, "send: Already closed, not waiting for the write to complete");
+            }
+        }
+    }
+
+    /**
+     * Waits for the given write to complete and logs an error, if it failed.
+     * @param writeFuture The completion handle of the write.
+     * @param numberOfBytes The number of bytes written.
+     */
+    private void logIfWriteFailed(Future<Boolean> writeFuture, int numberOfBytes) {
+        boolean wasSuccessful = false;
+
+        try {
+            wasSuccessful = writeFuture.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "logIfWriteFailed: " + e.getMessage());
+        }
+
+        if (!wasSuccessful) {
+            Log.e(TAG, "send: Failed to write " + numberOfBytes + " bytes");
+        }
     }
 
     /**
@@ -156,6 +197,7 @@ public class Connection implements BluetoothSocketIoThread.Listener {
     public void close(boolean closeSocket) {
         if (!mIsClosed) {
             mBluetoothSocketIoThread.close(true, closeSocket);
+            mWriteResultExecutor.shutdown(); // The queued writes fail on close and are still logged
             Log.d(TAG, "close: Closed");
             mIsClosed = true;
         }
@@ -241,25 +283,6 @@ public class Connection implements BluetoothSocketIoThread.Listener {
         mListener.onDisconnected(reason, this);
     }
 
-    /**
-     * Thread for sending data to a peer using "fire and forget" principle.
-     */
-    private class SocketWriterThread extends Thread {
-        private byte[] mBytesToWrite = null;
-
-        public void write(byte[] bytes) {
-            mBytesToWrite = bytes;
-            this.start();
-        }
-
-        @Override
-        public void run() {
-            if (!mBluetoothSocketIoThread.write(mBytesToWrite)) {
-                Log.e(TAG, "SocketWriterThread: Failed to write " + mBytesToWrite.length + " bytes");
-            }
-        }
-    }
-
     /**
      * Helper for sending large amounts of data in chunks.
      */
@@ -296,9 +319,9 @@ public class Connection implements BluetoothSocketIoThread.Listener {
          */
         public float calculateCurrentTransferSpeed(long currentTime) {
             if (currentTime > mStartTime) {
-                long secondsElapsed = (currentTime - mStartTime) / 1000;
+                double secondsElapsed = (currentTime - mStartTime) / 1000d;
                 double dataSentSoFar = (double)(mDataAmount - mDataAmountLeft);
-                return (float)(dataSentSoFar / (1024 * 1024)) / secondsElapsed;
+                return (float)((dataSentSoFar / (1024 * 1024)) / secondsElapsed);
             }
 
             return 0;
@@ -308,9 +331,9 @@ public class Connection implements BluetoothSocketIoThread.Listener {
          * @return The final transfer speed in megabytes.
          */
         public float calculateFinalTransferSpeed() {
-            if (mEndTime != 0) {
-                long secondsElapsed = (mEndTime - mStartTime) / 1000;
-                return (float)mDataAmountInMegaBytes / secondsElapsed;
+            if (mEndTime > mStartTime) {
+                double secondsElapsed = (mEndTime - mStartTime) / 1000d;
+                return (float)(mDataAmountInMegaBytes / secondsElapsed);
             }
 
             return 0;